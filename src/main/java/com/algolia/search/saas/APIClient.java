@@ -2,36 +2,32 @@ package com.algolia.search.saas;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
-import java.net.URI;
-import java.net.URISyntaxException;
+import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 
 import org.apache.commons.codec.binary.Hex;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.methods.HttpDelete;
-import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.client.methods.HttpPut;
-import org.apache.http.client.methods.HttpRequestBase;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.message.BasicHeader;
-import org.apache.http.protocol.HTTP;
-import org.apache.http.util.EntityUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -40,6 +36,9 @@ import org.json.JSONTokener;
 import android.app.Activity;
 import android.os.AsyncTask;
 
+import com.algolia.search.saas.CircuitBreaker.EndpointClass;
+import com.algolia.search.saas.PriorityScheduler.Priority;
+
 /*
  * Copyright (c) 2015 Algolia
  * http://www.algolia.com/
@@ -67,22 +66,48 @@ import android.os.AsyncTask;
  * Entry point in the Java API.
  * You should instantiate a Client object with your ApplicationID, ApiKey and Hosts 
  * to start using Algolia Search API
+ * A client can be shared by threads: its requests are sent concurrently, not one at a time.
  */
 public class APIClient {
-    private int httpSocketTimeoutMS = 30000;
-    private int httpConnectTimeoutMS = 2000;
-    private int httpSearchTimeoutMS = 5000;
+    private volatile int httpSocketTimeoutMS = 30000;
+    private volatile int httpConnectTimeoutMS = 2000;
+    private volatile int httpSearchTimeoutMS = 5000;
     
     private final static String version = "1.6.6";
+    final static String HOSTS_UNREACHABLE = "Hosts unreachable: ";
+    final static String REQUEST_CANCELLED = "Request cancelled";
+    final static String RATE_LIMITED = "Rate limit exceeded";
+    
+    /**
+     * Delays the retries and the requests queued by the rate limiter without blocking the transport
+     */
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "AlgoliaScheduler");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
     
     private final String applicationID;
     private final String apiKey;
     private final List<String> readHostsArray;
     private final List<String> writeHostsArray;
-    private final DefaultHttpClient httpClient;
-    private String tagFilters;
-    private String userToken;
-    private HashMap<String, String> headers;
+    // read by the requests of all threads
+    private volatile String tagFilters;
+    private volatile String userToken;
+    private final ConcurrentHashMap<String, String> headers = new ConcurrentHashMap<String, String>();
+    // time of the last write call per index name, "*" for the calls writing several indexes
+    private final ConcurrentHashMap<String, Long> writtenAt = new ConcurrentHashMap<String, Long>();
+    private volatile DiskResponseCache responseCache;
+    private volatile HttpTransport transport = new ApacheHttpTransport();
+    private volatile CircuitBreaker circuitBreaker = new CircuitBreaker();
+    private volatile RetryPolicy retryPolicy = new RetryPolicy();
+    private volatile RateLimiter rateLimiter;
+    private volatile ConcurrencyLimiter concurrencyLimiter;
+    private volatile PriorityScheduler priorityScheduler;
+    private volatile MetricsRegistry metrics = new MetricsRegistry();
+    private final BufferPool bufferPool = new BufferPool(BufferPool.DEFAULT_BUFFER_SIZE, 4);
     
     /**
      * Algolia Search initialization
@@ -143,17 +168,157 @@ public class APIClient {
         } else {
         	readHostsArray = writeHostsArray = hostsArray;
         }
-        httpClient = new DefaultHttpClient();
-        headers = new HashMap<String, String>();
+        _prefetchHosts(transport);
+    }
+    
+    /**
+     * Resolve the hosts in background so that the first requests and failovers do not wait for DNS
+     */
+    private void _prefetchHosts(HttpTransport transport) {
+    	List<String> hosts = new ArrayList<String>(readHostsArray);
+    	hosts.addAll(writeHostsArray);
+    	transport.getDnsCache().prefetch(hosts);
     }
     
     /**
-     * Allow to set custom headers
+     * Allow to set custom headers, a null value removes the header
      */
     public void setExtraHeader(String key, String value) {
-    	headers.put(key, value);
+    	if (value == null) {
+    		headers.remove(key);
+    	} else {
+    		headers.put(key, value);
+    	}
     }
    
+    /**
+     * Set the persistent cache used for read requests (search, getObject, getSettings, browse), null to disable
+     */
+    public void setResponseCache(DiskResponseCache cache) {
+    	this.responseCache = cache;
+    }
+
+    public DiskResponseCache getResponseCache() {
+    	return responseCache;
+    }
+
+    /**
+     * Set the HTTP stack used to send requests (ApacheHttpTransport by default)
+     */
+    public void setTransport(HttpTransport transport) {
+    	if (transport == null) {
+    		throw new IllegalArgumentException("transport cannot be null");
+    	}
+    	this.transport = transport;
+    	_prefetchHosts(transport);
+    }
+
+    public HttpTransport getTransport() {
+    	return transport;
+    }
+
+    /**
+     * Set the circuit breakers skipping the hosts that keep failing (null to always try all the hosts in order)
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+    	this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * The circuit breakers of the hosts, getStats() gives the state of each host
+     */
+    public CircuitBreaker getCircuitBreaker() {
+    	return circuitBreaker;
+    }
+
+    /**
+     * Set the policy retrying write requests on the next host (null to retry immediately on every host, as reads do)
+     */
+    public void setRetryPolicy(RetryPolicy retryPolicy) {
+    	this.retryPolicy = retryPolicy;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+    	return retryPolicy;
+    }
+
+    /**
+     * Set the limits pacing the calls of this client (null, the default, for none)
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) {
+    	this.rateLimiter = rateLimiter;
+    }
+
+    public RateLimiter getRateLimiter() {
+    	return rateLimiter;
+    }
+
+    /**
+     * Set the adaptive limit of the write calls sent in parallel, e.g. by bulk indexing (null, the default, for none)
+     */
+    public void setConcurrencyLimiter(ConcurrencyLimiter concurrencyLimiter) {
+    	this.concurrencyLimiter = concurrencyLimiter;
+    }
+
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+    	return concurrencyLimiter;
+    }
+
+    /**
+     * Set the scheduler sharing the connections between interactive, normal and background calls
+     * (null, the default, for none)
+     */
+    public void setPriorityScheduler(PriorityScheduler priorityScheduler) {
+    	this.priorityScheduler = priorityScheduler;
+    }
+
+    public PriorityScheduler getPriorityScheduler() {
+    	return priorityScheduler;
+    }
+
+    /**
+     * Set the registry recording the latency, bytes and retries of the calls (null to record nothing)
+     */
+    public void setMetrics(MetricsRegistry metrics) {
+    	this.metrics = metrics;
+    }
+
+    /**
+     * @return the metrics of the calls, e.g. getMetrics().snapshot() to export them
+     */
+    public MetricsRegistry getMetrics() {
+    	return metrics;
+    }
+
+    /**
+     * Open a connection to the read hosts in background, see warmUp(int)
+     */
+    public void warmUp() {
+    	warmUp(1);
+    }
+    
+    /**
+     * Open connections to the read hosts in background so that the first searches do not pay the
+     * DNS resolution and the TCP and TLS handshakes. Lightweight requests are sent with the usual
+     * failover, the connections therefore go to the first reachable host, the one searches use.
+     * They stay in the pool of the transport until its idle timeout.
+     * 
+     * @param connections number of connections to open (the searches expected in parallel at startup)
+     */
+    public void warmUp(int connections) {
+    	ResultHandler<byte[]> ignored = new ResultHandler<byte[]>() {
+    		public void onResult(byte[] result) {
+    		}
+    		
+    		public void onError(AlgoliaException error) {
+    		}
+    	};
+    	// sent concurrently so that each request needs its own connection
+    	for (int i = 0; i < connections; ++i) {
+    		getRequestAsync("/1/isalive", false, ignored);
+    	}
+    }
+
     /**
      * Allow to set timeout
      * @param connectTimeout connection timeout in MS
@@ -930,143 +1095,623 @@ public class APIClient {
     }
     
     protected JSONObject getRequest(String url, boolean search) throws AlgoliaException {
-    	return _request(Method.GET, url, null, readHostsArray, httpConnectTimeoutMS, search ? httpSearchTimeoutMS : httpSocketTimeoutMS);
+    	return _parseAnswer(_getRequestRaw(url, search, false, null));
+    }
+    
+    /**
+     * Serve the answer from the response cache, if any, else call the method above so subclasses
+     * overriding it see every call
+     * 
+     * @param cacheable true if the answer can be served by the response cache
+     */
+    protected JSONObject getRequest(final String url, final boolean search, boolean cacheable) throws AlgoliaException {
+    	DiskResponseCache cache = responseCache;
+    	if (!cacheable || cache == null) {
+    		return getRequest(url, search);
+    	}
+    	String key = _cacheKey(Method.GET, url);
+    	byte[] body = _cachedAnswer(cache, key, url, new Callable<byte[]>() {
+    		public byte[] call() throws AlgoliaException {
+    			return getRequest(url, search).toString().getBytes(JSONReader.UTF8);
+    		}
+    	});
+    	if (body != null) {
+    		return _parseAnswer(body);
+    	}
+    	long requestedAt = System.currentTimeMillis();
+    	JSONObject answer = getRequest(url, search);
+    	cache.put(key, _indexName(url), requestedAt, answer.toString().getBytes(JSONReader.UTF8));
+    	return answer;
+    }
+    
+    /**
+     * Without options, calls the method above so subclasses overriding it see every call
+     * 
+     * @param options deadline and cancellation of the call (null for none)
+     */
+    protected JSONObject getRequest(String url, boolean search, boolean cacheable, RequestOptions options) throws AlgoliaException {
+    	if (options == null) {
+    		return getRequest(url, search, cacheable);
+    	}
+    	return _parseAnswer(getRequestRaw(url, search, cacheable, options));
+    }
+    
+    /**
+     * Same as getRequest but returns the undecoded UTF-8 body of the answer
+     */
+    protected byte[] getRequestRaw(String url, boolean search, boolean cacheable) throws AlgoliaException {
+    	return _getRequestRaw(url, search, cacheable, null);
+    }
+    
+    protected byte[] getRequestRaw(String url, boolean search, boolean cacheable, RequestOptions options) throws AlgoliaException {
+    	if (options == null) {
+    		return getRequestRaw(url, search, cacheable);
+    	}
+    	return _getRequestRaw(url, search, cacheable, options);
+    }
+    
+    private byte[] _getRequestRaw(final String url, boolean search, boolean cacheable, RequestOptions options) throws AlgoliaException {
+    	final int readTimeout = search ? httpSearchTimeoutMS : httpSocketTimeoutMS;
+    	DiskResponseCache cache = responseCache;
+    	if (!cacheable || cache == null) {
+    		return _requestRaw(Method.GET, url, null, EndpointClass.READ, httpConnectTimeoutMS, readTimeout, options);
+    	}
+    	String key = _cacheKey(Method.GET, url);
+    	byte[] cached = _cachedAnswer(cache, key, url, new Callable<byte[]>() {
+    		public byte[] call() throws AlgoliaException {
+    			return _requestRaw(Method.GET, url, null, EndpointClass.READ, httpConnectTimeoutMS, readTimeout, null);
+    		}
+    	});
+    	if (cached != null) {
+    		return cached;
+    	}
+    	long requestedAt = System.currentTimeMillis();
+    	byte[] body = _requestRaw(Method.GET, url, null, EndpointClass.READ, httpConnectTimeoutMS, readTimeout, options);
+    	cache.put(key, _indexName(url), requestedAt, body);
+    	return body;
+    }
+    
+    /**
+     * @param fetch call refreshing the entry in background if it is stale
+     * @return the answer stored in the response cache, null if none is fresh enough
+     */
+    private static byte[] _cachedAnswer(DiskResponseCache cache, String key, String url, Callable<byte[]> fetch) {
+    	DiskResponseCache.Entry entry = cache.get(key);
+    	if (entry == null) {
+    		return null;
+    	}
+    	long age = System.currentTimeMillis() - entry.storedAt;
+    	if (age > cache.getMaxAgeMS() + cache.getMaxStaleMS()) {
+    		return null;
+    	}
+    	if (age > cache.getMaxAgeMS()) {
+    		cache.revalidate(key, _indexName(url), fetch);
+    	}
+    	return entry.body;
+    }
+    
+    /**
+     * Note the time of a write call and evict the cached answers it may have changed: those of its index,
+     * or all of them when it targets several indexes (batch on *, copy or move)
+     */
+    private void _written(EndpointClass endpoint, String url) {
+    	if (endpoint != EndpointClass.WRITE) {
+    		return;
+    	}
+    	String indexName = _indexName(url);
+    	int query = url.indexOf('?');
+    	String path = query >= 0 ? url.substring(0, query) : url;
+    	if (indexName == null || path.endsWith("/operation")) {
+    		indexName = "*";
+    	}
+    	writtenAt.put(indexName, System.currentTimeMillis());
+    	DiskResponseCache cache = responseCache;
+    	if (cache != null) {
+    		cache.invalidate(indexName.equals("*") ? null : indexName);
+    	}
+    }
+    
+    /**
+     * @return the time of the last write call sent through this client that may have changed the index, 0 if none
+     */
+    long lastWriteAt(String indexName) {
+    	Long index = writtenAt.get(indexName);
+    	Long all = writtenAt.get("*");
+    	return Math.max(index != null ? index : 0, all != null ? all : 0);
     }
     
     protected JSONObject deleteRequest(String url) throws AlgoliaException {
-    	return _request(Method.DELETE, url, null, writeHostsArray, httpConnectTimeoutMS, httpSocketTimeoutMS);
+    	return _request(Method.DELETE, url, null, EndpointClass.WRITE, httpConnectTimeoutMS, httpSocketTimeoutMS, null);
     }
     
     protected JSONObject postRequest(String url, String obj, boolean readOperation) throws AlgoliaException {
-    	return _request(Method.POST, url, obj, (readOperation ? readHostsArray : writeHostsArray), httpConnectTimeoutMS, (readOperation ? httpSearchTimeoutMS : httpSocketTimeoutMS));
+    	return _parseAnswer(postRequestRaw(url, obj, readOperation));
+    }
+    
+    /**
+     * Without options, calls the method above so subclasses overriding it see every call
+     * 
+     * @param options deadline and cancellation of the call (null for none)
+     */
+    protected JSONObject postRequest(String url, String obj, boolean readOperation, RequestOptions options) throws AlgoliaException {
+    	if (options == null) {
+    		return postRequest(url, obj, readOperation);
+    	}
+    	return _parseAnswer(postRequestRaw(url, obj, readOperation, options));
+    }
+    
+    /**
+     * Same as postRequest but returns the undecoded UTF-8 body of the answer
+     */
+    protected byte[] postRequestRaw(String url, String obj, boolean readOperation) throws AlgoliaException {
+    	return _postRequestRaw(url, obj, readOperation, null);
+    }
+    
+    protected byte[] postRequestRaw(String url, String obj, boolean readOperation, RequestOptions options) throws AlgoliaException {
+    	if (options == null) {
+    		return postRequestRaw(url, obj, readOperation);
+    	}
+    	return _postRequestRaw(url, obj, readOperation, options);
+    }
+    
+    private byte[] _postRequestRaw(String url, String obj, boolean readOperation, RequestOptions options) throws AlgoliaException {
+    	return _requestRaw(Method.POST, url, obj, (readOperation ? EndpointClass.READ : EndpointClass.WRITE), httpConnectTimeoutMS, (readOperation ? httpSearchTimeoutMS : httpSocketTimeoutMS), options);
     }
     
     protected JSONObject putRequest(String url, String obj) throws AlgoliaException {
-    	return _request(Method.PUT, url, obj, writeHostsArray, httpConnectTimeoutMS, httpSocketTimeoutMS);
+    	return _request(Method.PUT, url, obj, EndpointClass.WRITE, httpConnectTimeoutMS, httpSocketTimeoutMS, null);
     }
     
     private JSONObject _getAnswerObject(InputStream istream) throws IOException, JSONException {
-    	InputStreamReader is = new InputStreamReader(istream, "UTF-8");
-    	StringBuilder builder= new StringBuilder();
-        char[] buf = new char[1000];
-        int l = 0;
-        while (l >= 0) {
-            builder.append(buf, 0, l);
-            l = is.read(buf);
-        }
-        JSONTokener tokener = new JSONTokener(builder.toString());
-        JSONObject res = new JSONObject(tokener);
-        is.close();
-        return res;
+    	return _getAnswerObject(bufferPool.readFully(istream, -1));
+    }
+    
+    private JSONObject _getAnswerObject(byte[] body) throws JSONException {
+    	return new JSONObject(new JSONTokener(bufferPool.decode(body)));
+    }
+    
+    private JSONObject _parseAnswer(byte[] body) throws AlgoliaException {
+    	try {
+    		return _getAnswerObject(body);
+    	} catch (JSONException e) {
+    		throw new AlgoliaException("JSON decode error:" + e.getMessage());
+    	}
+    }
+    
+    /**
+     * Key of a request in the response cache: the answer depends on the credentials and security headers
+     */
+    private String _cacheKey(Method m, String url) {
+    	return _cacheKey(m + " " + url);
     }
     
-    private synchronized JSONObject _request(Method m, String url, String json, List<String> hostsArray, int connectTimeout, int readTimeout) throws AlgoliaException {
-    	HttpRequestBase req;
+    /**
+     * Key of a cached answer to a request, also used by the count cache of DisjunctiveFacetingEngine
+     */
+    String _cacheKey(String request) {
+    	StringBuilder key = new StringBuilder();
+    	key.append(applicationID).append('\n').append(apiKey).append('\n');
+    	key.append(tagFilters).append('\n').append(userToken).append('\n');
+    	// sorted copy: the headers can be changed by other threads while building the key
+    	for (Entry<String, String> entry : new TreeMap<String, String>(headers).entrySet()) {
+    		key.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+    	}
+    	key.append(request);
+    	return key.toString();
+    }
+    
+    private JSONObject _request(Method m, String url, String json, EndpointClass endpoint, int connectTimeout, int readTimeout, RequestOptions options) throws AlgoliaException {
+    	return _parseAnswer(_requestRaw(m, url, json, endpoint, connectTimeout, readTimeout, options));
+    }
+    
+    private byte[] _requestRaw(Method m, String url, String json, EndpointClass endpoint, int connectTimeout, int readTimeout, RequestOptions options) throws AlgoliaException {
+    	long calledAt = System.nanoTime();
+    	long deadline = RequestOptions.deadline(options, System.currentTimeMillis());
+    	long delay = _acquireRate(url, endpoint, deadline);
+    	if (delay > 0) {
+    		try {
+    			Thread.sleep(delay);
+    		} catch (InterruptedException e) {
+    			Thread.currentThread().interrupt();
+    			throw new AlgoliaException("Interrupted while waiting for the rate limiter");
+    		}
+    	}
+    	ConcurrencyLimiter limiter = endpoint == EndpointClass.WRITE ? concurrencyLimiter : null;
+    	if (limiter != null) {
+    		boolean acquired;
+    		try {
+    			acquired = limiter.acquire(deadline, options != null ? options.getCancellationToken() : null);
+    		} catch (InterruptedException e) {
+    			Thread.currentThread().interrupt();
+    			throw new AlgoliaException("Interrupted while waiting for the concurrency limiter");
+    		}
+    		if (!acquired) {
+    			HashMap<String, String> errors = new HashMap<String, String>();
+    			_checkOptions(options, deadline, errors);
+    			errors.put("deadline", "exceeded waiting for a concurrency slot");
+    			throw _hostsUnreachable(errors);
+    		}
+    	}
+    	PriorityScheduler scheduler = priorityScheduler;
+    	Priority priority = _priority(url, endpoint, options);
+    	if (scheduler != null) {
+    		boolean acquired;
+    		try {
+    			acquired = scheduler.acquire(priority, deadline, options != null ? options.getCancellationToken() : null);
+    		} catch (InterruptedException e) {
+    			if (limiter != null) {
+    				limiter.release();
+    			}
+    			Thread.currentThread().interrupt();
+    			throw new AlgoliaException("Interrupted while waiting for the priority scheduler");
+    		}
+    		if (!acquired) {
+    			if (limiter != null) {
+    				limiter.release();
+    			}
+    			HashMap<String, String> errors = new HashMap<String, String>();
+    			_checkOptions(options, deadline, errors);
+    			errors.put("deadline", "exceeded waiting for a connection");
+    			throw _hostsUnreachable(errors);
+    		}
+    	}
+    	long startedAt = System.currentTimeMillis();
+    	HostSelector hosts = new HostSelector(endpoint, m);
+    	// the body is encoded once in a pooled buffer and sent to every host tried
+    	BufferPool.PooledBody body = json != null ? bufferPool.encode(json) : null;
+    	int bytesSent = body != null ? body.getLength() : 0;
+    	byte[] answer = null;
+    	try {
+    		answer = _requestHosts(m, url, body, hosts, connectTimeout, readTimeout, options, deadline);
+    		return answer;
+    	} finally {
+    		_recordCall(m, url, calledAt, bytesSent, answer, hosts);
+    		_written(endpoint, url);
+    		if (body != null) {
+    			body.release();
+    		}
+    		if (scheduler != null) {
+    			scheduler.release(priority);
+    		}
+    		if (limiter != null) {
+    			limiter.release(startedAt, hosts.overloaded);
+    		}
+    	}
+    }
+    
+    private Map<String, String> _requestHeaders(boolean hasBody) {
+    	Map<String, String> res = new LinkedHashMap<String, String>();
+    	// set auth headers
+    	res.put("X-Algolia-Application-Id", this.applicationID);
+    	res.put("X-Algolia-API-Key", this.apiKey);
+    	res.putAll(headers);
+    	// set user agent
+    	res.put("User-Agent", "Algolia for Android " + version);
+    	// set optional headers, read once as they can be changed by other threads
+    	String userToken = this.userToken;
+    	String tagFilters = this.tagFilters;
+    	if (userToken != null) {
+    		res.put("X-Algolia-UserToken", userToken);
+    	}
+    	if (tagFilters != null) {
+    		res.put("X-Algolia-TagFilters", tagFilters);
+    	}
+    	if (hasBody) {
+    		res.put("Content-type", "application/json");
+    	}
+    	return res;
+    }
+    
+    private byte[] _requestHosts(Method m, String url, BufferPool.PooledBody body, HostSelector hosts, int connectTimeout, int readTimeout,
+    		RequestOptions options, long deadline) throws AlgoliaException {
     	HashMap<String, String> errors = new HashMap<String, String>();
+    	Map<String, String> requestHeaders = _requestHeaders(body != null);
+    	HttpTransport transport = this.transport;
     	// for each host
-    	for (String host : hostsArray) {
-        	switch (m) {
-    		case DELETE:
-    			req = new HttpDelete();
-    			break;
-    		case GET:
-    			req = new HttpGet();
-    			break;
-    		case POST:
-    			req = new HttpPost();
+    	for (;;) {
+    		long remaining = _checkOptions(options, deadline, errors);
+    		long delay = hosts.retryDelay(errors);
+    		if (delay < 0) {
     			break;
-    		case PUT:
-    			req = new HttpPut();
+    		}
+    		if (delay > 0) {
+    			try {
+    				Thread.sleep(Math.min(delay, remaining));
+    			} catch (InterruptedException e) {
+    				Thread.currentThread().interrupt();
+    				errors.put("retry", "interrupted");
+    				break;
+    			}
+    			remaining = _checkOptions(options, deadline, errors);
+    		}
+    		String host = hosts.next(errors);
+    		if (host == null) {
     			break;
-    		default:
-    			throw new IllegalArgumentException("Method " + m + " is not supported");
-        	}
-
-            // set URL
-            try {
-    			req.setURI(new URI("https://" + host + url));
-    		} catch (URISyntaxException e) {
-    			// never reached
-    			throw new IllegalStateException(e);
-    		}
-        	
-        	// set auth headers
-        	req.setHeader("X-Algolia-Application-Id", this.applicationID);
-            req.setHeader("X-Algolia-API-Key", this.apiKey);
-            for (Entry<String, String> entry : headers.entrySet()) {
-            	req.setHeader(entry.getKey(), entry.getValue());
-            }
-            
-            // set user agent
-            req.setHeader("User-Agent", "Algolia for Android " + version);
-            
-            // set optional headers
-            if (this.userToken != null) {
-                req.setHeader("X-Algolia-UserToken", this.userToken);
-            }
-            if (this.tagFilters != null) {
-                req.setHeader("X-Algolia-TagFilters", this.tagFilters);
-            }
-            
-            // set JSON entity
-            if (json != null) {
-            	if (!(req instanceof HttpEntityEnclosingRequestBase)) {
-            		throw new IllegalArgumentException("Method " + m + " cannot enclose entity");
-            	}
-	            req.setHeader("Content-type", "application/json");
-	            try {
-	                StringEntity se = new StringEntity(json, "UTF-8"); 
-	                se.setContentEncoding(new BasicHeader(HTTP.CONTENT_TYPE, "application/json"));
-	                ((HttpEntityEnclosingRequestBase) req).setEntity(se); 
-	            } catch (UnsupportedEncodingException e) {
-	                throw new AlgoliaException("Invalid JSON Object: " + json);
-	            }
-            }
-            
-            httpClient.getParams().setParameter("http.socket.timeout", readTimeout);
-            httpClient.getParams().setParameter("http.connection.timeout", connectTimeout);
-
-            HttpResponse response;
+    		}
+    		HttpTransport.Request req = new HttpTransport.Request(m.name(), "https://" + host + url, requestHeaders,
+    				body != null ? body.getBuffer() : null, body != null ? body.getLength() : 0,
+    				(int) Math.min(connectTimeout, remaining), (int) Math.min(readTimeout, remaining));
+            HttpTransport.Response response;
             try {
-            	response = httpClient.execute(req);
+            	response = transport.execute(req);
             } catch (IOException e) {
             	// on error continue on the next host
             	errors.put(host, String.format("%s=%s", e.getClass().getName(), e.getMessage()));
+            	hosts.failed(host, e);
             	continue;
             }
-            int code = response.getStatusLine().getStatusCode();
-            if ((int)code / 100 == 2) {
-                // OK
-            } else if ((int)code / 100 == 4) {
-            	String message = "Error detected in backend";
-                try {
-                    message = _getAnswerObject(response.getEntity().getContent()).getString("message");
-                } catch (IOException e) {
-                	continue;
-                } catch (JSONException e) {
-                    throw new AlgoliaException("JSON decode error:" + e.getMessage());
-                }
-                consumeQuietly(response.getEntity());
-                throw new AlgoliaException(message);
-            } else {
-            	try {
-					errors.put(host, EntityUtils.toString(response.getEntity()));
-				} catch (IOException e) {
-					errors.put(host, String.valueOf(code));
-				}
-                consumeQuietly(response.getEntity());
-                // KO, continue
-                continue;
-            }
+            hosts.answered(response.getStatusCode());
+            byte[] answer;
             try {
-                return _getAnswerObject(response.getEntity().getContent());
-            } catch (IOException e) {
-            	continue;
-            } catch (JSONException e) {
-                throw new AlgoliaException("JSON decode error:" + e.getMessage());
+            	answer = _readAnswer(response, host, errors);
+            } catch (AlgoliaException e) {
+            	hosts.record(host, true);
+            	throw e;
+            }
+            hosts.record(host, answer != null);
+            if (answer != null) {
+            	return answer;
             }
         }
-    	StringBuilder builder = new StringBuilder("Hosts unreachable: ");
+        throw _hostsUnreachable(errors);
+    }
+    
+    /**
+     * Hosts of one request in order, skipping those whose circuit is open,
+     * with the retry policy of write requests
+     */
+    private class HostSelector {
+    	private final CircuitBreaker breaker = circuitBreaker;
+    	private final RetryPolicy retryPolicy;
+    	private final EndpointClass endpoint;
+    	private final boolean idempotent;
+    	private final Iterator<String> hosts;
+    	private final List<String> skipped = new ArrayList<String>();
+    	private Iterator<String> lastResort;
+    	private boolean tried;
+    	private int attempts;
+    	private boolean retryPaid;
+    	// the last failure shows the request was not applied: not sent, or rejected with a 5xx
+    	private boolean retryable;
+    	private final MetricsRegistry metrics = APIClient.this.metrics;
+    	private long sentAt;
+    	// a host timed out or answered 5xx or 429, read by the concurrency limiter
+    	volatile boolean overloaded;
+    	
+    	HostSelector(EndpointClass endpoint, Method m) {
+    		this.endpoint = endpoint;
+    		this.idempotent = RetryPolicy.isIdempotent(m.name(), endpoint == EndpointClass.READ);
+    		this.hosts = (endpoint == EndpointClass.READ ? readHostsArray : writeHostsArray).iterator();
+    		this.retryPolicy = endpoint == EndpointClass.WRITE ? APIClient.this.retryPolicy : null;
+    		if (retryPolicy != null) {
+    			retryPolicy.onRequest();
+    		}
+    	}
+    	
+    	private boolean hasNext() {
+    		if (hosts.hasNext()) {
+    			return true;
+    		}
+    		if (tried) {
+    			return false;
+    		}
+    		return lastResort != null ? lastResort.hasNext() : !skipped.isEmpty();
+    	}
+    	
+    	/**
+    	 * Decide whether the next host can be tried after a failure
+    	 * 
+    	 * @return the delay to wait before trying it, -1 if it must not be tried
+    	 */
+    	long retryDelay(Map<String, String> errors) {
+    		if (attempts == 0 || retryPolicy == null) {
+    			return 0;
+    		}
+    		if (!hasNext()) {
+    			return -1;
+    		}
+    		if (!idempotent && !retryable) {
+    			retryPolicy.onUnsafe();
+    			errors.put("retry", "not retried, the request may have been applied");
+    			return -1;
+    		}
+    		if (!retryPolicy.acquireRetry()) {
+    			errors.put("retry", "retry budget exhausted");
+    			return -1;
+    		}
+    		retryPaid = true;
+    		return retryPolicy.backoffMS(attempts);
+    	}
+    	
+    	/**
+    	 * @return the next host to try, null if there is none left
+    	 */
+    	String next(Map<String, String> errors) {
+    		String host = null;
+    		while (host == null && hosts.hasNext()) {
+    			String candidate = hosts.next();
+    			if (breaker == null || breaker.allowRequest(candidate, endpoint)) {
+    				tried = true;
+    				host = candidate;
+    			} else {
+    				skipped.add(candidate);
+    				errors.put(candidate, "circuit open");
+    			}
+    		}
+    		if (host == null && !tried) {
+    			// the circuits of all the hosts are open: try them anyway rather than failing without sending anything
+    			if (lastResort == null) {
+    				lastResort = skipped.iterator();
+    			}
+    			host = lastResort.hasNext() ? lastResort.next() : null;
+    		}
+    		if (host == null && retryPaid) {
+    			retryPolicy.refundRetry();
+    		}
+    		retryPaid = false;
+    		if (host != null) {
+    			++attempts;
+    			sentAt = System.nanoTime();
+    		}
+    		return host;
+    	}
+    	
+    	/**
+    	 * @param success true if the host answered, even with a 4xx error
+    	 */
+    	void record(String host, boolean success) {
+    		if (metrics != null) {
+    			metrics.recordAttempt(host, System.nanoTime() - sentAt, success);
+    		}
+    		if (breaker == null) {
+    			return;
+    		}
+    		if (success) {
+    			breaker.onSuccess(host, endpoint);
+    		} else {
+    			breaker.onFailure(host, endpoint);
+    		}
+    	}
+    	
+    	void failed(String host, IOException e) {
+    		record(host, false);
+    		retryable = retryPolicy != null && retryPolicy.isSafeToRetry(e);
+    		if (e instanceof InterruptedIOException || e.getCause() instanceof InterruptedIOException) {
+    			overloaded = true;
+    		}
+    	}
+    	
+    	void answered(int statusCode) {
+    		retryable = statusCode / 100 == 5;
+    		if (statusCode == 429 || statusCode / 100 == 5) {
+    			overloaded = true;
+    		}
+    	}
+    }
+    
+    /**
+     * Read the answer of one host
+     * 
+     * @return the body of a successful answer, null if the next host must be tried
+     * @throws AlgoliaException if the request was rejected by the server
+     */
+    private byte[] _readAnswer(HttpTransport.Response response, String host, Map<String, String> errors) throws AlgoliaException {
+    	try {
+    		int code = response.getStatusCode();
+    		if ((int)code / 100 == 2) {
+    			return bufferPool.readFully(response.getBody(), response.getContentLength());
+    		} else if ((int)code / 100 == 4) {
+    			String message = "Error detected in backend";
+    			try {
+    				message = _getAnswerObject(response.getBody()).getString("message");
+    			} catch (JSONException e) {
+    				throw new AlgoliaException("JSON decode error:" + e.getMessage());
+    			}
+    			throw new AlgoliaException(message);
+    		} else {
+    			try {
+    				errors.put(host, bufferPool.decode(bufferPool.readFully(response.getBody(), response.getContentLength())));
+    			} catch (IOException e) {
+    				errors.put(host, String.valueOf(code));
+    			}
+    			// KO, continue
+    			return null;
+    		}
+    	} catch (IOException e) {
+    		errors.put(host, String.format("%s=%s", e.getClass().getName(), e.getMessage()));
+    		return null;
+    	} finally {
+    		response.close();
+    	}
+    }
+    
+    /**
+     * Take the tokens of the call from the rate limiter
+     * 
+     * @return the delay to wait before sending the call
+     * @throws AlgoliaException if the call exceeds a limit and cannot be queued
+     */
+    private long _acquireRate(String url, EndpointClass endpoint, long deadline) throws AlgoliaException {
+    	RateLimiter limiter = rateLimiter;
+    	if (limiter == null) {
+    		return 0;
+    	}
+    	long delay = limiter.acquire(_indexName(url), endpoint, deadline - System.currentTimeMillis());
+    	if (delay < 0) {
+    		throw new AlgoliaException(RATE_LIMITED);
+    	}
+    	return delay;
+    }
+    
+    /**
+     * @return the decoded name of the index targeted by the URL, null if none
+     */
+    private static String _indexName(String url) {
+    	String prefix = "/1/indexes/";
+    	if (!url.startsWith(prefix) || url.length() == prefix.length()) {
+    		return null;
+    	}
+    	int end = prefix.length();
+    	while (end < url.length() && url.charAt(end) != '/' && url.charAt(end) != '?') {
+    		++end;
+    	}
+    	try {
+    		return URLDecoder.decode(url.substring(prefix.length(), end), "UTF-8");
+    	} catch (UnsupportedEncodingException e) {
+    		return null;
+    	}
+    }
+    
+    /**
+     * Record a call admitted by the limiters in the metrics
+     * 
+     * @param answer the answer of the call, null if it failed
+     */
+    private void _recordCall(Method m, String url, long calledAt, int bytesSent, byte[] answer, HostSelector hosts) {
+    	MetricsRegistry metrics = this.metrics;
+    	if (metrics != null) {
+    		metrics.recordCall(MetricsRegistry.endpointName(m.name(), url), System.nanoTime() - calledAt, bytesSent,
+    				answer != null ? answer.length : 0, hosts.attempts, answer != null);
+    	}
+    }
+    
+    /**
+     * @return the priority class of the call: the one of its options, else background for browse and
+     * batch calls, interactive for the other reads, normal for the other writes
+     */
+    private static Priority _priority(String url, EndpointClass endpoint, RequestOptions options) {
+    	if (options != null && options.getPriority() != null) {
+    		return options.getPriority();
+    	}
+    	int query = url.indexOf('?');
+    	String path = query >= 0 ? url.substring(0, query) : url;
+    	if (path.endsWith("/browse") || path.endsWith("/batch")) {
+    		return Priority.BACKGROUND;
+    	}
+    	return endpoint == EndpointClass.READ ? Priority.INTERACTIVE : Priority.NORMAL;
+    }
+    
+    /**
+     * Check the call can go on before trying a host
+     * 
+     * @return the time left before the deadline
+     * @throws AlgoliaException if the call was cancelled or its deadline is exceeded
+     */
+    private long _checkOptions(RequestOptions options, long deadline, Map<String, String> errors) throws AlgoliaException {
+    	if (RequestOptions.isCancelled(options)) {
+    		throw new AlgoliaException(REQUEST_CANCELLED);
+    	}
+    	long remaining = deadline - System.currentTimeMillis();
+    	if (remaining <= 0) {
+    		// reported as unreachable hosts so the call can be served by an offline mirror
+    		errors.put("deadline", "exceeded after " + options.getTimeout() + "ms");
+    		throw _hostsUnreachable(errors);
+    	}
+    	return remaining;
+    }
+    
+    private AlgoliaException _hostsUnreachable(Map<String, String> errors) {
+    	StringBuilder builder = new StringBuilder(HOSTS_UNREACHABLE);
     	Boolean first = true;
     	for (Map.Entry<String, String> entry : errors.entrySet()) {
     		if (!first) {
@@ -1075,7 +1720,391 @@ public class APIClient {
     		builder.append(entry.toString());
     		first = false;
     	}
-        throw new AlgoliaException(builder.toString());
+    	return new AlgoliaException(builder.toString());
+    }
+    
+    protected void getRequestAsync(String url, boolean search, ResultHandler<byte[]> handler) {
+    	_requestRawAsync(Method.GET, url, null, EndpointClass.READ, httpConnectTimeoutMS, search ? httpSearchTimeoutMS : httpSocketTimeoutMS, null, handler);
+    }
+    
+    /**
+     * Without options, calls the method above so subclasses overriding it see every call
+     * 
+     * @param options deadline and cancellation of the call (null for none)
+     */
+    protected void getRequestAsync(String url, boolean search, RequestOptions options, ResultHandler<byte[]> handler) {
+    	if (options == null) {
+    		getRequestAsync(url, search, handler);
+    		return;
+    	}
+    	_requestRawAsync(Method.GET, url, null, EndpointClass.READ, httpConnectTimeoutMS, search ? httpSearchTimeoutMS : httpSocketTimeoutMS, options, handler);
+    }
+    
+    protected void postRequestAsync(String url, String obj, boolean readOperation, ResultHandler<byte[]> handler) {
+    	_requestRawAsync(Method.POST, url, obj, (readOperation ? EndpointClass.READ : EndpointClass.WRITE), httpConnectTimeoutMS, (readOperation ? httpSearchTimeoutMS : httpSocketTimeoutMS), null, handler);
+    }
+    
+    protected void postRequestAsync(String url, String obj, boolean readOperation, RequestOptions options, ResultHandler<byte[]> handler) {
+    	if (options == null) {
+    		postRequestAsync(url, obj, readOperation, handler);
+    		return;
+    	}
+    	_requestRawAsync(Method.POST, url, obj, (readOperation ? EndpointClass.READ : EndpointClass.WRITE), httpConnectTimeoutMS, (readOperation ? httpSearchTimeoutMS : httpSocketTimeoutMS), options, handler);
+    }
+    
+    /**
+     * Decode the answer before passing it to the handler
+     */
+    ResultHandler<byte[]> jsonHandler(final ResultHandler<JSONObject> handler) {
+    	return new ResultHandler<byte[]>() {
+    		public void onResult(byte[] body) {
+    			JSONObject res;
+    			try {
+    				res = _parseAnswer(body);
+    			} catch (AlgoliaException e) {
+    				handler.onError(e);
+    				return;
+    			}
+    			handler.onResult(res);
+    		}
+    		
+    		public void onError(AlgoliaException error) {
+    			handler.onError(error);
+    		}
+    	};
+    }
+    
+    /**
+     * Same as _requestRaw without blocking: hosts are tried one after the other from the
+     * completion callbacks of the transport, the handler is called on the thread completing the last one
+     * or on the thread cancelling the call
+     */
+    private void _requestRawAsync(Method m, String url, String json, EndpointClass endpoint, int connectTimeout, int readTimeout,
+    		RequestOptions options, ResultHandler<byte[]> handler) {
+    	BufferPool.PooledBody body = json != null ? bufferPool.encode(json) : null;
+    	new AsyncHostsRequest(m, url, body, endpoint, connectTimeout, readTimeout, options, handler).start();
+    }
+    
+    private class AsyncHostsRequest implements HttpTransport.Callback, Runnable {
+    	private final Method m;
+    	private final String url;
+    	private final BufferPool.PooledBody body;
+    	private final EndpointClass endpoint;
+    	private final HostSelector hosts;
+    	private final int connectTimeout;
+    	private final int readTimeout;
+    	private final RequestOptions options;
+    	private final long deadline;
+    	private final ResultHandler<byte[]> handler;
+    	private final Map<String, String> requestHeaders;
+    	private final HttpTransport transport = APIClient.this.transport;
+    	private final HashMap<String, String> errors = new HashMap<String, String>();
+    	private final ConcurrencyLimiter limiter;
+    	private final PriorityScheduler scheduler;
+    	private final Priority priority;
+    	private final long calledAt = System.nanoTime();
+    	private String host;
+    	// guarded by this: the pooled body is released once done and not sent by the transport anymore
+    	private boolean done;
+    	private boolean inFlight;
+    	private boolean released;
+    	// guarded by this: slot of the concurrency limiter, taken at startedAt, and connection of the scheduler
+    	private boolean slotHeld;
+    	private long startedAt;
+    	private boolean connectionHeld;
+    	private boolean admitted;
+    	private boolean deadlineScheduled;
+    	
+    	AsyncHostsRequest(Method m, String url, BufferPool.PooledBody body, EndpointClass endpoint, int connectTimeout, int readTimeout,
+    			RequestOptions options, ResultHandler<byte[]> handler) {
+    		this.m = m;
+    		this.url = url;
+    		this.body = body;
+    		this.endpoint = endpoint;
+    		this.hosts = new HostSelector(endpoint, m);
+    		this.limiter = endpoint == EndpointClass.WRITE ? concurrencyLimiter : null;
+    		this.scheduler = priorityScheduler;
+    		this.priority = _priority(url, endpoint, options);
+    		this.connectTimeout = connectTimeout;
+    		this.readTimeout = readTimeout;
+    		this.options = options;
+    		this.deadline = RequestOptions.deadline(options, System.currentTimeMillis());
+    		this.handler = handler;
+    		this.requestHeaders = _requestHeaders(body != null);
+    	}
+    	
+    	void start() {
+    		if (options != null && options.getCancellationToken() != null) {
+    			options.getCancellationToken().register(this);
+    		}
+    		long delay;
+    		try {
+    			delay = _acquireRate(url, endpoint, deadline);
+    		} catch (AlgoliaException e) {
+    			finish(null, e);
+    			return;
+    		}
+    		if (delay > 0) {
+    			// queued by the rate limiter without blocking the calling thread
+    			SCHEDULER.schedule(new Runnable() {
+    				public void run() {
+    					acquireSlot();
+    				}
+    			}, delay, TimeUnit.MILLISECONDS);
+    		} else {
+    			acquireSlot();
+    		}
+    	}
+    	
+    	/**
+    	 * Wait for a slot of the concurrency limiter, if any, then send the call
+    	 */
+    	private void acquireSlot() {
+    		if (limiter == null) {
+    			acquireConnection();
+    			return;
+    		}
+    		Runnable granted = new Runnable() {
+    			public void run() {
+    				slotGranted();
+    			}
+    		};
+    		if (limiter.acquireAsync(granted)) {
+    			slotGranted();
+    		} else {
+    			failAtDeadline();
+    		}
+    	}
+    	
+    	private void slotGranted() {
+    		boolean held;
+    		synchronized (this) {
+    			held = !done;
+    			if (held) {
+    				slotHeld = true;
+    				startedAt = System.currentTimeMillis();
+    			}
+    		}
+    		if (!held) {
+    			// cancelled or past its deadline while queued
+    			limiter.release();
+    			return;
+    		}
+    		acquireConnection();
+    	}
+    	
+    	/**
+    	 * Wait for a connection of the priority scheduler, if any, then send the call
+    	 */
+    	private void acquireConnection() {
+    		if (scheduler == null) {
+    			admitted();
+    			return;
+    		}
+    		Runnable granted = new Runnable() {
+    			public void run() {
+    				connectionGranted();
+    			}
+    		};
+    		if (scheduler.acquireAsync(priority, granted)) {
+    			connectionGranted();
+    		} else {
+    			failAtDeadline();
+    		}
+    	}
+    	
+    	private void connectionGranted() {
+    		boolean held;
+    		synchronized (this) {
+    			held = !done;
+    			connectionHeld = held;
+    		}
+    		if (!held) {
+    			scheduler.release(priority);
+    			return;
+    		}
+    		admitted();
+    	}
+    	
+    	private void admitted() {
+    		synchronized (this) {
+    			admitted = true;
+    		}
+    		next();
+    	}
+    	
+    	/**
+    	 * Fail the call at its deadline if it is still queued by a limiter
+    	 */
+    	private void failAtDeadline() {
+    		synchronized (this) {
+    			if (deadline == Long.MAX_VALUE || deadlineScheduled) {
+    				return;
+    			}
+    			deadlineScheduled = true;
+    		}
+    		SCHEDULER.schedule(new Runnable() {
+    			public void run() {
+    				synchronized (AsyncHostsRequest.this) {
+    					if (admitted) {
+    						return;
+    					}
+    				}
+    				next();
+    			}
+    		}, Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    	}
+    	
+    	/**
+    	 * Cancellation: the handler is called now, the answer of the current host is ignored
+    	 */
+    	public void run() {
+    		finish(null, new AlgoliaException(REQUEST_CANCELLED));
+    	}
+    	
+    	/**
+    	 * Call the handler once, with the answer or the error
+    	 */
+    	private void finish(byte[] answer, AlgoliaException error) {
+    		boolean releaseSlot;
+    		boolean releaseConnection;
+    		boolean sent;
+    		synchronized (this) {
+    			if (done) {
+    				return;
+    			}
+    			done = true;
+    			sent = admitted;
+    			releaseSlot = slotHeld;
+    			slotHeld = false;
+    			releaseConnection = connectionHeld;
+    			connectionHeld = false;
+    		}
+    		if (options != null && options.getCancellationToken() != null) {
+    			options.getCancellationToken().unregister(this);
+    		}
+    		if (sent) {
+    			_recordCall(m, url, calledAt, body != null ? body.getLength() : 0, answer, hosts);
+    			_written(endpoint, url);
+    		}
+    		releaseBody();
+    		if (releaseConnection) {
+    			scheduler.release(priority);
+    		}
+    		if (releaseSlot) {
+    			limiter.release(startedAt, hosts.overloaded);
+    		}
+    		if (error != null) {
+    			handler.onError(error);
+    		} else {
+    			handler.onResult(answer);
+    		}
+    	}
+    	
+    	private void releaseBody() {
+    		synchronized (this) {
+    			if (!done || inFlight || released || body == null) {
+    				return;
+    			}
+    			released = true;
+    		}
+    		body.release();
+    	}
+    	
+    	/**
+    	 * @return false if the call was cancelled while the host was answering
+    	 */
+    	private boolean landed() {
+    		synchronized (this) {
+    			inFlight = false;
+    			if (!done) {
+    				return true;
+    			}
+    		}
+    		releaseBody();
+    		return false;
+    	}
+    	
+    	void next() {
+    		long remaining;
+    		try {
+    			remaining = _checkOptions(options, deadline, errors);
+    		} catch (AlgoliaException e) {
+    			finish(null, e);
+    			return;
+    		}
+    		long delay = hosts.retryDelay(errors);
+    		if (delay < 0) {
+    			finish(null, _hostsUnreachable(errors));
+    		} else if (delay > 0) {
+    			// the backoff does not block the thread of the transport
+    			SCHEDULER.schedule(new Runnable() {
+    				public void run() {
+    					send();
+    				}
+    			}, Math.min(delay, remaining), TimeUnit.MILLISECONDS);
+    		} else {
+    			send();
+    		}
+    	}
+    	
+    	private void send() {
+    		long remaining;
+    		try {
+    			remaining = _checkOptions(options, deadline, errors);
+    		} catch (AlgoliaException e) {
+    			finish(null, e);
+    			return;
+    		}
+    		host = hosts.next(errors);
+    		if (host == null) {
+    			finish(null, _hostsUnreachable(errors));
+    			return;
+    		}
+    		synchronized (this) {
+    			if (done) {
+    				return;
+    			}
+    			inFlight = true;
+    		}
+    		transport.executeAsync(new HttpTransport.Request(m.name(), "https://" + host + url, requestHeaders,
+    				body != null ? body.getBuffer() : null, body != null ? body.getLength() : 0,
+    				(int) Math.min(connectTimeout, remaining), (int) Math.min(readTimeout, remaining)), this);
+    	}
+    	
+    	public void completed(HttpTransport.Response response) {
+    		if (!landed()) {
+    			int code = response.getStatusCode();
+    			hosts.record(host, code / 100 == 2 || code / 100 == 4);
+    			response.close();
+    			return;
+    		}
+    		hosts.answered(response.getStatusCode());
+    		byte[] answer;
+    		try {
+    			answer = _readAnswer(response, host, errors);
+    		} catch (AlgoliaException e) {
+    			hosts.record(host, true);
+    			finish(null, e);
+    			return;
+    		}
+    		hosts.record(host, answer != null);
+    		if (answer != null) {
+    			finish(answer, null);
+    		} else {
+    			next();
+    		}
+    	}
+    	
+    	public void failed(IOException e) {
+    		hosts.failed(host, e);
+    		if (!landed()) {
+    			return;
+    		}
+    		// on error continue on the next host
+    		errors.put(host, String.format("%s=%s", e.getClass().getName(), e.getMessage()));
+    		next();
+    	}
     }
     
     static public class IndexQuery {
@@ -1114,18 +2143,62 @@ public class APIClient {
     }
     
     public JSONObject multipleQueries(List<IndexQuery> queries, String strategy) throws AlgoliaException {
-    		try {
-    			JSONArray requests = new JSONArray();
-    			for (IndexQuery indexQuery : queries) {
-    				String paramsString = indexQuery.getQuery().getQueryString();
-				requests.put(new JSONObject().put("indexName", indexQuery.getIndex()).put("params", paramsString));
-    			}
-				JSONObject body = new JSONObject().put("requests", requests);
-				return postRequest("/1/indexes/*/queries?strategy=" + strategy, body.toString(), true);
-			} catch (JSONException e) {
-				new AlgoliaException(e.getMessage());
-			}
-    		return null;
+    	return multipleQueries(queries, strategy, (RequestOptions) null);
+    }
+    
+    /**
+     * Query multiple indexes with one API call
+     * 
+     * @param options deadline and cancellation of the call (null for none)
+     */
+    public JSONObject multipleQueries(List<IndexQuery> queries, String strategy, RequestOptions options) throws AlgoliaException {
+    	return postRequest("/1/indexes/*/queries?strategy=" + strategy, _multipleQueriesBody(queries), true, options);
+    }
+    
+    /**
+     * Same as multipleQueries but returns the undecoded UTF-8 body of the answer
+     */
+    byte[] multipleQueriesRaw(List<IndexQuery> queries, String strategy) throws AlgoliaException {
+    	return postRequestRaw("/1/indexes/*/queries?strategy=" + strategy, _multipleQueriesBody(queries), true);
+    }
+    
+    /**
+     * Query multiple indexes with one API call without blocking the calling thread
+     * 
+     * @param handler receives the answer, on a thread of the transport
+     */
+    public void multipleQueriesAsync(List<IndexQuery> queries, String strategy, ResultHandler<JSONObject> handler) {
+    	multipleQueriesAsync(queries, strategy, null, handler);
+    }
+    
+    /**
+     * Query multiple indexes with one API call without blocking the calling thread
+     * 
+     * @param options deadline and cancellation of the call (null for none)
+     * @param handler receives the answer, on a thread of the transport
+     */
+    public void multipleQueriesAsync(List<IndexQuery> queries, String strategy, RequestOptions options, ResultHandler<JSONObject> handler) {
+    	String body;
+    	try {
+    		body = _multipleQueriesBody(queries);
+    	} catch (AlgoliaException e) {
+    		handler.onError(e);
+    		return;
+    	}
+    	postRequestAsync("/1/indexes/*/queries?strategy=" + strategy, body, true, options, jsonHandler(handler));
+    }
+    
+    private String _multipleQueriesBody(List<IndexQuery> queries) throws AlgoliaException {
+    	try {
+    		JSONArray requests = new JSONArray();
+    		for (IndexQuery indexQuery : queries) {
+    			String paramsString = indexQuery.getQuery().getQueryString();
+    			requests.put(new JSONObject().put("indexName", indexQuery.getIndex()).put("params", paramsString));
+    		}
+    		return new JSONObject().put("requests", requests).toString();
+    	} catch (JSONException e) {
+    		throw new AlgoliaException(e.getMessage());
+    	}
     }
     
     /**
@@ -1143,10 +2216,21 @@ public class APIClient {
      * @throws AlgoliaException 
      */
     public JSONObject batch(JSONArray actions) throws AlgoliaException {
+    	return batch(actions, (RequestOptions) null);
+    }
+    
+    /**
+     * Custom batch
+     * 
+     * @param actions the array of actions
+     * @param options deadline and cancellation of the call (null for none)
+     * @throws AlgoliaException 
+     */
+    public JSONObject batch(JSONArray actions, RequestOptions options) throws AlgoliaException {
 	    try {
 	    	JSONObject content = new JSONObject();
 	    	content.put("requests", actions);
-	    	return postRequest("/1/indexes/*/batch", content.toString(), false);
+	    	return postRequest("/1/indexes/*/batch", content.toString(), false, options);
 	    } catch (JSONException e) {
 	        throw new AlgoliaException(e.getMessage());
 	    }
@@ -1162,6 +2246,34 @@ public class APIClient {
         ASyncAPIClientTaskParams params = new ASyncAPIClientTaskParams(listener, ASyncAPIClientTaskKind.Batch, actions);
         new ASyncAPIClientTask().execute(params);
     }
+    
+    /**
+     * Custom batch without blocking the calling thread
+     * 
+     * @param actions the array of actions
+     * @param handler receives the answer, on a thread of the transport
+     */
+    public void batchAsync(JSONArray actions, ResultHandler<JSONObject> handler) {
+    	batchAsync(actions, null, handler);
+    }
+    
+    /**
+     * Custom batch without blocking the calling thread
+     * 
+     * @param actions the array of actions
+     * @param options deadline and cancellation of the call (null for none)
+     * @param handler receives the answer, on a thread of the transport
+     */
+    public void batchAsync(JSONArray actions, RequestOptions options, ResultHandler<JSONObject> handler) {
+    	String content;
+	    try {
+	    	content = new JSONObject().put("requests", actions).toString();
+	    } catch (JSONException e) {
+	        handler.onError(new AlgoliaException(e.getMessage()));
+	        return;
+	    }
+	    postRequestAsync("/1/indexes/*/batch", content, false, options, jsonHandler(handler));
+    }
 
     /**
      * Custom batch
@@ -1190,25 +2302,4 @@ public class APIClient {
         new ASyncAPIClientTask().execute(params);
     }
     
-    /**
-     * Ensures that the entity content is fully consumed and the content stream, if exists,
-     * is closed.
-     *
-     * @param entity
-     */
-    private void consumeQuietly(final HttpEntity entity) {
-        if (entity == null) {
-            return;
-        }
-        try {
-	        if (entity.isStreaming()) {
-	            InputStream instream = entity.getContent();
-	            if (instream != null) {
-	                instream.close();
-	            }
-	        }
-        } catch (IOException e) {
-        	// not fatal
-        }
-    }
 }
@@ -0,0 +1,285 @@
+package com.algolia.search.saas;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Map;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpRequestRetryHandler;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+/**
+ * Transport based on Apache HttpClient (bundled with Android), the default one.
+ * Connections are pooled by a thread-safe connection manager so requests can be sent concurrently.
+ */
+public class ApacheHttpTransport extends HttpTransport {
+    private final DefaultHttpClient httpClient;
+
+    public ApacheHttpTransport() {
+        this(64, 16);
+    }
+
+    /**
+     * @param maxConnections maximum number of connections
+     * @param maxConnectionsPerHost maximum number of connections to a single host
+     */
+    public ApacheHttpTransport(int maxConnections, int maxConnectionsPerHost) {
+        HttpParams params = new BasicHttpParams();
+        ConnManagerParams.setMaxTotalConnections(params, maxConnections);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(maxConnectionsPerHost));
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http", new PlainFactory(), 80));
+        registry.register(new Scheme("https", new TlsSocketFactory(), 443));
+        httpClient = new DefaultHttpClient(new ThreadSafeClientConnManager(params, registry), params);
+        // APIClient fails over to the next host: only resend a request that was not sent, for example
+        // on a stale pooled connection, the default handler also resends POSTs the host may have applied
+        httpClient.setHttpRequestRetryHandler(new HttpRequestRetryHandler() {
+            public boolean retryRequest(IOException exception, int executionCount, HttpContext context) {
+                Boolean sent = (Boolean) context.getAttribute(ExecutionContext.HTTP_REQ_SENT);
+                return executionCount <= 1 && (sent == null || !sent.booleanValue()) && !(exception instanceof ConnectException)
+                        && !(exception instanceof InterruptedIOException) && !(exception instanceof UnknownHostException);
+            }
+        });
+    }
+
+    /**
+     * Connect to the first address of the host in the DnsCache. HttpClient keeps the socket it
+     * created before connectSocket(), so a single connection cannot try another address: the
+     * failed one is demoted and execute() opens a new connection to the next one.
+     */
+    private void connect(Socket sock, String host, int port, InetAddress localAddress, int localPort,
+            HttpParams params) throws IOException {
+        if (localAddress != null || localPort > 0) {
+            sock.bind(new InetSocketAddress(localAddress, localPort < 0 ? 0 : localPort));
+        }
+        InetAddress address = getDnsCache().resolve(host)[0];
+        try {
+            sock.connect(new InetSocketAddress(address, port), HttpConnectionParams.getConnectionTimeout(params));
+        } catch (SocketTimeoutException e) {
+            getDnsCache().demote(host, address);
+            throw connectFailure("Connect to " + host + "/" + address.getHostAddress() + " timed out", e);
+        } catch (ConnectException e) {
+            getDnsCache().demote(host, address);
+            throw e;
+        }
+        sock.setSoTimeout(HttpConnectionParams.getSoTimeout(params));
+    }
+
+    /**
+     * Plain sockets connected to the addresses of the DnsCache
+     */
+    private final class PlainFactory implements SocketFactory {
+        public Socket createSocket() {
+            return new Socket();
+        }
+
+        public Socket connectSocket(Socket sock, String host, int port, InetAddress localAddress, int localPort,
+                HttpParams params) throws IOException {
+            Socket socket = sock != null ? sock : createSocket();
+            connect(socket, host, port, localAddress, localPort, params);
+            return socket;
+        }
+
+        public boolean isSecure(Socket sock) {
+            return false;
+        }
+    }
+
+    /**
+     * Creates the TLS sockets with the context of the TlsSessionCache so sessions are resumed
+     * (HttpClient keeps the socket returned by createSocket(), so it must be the TLS one)
+     */
+    private final class TlsSocketFactory implements LayeredSocketFactory {
+        public Socket createSocket() throws IOException {
+            return getTlsSessionCache().getSSLContext().getSocketFactory().createSocket();
+        }
+
+        public Socket connectSocket(Socket sock, String host, int port, InetAddress localAddress, int localPort,
+                HttpParams params) throws IOException {
+            SSLSocket sslSocket = (SSLSocket) (sock != null ? sock : createSocket());
+            connect(sslSocket, host, port, localAddress, localPort, params);
+            handshake(sslSocket, host);
+            return sslSocket;
+        }
+
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            SSLSocket sslSocket = (SSLSocket) getTlsSessionCache().getSSLContext().getSocketFactory().createSocket(socket, host, port, autoClose);
+            handshake(sslSocket, host);
+            return sslSocket;
+        }
+
+        private void handshake(SSLSocket sslSocket, String host) throws IOException {
+            try {
+                SSLParameters parameters = sslSocket.getSSLParameters();
+                boolean checked = TlsSupport.checkHostnameInHandshake(parameters);
+                sslSocket.setSSLParameters(parameters);
+                long handshakeStartedAt = System.currentTimeMillis();
+                sslSocket.startHandshake();
+                getTlsSessionCache().recordHandshake(sslSocket.getSession(), handshakeStartedAt);
+                if (!checked) {
+                    TlsSupport.verifyHostname(host, sslSocket.getSession());
+                }
+            } catch (IOException e) {
+                sslSocket.close();
+                throw e;
+            }
+        }
+
+        public boolean isSecure(Socket sock) {
+            return sock instanceof SSLSocket;
+        }
+    }
+
+    @Override
+    public Response execute(Request request) throws IOException {
+        // the connect timeout is shared by the addresses of the host, each connection tries one
+        long deadline = System.currentTimeMillis() + request.getConnectTimeoutMS();
+        HttpResponse response;
+        for (int attempt = 0; ; ++attempt) {
+            HttpRequestBase req = newRequest(request);
+            String host = req.getURI().getHost();
+            // a host not resolved yet is given the whole timeout
+            int addresses = getDnsCache().addressCount(host);
+            int remaining = (int) Math.max(1, deadline - System.currentTimeMillis());
+            HttpConnectionParams.setConnectionTimeout(req.getParams(), Math.max(1, remaining / Math.max(1, addresses - attempt)));
+            try {
+                response = httpClient.execute(req);
+                break;
+            } catch (ConnectException e) {
+                // nothing was sent, the failed address is now the last one of the host
+                req.abort();
+                if (attempt + 1 >= getDnsCache().addressCount(host) || deadline <= System.currentTimeMillis()) {
+                    throw e;
+                }
+            } catch (IOException e) {
+                req.abort();
+                throw e;
+            }
+        }
+        HttpEntity entity = response.getEntity();
+        return new Response(response.getStatusLine().getStatusCode(), entity != null ? entity.getContent() : null,
+                entity != null ? entity.getContentLength() : 0);
+    }
+
+    private static HttpRequestBase newRequest(Request request) {
+        HttpRequestBase req;
+        if (request.getMethod().equals("GET")) {
+            req = new HttpGet(request.getURL());
+        } else if (request.getMethod().equals("POST")) {
+            req = new HttpPost(request.getURL());
+        } else if (request.getMethod().equals("PUT")) {
+            req = new HttpPut(request.getURL());
+        } else if (request.getMethod().equals("DELETE")) {
+            req = new HttpDelete(request.getURL());
+        } else {
+            throw new IllegalArgumentException("Method " + request.getMethod() + " is not supported");
+        }
+        for (Map.Entry<String, String> entry : request.getHeaders().entrySet()) {
+            req.setHeader(entry.getKey(), entry.getValue());
+        }
+        if (request.getBody() != null) {
+            if (!(req instanceof HttpEntityEnclosingRequestBase)) {
+                throw new IllegalArgumentException("Method " + request.getMethod() + " cannot enclose entity");
+            }
+            ((HttpEntityEnclosingRequestBase) req).setEntity(new BodyEntity(request.getBody(), request.getBodyLength()));
+        }
+        // per request timeouts, the client parameters are shared by all threads
+        HttpConnectionParams.setSoTimeout(req.getParams(), request.getReadTimeoutMS());
+        return req;
+    }
+
+    @Override
+    public void shutdown() {
+        httpClient.getConnectionManager().shutdown();
+    }
+
+    /**
+     * Repeatable entity sending a part of a buffer
+     */
+    private static class BodyEntity extends AbstractHttpEntity {
+        private final byte[] buffer;
+        private final int length;
+
+        BodyEntity(byte[] buffer, int length) {
+            this.buffer = buffer;
+            this.length = length;
+        }
+
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        public long getContentLength() {
+            return length;
+        }
+
+        public InputStream getContent() {
+            return new ByteArrayInputStream(buffer, 0, length);
+        }
+
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(buffer, 0, length);
+            out.flush();
+        }
+
+        public boolean isStreaming() {
+            return false;
+        }
+    }
+}
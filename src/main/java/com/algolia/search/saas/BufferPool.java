@@ -0,0 +1,244 @@
+package com.algolia.search.saas;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+/**
+ * Bounded pool of reusable byte and char buffers used to serialize request bodies and
+ * to read and decode response bodies without allocating scratch buffers per request.
+ * Buffers larger than the pooled size are allocated on demand and never pooled.
+ */
+final class BufferPool {
+    static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final ArrayDeque<byte[]> byteBuffers = new ArrayDeque<byte[]>();
+    private final ArrayDeque<char[]> charBuffers = new ArrayDeque<char[]>();
+    private long allocations;
+
+    /**
+     * @param bufferSize size of the pooled buffers
+     * @param maxBuffers maximum number of idle buffers of each kind kept in the pool
+     */
+    BufferPool(int bufferSize, int maxBuffers) {
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+    }
+
+    /**
+     * Number of buffers allocated because the pool was empty or the buffer too small
+     */
+    synchronized long getAllocations() {
+        return allocations;
+    }
+
+    byte[] acquireBytes(int minSize) {
+        synchronized (this) {
+            if (minSize <= bufferSize && !byteBuffers.isEmpty()) {
+                return byteBuffers.pop();
+            }
+            ++allocations;
+        }
+        return new byte[Math.max(minSize, bufferSize)];
+    }
+
+    synchronized void release(byte[] buffer) {
+        if (buffer.length == bufferSize && byteBuffers.size() < maxBuffers) {
+            byteBuffers.push(buffer);
+        }
+    }
+
+    char[] acquireChars(int minSize) {
+        synchronized (this) {
+            if (minSize <= bufferSize && !charBuffers.isEmpty()) {
+                return charBuffers.pop();
+            }
+            ++allocations;
+        }
+        return new char[Math.max(minSize, bufferSize)];
+    }
+
+    synchronized void release(char[] buffer) {
+        if (buffer.length == bufferSize && charBuffers.size() < maxBuffers) {
+            charBuffers.push(buffer);
+        }
+    }
+
+    /**
+     * UTF-8 encode a request body in a pooled buffer, release() the body once the request is done
+     */
+    PooledBody encode(String json) {
+        // a char is at most 3 bytes in UTF-8 (surrogate pairs: 4 bytes for 2 chars)
+        byte[] buffer = acquireBytes(json.length() * 3);
+        int n = 0;
+        for (int i = 0; i < json.length(); ++i) {
+            char c = json.charAt(i);
+            if (c < 0x80) {
+                buffer[n++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[n++] = (byte) (0xc0 | (c >> 6));
+                buffer[n++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < json.length() && Character.isLowSurrogate(json.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, json.charAt(++i));
+                buffer[n++] = (byte) (0xf0 | (cp >> 18));
+                buffer[n++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buffer[n++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buffer[n++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                // unpaired surrogate
+                buffer[n++] = '?';
+            } else {
+                buffer[n++] = (byte) (0xe0 | (c >> 12));
+                buffer[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[n++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return new PooledBody(buffer, n);
+    }
+
+    /**
+     * Read a whole response body, reading through a pooled buffer when its length is unknown
+     *
+     * @param contentLength the length of the body, negative if unknown
+     */
+    byte[] readFully(InputStream in, long contentLength) throws IOException {
+        try {
+            if (contentLength >= 0 && contentLength <= Integer.MAX_VALUE) {
+                byte[] body = new byte[(int) contentLength];
+                int n = 0;
+                while (n < body.length) {
+                    int l = in.read(body, n, body.length - n);
+                    if (l < 0) {
+                        return Arrays.copyOf(body, n);
+                    }
+                    n += l;
+                }
+                return body;
+            }
+            byte[] buffer = acquireBytes(0);
+            int n = 0;
+            try {
+                while (true) {
+                    if (n == buffer.length) {
+                        byte[] larger = new byte[buffer.length * 2];
+                        System.arraycopy(buffer, 0, larger, 0, n);
+                        release(buffer);
+                        buffer = larger;
+                    }
+                    int l = in.read(buffer, n, buffer.length - n);
+                    if (l < 0) {
+                        return Arrays.copyOf(buffer, n);
+                    }
+                    n += l;
+                }
+            } finally {
+                release(buffer);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * UTF-8 decode a response body through a pooled char buffer
+     */
+    String decode(byte[] body) {
+        char[] chars = acquireChars(body.length);
+        try {
+            int n = 0;
+            for (int i = 0; i < body.length;) {
+                int b = body[i++];
+                if (b >= 0) {
+                    chars[n++] = (char) b;
+                    continue;
+                }
+                int cp;
+                int extra;
+                if ((b & 0xe0) == 0xc0) {
+                    cp = b & 0x1f;
+                    extra = 1;
+                } else if ((b & 0xf0) == 0xe0) {
+                    cp = b & 0x0f;
+                    extra = 2;
+                } else if ((b & 0xf8) == 0xf0) {
+                    cp = b & 0x07;
+                    extra = 3;
+                } else {
+                    chars[n++] = '\uFFFD';
+                    continue;
+                }
+                for (; extra > 0 && i < body.length && (body[i] & 0xc0) == 0x80; --extra) {
+                    cp = (cp << 6) | (body[i++] & 0x3f);
+                }
+                if (extra > 0) {
+                    chars[n++] = '\uFFFD';
+                } else if (cp >= 0x10000 && cp <= Character.MAX_CODE_POINT) {
+                    n += Character.toChars(cp, chars, n);
+                } else {
+                    chars[n++] = (char) cp;
+                }
+            }
+            return new String(chars, 0, n);
+        } finally {
+            release(chars);
+        }
+    }
+
+    /**
+     * Request body encoded in a pooled buffer
+     */
+    final class PooledBody {
+        private byte[] buffer;
+        private final int length;
+
+        PooledBody(byte[] buffer, int length) {
+            this.buffer = buffer;
+            this.length = length;
+        }
+
+        byte[] getBuffer() {
+            return buffer;
+        }
+
+        int getLength() {
+            return length;
+        }
+
+        /**
+         * Give the buffer back to the pool, the body must not be used anymore
+         */
+        void release() {
+            if (buffer != null) {
+                BufferPool.this.release(buffer);
+                buffer = null;
+            }
+        }
+    }
+}
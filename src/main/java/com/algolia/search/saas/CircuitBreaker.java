@@ -0,0 +1,301 @@
+package com.algolia.search.saas;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+/**
+ * Circuit breakers of the hosts used by an APIClient, one per host and endpoint class, so that a
+ * host that is down for searches is skipped without waiting for the connect timeout.
+ * A circuit opens after failureThreshold consecutive failures (network errors and 5xx answers).
+ * Once open, the host is skipped for openMS. After that the circuit is half-open and lets
+ * halfOpenProbes requests through: a success closes it, a failure opens it again for twice as
+ * long (up to maxOpenMS). When the circuits of all the hosts of a request are open, the hosts
+ * are tried anyway rather than failing without sending anything.
+ */
+public class CircuitBreaker {
+    /**
+     * Requests sent to the read hosts (searches, getObject...) or to the write hosts
+     */
+    public static enum EndpointClass {
+        READ, WRITE
+    }
+
+    public static enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openMS;
+    private final long maxOpenMS;
+    private final int halfOpenProbes;
+    private final ConcurrentHashMap<String, Circuit> circuits = new ConcurrentHashMap<String, Circuit>();
+
+    /**
+     * Open after 3 consecutive failures for 10 seconds, up to 2 minutes, probe with one request
+     */
+    public CircuitBreaker() {
+        this(3, 10000, 120000, 1);
+    }
+
+    /**
+     * @param failureThreshold number of consecutive failures opening a circuit
+     * @param openMS duration during which an open circuit skips its host
+     * @param maxOpenMS maximum duration once doubled by failed probes
+     * @param halfOpenProbes number of requests let through at the same time by a half-open circuit
+     */
+    public CircuitBreaker(int failureThreshold, long openMS, long maxOpenMS, int halfOpenProbes) {
+        this.failureThreshold = failureThreshold;
+        this.openMS = openMS;
+        this.maxOpenMS = maxOpenMS;
+        this.halfOpenProbes = halfOpenProbes;
+    }
+
+    /**
+     * State and counters of one circuit
+     */
+    public static final class CircuitStats {
+        private final String host;
+        private final EndpointClass endpoint;
+        private final State state;
+        private final int consecutiveFailures;
+        private final long successes;
+        private final long failures;
+        private final long skipped;
+        private final int opens;
+        private final long stateChangedAt;
+
+        CircuitStats(String host, EndpointClass endpoint, State state, int consecutiveFailures, long successes, long failures,
+                long skipped, int opens, long stateChangedAt) {
+            this.host = host;
+            this.endpoint = endpoint;
+            this.state = state;
+            this.consecutiveFailures = consecutiveFailures;
+            this.successes = successes;
+            this.failures = failures;
+            this.skipped = skipped;
+            this.opens = opens;
+            this.stateChangedAt = stateChangedAt;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public EndpointClass getEndpointClass() {
+            return endpoint;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public int getConsecutiveFailures() {
+            return consecutiveFailures;
+        }
+
+        public long getSuccesses() {
+            return successes;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        /**
+         * Number of requests that did not try the host because the circuit was open
+         */
+        public long getSkipped() {
+            return skipped;
+        }
+
+        /**
+         * Number of times the circuit opened
+         */
+        public int getOpens() {
+            return opens;
+        }
+
+        /**
+         * Time of the last change of state, 0 if the circuit never left the closed state
+         */
+        public long getStateChangedAt() {
+            return stateChangedAt;
+        }
+
+        @Override
+        public String toString() {
+            return host + " " + endpoint + " " + state + " successes=" + successes + " failures=" + failures
+                    + " skipped=" + skipped + " opens=" + opens;
+        }
+    }
+
+    /**
+     * State of one host and endpoint class, guarded by the circuit itself
+     */
+    private final class Circuit {
+        State state = State.CLOSED;
+        int consecutiveFailures;
+        int probes;
+        long openedAt;
+        long openDurationMS = openMS;
+        long stateChangedAt;
+        long successes;
+        long failures;
+        long skipped;
+        int opens;
+
+        synchronized boolean allow(long now) {
+            if (state == State.OPEN) {
+                if (now - openedAt < openDurationMS) {
+                    ++skipped;
+                    return false;
+                }
+                state = State.HALF_OPEN;
+                stateChangedAt = now;
+                probes = 0;
+            }
+            if (state == State.HALF_OPEN) {
+                if (probes >= halfOpenProbes && now - stateChangedAt >= openDurationMS) {
+                    // the probes never reported, e.g. a request whose thread died
+                    stateChangedAt = now;
+                    probes = 0;
+                }
+                if (probes >= halfOpenProbes) {
+                    ++skipped;
+                    return false;
+                }
+                ++probes;
+            }
+            return true;
+        }
+
+        synchronized void succeeded(long now) {
+            ++successes;
+            consecutiveFailures = 0;
+            if (state != State.CLOSED) {
+                state = State.CLOSED;
+                stateChangedAt = now;
+                openDurationMS = openMS;
+            }
+        }
+
+        synchronized void failed(long now) {
+            ++failures;
+            ++consecutiveFailures;
+            if (state == State.HALF_OPEN) {
+                openDurationMS = Math.min(openDurationMS * 2, maxOpenMS);
+                open(now);
+            } else if (state == State.OPEN) {
+                // tried anyway because all the circuits were open
+                openedAt = now;
+            } else if (consecutiveFailures >= failureThreshold) {
+                open(now);
+            }
+        }
+
+        private void open(long now) {
+            state = State.OPEN;
+            stateChangedAt = now;
+            openedAt = now;
+            ++opens;
+        }
+    }
+
+    private static String key(String host, EndpointClass endpoint) {
+        return endpoint + " " + host;
+    }
+
+    private Circuit circuit(String host, EndpointClass endpoint) {
+        String key = key(host, endpoint);
+        Circuit circuit = circuits.get(key);
+        if (circuit == null) {
+            Circuit created = new Circuit();
+            circuit = circuits.putIfAbsent(key, created);
+            if (circuit == null) {
+                circuit = created;
+            }
+        }
+        return circuit;
+    }
+
+    /**
+     * @return true if the host can be tried, false if its circuit is open or already probed
+     */
+    boolean allowRequest(String host, EndpointClass endpoint) {
+        return circuit(host, endpoint).allow(System.currentTimeMillis());
+    }
+
+    /**
+     * The host answered (including 4xx answers, the request was wrong, not the host)
+     */
+    void onSuccess(String host, EndpointClass endpoint) {
+        circuit(host, endpoint).succeeded(System.currentTimeMillis());
+    }
+
+    /**
+     * The host could not be reached or answered with a server error
+     */
+    void onFailure(String host, EndpointClass endpoint) {
+        circuit(host, endpoint).failed(System.currentTimeMillis());
+    }
+
+    public State getState(String host, EndpointClass endpoint) {
+        Circuit circuit = circuits.get(key(host, endpoint));
+        if (circuit == null) {
+            return State.CLOSED;
+        }
+        synchronized (circuit) {
+            return circuit.state;
+        }
+    }
+
+    /**
+     * Close all the circuits, e.g. when the network of the device changed
+     */
+    public void reset() {
+        circuits.clear();
+    }
+
+    /**
+     * @return the state of the circuits used so far, by "READ host" or "WRITE host"
+     */
+    public Map<String, CircuitStats> getStats() {
+        Map<String, CircuitStats> res = new HashMap<String, CircuitStats>();
+        for (Map.Entry<String, Circuit> e : circuits.entrySet()) {
+            Circuit circuit = e.getValue();
+            String key = e.getKey();
+            int space = key.indexOf(' ');
+            synchronized (circuit) {
+                res.put(key, new CircuitStats(key.substring(space + 1), EndpointClass.valueOf(key.substring(0, space)), circuit.state,
+                        circuit.consecutiveFailures, circuit.successes, circuit.failures, circuit.skipped, circuit.opens,
+                        circuit.stateChangedAt));
+            }
+        }
+        return res;
+    }
+}
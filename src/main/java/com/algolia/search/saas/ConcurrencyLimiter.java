@@ -0,0 +1,222 @@
+package com.algolia.search.saas;
+
+import java.util.LinkedList;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+/**
+ * Adaptive limit of the write calls in flight (batches, addObjects...), so that bulk indexing
+ * sends as many calls in parallel as the servers sustain. The limit follows AIMD:
+ * - a call that succeeded with a latency within latencyTolerance times the baseline (the lowest
+ *   latency of the last window of 100 calls) adds 1/limit to the limit (+1 per round of calls),
+ *   provided at least half of the limit is in use
+ * - a call that timed out or got a 5xx or 429 answer multiplies the limit by backoffRatio, once
+ *   for all the calls already in flight at the previous decrease
+ * Calls beyond the limit wait for a slot: blocking calls until their deadline, calls without
+ * blocking in a FIFO queue.
+ */
+public class ConcurrencyLimiter {
+    private static final int LATENCY_WINDOW = 100;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double backoffRatio;
+    private final double latencyTolerance;
+    private final LinkedList<Runnable> queue = new LinkedList<Runnable>();
+    // guarded by this
+    private double limit;
+    private int inFlight;
+    private long baselineMS = Long.MAX_VALUE;
+    private long windowMinMS = Long.MAX_VALUE;
+    private long decreasedAt;
+    private int windowSamples;
+    private long increases;
+    private long decreases;
+
+    /**
+     * Start at 4 calls in parallel, between 1 and 64, halve on overload, grow while latency stays within twice the baseline
+     */
+    public ConcurrencyLimiter() {
+        this(4, 1, 64, 0.5, 2.0);
+    }
+
+    /**
+     * @param initialLimit number of calls in parallel before any adjustment
+     * @param minLimit minimum limit
+     * @param maxLimit maximum limit
+     * @param backoffRatio factor applied to the limit on overload, between 0 and 1
+     * @param latencyTolerance latency, relative to the baseline, under which the limit grows
+     */
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, double backoffRatio, double latencyTolerance) {
+        if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("limits must satisfy 1 <= minLimit <= initialLimit <= maxLimit");
+        }
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.backoffRatio = backoffRatio;
+        this.latencyTolerance = latencyTolerance;
+    }
+
+    /**
+     * Wait for a slot
+     *
+     * @param deadline time after which to give up
+     * @param token token cancelling the wait, null if none
+     * @return false if the deadline passed or the token was cancelled before a slot was free
+     */
+    synchronized boolean acquire(long deadline, CancellationToken token) throws InterruptedException {
+        while (inFlight >= (int) limit || !queue.isEmpty()) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0 || (token != null && token.isCancelled())) {
+                return false;
+            }
+            // woken up by releases, the token is checked periodically
+            wait(Math.min(left, 100));
+        }
+        ++inFlight;
+        return true;
+    }
+
+    /**
+     * Take a slot without blocking
+     *
+     * @param granted run once a slot is taken for the caller, if it is not free now
+     * @return true if a slot was taken now, false if the call is queued
+     */
+    synchronized boolean acquireAsync(Runnable granted) {
+        if (inFlight < (int) limit && queue.isEmpty()) {
+            ++inFlight;
+            return true;
+        }
+        queue.add(granted);
+        return false;
+    }
+
+    /**
+     * Give back the slot of a call
+     *
+     * @param startedAt time at which the call got its slot
+     * @param overloaded true if the call timed out or got a 5xx or 429 answer
+     */
+    void release(long startedAt, boolean overloaded) {
+        Runnable next;
+        synchronized (this) {
+            --inFlight;
+            long now = System.currentTimeMillis();
+            long latencyMS = now - startedAt;
+            if (overloaded) {
+                if (startedAt >= decreasedAt) {
+                    limit = Math.max(minLimit, limit * backoffRatio);
+                    decreasedAt = now;
+                    ++decreases;
+                }
+            } else {
+                windowMinMS = Math.min(windowMinMS, latencyMS);
+                long baseline = Math.min(baselineMS, windowMinMS);
+                if (++windowSamples >= LATENCY_WINDOW) {
+                    baselineMS = windowMinMS;
+                    windowMinMS = Long.MAX_VALUE;
+                    windowSamples = 0;
+                }
+                if (latencyMS <= baseline * latencyTolerance && inFlight + 1 >= limit / 2 && limit < maxLimit) {
+                    limit = Math.min(maxLimit, limit + 1 / limit);
+                    ++increases;
+                }
+            }
+            next = grant();
+            notifyAll();
+        }
+        if (next != null) {
+            next.run();
+        }
+    }
+
+    /**
+     * Give back a slot without measure, the call was not sent
+     */
+    void release() {
+        Runnable next;
+        synchronized (this) {
+            --inFlight;
+            next = grant();
+            notifyAll();
+        }
+        if (next != null) {
+            next.run();
+        }
+    }
+
+    /**
+     * @return the queued call taking the slot released, null if none
+     */
+    private Runnable grant() {
+        if (queue.isEmpty() || inFlight >= (int) limit) {
+            return null;
+        }
+        ++inFlight;
+        return queue.removeFirst();
+    }
+
+    /**
+     * Current number of calls allowed in parallel
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Number of calls without blocking waiting for a slot
+     */
+    public synchronized int getQueued() {
+        return queue.size();
+    }
+
+    /**
+     * Latency under which calls are considered not to load the servers, -1 before the first measure
+     */
+    public synchronized long getBaselineLatencyMS() {
+        long baseline = Math.min(baselineMS, windowMinMS);
+        return baseline == Long.MAX_VALUE ? -1 : baseline;
+    }
+
+    /**
+     * Number of calls that increased the limit
+     */
+    public synchronized long getIncreases() {
+        return increases;
+    }
+
+    /**
+     * Number of calls that decreased the limit
+     */
+    public synchronized long getDecreases() {
+        return decreases;
+    }
+}
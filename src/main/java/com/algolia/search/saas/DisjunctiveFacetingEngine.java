@@ -0,0 +1,382 @@
+package com.algolia.search.saas;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.algolia.search.saas.APIClient.IndexQuery;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+/**
+ * Disjunctive faceting with a cache of the per-facet count queries.
+ * The counts of a disjunctive facet only depend on the query parameters (except the page)
+ * and on the refinements of the other facets, so when a refinement changes only the hits
+ * query and the count queries of the facets whose filters changed are sent, in a single
+ * multipleQueries call. The least recently used counts are evicted first. Counts expire after
+ * maxAgeMS, and as soon as a write to the index is sent through the same client.
+ */
+public class DisjunctiveFacetingEngine {
+    static final long DEFAULT_MAX_AGE_MS = 60000;
+    // counts of a facet missing from its count answer (no value): cached, but left out of the results
+    private static final FacetCounts ABSENT = FacetCounts.of(new String[0], new int[0], 0);
+
+    private final Index index;
+    private final int maxCachedQueries;
+    private final long maxAgeMS;
+    private final LinkedHashMap<String, CachedCounts> cache = new LinkedHashMap<String, CachedCounts>(16, 0.75f, true);
+
+    private static class CachedCounts {
+        final FacetCounts counts;
+        final long requestedAt;
+
+        CachedCounts(FacetCounts counts, long requestedAt) {
+            this.counts = counts;
+            this.requestedAt = requestedAt;
+        }
+    }
+
+    /**
+     * Use Index.createDisjunctiveFacetingEngine() to create an engine
+     */
+    DisjunctiveFacetingEngine(Index index, int maxCachedQueries, long maxAgeMS) {
+        if (maxCachedQueries < 0) {
+            throw new IllegalArgumentException("maxCachedQueries must be positive");
+        }
+        if (maxAgeMS < 0) {
+            throw new IllegalArgumentException("maxAgeMS must be positive");
+        }
+        this.index = index;
+        this.maxCachedQueries = maxCachedQueries;
+        this.maxAgeMS = maxAgeMS;
+    }
+
+    /**
+     * Perform a search with disjunctive facets, same answer as Index.disjunctiveFaceting
+     * @param query the query
+     * @param disjunctiveFacets the array of disjunctive facets
+     * @param refinements Map<String, List<String>> representing the current refinements
+     *     ex: { "my_facet1" => ["my_value1", "my_value2"], "my_disjunctive_facet1" => ["my_value1", "my_value2"] }
+     * @throws AlgoliaException
+     */
+    public JSONObject disjunctiveFaceting(Query query, List<String> disjunctiveFacets, Map<String, List<String>> refinements) throws AlgoliaException {
+        return disjunctiveFaceting(query, disjunctiveFacets, new RefinementFilters(refinements, disjunctiveFacets), new HashMap<String, FacetCounts>());
+    }
+
+    public JSONObject disjunctiveFaceting(Query query, List<String> disjunctiveFacets) throws AlgoliaException {
+        return disjunctiveFaceting(query, disjunctiveFacets, null);
+    }
+
+    /**
+     * Perform a search with disjunctive facets, decoded in a single pass: hits are built by the
+     * mapper, the counts are available with getFacets() and getDisjunctiveFacets()
+     * @param query the query
+     * @param disjunctiveFacets the array of disjunctive facets
+     * @param refinements the current refinements
+     * @param mapper the mapper building an application object from each hit
+     * @throws AlgoliaException
+     */
+    public <T> SearchResult<T> disjunctiveFacetingTyped(Query query, List<String> disjunctiveFacets, Map<String, List<String>> refinements,
+            final HitMapper<T> mapper) throws AlgoliaException {
+        RefinementFilters filters = new RefinementFilters(refinements, disjunctiveFacets);
+        Map<String, FacetCounts> counts = new LinkedHashMap<String, FacetCounts>();
+        SearchResult<T> res = fetch(query, disjunctiveFacets, filters, new HashMap<String, FacetCounts>(), counts, new HitMapper<SearchResult<T>>() {
+            public SearchResult<T> map(JSONReader reader) throws AlgoliaException {
+                return SearchResult.decode(reader, mapper);
+            }
+        });
+        res.setDisjunctiveFacets(withRefinedValues(counts, filters));
+        return res;
+    }
+
+    /**
+     * Counts of the disjunctive facets only, without the hits query: no network call is made when
+     * all counts are cached. Refined values missing from the counts are added with a count of 0,
+     * facets without any value are left out.
+     * @param query the query
+     * @param disjunctiveFacets the array of disjunctive facets
+     * @param refinements Map<String, List<String>> representing the current refinements
+     * @throws AlgoliaException
+     */
+    public Map<String, FacetCounts> disjunctiveFacetCounts(Query query, List<String> disjunctiveFacets, Map<String, List<String>> refinements) throws AlgoliaException {
+        RefinementFilters filters = new RefinementFilters(refinements, disjunctiveFacets);
+        Map<String, FacetCounts> counts = new LinkedHashMap<String, FacetCounts>();
+        fetch(query, disjunctiveFacets, filters, new HashMap<String, FacetCounts>(), counts, null);
+        return withRefinedValues(counts, filters);
+    }
+
+    /**
+     * Add the refined values missing from the counts with a count of 0, and remove the facets
+     * missing from the answers
+     */
+    private static Map<String, FacetCounts> withRefinedValues(Map<String, FacetCounts> counts, RefinementFilters filters) {
+        for (Iterator<Map.Entry<String, FacetCounts>> it = counts.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, FacetCounts> elt = it.next();
+            if (elt.getValue() == ABSENT) {
+                it.remove();
+            } else {
+                elt.setValue(elt.getValue().withValues(filters.values(elt.getKey())));
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Incremental disjunctive faceting: the counts of the previous answer are reused for every facet
+     * whose "all but self" filters did not change, typically all facets but the toggled one.
+     * Only the hits query and the count queries of the other facets (if not cached) are sent.
+     * The previous answer is ignored if its query or parameters differ from the query (but for the
+     * page and the refinements); the counts taken from it are not cached since they cannot be checked
+     * against the current state of the index.
+     *
+     * @param query the query, with the same parameters as the previous one except the page
+     * @param disjunctiveFacets the array of disjunctive facets
+     * @param refinements the current refinements
+     * @param previousRefinements the refinements of the previous answer
+     * @param previousAnswer the answer of disjunctiveFaceting for the previous refinements
+     * @throws AlgoliaException
+     */
+    public JSONObject disjunctiveFaceting(Query query, List<String> disjunctiveFacets, Map<String, List<String>> refinements,
+            Map<String, List<String>> previousRefinements, JSONObject previousAnswer) throws AlgoliaException {
+        RefinementFilters filters = new RefinementFilters(refinements, disjunctiveFacets);
+        RefinementFilters previousFilters = new RefinementFilters(previousRefinements, disjunctiveFacets);
+        JSONObject previousCounts = previousAnswer == null || !isAnswerOf(previousAnswer, query, previousFilters) ? null
+                : previousAnswer.optJSONObject("disjunctiveFacets");
+        Map<String, FacetCounts> reused = new HashMap<String, FacetCounts>();
+        for (String facet : disjunctiveFacets) {
+            JSONObject counts = previousCounts == null ? null : previousCounts.optJSONObject(facet);
+            if (counts != null && filters.allBut(facet).equals(previousFilters.allBut(facet))) {
+                // refined values added with a count of 0 are not part of the server counts
+                reused.put(facet, FacetCounts.fromJSON(counts).withoutZeros());
+            }
+        }
+        return disjunctiveFaceting(query, disjunctiveFacets, filters, reused);
+    }
+
+    /**
+     * @return false if the "query" or "params" echoed in the answer show that it was not sent for
+     * the query with the given filters (the page aside)
+     */
+    static boolean isAnswerOf(JSONObject answer, Query query, RefinementFilters filters) {
+        String params = answer.optString("params", null);
+        if (params != null) {
+            return withoutPage(params).equals(withoutPage(hitsQuery(query, filters).getQueryString()));
+        }
+        String text = answer.optString("query", null);
+        return text == null || text.equals(query.getQuery() != null ? query.getQuery() : "");
+    }
+
+    private static String withoutPage(String params) {
+        StringBuilder res = new StringBuilder();
+        for (String param : params.split("&")) {
+            if (!param.startsWith("page=") && param.length() > 0) {
+                res.append(param).append('&');
+            }
+        }
+        return res.toString();
+    }
+
+    private JSONObject disjunctiveFaceting(Query query, List<String> disjunctiveFacets, RefinementFilters filters, Map<String, FacetCounts> reused) throws AlgoliaException {
+        Map<String, FacetCounts> counts = new LinkedHashMap<String, FacetCounts>();
+        JSONObject hitsAnswer = fetch(query, disjunctiveFacets, filters, reused, counts, SearchResult.JSON_HITS);
+        try {
+            return merge(hitsAnswer, counts, filters);
+        } catch (JSONException e) {
+            throw new AlgoliaException(e.getMessage());
+        }
+    }
+
+    /**
+     * Fill the counts of every disjunctive facet, sending the hits query (if requested) and the
+     * count queries of the facets neither reused nor cached in a single call.
+     * The count answers are decoded directly from the response bytes.
+     *
+     * @param hitsDecoder decoder of the answer of the hits query, null to send only the count queries
+     * @return the answer of the hits query, null if not requested
+     */
+    private <A> A fetch(Query query, List<String> disjunctiveFacets, RefinementFilters filters, Map<String, FacetCounts> reused,
+            Map<String, FacetCounts> counts, HitMapper<A> hitsDecoder) throws AlgoliaException {
+        boolean withHits = hitsDecoder != null;
+        List<IndexQuery> queries = new ArrayList<IndexQuery>();
+        List<String> fetched = new ArrayList<String>();
+        List<String> keys = new ArrayList<String>();
+        if (withHits) {
+            queries.add(new IndexQuery(index.getIndexName(), hitsQuery(query, filters)));
+        }
+        long requestedAt = System.currentTimeMillis();
+        synchronized (this) {
+            for (String facet : disjunctiveFacets) {
+                Query countQuery = countQuery(query, facet, filters);
+                // the same query sent with other credentials, tag filters or headers may count other records
+                String key = index.getClient()._cacheKey(countQuery.getQueryString());
+                // counts reused from a caller's answer are not cached
+                FacetCounts known = reused.get(facet);
+                if (known == null) {
+                    known = cached(key, requestedAt);
+                }
+                counts.put(facet, known);
+                if (known == null) {
+                    queries.add(new IndexQuery(index.getIndexName(), countQuery));
+                    fetched.add(facet);
+                    keys.add(key);
+                }
+            }
+        }
+        if (queries.isEmpty()) {
+            return null;
+        }
+        JSONReader reader = new JSONReader(index.getClient().multipleQueriesRaw(queries, "none"));
+        A hitsAnswer = null;
+        int n = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!"results".equals(reader.nextName())) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginArray();
+            for (; reader.hasNext(); ++n) {
+                if (n >= queries.size()) {
+                    reader.skipValue();
+                } else if (withHits && n == 0) {
+                    hitsAnswer = hitsDecoder.map(reader);
+                } else {
+                    int i = withHits ? n - 1 : n;
+                    FacetCounts facetCounts = decodeCounts(reader, fetched.get(i));
+                    counts.put(fetched.get(i), facetCounts);
+                    put(keys.get(i), facetCounts, requestedAt);
+                }
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+        if (n != queries.size()) {
+            throw new AlgoliaException("Unexpected multipleQueries answer");
+        }
+        return hitsAnswer;
+    }
+
+    /**
+     * Counts of a facet in a count query answer, skipping everything else
+     */
+    private static FacetCounts decodeCounts(JSONReader reader, String facet) throws AlgoliaException {
+        FacetCounts res = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (!"facets".equals(reader.nextName())) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (facet.equals(reader.nextName())) {
+                    res = FacetCounts.decode(reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        reader.endObject();
+        return res != null ? res : ABSENT;
+    }
+
+    /**
+     * Number of cached count queries
+     */
+    public synchronized int getCachedQueries() {
+        return cache.size();
+    }
+
+    public synchronized void clearCache() {
+        cache.clear();
+    }
+
+    /**
+     * @return the cached counts, null if none or if they expired or the index was written since
+     */
+    private FacetCounts cached(String key, long now) {
+        CachedCounts entry = cache.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (now - entry.requestedAt > maxAgeMS || entry.requestedAt <= index.getClient().lastWriteAt(index.getIndexName())) {
+            cache.remove(key);
+            return null;
+        }
+        return entry.counts;
+    }
+
+    private synchronized void put(String key, FacetCounts counts, long requestedAt) {
+        if (maxCachedQueries == 0) {
+            return;
+        }
+        cache.put(key, new CachedCounts(counts, requestedAt));
+        Iterator<String> it = cache.keySet().iterator();
+        while (cache.size() > maxCachedQueries) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * Hits and regular facets query
+     */
+    static Query hitsQuery(Query query, RefinementFilters filters) {
+        return new Query(query).setFacetFilters(filters.all());
+    }
+
+    /**
+     * Count query of a disjunctive facet: all refinements but the ones of this facet, no hit retrieved.
+     * The page is reset since the counts do not depend on it.
+     */
+    static Query countQuery(Query query, String facet, RefinementFilters filters) {
+        List<String> facets = new ArrayList<String>(1);
+        facets.add(facet);
+        return new Query(query).setPage(0).setHitsPerPage(1).setAttributesToRetrieve(new ArrayList<String>())
+                .setAttributesToHighlight(new ArrayList<String>()).setAttributesToSnippet(new ArrayList<String>())
+                .setFacets(facets).setFacetFilters(filters.allBut(facet));
+    }
+
+    /**
+     * Add the "disjunctiveFacets" attribute to the hits answer, refined values missing
+     * from the counts are added with a count of 0. The facets missing from their count answer
+     * (no value matches) are left out, as the API leaves them out of "facets".
+     */
+    static JSONObject merge(JSONObject hitsAnswer, Map<String, FacetCounts> counts, RefinementFilters filters) throws JSONException {
+        JSONObject disjunctiveFacets = new JSONObject();
+        for (Map.Entry<String, FacetCounts> elt : withRefinedValues(counts, filters).entrySet()) {
+            disjunctiveFacets.put(elt.getKey(), elt.getValue().toJSON());
+        }
+        hitsAnswer.put("disjunctiveFacets", disjunctiveFacets);
+        return hitsAnswer;
+    }
+}
@@ -0,0 +1,366 @@
+package com.algolia.search.saas;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.codec.binary.Hex;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * Persistent cache of read responses (search, getObject, getSettings, browse) stored in a size-capped directory.
+ * Entries younger than maxAge are served directly, entries younger than maxAge + maxStale are served
+ * immediately while being revalidated in the background.
+ * The writes sent through the client evict the responses of their index.
+ * Use APIClient.setResponseCache() to enable it.
+ */
+public class DiskResponseCache {
+    private static final String SUFFIX = ".cache";
+
+    private final File directory;
+    private final long maxSizeBytes;
+    private final long maxAgeMS;
+    private final long maxStaleMS;
+    private final ExecutorService revalidator;
+    private final Set<String> revalidating = new HashSet<String>();
+    // guarded by this: file names in access order with their length, and their index (null if unknown)
+    private final LinkedHashMap<String, Long> files = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private final Map<String, String> indexNames = new HashMap<String, String>();
+    // guarded by this: files that could not be deleted, still counted in sizeBytes until trim() deletes them
+    private final Map<String, Long> orphans = new HashMap<String, Long>();
+    // guarded by this: time of the last write of each index, and of the last write of all of them
+    private final Map<String, Long> invalidatedAt = new HashMap<String, Long>();
+    private long clearedAt;
+    private long sizeBytes;
+
+    static class Entry {
+        final byte[] body;
+        final long storedAt;
+
+        Entry(byte[] body, long storedAt) {
+            this.body = body;
+            this.storedAt = storedAt;
+        }
+    }
+
+    /**
+     * @param directory the directory storing the responses (created if needed)
+     * @param maxSizeBytes maximum total size of the stored responses, least recently used entries are removed first
+     * @param maxAgeMS duration during which a response is served without contacting the server
+     * @param maxStaleMS additional duration during which a response is served while being revalidated in background
+     */
+    public DiskResponseCache(File directory, long maxSizeBytes, long maxAgeMS, long maxStaleMS) {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalArgumentException("Cannot create cache directory " + directory);
+        }
+        this.directory = directory;
+        this.maxSizeBytes = maxSizeBytes;
+        this.maxAgeMS = maxAgeMS;
+        this.maxStaleMS = maxStaleMS;
+        this.revalidator = new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "AlgoliaResponseCache");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // the access order of the previous runs is approximated by the modification times
+        File[] entries = entries();
+        Arrays.sort(entries, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (File file : entries) {
+            files.put(file.getName(), file.length());
+            sizeBytes += file.length();
+        }
+    }
+
+    public long getMaxAgeMS() {
+        return maxAgeMS;
+    }
+
+    public long getMaxStaleMS() {
+        return maxStaleMS;
+    }
+
+    /**
+     * Total size of the stored responses
+     */
+    public synchronized long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    /**
+     * Remove all stored responses
+     */
+    public synchronized void clear() {
+        files.clear();
+        indexNames.clear();
+        orphans.clear();
+        sizeBytes = 0;
+        for (File file : entries()) {
+            long length = file.length();
+            if (!file.delete() && file.exists()) {
+                orphans.put(file.getName(), length);
+                sizeBytes += length;
+            }
+        }
+    }
+
+    /**
+     * Remove the stored responses of an index, and those whose index is unknown
+     *
+     * @param indexName the index written, null for all indexes
+     */
+    public synchronized void invalidate(String indexName) {
+        long now = System.currentTimeMillis();
+        if (indexName == null) {
+            clearedAt = now;
+            clear();
+            return;
+        }
+        invalidatedAt.put(indexName, now);
+        List<String> names = new ArrayList<String>();
+        for (String name : files.keySet()) {
+            String entryIndex = indexNames.get(name);
+            if (entryIndex == null || entryIndex.equals(indexName)) {
+                names.add(name);
+            }
+        }
+        for (String name : names) {
+            remove(new File(directory, name));
+        }
+    }
+
+    /**
+     * The file is read outside the lock, so that a slow read does not delay the other requests
+     */
+    Entry get(String key) {
+        File file = file(key);
+        synchronized (this) {
+            if (files.get(file.getName()) == null) {
+                return null;
+            }
+        }
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                long storedAt = in.readLong();
+                byte[] body = new byte[in.readInt()];
+                in.readFully(body);
+                return new Entry(body, storedAt);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // missing or corrupted entry
+            synchronized (this) {
+                remove(file);
+            }
+            return null;
+        }
+    }
+
+    void put(String key, byte[] body) {
+        put(key, null, Long.MAX_VALUE, body);
+    }
+
+    /**
+     * The response is written to a temporary file outside the lock, then renamed in place
+     *
+     * @param indexName the index of the response, null if unknown
+     * @param requestedAt time at which the response was requested, it is not stored if its index was written since
+     */
+    void put(String key, String indexName, long requestedAt, byte[] body) {
+        if (body.length + 12 > maxSizeBytes || isInvalidated(indexName, requestedAt)) {
+            return;
+        }
+        File file = file(key);
+        File tmp = null;
+        try {
+            tmp = File.createTempFile(file.getName(), ".tmp", directory);
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp));
+            try {
+                out.writeLong(System.currentTimeMillis());
+                out.writeInt(body.length);
+                out.write(body);
+            } finally {
+                out.close();
+            }
+            synchronized (this) {
+                // the index may have been written meanwhile
+                if (isInvalidated(indexName, requestedAt)) {
+                    return;
+                }
+                remove(file);
+                if (file.exists() || !tmp.renameTo(file)) {
+                    return;
+                }
+                tmp = null;
+                files.put(file.getName(), file.length());
+                indexNames.put(file.getName(), indexName);
+                sizeBytes += file.length();
+                trim();
+            }
+        } catch (IOException e) {
+            // the cache is best effort
+        } finally {
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+    }
+
+    private synchronized boolean isInvalidated(String indexName, long requestedAt) {
+        Long written = indexName != null ? invalidatedAt.get(indexName) : null;
+        return requestedAt <= clearedAt || (written != null && requestedAt <= written);
+    }
+
+    /**
+     * Refresh an entry in background, at most one revalidation per key at a time
+     */
+    void revalidate(String key, Callable<byte[]> fetch) {
+        revalidate(key, null, fetch);
+    }
+
+    void revalidate(final String key, final String indexName, final Callable<byte[]> fetch) {
+        synchronized (revalidating) {
+            if (!revalidating.add(key)) {
+                return;
+            }
+        }
+        revalidator.execute(new Runnable() {
+            public void run() {
+                try {
+                    long requestedAt = System.currentTimeMillis();
+                    put(key, indexName, requestedAt, fetch.call());
+                } catch (Exception e) {
+                    // keep the stale entry
+                } finally {
+                    synchronized (revalidating) {
+                        revalidating.remove(key);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Remove the least recently used entries to stay under the size limit.
+     * Only the files actually deleted are subtracted from the size.
+     */
+    private void trim() {
+        Iterator<Map.Entry<String, Long>> orphan = orphans.entrySet().iterator();
+        while (sizeBytes > maxSizeBytes && orphan.hasNext()) {
+            Map.Entry<String, Long> entry = orphan.next();
+            File file = new File(directory, entry.getKey());
+            if (file.delete() || !file.exists()) {
+                orphan.remove();
+                sizeBytes -= entry.getValue();
+            }
+        }
+        List<String> names = new ArrayList<String>();
+        long excess = sizeBytes - maxSizeBytes;
+        for (Map.Entry<String, Long> entry : files.entrySet()) {
+            if (excess <= 0) {
+                break;
+            }
+            names.add(entry.getKey());
+            excess -= entry.getValue();
+        }
+        for (String name : names) {
+            remove(new File(directory, name));
+        }
+    }
+
+    /**
+     * Remove an entry, a file that cannot be deleted stays counted as an orphan
+     */
+    private void remove(File file) {
+        Long length = files.remove(file.getName());
+        indexNames.remove(file.getName());
+        if (length == null) {
+            length = orphans.remove(file.getName());
+        }
+        if (length == null) {
+            return;
+        }
+        if (file.delete() || !file.exists()) {
+            sizeBytes -= length;
+        } else {
+            orphans.put(file.getName(), length);
+        }
+    }
+
+    private File[] entries() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        int n = 0;
+        for (File file : files) {
+            if (file.getName().endsWith(SUFFIX)) {
+                files[n++] = file;
+            }
+        }
+        return Arrays.copyOf(files, n);
+    }
+
+    private File file(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return new File(directory, new String(Hex.encodeHex(digest.digest(key.getBytes("UTF-8")))) + SUFFIX);
+        } catch (NoSuchAlgorithmException e) {
+            throw new Error(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new Error(e);
+        }
+    }
+}
@@ -0,0 +1,370 @@
+package com.algolia.search.saas;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * Cache of host name resolutions shared by the requests of a transport, so that a failover to
+ * another host does not wait for a DNS lookup. Addresses are kept ttlMS, then served while
+ * being refreshed in the background; failed lookups are remembered negativeTtlMS.
+ * APIClient pre-resolves its hosts in the background when it is created.
+ * InetAddress does not expose the TTL of DNS records, the TTLs are those given to the constructor.
+ */
+public class DnsCache {
+    private final long ttlMS;
+    private final long negativeTtlMS;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private final ExecutorService resolver;
+
+    /**
+     * Resolution statistics of one host
+     */
+    public static final class HostStats {
+        private final String host;
+        private final InetAddress[] addresses;
+        private final long resolvedAt;
+        private final long lastLookupMS;
+        private final int lookups;
+        private final int hits;
+        private final int failures;
+
+        HostStats(String host, InetAddress[] addresses, long resolvedAt, long lastLookupMS, int lookups, int hits, int failures) {
+            this.host = host;
+            this.addresses = addresses;
+            this.resolvedAt = resolvedAt;
+            this.lastLookupMS = lastLookupMS;
+            this.lookups = lookups;
+            this.hits = hits;
+            this.failures = failures;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        /**
+         * The addresses currently cached (empty if never resolved)
+         */
+        public InetAddress[] getAddresses() {
+            return addresses.clone();
+        }
+
+        /**
+         * Time of the last successful lookup, 0 if none
+         */
+        public long getResolvedAt() {
+            return resolvedAt;
+        }
+
+        /**
+         * Duration of the last lookup
+         */
+        public long getLastLookupMS() {
+            return lastLookupMS;
+        }
+
+        /**
+         * Number of DNS lookups done
+         */
+        public int getLookups() {
+            return lookups;
+        }
+
+        /**
+         * Number of resolutions served from the cache
+         */
+        public int getHits() {
+            return hits;
+        }
+
+        /**
+         * Number of failed lookups
+         */
+        public int getFailures() {
+            return failures;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder res = new StringBuilder(host).append(" [");
+            for (int i = 0; i < addresses.length; ++i) {
+                res.append(i > 0 ? ", " : "").append(addresses[i].getHostAddress());
+            }
+            return res.append("] lookups=").append(lookups).append(" hits=").append(hits).append(" failures=").append(failures)
+                    .append(" lastLookupMS=").append(lastLookupMS).toString();
+        }
+    }
+
+    /**
+     * State of one host, guarded by the entry itself
+     */
+    private static final class Entry {
+        InetAddress[] addresses = new InetAddress[0];
+        UnknownHostException failure;
+        long expiresAt;
+        long resolvedAt;
+        long lastLookupMS;
+        int lookups;
+        int hits;
+        int failures;
+        boolean resolving;
+    }
+
+    public DnsCache() {
+        this(5 * 60 * 1000, 10 * 1000);
+    }
+
+    /**
+     * @param ttlMS duration during which resolved addresses are used without a new lookup
+     * @param negativeTtlMS duration during which a failed lookup is not retried
+     */
+    public DnsCache(long ttlMS, long negativeTtlMS) {
+        this.ttlMS = ttlMS;
+        this.negativeTtlMS = negativeTtlMS;
+        this.resolver = new ThreadPoolExecutor(0, 4, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "AlgoliaDns");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Addresses of a host. A host never resolved, or whose addresses are older than the TTL and
+     * could not be refreshed, is looked up synchronously; concurrent callers share the same lookup.
+     */
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+        Entry entry = entry(host);
+        synchronized (entry) {
+            while (true) {
+                long now = System.currentTimeMillis();
+                if (entry.expiresAt > now) {
+                    ++entry.hits;
+                    if (entry.failure != null) {
+                        throw entry.failure;
+                    }
+                    return entry.addresses;
+                }
+                if (entry.addresses.length > 0 && entry.failure == null) {
+                    // expired: served while refreshed in background
+                    ++entry.hits;
+                    refreshLater(host, entry);
+                    return entry.addresses;
+                }
+                if (!entry.resolving) {
+                    break;
+                }
+                try {
+                    entry.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new UnknownHostException(host + " (interrupted)");
+                }
+            }
+            entry.resolving = true;
+        }
+        refresh(host, entry);
+        synchronized (entry) {
+            if (entry.failure != null) {
+                throw entry.failure;
+            }
+            return entry.addresses;
+        }
+    }
+
+    /**
+     * Resolve hosts in the background (hosts may contain a port)
+     */
+    public void prefetch(Collection<String> hosts) {
+        Set<String> names = new LinkedHashSet<String>();
+        for (String host : hosts) {
+            int colon = host.lastIndexOf(':');
+            names.add(colon > 0 && host.indexOf(':') == colon ? host.substring(0, colon) : host);
+        }
+        for (String name : names) {
+            Entry entry = entry(name);
+            synchronized (entry) {
+                if (entry.resolving || entry.expiresAt > System.currentTimeMillis()) {
+                    continue;
+                }
+                refreshLater(name, entry);
+            }
+        }
+    }
+
+    /**
+     * Forget the addresses of a host, the next resolution does a lookup
+     */
+    public void invalidate(String host) {
+        synchronized (entries) {
+            entries.remove(host);
+        }
+    }
+
+    /**
+     * Number of addresses cached for a host, without counting a hit nor triggering a lookup
+     */
+    int addressCount(String host) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(host);
+        }
+        if (entry == null) {
+            return 0;
+        }
+        synchronized (entry) {
+            return entry.addresses.length;
+        }
+    }
+
+    /**
+     * Move an address that could not be connected to after the other addresses of the host,
+     * so the next connection tries another one first
+     */
+    public void demote(String host, InetAddress address) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(host);
+        }
+        if (entry == null) {
+            return;
+        }
+        synchronized (entry) {
+            InetAddress[] addresses = entry.addresses;
+            int index = Arrays.asList(addresses).indexOf(address);
+            if (index < 0 || index == addresses.length - 1) {
+                return;
+            }
+            InetAddress[] demoted = new InetAddress[addresses.length];
+            System.arraycopy(addresses, 0, demoted, 0, index);
+            System.arraycopy(addresses, index + 1, demoted, index, addresses.length - index - 1);
+            demoted[addresses.length - 1] = address;
+            entry.addresses = demoted;
+        }
+    }
+
+    /**
+     * Statistics of every host resolved by this cache
+     */
+    public Map<String, HostStats> getStats() {
+        Map<String, Entry> copy;
+        synchronized (entries) {
+            copy = new HashMap<String, Entry>(entries);
+        }
+        Map<String, HostStats> res = new HashMap<String, HostStats>();
+        for (Map.Entry<String, Entry> e : copy.entrySet()) {
+            Entry entry = e.getValue();
+            synchronized (entry) {
+                res.put(e.getKey(), new HostStats(e.getKey(), entry.addresses, entry.resolvedAt, entry.lastLookupMS,
+                        entry.lookups, entry.hits, entry.failures));
+            }
+        }
+        return res;
+    }
+
+    /**
+     * DNS lookup, overridden by tests
+     */
+    protected InetAddress[] lookup(String host) throws UnknownHostException {
+        return InetAddress.getAllByName(host);
+    }
+
+    private Entry entry(String host) {
+        synchronized (entries) {
+            Entry entry = entries.get(host);
+            if (entry == null) {
+                entry = new Entry();
+                entries.put(host, entry);
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Must be called with the entry locked
+     */
+    private void refreshLater(final String host, final Entry entry) {
+        if (entry.resolving) {
+            return;
+        }
+        entry.resolving = true;
+        resolver.execute(new Runnable() {
+            public void run() {
+                refresh(host, entry);
+            }
+        });
+    }
+
+    /**
+     * Lookup by the caller which set entry.resolving
+     */
+    private void refresh(String host, Entry entry) {
+        long start = System.currentTimeMillis();
+        InetAddress[] addresses = null;
+        UnknownHostException failure = null;
+        try {
+            addresses = lookup(host);
+        } catch (UnknownHostException e) {
+            failure = e;
+        } finally {
+            // also on a RuntimeException (a SecurityException on Android), or callers would wait forever
+            long end = System.currentTimeMillis();
+            synchronized (entry) {
+                ++entry.lookups;
+                entry.lastLookupMS = end - start;
+                if (addresses != null && addresses.length > 0) {
+                    entry.addresses = addresses;
+                    entry.failure = null;
+                    entry.resolvedAt = end;
+                    entry.expiresAt = end + ttlMS;
+                } else {
+                    ++entry.failures;
+                    if (entry.addresses.length > 0) {
+                        // keep serving the previous addresses, retried after the negative TTL
+                        entry.expiresAt = end + negativeTtlMS;
+                    } else {
+                        entry.failure = failure != null ? failure : new UnknownHostException(host);
+                        entry.expiresAt = end + negativeTtlMS;
+                    }
+                }
+                entry.resolving = false;
+                entry.notifyAll();
+            }
+        }
+    }
+}
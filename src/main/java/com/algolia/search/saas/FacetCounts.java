@@ -0,0 +1,245 @@
+package com.algolia.search.saas;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+/**
+ * Counts of the values of one facet, stored as parallel arrays sorted by value:
+ * lookups are binary searches and iterating with getValue(i)/getCount(i) does not box counts.
+ */
+public final class FacetCounts {
+    private static final String[] NO_VALUES = new String[0];
+    private static final int[] NO_COUNTS = new int[0];
+
+    private final String[] values;
+    private final int[] counts;
+
+    /**
+     * @param values the values, sorted
+     * @param counts the count of each value
+     */
+    private FacetCounts(String[] values, int[] counts) {
+        this.values = values;
+        this.counts = counts;
+    }
+
+    /**
+     * Counts from unsorted parallel arrays, only the first size elements are used
+     */
+    static FacetCounts of(String[] values, int[] counts, int size) {
+        if (size == 0) {
+            return new FacetCounts(NO_VALUES, NO_COUNTS);
+        }
+        if (size != values.length) {
+            values = Arrays.copyOf(values, size);
+            counts = Arrays.copyOf(counts, size);
+        }
+        sort(values, counts, 0, size - 1);
+        return new FacetCounts(values, counts);
+    }
+
+    /**
+     * Decode the counts of a facet as returned in the "facets" attribute of an answer
+     */
+    static FacetCounts fromJSON(JSONObject facet) throws AlgoliaException {
+        if (facet == null) {
+            return of(NO_VALUES, NO_COUNTS, 0);
+        }
+        String[] values = new String[facet.length()];
+        int[] counts = new int[values.length];
+        Iterator<?> keys = facet.keys();
+        try {
+            for (int i = 0; keys.hasNext(); ++i) {
+                values[i] = (String) keys.next();
+                counts[i] = facet.getInt(values[i]);
+            }
+        } catch (JSONException e) {
+            throw new AlgoliaException(e.getMessage());
+        }
+        return of(values, counts, values.length);
+    }
+
+    /**
+     * Decode the counts of a facet from the reader, positioned on the facet object
+     */
+    static FacetCounts decode(JSONReader reader) throws AlgoliaException {
+        String[] values = new String[16];
+        int[] counts = new int[16];
+        int size = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            values[size] = reader.nextName();
+            counts[size++] = reader.nextInt();
+        }
+        reader.endObject();
+        return of(values, counts, size);
+    }
+
+    /**
+     * Number of values
+     */
+    public int size() {
+        return values.length;
+    }
+
+    /**
+     * Value at position i, values are sorted
+     */
+    public String getValue(int i) {
+        return values[i];
+    }
+
+    public int getCount(int i) {
+        return counts[i];
+    }
+
+    /**
+     * Count of a value, 0 if the value is not present
+     */
+    public int getCount(String value) {
+        int i = indexOf(value);
+        return i < 0 ? 0 : counts[i];
+    }
+
+    /**
+     * Position of a value, negative if the value is not present
+     */
+    public int indexOf(String value) {
+        return Arrays.binarySearch(values, value);
+    }
+
+    /**
+     * Same counts with the missing values of the list added with a count of 0
+     * (a refined value must stay visible even if no hit matches it anymore)
+     */
+    FacetCounts withValues(List<String> required) {
+        String[] newValues = null;
+        int[] newCounts = null;
+        int size = values.length;
+        for (String value : required) {
+            if (indexOf(value) >= 0 || contains(newValues, values.length, size, value)) {
+                continue;
+            }
+            if (newValues == null) {
+                newValues = Arrays.copyOf(values, values.length + required.size());
+                newCounts = Arrays.copyOf(counts, newValues.length);
+            }
+            newValues[size++] = value;
+        }
+        return newValues == null ? this : of(newValues, newCounts, size);
+    }
+
+    /**
+     * Same counts without the values having a count of 0
+     */
+    FacetCounts withoutZeros() {
+        int n = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                ++n;
+            }
+        }
+        if (n == counts.length) {
+            return this;
+        }
+        String[] newValues = new String[n];
+        int[] newCounts = new int[n];
+        n = 0;
+        for (int i = 0; i < counts.length; ++i) {
+            if (counts[i] > 0) {
+                newValues[n] = values[i];
+                newCounts[n++] = counts[i];
+            }
+        }
+        return new FacetCounts(newValues, newCounts);
+    }
+
+    public JSONObject toJSON() {
+        JSONObject res = new JSONObject();
+        try {
+            for (int i = 0; i < values.length; ++i) {
+                res.put(values[i], counts[i]);
+            }
+        } catch (JSONException e) {
+            throw new Error(e);
+        }
+        return res;
+    }
+
+    private static boolean contains(String[] values, int from, int to, String value) {
+        for (int i = from; i < to; ++i) {
+            if (values[i].equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Quicksort of the values, moving the counts along
+     */
+    private static void sort(String[] values, int[] counts, int lo, int hi) {
+        while (lo < hi) {
+            String pivot = values[(lo + hi) >>> 1];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (values[i].compareTo(pivot) < 0) {
+                    ++i;
+                }
+                while (values[j].compareTo(pivot) > 0) {
+                    --j;
+                }
+                if (i <= j) {
+                    String value = values[i];
+                    values[i] = values[j];
+                    values[j] = value;
+                    int count = counts[i];
+                    counts[i] = counts[j];
+                    counts[j] = count;
+                    ++i;
+                    --j;
+                }
+            }
+            if (j - lo < hi - i) {
+                sort(values, counts, lo, j);
+                lo = i;
+            } else {
+                sort(values, counts, i, hi);
+                hi = j;
+            }
+        }
+    }
+}
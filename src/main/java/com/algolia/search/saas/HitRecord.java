@@ -0,0 +1,130 @@
+package com.algolia.search.saas;
+
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+/**
+ * Compact hit decoded by a KeyDictionary: attribute names are held by a shape shared by all
+ * records having the same attributes, the record only holds the values.
+ * Values are String, Integer, Long, Double, Boolean, null, HitRecord (objects) or List (arrays).
+ */
+public final class HitRecord {
+    private final KeyDictionary.Shape shape;
+    private final Object[] values;
+
+    HitRecord(KeyDictionary.Shape shape, Object[] values) {
+        this.shape = shape;
+        this.values = values;
+    }
+
+    /**
+     * Number of attributes
+     */
+    public int size() {
+        return values.length;
+    }
+
+    public String getName(int i) {
+        return shape.keys[i];
+    }
+
+    public Object getValue(int i) {
+        return values[i];
+    }
+
+    public boolean has(String name) {
+        return shape.indexOf(name) >= 0;
+    }
+
+    /**
+     * Value of an attribute, null if the attribute is not present
+     */
+    public Object get(String name) {
+        int i = shape.indexOf(name);
+        return i < 0 ? null : values[i];
+    }
+
+    /**
+     * String value of an attribute, null if the attribute is not present or not a string
+     */
+    public String getString(String name) {
+        Object value = get(name);
+        return value instanceof String ? (String) value : null;
+    }
+
+    public long getLong(String name, long defaultValue) {
+        Object value = get(name);
+        return value instanceof Number ? ((Number) value).longValue() : defaultValue;
+    }
+
+    public double getDouble(String name, double defaultValue) {
+        Object value = get(name);
+        return value instanceof Number ? ((Number) value).doubleValue() : defaultValue;
+    }
+
+    public HitRecord getRecord(String name) {
+        Object value = get(name);
+        return value instanceof HitRecord ? (HitRecord) value : null;
+    }
+
+    public JSONObject toJSON() {
+        JSONObject res = new JSONObject();
+        try {
+            for (int i = 0; i < values.length; ++i) {
+                res.put(shape.keys[i], toJSON(values[i]));
+            }
+        } catch (JSONException e) {
+            throw new Error(e);
+        }
+        return res;
+    }
+
+    private static Object toJSON(Object value) {
+        if (value == null) {
+            return JSONObject.NULL;
+        }
+        if (value instanceof HitRecord) {
+            return ((HitRecord) value).toJSON();
+        }
+        if (value instanceof List) {
+            JSONArray array = new JSONArray();
+            for (Object elt : (List<?>) value) {
+                array.put(toJSON(elt));
+            }
+            return array;
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return toJSON().toString();
+    }
+}
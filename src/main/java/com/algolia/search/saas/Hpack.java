@@ -0,0 +1,359 @@
+package com.algolia.search.saas;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+/**
+ * HPACK header compression (RFC 7541) used by Http2Transport.
+ * The encoder only emits literals without indexing (the dynamic table of the peer stays empty),
+ * the decoder supports the whole format including Huffman coded strings.
+ * Header lists are flat lists of name, value, name, value...
+ */
+final class Hpack {
+    private static final String[] STATIC_TABLE = {
+        ":authority", "", ":method", "GET", ":method", "POST", ":path", "/", ":path", "/index.html",
+        ":scheme", "http", ":scheme", "https", ":status", "200", ":status", "204", ":status", "206",
+        ":status", "304", ":status", "400", ":status", "404", ":status", "500", "accept-charset", "",
+        "accept-encoding", "gzip, deflate", "accept-language", "", "accept-ranges", "", "accept", "",
+        "access-control-allow-origin", "", "age", "", "allow", "", "authorization", "", "cache-control", "",
+        "content-disposition", "", "content-encoding", "", "content-language", "", "content-length", "",
+        "content-location", "", "content-range", "", "content-type", "", "cookie", "", "date", "",
+        "etag", "", "expect", "", "expires", "", "from", "", "host", "", "if-match", "",
+        "if-modified-since", "", "if-none-match", "", "if-range", "", "if-unmodified-since", "",
+        "last-modified", "", "link", "", "location", "", "max-forwards", "", "proxy-authenticate", "",
+        "proxy-authorization", "", "range", "", "referer", "", "refresh", "", "retry-after", "",
+        "server", "", "set-cookie", "", "strict-transport-security", "", "transfer-encoding", "",
+        "user-agent", "", "vary", "", "via", "", "www-authenticate", ""
+    };
+    private static final int STATIC_SIZE = STATIC_TABLE.length / 2;
+
+    /** Huffman code of each byte (RFC 7541 appendix B), EOS excluded */
+    private static final int[] HUFFMAN_CODES = {
+        0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+        0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+        0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+        0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+        0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+        0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+        0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+        0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+        0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+        0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+        0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+        0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+        0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+        0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+        0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+        0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+        0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+        0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+        0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+        0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+        0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+        0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+        0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+        0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+        0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+        0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+        0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+        0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+        0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+        0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+        0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+        0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee
+    };
+    private static final byte[] HUFFMAN_LENGTHS = {
+        13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+        28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+        6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+        5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+        13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+        7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+        15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+        6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+        20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+        24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+        22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+        21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+        26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+        19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+        20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+        26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26
+    };
+
+    /**
+     * Decoding tree: HUFFMAN_TREE[2 * node + bit] is the next node, or -1 - symbol for a leaf
+     */
+    private static final int[] HUFFMAN_TREE = buildTree();
+
+    private Hpack() {
+    }
+
+    private static int[] buildTree() {
+        int[] tree = new int[2 * 256];
+        int nodes = 1;
+        for (int symbol = 0; symbol < 256; ++symbol) {
+            int node = 0;
+            int code = HUFFMAN_CODES[symbol];
+            for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit >= 0; --bit) {
+                int slot = 2 * node + ((code >>> bit) & 1);
+                if (bit == 0) {
+                    tree[slot] = -1 - symbol;
+                } else {
+                    if (tree[slot] == 0) {
+                        tree[slot] = nodes++;
+                    }
+                    node = tree[slot];
+                }
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * Encode a header list
+     */
+    static void encode(List<String> headers, ByteArrayOutputStream out) {
+        for (int i = 0; i < headers.size(); i += 2) {
+            String name = headers.get(i);
+            String value = headers.get(i + 1);
+            int nameIndex = 0;
+            int fullIndex = 0;
+            for (int j = 0; j < STATIC_SIZE && fullIndex == 0; ++j) {
+                if (STATIC_TABLE[2 * j].equals(name)) {
+                    if (nameIndex == 0) {
+                        nameIndex = j + 1;
+                    }
+                    if (STATIC_TABLE[2 * j + 1].equals(value)) {
+                        fullIndex = j + 1;
+                    }
+                }
+            }
+            if (fullIndex != 0) {
+                writeInt(out, 0x80, 7, fullIndex);
+                continue;
+            }
+            // literal header field without indexing
+            writeInt(out, 0, 4, nameIndex);
+            if (nameIndex == 0) {
+                writeString(out, name);
+            }
+            writeString(out, value);
+        }
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int flags, int prefixBits, int value) {
+        int max = (1 << prefixBits) - 1;
+        if (value < max) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | max);
+        value -= max;
+        while (value >= 0x80) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(JSONReader.UTF8);
+        writeInt(out, 0, 7, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Decoder of the header blocks of one connection, keeping the dynamic table between blocks
+     */
+    static final class Decoder {
+        /** Entries of the dynamic table, the newest last */
+        private final List<String> dynamicTable = new ArrayList<String>();
+        private final int maxTableSize;
+        private int tableLimit;
+        private int tableSize;
+
+        /**
+         * @param maxTableSize the table size announced in SETTINGS_HEADER_TABLE_SIZE
+         */
+        Decoder(int maxTableSize) {
+            this.maxTableSize = maxTableSize;
+            this.tableLimit = maxTableSize;
+        }
+
+        List<String> decode(byte[] block, int offset, int length) throws IOException {
+            List<String> headers = new ArrayList<String>();
+            int[] pos = { offset };
+            int end = offset + length;
+            while (pos[0] < end) {
+                int b = block[pos[0]] & 0xff;
+                if ((b & 0x80) != 0) {
+                    // indexed header field
+                    int index = readInt(block, pos, end, 7);
+                    headers.add(name(index));
+                    headers.add(value(index));
+                } else if ((b & 0xc0) == 0x40) {
+                    // literal with incremental indexing
+                    int index = readInt(block, pos, end, 6);
+                    String name = index == 0 ? readString(block, pos, end) : name(index);
+                    String value = readString(block, pos, end);
+                    headers.add(name);
+                    headers.add(value);
+                    add(name, value);
+                } else if ((b & 0xe0) == 0x20) {
+                    // dynamic table size update
+                    int size = readInt(block, pos, end, 5);
+                    if (size > maxTableSize) {
+                        throw new IOException("HPACK table size " + size + " above the announced " + maxTableSize);
+                    }
+                    tableLimit = size;
+                    evict(0);
+                } else {
+                    // literal without indexing or never indexed
+                    int index = readInt(block, pos, end, 4);
+                    headers.add(index == 0 ? readString(block, pos, end) : name(index));
+                    headers.add(readString(block, pos, end));
+                }
+            }
+            return headers;
+        }
+
+        private String name(int index) throws IOException {
+            return entry(index, 0);
+        }
+
+        private String value(int index) throws IOException {
+            return entry(index, 1);
+        }
+
+        private String entry(int index, int field) throws IOException {
+            if (index <= 0) {
+                throw new IOException("Invalid HPACK index " + index);
+            }
+            if (index <= STATIC_SIZE) {
+                return STATIC_TABLE[2 * (index - 1) + field];
+            }
+            int dynamic = dynamicTable.size() / 2 - (index - STATIC_SIZE);
+            if (dynamic < 0) {
+                throw new IOException("Invalid HPACK index " + index);
+            }
+            return dynamicTable.get(2 * dynamic + field);
+        }
+
+        private void add(String name, String value) {
+            int size = entrySize(name, value);
+            evict(size);
+            if (size <= tableLimit) {
+                dynamicTable.add(name);
+                dynamicTable.add(value);
+                tableSize += size;
+            }
+        }
+
+        /**
+         * Remove the oldest entries until an entry of the given size fits
+         */
+        private void evict(int size) {
+            while (tableSize + size > tableLimit && !dynamicTable.isEmpty()) {
+                tableSize -= entrySize(dynamicTable.remove(0), dynamicTable.remove(0));
+            }
+        }
+
+        private static int entrySize(String name, String value) {
+            return name.getBytes(JSONReader.UTF8).length + value.getBytes(JSONReader.UTF8).length + 32;
+        }
+
+        private static int readInt(byte[] block, int[] pos, int end, int prefixBits) throws IOException {
+            int max = (1 << prefixBits) - 1;
+            int value = block[pos[0]++] & max;
+            if (value < max) {
+                return value;
+            }
+            for (int shift = 0; shift < 28; shift += 7) {
+                if (pos[0] >= end) {
+                    throw new IOException("Truncated HPACK integer");
+                }
+                int b = block[pos[0]++] & 0xff;
+                value += (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("HPACK integer too large");
+        }
+
+        private static String readString(byte[] block, int[] pos, int end) throws IOException {
+            if (pos[0] >= end) {
+                throw new IOException("Truncated HPACK string");
+            }
+            boolean huffman = (block[pos[0]] & 0x80) != 0;
+            int length = readInt(block, pos, end, 7);
+            if (length > end - pos[0]) {
+                throw new IOException("Truncated HPACK string");
+            }
+            int start = pos[0];
+            pos[0] += length;
+            if (!huffman) {
+                return new String(block, start, length, JSONReader.UTF8);
+            }
+            return huffmanDecode(block, start, length);
+        }
+
+        private static String huffmanDecode(byte[] block, int start, int length) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length * 2);
+            int node = 0;
+            int depth = 0;
+            boolean ones = true;
+            for (int i = start; i < start + length; ++i) {
+                for (int bit = 7; bit >= 0; --bit) {
+                    int b = ((block[i] & 0xff) >>> bit) & 1;
+                    int next = HUFFMAN_TREE[2 * node + b];
+                    if (next < 0) {
+                        out.write(-1 - next);
+                        node = 0;
+                        depth = 0;
+                        ones = true;
+                    } else if (next == 0) {
+                        // only the EOS code leads there
+                        throw new IOException("Invalid Huffman code");
+                    } else {
+                        node = next;
+                        ++depth;
+                        ones &= b == 1;
+                    }
+                }
+            }
+            // the padding is a prefix of EOS (all ones) shorter than 8 bits
+            if (depth > 7 || !ones) {
+                throw new IOException("Invalid Huffman padding");
+            }
+            return new String(out.toByteArray(), JSONReader.UTF8);
+        }
+    }
+}
@@ -0,0 +1,921 @@
+package com.algolia.search.saas;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+/**
+ * HTTP/2 transport: concurrent requests to a host are multiplexed as streams of a single
+ * connection. HTTPS hosts negotiate HTTP/2 with ALPN, which requires a runtime exposing
+ * SSLParameters.setApplicationProtocols (Java 9+, Android 10+); requests to hosts that
+ * cannot speak HTTP/2 are sent through the fallback transport.
+ * Plain HTTP hosts only use HTTP/2 with prior knowledge (local stand-in servers), see the constructor.
+ */
+public class Http2Transport extends HttpTransport {
+    private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(JSONReader.UTF8);
+
+    static final int DATA = 0x0, HEADERS = 0x1, RST_STREAM = 0x3, SETTINGS = 0x4, PUSH_PROMISE = 0x5, PING = 0x6,
+            GOAWAY = 0x7, WINDOW_UPDATE = 0x8, CONTINUATION = 0x9;
+    static final int FLAG_END_STREAM = 0x1, FLAG_ACK = 0x1, FLAG_END_HEADERS = 0x4, FLAG_PADDED = 0x8, FLAG_PRIORITY = 0x20;
+    static final int SETTINGS_HEADER_TABLE_SIZE = 0x1, SETTINGS_ENABLE_PUSH = 0x2, SETTINGS_MAX_CONCURRENT_STREAMS = 0x3,
+            SETTINGS_INITIAL_WINDOW_SIZE = 0x4, SETTINGS_MAX_FRAME_SIZE = 0x5;
+    private static final int ERROR_PROTOCOL = 0x1, ERROR_CANCEL = 0x8;
+
+    static final int DEFAULT_FRAME_SIZE = 16384;
+    private static final int DEFAULT_WINDOW = 65535;
+    /** Receive windows we announce: large enough that answers are never throttled */
+    private static final int STREAM_WINDOW = 1 << 20;
+    private static final int CONNECTION_WINDOW = 16 << 20;
+    /** How often the reader wakes up to check request deadlines */
+    private static final int TIMEOUT_CHECK_MS = 250;
+
+    private static final Set<String> CONNECTION_HEADERS = new HashSet<String>(Arrays.asList(
+            "connection", "host", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade", "content-length"));
+
+    private final HttpTransport fallback;
+    private final boolean cleartextPriorKnowledge;
+    private final ConcurrentHashMap<String, HostSlot> hosts = new ConcurrentHashMap<String, HostSlot>();
+
+    /**
+     * HTTPS only, other requests go through ApacheHttpTransport
+     */
+    public Http2Transport() {
+        this(new ApacheHttpTransport(), false);
+    }
+
+    /**
+     * @param fallback transport used for hosts without HTTP/2
+     * @param cleartextPriorKnowledge true to speak HTTP/2 directly to plain HTTP hosts, false to send them to the fallback
+     */
+    public Http2Transport(HttpTransport fallback, boolean cleartextPriorKnowledge) {
+        this.fallback = fallback;
+        this.cleartextPriorKnowledge = cleartextPriorKnowledge;
+    }
+
+    /**
+     * Number of open HTTP/2 connections
+     */
+    public int getOpenConnections() {
+        int res = 0;
+        for (HostSlot slot : hosts.values()) {
+            Connection connection = slot.connection;
+            if (connection != null && !connection.isClosed()) {
+                ++res;
+            }
+        }
+        return res;
+    }
+
+    @Override
+    public Response execute(Request request) throws IOException {
+        final Response[] response = new Response[1];
+        final IOException[] error = new IOException[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        executeAsync(request, new Callback() {
+            public void completed(Response r) {
+                response[0] = r;
+                done.countDown();
+            }
+
+            public void failed(IOException e) {
+                error[0] = e;
+                done.countDown();
+            }
+        });
+        try {
+            // the stream deadline fails the request first, this one only guards against a stuck connection
+            if (!done.await(request.getConnectTimeoutMS() + 2L * request.getReadTimeoutMS() + 1000, TimeUnit.MILLISECONDS)) {
+                throw new SocketTimeoutException("Timeout on " + request.getURL());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + request.getURL());
+        }
+        if (error[0] != null) {
+            throw error[0];
+        }
+        return response[0];
+    }
+
+    /**
+     * Open a stream and send the request from the calling thread (opening the connection if needed),
+     * the callback is invoked by the reader thread of the connection.
+     */
+    @Override
+    public void executeAsync(Request request, Callback callback) {
+        URL url;
+        try {
+            url = new URL(request.getURL());
+        } catch (IOException e) {
+            callback.failed(e);
+            return;
+        }
+        boolean tls = url.getProtocol().equals("https");
+        if (!tls && !(cleartextPriorKnowledge && url.getProtocol().equals("http"))) {
+            fallback.executeAsync(request, callback);
+            return;
+        }
+        int port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+        String key = url.getProtocol() + "://" + url.getHost() + ":" + port;
+        HostSlot slot = hosts.get(key);
+        if (slot == null) {
+            HostSlot created = new HostSlot();
+            slot = hosts.putIfAbsent(key, created);
+            if (slot == null) {
+                slot = created;
+            }
+        }
+        String authority = url.getPort() != -1 ? url.getHost() + ":" + port : url.getHost();
+        String path = url.getFile().length() > 0 ? url.getFile() : "/";
+        // a connection closed or going away just before the stream is opened is replaced by a new one
+        for (int attempt = 0; attempt < 2; ++attempt) {
+            Connection connection;
+            try {
+                connection = slot.connection(url.getHost(), port, tls, request.getConnectTimeoutMS());
+            } catch (IOException e) {
+                callback.failed(e);
+                return;
+            }
+            if (connection == null) {
+                // the host did not select h2 in ALPN
+                fallback.executeAsync(request, callback);
+                return;
+            }
+            if (connection.start(request, url.getProtocol(), authority, path, callback)) {
+                return;
+            }
+        }
+        callback.failed(new IOException("No usable HTTP/2 connection to " + key));
+    }
+
+    @Override
+    public void shutdown() {
+        for (HostSlot slot : hosts.values()) {
+            Connection connection = slot.connection;
+            if (connection != null) {
+                connection.close(new IOException("Transport shut down"));
+            }
+        }
+        hosts.clear();
+        fallback.shutdown();
+    }
+
+    private static void notifyCompleted(Callback callback, Response response) {
+        try {
+            callback.completed(response);
+        } catch (RuntimeException e) {
+            // a failing callback must not stop the reader
+        }
+    }
+
+    private static void notifyFailed(Callback callback, IOException error) {
+        try {
+            callback.failed(error);
+        } catch (RuntimeException e) {
+            // a failing callback must not stop the reader
+        }
+    }
+
+    /**
+     * The connection to one host, opened by the first request needing it
+     */
+    private final class HostSlot {
+        volatile Connection connection;
+        /** The host answered ALPN without h2 */
+        volatile boolean http1;
+        /** Connection being opened, joined by the requests arriving meanwhile; guarded by the slot */
+        private FutureTask<Connection> opening;
+
+        /**
+         * The live connection, or a new one opened by the first caller outside the lock: a connect
+         * or a handshake in progress does not block the callers that could use the live connection
+         */
+        Connection connection(final String host, final int port, final boolean tls, final int connectTimeout) throws IOException {
+            FutureTask<Connection> task;
+            boolean opener = false;
+            synchronized (this) {
+                if (http1) {
+                    return null;
+                }
+                if (connection != null && connection.isUsable()) {
+                    return connection;
+                }
+                if (opening == null) {
+                    opening = new FutureTask<Connection>(new Callable<Connection>() {
+                        public Connection call() throws IOException {
+                            return open(host, port, tls, connectTimeout);
+                        }
+                    });
+                    opener = true;
+                }
+                task = opening;
+            }
+            if (opener) {
+                task.run();
+                synchronized (this) {
+                    opening = null;
+                }
+            }
+            try {
+                return task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while connecting to " + host);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw (Error) cause;
+            }
+        }
+
+        /**
+         * Open and publish a new connection, null if the host does not speak h2
+         */
+        private Connection open(String host, int port, boolean tls, int connectTimeout) throws IOException {
+            Socket socket = connect(host, port, connectTimeout);
+            try {
+                if (tls) {
+                    socket.setSoTimeout(connectTimeout);
+                    TlsSessionCache tlsSessions = getTlsSessionCache();
+                    SSLSocket sslSocket = (SSLSocket) tlsSessions.getSSLContext().getSocketFactory().createSocket(socket, host, port, true);
+                    socket = sslSocket;
+                    SSLParameters parameters = sslSocket.getSSLParameters();
+                    boolean checked = TlsSupport.checkHostnameInHandshake(parameters);
+                    if (!TlsSupport.offerProtocols(parameters, "h2", "http/1.1")) {
+                        http1 = true;
+                        sslSocket.close();
+                        return null;
+                    }
+                    sslSocket.setSSLParameters(parameters);
+                    long handshakeStartedAt = System.currentTimeMillis();
+                    sslSocket.startHandshake();
+                    tlsSessions.recordHandshake(sslSocket.getSession(), handshakeStartedAt);
+                    if (!checked) {
+                        TlsSupport.verifyHostname(host, sslSocket.getSession());
+                    }
+                    if (!"h2".equals(TlsSupport.selectedProtocol(sslSocket))) {
+                        http1 = true;
+                        sslSocket.close();
+                        return null;
+                    }
+                }
+                socket.setSoTimeout(TIMEOUT_CHECK_MS);
+                Connection opened = new Connection(socket, host);
+                connection = opened;
+                return opened;
+            } catch (IOException e) {
+                try {
+                    socket.close();
+                } catch (IOException closeError) {
+                    // not fatal
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Connect to the first address of the host accepting the connection, the connect timeout
+         * being shared by the addresses left to try
+         */
+        private Socket connect(String host, int port, int connectTimeout) throws IOException {
+            InetAddress[] addresses = getDnsCache().resolve(host);
+            long deadline = System.currentTimeMillis() + connectTimeout;
+            IOException error = null;
+            for (int i = 0; i < addresses.length; ++i) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                Socket socket = new Socket();
+                try {
+                    socket.setTcpNoDelay(true);
+                    socket.connect(new InetSocketAddress(addresses[i], port), (int) Math.max(1, remaining / (addresses.length - i)));
+                    return socket;
+                } catch (SocketTimeoutException e) {
+                    error = connectFailure("Connect timeout on " + host + " (" + addresses[i].getHostAddress() + ")", e);
+                } catch (IOException e) {
+                    error = e;
+                }
+                try {
+                    socket.close();
+                } catch (IOException closeError) {
+                    // not fatal
+                }
+            }
+            throw error != null ? error : connectFailure("Connect timeout on " + host, null);
+        }
+    }
+
+    /**
+     * One request in flight
+     */
+    private static final class Stream {
+        final int id;
+        final Callback callback;
+        final int readTimeout;
+        long deadline;
+        long sendWindow;
+        int status;
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int unacknowledged;
+
+        Stream(int id, Callback callback, int readTimeout, long sendWindow) {
+            this.id = id;
+            this.callback = callback;
+            this.readTimeout = readTimeout;
+            this.sendWindow = sendWindow;
+            this.deadline = System.currentTimeMillis() + readTimeout;
+        }
+    }
+
+    /**
+     * An HTTP/2 connection. Writes are serialized by writeLock, frames are read by a dedicated
+     * daemon thread; the stream and window state is guarded by the connection monitor.
+     */
+    private final class Connection implements Runnable {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final Object writeLock = new Object();
+        private final Hpack.Decoder decoder = new Hpack.Decoder(4096);
+        private final Map<Integer, Stream> streams = new HashMap<Integer, Stream>();
+        private int nextStreamId = 1;
+        private int maxConcurrentStreams = Integer.MAX_VALUE;
+        private int peerInitialWindow = DEFAULT_WINDOW;
+        private int peerMaxFrameSize = DEFAULT_FRAME_SIZE;
+        private long sendWindow = DEFAULT_WINDOW;
+        private int unacknowledged;
+        private boolean goingAway;
+        /** Streams are opened once the server announced its limits */
+        private boolean settingsReceived;
+        private IOException closedBy;
+
+        Connection(Socket socket, String host) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream(), DEFAULT_FRAME_SIZE);
+            this.out = new BufferedOutputStream(socket.getOutputStream(), DEFAULT_FRAME_SIZE);
+            synchronized (writeLock) {
+                out.write(PREFACE);
+                byte[] settings = new byte[18];
+                putSetting(settings, 0, SETTINGS_ENABLE_PUSH, 0);
+                putSetting(settings, 6, SETTINGS_INITIAL_WINDOW_SIZE, STREAM_WINDOW);
+                putSetting(settings, 12, SETTINGS_HEADER_TABLE_SIZE, 4096);
+                writeFrame(SETTINGS, 0, 0, settings, 0, settings.length);
+                writeFrame(WINDOW_UPDATE, 0, 0, int32(CONNECTION_WINDOW - DEFAULT_WINDOW), 0, 4);
+                out.flush();
+            }
+            Thread reader = new Thread(this, "AlgoliaHttp2-" + host);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        synchronized boolean isClosed() {
+            return closedBy != null;
+        }
+
+        synchronized boolean isUsable() {
+            return closedBy == null && !goingAway && nextStreamId > 0;
+        }
+
+        /**
+         * Open a stream for the request
+         *
+         * @return false if the connection cannot take new streams (the callback was not called)
+         */
+        boolean start(Request request, String scheme, String authority, String path, Callback callback) {
+            List<String> headers = new ArrayList<String>();
+            headers.add(":method");
+            headers.add(request.getMethod());
+            headers.add(":scheme");
+            headers.add(scheme);
+            headers.add(":authority");
+            headers.add(authority);
+            headers.add(":path");
+            headers.add(path);
+            for (Map.Entry<String, String> entry : request.getHeaders().entrySet()) {
+                String name = entry.getKey().toLowerCase(Locale.ENGLISH);
+                if (!CONNECTION_HEADERS.contains(name)) {
+                    headers.add(name);
+                    headers.add(entry.getValue());
+                }
+            }
+            boolean hasBody = request.getBody() != null && request.getBodyLength() > 0;
+            if (request.getBody() != null) {
+                headers.add("content-length");
+                headers.add(String.valueOf(request.getBodyLength()));
+            }
+            ByteArrayOutputStream block = new ByteArrayOutputStream(256);
+            Hpack.encode(headers, block);
+
+            try {
+                waitForCapacity(request.getReadTimeoutMS());
+            } catch (IOException e) {
+                notifyFailed(callback, e);
+                return true;
+            }
+            Stream stream;
+            synchronized (writeLock) {
+                // stream identifiers must be opened in increasing order: allocate and send together
+                int frameSize;
+                synchronized (this) {
+                    if (closedBy != null || goingAway || nextStreamId < 0) {
+                        return false;
+                    }
+                    stream = new Stream(nextStreamId, callback, request.getReadTimeoutMS(), peerInitialWindow);
+                    nextStreamId += 2;
+                    streams.put(stream.id, stream);
+                    frameSize = peerMaxFrameSize;
+                }
+                try {
+                    writeHeaders(stream.id, block.toByteArray(), frameSize, !hasBody);
+                    if (!hasBody) {
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    // fails the stream with the others
+                    close(e);
+                    return true;
+                }
+            }
+            if (hasBody) {
+                try {
+                    writeBody(stream, request.getBody(), request.getBodyLength());
+                } catch (SocketTimeoutException e) {
+                    if (remove(stream.id) != null) {
+                        cancel(stream.id);
+                        notifyFailed(callback, e);
+                    }
+                } catch (IOException e) {
+                    close(e);
+                }
+            }
+            return true;
+        }
+
+        private void cancel(int streamId) {
+            try {
+                send(RST_STREAM, 0, streamId, int32(ERROR_CANCEL));
+            } catch (IOException e) {
+                close(e);
+            }
+        }
+
+        private synchronized void waitForCapacity(int timeout) throws IOException {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (closedBy == null && (!settingsReceived || streams.size() >= maxConcurrentStreams)) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException(settingsReceived ? "No HTTP/2 stream available" : "No HTTP/2 SETTINGS from server");
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+
+        private void writeHeaders(int streamId, byte[] block, int frameSize, boolean endStream) throws IOException {
+            int length = Math.min(block.length, frameSize);
+            writeFrame(HEADERS, (endStream ? FLAG_END_STREAM : 0) | (length == block.length ? FLAG_END_HEADERS : 0), streamId, block, 0, length);
+            for (int offset = length; offset < block.length; offset += length) {
+                length = Math.min(block.length - offset, frameSize);
+                writeFrame(CONTINUATION, offset + length == block.length ? FLAG_END_HEADERS : 0, streamId, block, offset, length);
+            }
+        }
+
+        /**
+         * Send the body in DATA frames within the flow-control windows of the peer
+         */
+        private void writeBody(Stream stream, byte[] body, int length) throws IOException {
+            int offset = 0;
+            while (offset < length) {
+                int chunk;
+                synchronized (this) {
+                    while (closedBy == null && streams.containsKey(stream.id) && (sendWindow <= 0 || stream.sendWindow <= 0)) {
+                        long remaining = stream.deadline - System.currentTimeMillis();
+                        if (remaining <= 0) {
+                            throw new SocketTimeoutException("HTTP/2 flow control window exhausted");
+                        }
+                        try {
+                            wait(remaining);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException();
+                        }
+                    }
+                    if (closedBy != null) {
+                        throw new IOException("HTTP/2 connection closed", closedBy);
+                    }
+                    if (!streams.containsKey(stream.id)) {
+                        // reset or timed out, the callback was notified
+                        return;
+                    }
+                    chunk = (int) Math.min(Math.min(length - offset, peerMaxFrameSize), Math.min(sendWindow, stream.sendWindow));
+                    sendWindow -= chunk;
+                    stream.sendWindow -= chunk;
+                }
+                synchronized (writeLock) {
+                    writeFrame(DATA, offset + chunk == length ? FLAG_END_STREAM : 0, stream.id, body, offset, chunk);
+                    if (offset + chunk == length) {
+                        out.flush();
+                    }
+                }
+                offset += chunk;
+            }
+        }
+
+        /**
+         * Must be called with writeLock held
+         */
+        private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length) throws IOException {
+            out.write(length >>> 16);
+            out.write(length >>> 8);
+            out.write(length);
+            out.write(type);
+            out.write(flags);
+            out.write(int32(streamId), 0, 4);
+            out.write(payload, offset, length);
+        }
+
+        private void send(int type, int flags, int streamId, byte[] payload) throws IOException {
+            synchronized (writeLock) {
+                writeFrame(type, flags, streamId, payload, 0, payload.length);
+                out.flush();
+            }
+        }
+
+        public void run() {
+            byte[] head = new byte[9];
+            byte[] payload = new byte[DEFAULT_FRAME_SIZE];
+            ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+            int headerStream = 0;
+            boolean headerEndStream = false;
+            try {
+                while (true) {
+                    readFully(head, 9);
+                    int length = ((head[0] & 0xff) << 16) | ((head[1] & 0xff) << 8) | (head[2] & 0xff);
+                    int type = head[3] & 0xff;
+                    int flags = head[4] & 0xff;
+                    int streamId = readInt32(head, 5) & Integer.MAX_VALUE;
+                    if (length > DEFAULT_FRAME_SIZE) {
+                        throw new IOException("HTTP/2 frame too large: " + length);
+                    }
+                    readFully(payload, length);
+                    if (headerStream != 0 && (type != CONTINUATION || streamId != headerStream)) {
+                        throw new IOException("HTTP/2 protocol error: expected CONTINUATION");
+                    }
+                    switch (type) {
+                    case DATA:
+                        onData(streamId, flags, payload, length);
+                        break;
+                    case HEADERS:
+                    case CONTINUATION:
+                        int offset = 0;
+                        int end = length;
+                        if (type == HEADERS) {
+                            if ((flags & FLAG_PADDED) != 0) {
+                                offset = 1;
+                                end -= payload[0] & 0xff;
+                            }
+                            if ((flags & FLAG_PRIORITY) != 0) {
+                                offset += 5;
+                            }
+                            headerEndStream = (flags & FLAG_END_STREAM) != 0;
+                            headerBlock.reset();
+                        }
+                        if (end < offset) {
+                            throw new IOException("HTTP/2 protocol error: invalid padding");
+                        }
+                        headerBlock.write(payload, offset, end - offset);
+                        if ((flags & FLAG_END_HEADERS) != 0) {
+                            headerStream = 0;
+                            // decoded even for unknown streams to keep the HPACK table in sync
+                            byte[] block = headerBlock.toByteArray();
+                            onHeaders(streamId, decoder.decode(block, 0, block.length), headerEndStream);
+                        } else {
+                            headerStream = streamId;
+                        }
+                        break;
+                    case RST_STREAM:
+                        Stream reset = remove(streamId);
+                        if (reset != null) {
+                            notifyFailed(reset.callback, new IOException("HTTP/2 stream reset by server, error " + readInt32(payload, 0)));
+                        }
+                        break;
+                    case SETTINGS:
+                        if ((flags & FLAG_ACK) == 0) {
+                            onSettings(payload, length);
+                            send(SETTINGS, FLAG_ACK, 0, new byte[0]);
+                        }
+                        break;
+                    case PING:
+                        if ((flags & FLAG_ACK) == 0) {
+                            byte[] data = new byte[8];
+                            System.arraycopy(payload, 0, data, 0, 8);
+                            send(PING, FLAG_ACK, 0, data);
+                        }
+                        break;
+                    case GOAWAY:
+                        onGoAway(readInt32(payload, 0) & Integer.MAX_VALUE);
+                        break;
+                    case WINDOW_UPDATE:
+                        onWindowUpdate(streamId, readInt32(payload, 0) & Integer.MAX_VALUE);
+                        break;
+                    case PUSH_PROMISE:
+                        // push was disabled in our SETTINGS
+                        byte[] error = new byte[8];
+                        System.arraycopy(int32(ERROR_PROTOCOL), 0, error, 4, 4);
+                        send(GOAWAY, 0, 0, error);
+                        throw new IOException("HTTP/2 protocol error: unexpected PUSH_PROMISE");
+                    default:
+                        // PRIORITY and unknown frames are ignored
+                    }
+                }
+            } catch (IOException e) {
+                close(e);
+            }
+        }
+
+        /**
+         * Read exactly length bytes, checking the stream deadlines while the socket is silent
+         */
+        private void readFully(byte[] buffer, int length) throws IOException {
+            int read = 0;
+            while (read < length) {
+                int n;
+                try {
+                    n = in.read(buffer, read, length - read);
+                } catch (SocketTimeoutException e) {
+                    checkDeadlines();
+                    continue;
+                }
+                if (n < 0) {
+                    throw new EOFException("HTTP/2 connection closed by server");
+                }
+                read += n;
+            }
+        }
+
+        private void checkDeadlines() throws IOException {
+            List<Stream> expired = new ArrayList<Stream>();
+            long now = System.currentTimeMillis();
+            synchronized (this) {
+                Iterator<Stream> it = streams.values().iterator();
+                while (it.hasNext()) {
+                    Stream stream = it.next();
+                    if (stream.deadline <= now) {
+                        it.remove();
+                        expired.add(stream);
+                    }
+                }
+                if (!expired.isEmpty()) {
+                    notifyAll();
+                }
+            }
+            for (Stream stream : expired) {
+                cancel(stream.id);
+                notifyFailed(stream.callback, new SocketTimeoutException("HTTP/2 stream " + stream.id + " timed out"));
+            }
+        }
+
+        private void onData(int streamId, int flags, byte[] payload, int length) throws IOException {
+            int offset = 0;
+            int end = length;
+            if ((flags & FLAG_PADDED) != 0 && length > 0) {
+                offset = 1;
+                end -= payload[0] & 0xff;
+            }
+            Stream stream;
+            int connectionUpdate = 0;
+            int streamUpdate = 0;
+            synchronized (this) {
+                stream = streams.get(streamId);
+                // padding counts in flow control
+                unacknowledged += length;
+                if (unacknowledged >= CONNECTION_WINDOW / 2) {
+                    connectionUpdate = unacknowledged;
+                    unacknowledged = 0;
+                }
+                if (stream != null) {
+                    stream.deadline = System.currentTimeMillis() + stream.readTimeout;
+                    stream.body.write(payload, offset, Math.max(0, end - offset));
+                    stream.unacknowledged += length;
+                    if ((flags & FLAG_END_STREAM) == 0 && stream.unacknowledged >= STREAM_WINDOW / 2) {
+                        streamUpdate = stream.unacknowledged;
+                        stream.unacknowledged = 0;
+                    }
+                }
+            }
+            if (connectionUpdate > 0) {
+                send(WINDOW_UPDATE, 0, 0, int32(connectionUpdate));
+            }
+            if (streamUpdate > 0) {
+                send(WINDOW_UPDATE, 0, streamId, int32(streamUpdate));
+            }
+            if (stream != null && (flags & FLAG_END_STREAM) != 0) {
+                complete(stream);
+            }
+        }
+
+        private void onHeaders(int streamId, List<String> headers, boolean endStream) {
+            Stream stream;
+            synchronized (this) {
+                stream = streams.get(streamId);
+                if (stream == null) {
+                    return;
+                }
+                stream.deadline = System.currentTimeMillis() + stream.readTimeout;
+                for (int i = 0; i < headers.size(); i += 2) {
+                    if (headers.get(i).equals(":status")) {
+                        try {
+                            int status = Integer.parseInt(headers.get(i + 1));
+                            // informational answers are followed by the real one
+                            if (status / 100 != 1) {
+                                stream.status = status;
+                            }
+                        } catch (NumberFormatException e) {
+                            stream.status = 0;
+                        }
+                    }
+                }
+            }
+            if (endStream) {
+                complete(stream);
+            }
+        }
+
+        private void complete(Stream stream) {
+            if (remove(stream.id) == null) {
+                return;
+            }
+            if (stream.status == 0) {
+                notifyFailed(stream.callback, new IOException("HTTP/2 answer without status"));
+                return;
+            }
+            byte[] body = stream.body.toByteArray();
+            notifyCompleted(stream.callback, new Response(stream.status, new ByteArrayInputStream(body), body.length));
+        }
+
+        private synchronized Stream remove(int streamId) {
+            Stream stream = streams.remove(streamId);
+            if (stream != null) {
+                notifyAll();
+            }
+            return stream;
+        }
+
+        private synchronized void onSettings(byte[] payload, int length) {
+            for (int i = 0; i + 6 <= length; i += 6) {
+                int id = ((payload[i] & 0xff) << 8) | (payload[i + 1] & 0xff);
+                int value = readInt32(payload, i + 2);
+                switch (id) {
+                case SETTINGS_MAX_CONCURRENT_STREAMS:
+                    maxConcurrentStreams = value;
+                    break;
+                case SETTINGS_INITIAL_WINDOW_SIZE:
+                    for (Stream stream : streams.values()) {
+                        stream.sendWindow += value - peerInitialWindow;
+                    }
+                    peerInitialWindow = value;
+                    break;
+                case SETTINGS_MAX_FRAME_SIZE:
+                    peerMaxFrameSize = value;
+                    break;
+                default:
+                    // the encoder does not use the dynamic table, HEADER_TABLE_SIZE does not matter
+                }
+            }
+            settingsReceived = true;
+            notifyAll();
+        }
+
+        private void onGoAway(int lastStreamId) {
+            List<Stream> refused = new ArrayList<Stream>();
+            synchronized (this) {
+                goingAway = true;
+                Iterator<Stream> it = streams.values().iterator();
+                while (it.hasNext()) {
+                    Stream stream = it.next();
+                    if (stream.id > lastStreamId) {
+                        it.remove();
+                        refused.add(stream);
+                    }
+                }
+                notifyAll();
+            }
+            for (Stream stream : refused) {
+                notifyFailed(stream.callback, new IOException("HTTP/2 stream refused by server (GOAWAY)"));
+            }
+        }
+
+        private synchronized void onWindowUpdate(int streamId, int increment) {
+            if (streamId == 0) {
+                sendWindow += increment;
+            } else {
+                Stream stream = streams.get(streamId);
+                if (stream != null) {
+                    stream.sendWindow += increment;
+                }
+            }
+            notifyAll();
+        }
+
+        /**
+         * Close the socket and fail the pending requests
+         */
+        void close(IOException cause) {
+            List<Stream> pending;
+            synchronized (this) {
+                if (closedBy != null) {
+                    return;
+                }
+                closedBy = cause;
+                pending = new ArrayList<Stream>(streams.values());
+                streams.clear();
+                notifyAll();
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // not fatal
+            }
+            for (Stream stream : pending) {
+                notifyFailed(stream.callback, cause);
+            }
+        }
+    }
+
+    static byte[] int32(int value) {
+        return new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value };
+    }
+
+    static int readInt32(byte[] buffer, int offset) {
+        return ((buffer[offset] & 0xff) << 24) | ((buffer[offset + 1] & 0xff) << 16) | ((buffer[offset + 2] & 0xff) << 8) | (buffer[offset + 3] & 0xff);
+    }
+
+    static void putSetting(byte[] buffer, int offset, int id, int value) {
+        buffer[offset] = (byte) (id >>> 8);
+        buffer[offset + 1] = (byte) id;
+        System.arraycopy(int32(value), 0, buffer, offset + 2, 4);
+    }
+}
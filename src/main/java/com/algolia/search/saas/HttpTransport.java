@@ -0,0 +1,234 @@
+package com.algolia.search.saas;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+/**
+ * HTTP stack used by APIClient to send a request to one host. Host failover, headers and
+ * answer decoding stay in APIClient; implementations must be thread-safe since requests are
+ * sent concurrently. Use APIClient.setTransport() to select an implementation.
+ */
+public abstract class HttpTransport {
+    private static final ExecutorService ASYNC_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "AlgoliaTransport");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private volatile DnsCache dnsCache = new DnsCache();
+    private volatile TlsSessionCache tlsSessionCache = TlsSessionCache.getDefault();
+
+    /**
+     * Completion of an asynchronous request
+     */
+    public interface Callback {
+        public void completed(Response response);
+
+        /**
+         * The host cannot be reached
+         */
+        public void failed(IOException e);
+    }
+
+    public static final class Request {
+        private final String method;
+        private final String url;
+        private final Map<String, String> headers;
+        private final byte[] body;
+        private final int bodyLength;
+        private final int connectTimeoutMS;
+        private final int readTimeoutMS;
+
+        /**
+         * @param body the body buffer (null if none), only the first bodyLength bytes are sent
+         */
+        public Request(String method, String url, Map<String, String> headers, byte[] body, int bodyLength, int connectTimeoutMS, int readTimeoutMS) {
+            this.method = method;
+            this.url = url;
+            this.headers = Collections.unmodifiableMap(headers);
+            this.body = body;
+            this.bodyLength = bodyLength;
+            this.connectTimeoutMS = connectTimeoutMS;
+            this.readTimeoutMS = readTimeoutMS;
+        }
+
+        /**
+         * GET, POST, PUT or DELETE
+         */
+        public String getMethod() {
+            return method;
+        }
+
+        public String getURL() {
+            return url;
+        }
+
+        public Map<String, String> getHeaders() {
+            return headers;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+
+        public int getBodyLength() {
+            return bodyLength;
+        }
+
+        public int getConnectTimeoutMS() {
+            return connectTimeoutMS;
+        }
+
+        public int getReadTimeoutMS() {
+            return readTimeoutMS;
+        }
+    }
+
+    public static class Response {
+        private static final InputStream EMPTY = new ByteArrayInputStream(new byte[0]);
+
+        private final int statusCode;
+        private final InputStream body;
+        private final long contentLength;
+
+        /**
+         * @param body the body stream (null if the answer has no body)
+         * @param contentLength the body length, negative if unknown
+         */
+        public Response(int statusCode, InputStream body, long contentLength) {
+            this.statusCode = statusCode;
+            this.body = body != null ? body : EMPTY;
+            this.contentLength = contentLength;
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        public InputStream getBody() {
+            return body;
+        }
+
+        public long getContentLength() {
+            return contentLength;
+        }
+
+        /**
+         * Release the connection, the body must not be used anymore
+         */
+        public void close() {
+            try {
+                body.close();
+            } catch (IOException e) {
+                // not fatal
+            }
+        }
+    }
+
+    /**
+     * Send a request and wait for the status and headers of the answer
+     *
+     * @throws IOException if the host cannot be reached, APIClient then tries the next host. Failures
+     * before the connection is established, connect timeouts included, must be reported as a
+     * ConnectException (see connectFailure()): they prove the request was not sent, so that
+     * RetryPolicy can retry requests that are not idempotent.
+     */
+    public abstract Response execute(Request request) throws IOException;
+
+    /**
+     * @return the exception reporting that the connection to a host could not be established
+     */
+    protected static ConnectException connectFailure(String message, IOException cause) {
+        ConnectException e = new ConnectException(message);
+        e.initCause(cause);
+        return e;
+    }
+
+    /**
+     * Send a request without waiting for the answer. The default implementation blocks a pooled
+     * thread in execute(), non-blocking transports override it.
+     */
+    public void executeAsync(final Request request, final Callback callback) {
+        ASYNC_EXECUTOR.execute(new Runnable() {
+            public void run() {
+                Response response;
+                try {
+                    response = execute(request);
+                } catch (IOException e) {
+                    callback.failed(e);
+                    return;
+                }
+                callback.completed(response);
+            }
+        });
+    }
+
+    /**
+     * Cache used to resolve host names (the HttpURLConnection based transport cannot use it and relies
+     * on the resolutions cached by InetAddress, which pre-resolution still warms up)
+     */
+    public DnsCache getDnsCache() {
+        return dnsCache;
+    }
+
+    public void setDnsCache(DnsCache dnsCache) {
+        if (dnsCache == null) {
+            throw new IllegalArgumentException("dnsCache cannot be null");
+        }
+        this.dnsCache = dnsCache;
+    }
+
+    /**
+     * TLS context of the HTTPS connections, shared by default by all transports so that sessions
+     * are resumed across reconnections
+     */
+    public TlsSessionCache getTlsSessionCache() {
+        return tlsSessionCache;
+    }
+
+    public void setTlsSessionCache(TlsSessionCache tlsSessionCache) {
+        if (tlsSessionCache == null) {
+            throw new IllegalArgumentException("tlsSessionCache cannot be null");
+        }
+        this.tlsSessionCache = tlsSessionCache;
+    }
+
+    /**
+     * Release the connections kept by the transport
+     */
+    public void shutdown() {
+    }
+}
@@ -1,19 +1,19 @@
 package com.algolia.search.saas;
 
+import java.io.File;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import com.algolia.search.saas.APIClient.IndexQuery;
-
 import android.app.Activity;
 import android.os.AsyncTask;
 
@@ -49,6 +49,9 @@ public class Index {
     private String encodedIndexName;
     private String indexName;
     private final long MAX_TIME_MS_TO_WAIT = 10000L;
+    private volatile OfflineMirror offlineMirror;
+    private SuggestionCache suggestionCache;
+    private KeyDictionary keyDictionary;
 
     /**
      * Index initialization (You should not call this initialized yourself)
@@ -67,6 +70,10 @@ public class Index {
         return indexName;
     }
 
+    APIClient getClient() {
+        return client;
+    }
+
     /**
      * Add an object in this index
      * 
@@ -124,15 +131,54 @@ public class Index {
      * @throws AlgoliaException 
      */
     public JSONObject batch(JSONArray actions) throws AlgoliaException {
+        return batch(actions, (RequestOptions) null);
+    }
+
+    /**
+     * Custom batch
+     * 
+     * @param actions the array of actions
+     * @param options deadline and cancellation of the call (null for none)
+     * @throws AlgoliaException 
+     */
+    public JSONObject batch(JSONArray actions, RequestOptions options) throws AlgoliaException {
 	    try {
 	    	JSONObject content = new JSONObject();
 	    	content.put("requests", actions);
-	    	return client.postRequest("/1/indexes/" + encodedIndexName + "/batch", content.toString(), false);
+	    	return client.postRequest("/1/indexes/" + encodedIndexName + "/batch", content.toString(), false, options);
 	    } catch (JSONException e) {
 	        throw new AlgoliaException(e.getMessage());
 	    }
     }
 
+    /**
+     * Custom batch without blocking the calling thread
+     * 
+     * @param actions the array of actions
+     * @param handler receives the answer, on a thread of the transport
+     */
+    public void batchAsync(JSONArray actions, ResultHandler<JSONObject> handler) {
+        batchAsync(actions, null, handler);
+    }
+
+    /**
+     * Custom batch without blocking the calling thread
+     * 
+     * @param actions the array of actions
+     * @param options deadline and cancellation of the call (null for none)
+     * @param handler receives the answer, on a thread of the transport
+     */
+    public void batchAsync(JSONArray actions, RequestOptions options, ResultHandler<JSONObject> handler) {
+        String content;
+	    try {
+	    	content = new JSONObject().put("requests", actions).toString();
+	    } catch (JSONException e) {
+	        handler.onError(new AlgoliaException(e.getMessage()));
+	        return;
+	    }
+	    client.postRequestAsync("/1/indexes/" + encodedIndexName + "/batch", content, false, options, client.jsonHandler(handler));
+    }
+
     /**
      * Custom batch
      * 
@@ -219,7 +265,7 @@ public class Index {
      */
     public JSONObject getObject(String objectID) throws AlgoliaException {
         try {
-            return client.getRequest("/1/indexes/" + encodedIndexName + "/" + URLEncoder.encode(objectID, "UTF-8"), false);
+            return client.getRequest("/1/indexes/" + encodedIndexName + "/" + URLEncoder.encode(objectID, "UTF-8"), false, true);
         } catch (UnsupportedEncodingException e) {
             throw new RuntimeException(e);
         }
@@ -240,7 +286,7 @@ public class Index {
                     params.append(",");
                 params.append(URLEncoder.encode(attributesToRetrieve.get(i), "UTF-8"));
             }
-            return client.getRequest("/1/indexes/" + encodedIndexName + "/" + URLEncoder.encode(objectID, "UTF-8") + params.toString(), false);
+            return client.getRequest("/1/indexes/" + encodedIndexName + "/" + URLEncoder.encode(objectID, "UTF-8") + params.toString(), false, true);
         } catch (UnsupportedEncodingException e) {
             throw new RuntimeException(e);
         }
@@ -394,6 +440,17 @@ public class Index {
         new ASyncIndexTask().execute(params);
     }
 
+    /**
+     * Create a write buffer merging partial updates per objectID and sending them as a single batch
+     *
+     * @param flushIntervalMS maximum time an update waits in the buffer before being sent
+     * @param maxPendingObjects number of distinct objects triggering an immediate flush
+     * @param listener the listener that will receive the result or error of background flushes (can be null)
+     */
+    public PartialUpdateBuffer createPartialUpdateBuffer(long flushIntervalMS, int maxPendingObjects, IndexListener listener) {
+        return new PartialUpdateBuffer(this, flushIntervalMS, maxPendingObjects, listener);
+    }
+
     /**
      * Override the content of object
      * 
@@ -613,7 +670,7 @@ public class Index {
                     throw new IllegalStateException(e);
                 }
             }
-            this.answer = client.getRequest("/1/indexes/" + encodedIndexName + "/browse" + ((paramsString.length() > 0) ? ("?" + paramsString) : ""), true);
+            this.answer = client.getRequest("/1/indexes/" + encodedIndexName + "/browse" + ((paramsString.length() > 0) ? ("?" + paramsString) : ""), true, true);
         }
         
         final APIClient client;
@@ -624,6 +681,109 @@ public class Index {
         int pos;
     }
     
+    /**
+     * Iterate on the raw JSON bytes of each hit: hit boundaries are located in the page body
+     * and each hit is returned as a ByteBuffer view on the body without being decoded
+     */
+    public static class RawIndexBrowser implements Iterator<ByteBuffer> {
+
+        RawIndexBrowser(APIClient client, String encodedIndexName, Query params, String startingCursor) throws AlgoliaException {
+            this.client = client;
+            this.params = params;
+            this.encodedIndexName = encodedIndexName;
+
+            doQuery(startingCursor);
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                while (pos >= hits.size() && cursor != null && cursor.length() > 0) {
+                    doQuery(cursor);
+                }
+                return pos < hits.size();
+            } catch (AlgoliaException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+
+        /**
+         * Bytes of the next hit, the buffer shares the page body (use array() and arrayOffset() + position()
+         * to write it without copy)
+         */
+        @Override
+        public ByteBuffer next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return hits.get(pos++);
+        }
+
+        /**
+         * Cursor of the page following the one being read, null after the last page: pass it to
+         * browseRaw() to resume an interrupted export once the hits of the current page are written
+         */
+        public String getCursor() {
+            return cursor;
+        }
+
+        @Override
+        public void remove() {
+            throw new IllegalStateException("Cannot remove while browsing");
+        }
+
+        private void doQuery(String cursor) throws AlgoliaException {
+            String paramsString = params.getQueryString();
+            if (cursor != null) {
+                try {
+                    paramsString += (paramsString.length() > 0 ? "&" : "") + "cursor=" +  URLEncoder.encode(cursor, "UTF-8");
+                } catch (UnsupportedEncodingException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            // exported pages are not kept in the response cache
+            byte[] body = client.getRequestRaw("/1/indexes/" + encodedIndexName + "/browse" + ((paramsString.length() > 0) ? ("?" + paramsString) : ""), true, false);
+            this.hits = slices(body);
+            this.pos = 0;
+        }
+
+        /**
+         * Locate the hits in a browse answer, the "cursor" attribute is kept for the next page
+         */
+        private List<ByteBuffer> slices(byte[] body) throws AlgoliaException {
+            List<ByteBuffer> res = new ArrayList<ByteBuffer>();
+            JSONReader reader = new JSONReader(body);
+            cursor = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("hits")) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        reader.peek();
+                        int start = reader.position();
+                        reader.skipValue();
+                        res.add(ByteBuffer.wrap(body, start, reader.position() - start).slice());
+                    }
+                    reader.endArray();
+                } else if (name.equals("cursor") && reader.peek() == '"') {
+                    cursor = reader.nextString();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return res;
+        }
+
+        final APIClient client;
+        final Query params;
+        final String encodedIndexName;
+        List<ByteBuffer> hits;
+        String cursor;
+        int pos;
+    }
+
     /**
      * Browse all index content
      */
@@ -638,6 +798,17 @@ public class Index {
         return new IndexBrower(client, encodedIndexName, params, cursor);
     }
 
+    /**
+     * Browse all index content without decoding the hits: each hit is returned as a view on the
+     * raw JSON bytes of the response, for exports writing hits to a file or a socket
+     *
+     * @param params the query
+     * @param cursor the cursor to start from (null to start from the beginning)
+     */
+    public RawIndexBrowser browseRaw(Query params, String cursor) throws AlgoliaException {
+        return new RawIndexBrowser(client, encodedIndexName, params, cursor);
+    }
+
     /**
      * Delete several objects asynchronously
      * 
@@ -699,23 +870,184 @@ public class Index {
 
     /**
      * Search inside the index
+     * If all hosts are unreachable and an offline mirror is set, the search is performed on the mirror
      */
     public JSONObject search(Query query) throws AlgoliaException {
+        return search(query, (RequestOptions) null);
+    }
+
+    /**
+     * Search inside the index
+     * If all hosts are unreachable or the deadline is exceeded and an offline mirror is set, the search is performed on the mirror
+     *
+     * @param options deadline and cancellation of the call (null for none)
+     */
+    public JSONObject search(Query query, RequestOptions options) throws AlgoliaException {
+        try {
+            JSONObject res = client.getRequest(searchURL(query), true, true, options);
+            SuggestionCache cache = suggestionCache;
+            if (cache != null) {
+                cache.put(query, res);
+            }
+            return res;
+        } catch (AlgoliaException e) {
+            return offlineSearch(query, e);
+        }
+    }
+
+    /**
+     * Search inside the index, hits are decoded directly from the response by the mapper
+     * If all hosts are unreachable and an offline mirror is set, the search is performed on the mirror
+     *
+     * @param query the query
+     * @param mapper the mapper building an application object from each hit (SearchResult.JSON_HITS to keep JSONObject)
+     */
+    public <T> SearchResult<T> searchTyped(Query query, HitMapper<T> mapper) throws AlgoliaException {
+        byte[] body;
+        try {
+            body = client.getRequestRaw(searchURL(query), true, true);
+        } catch (AlgoliaException e) {
+            return SearchResult.decode(new JSONReader(offlineSearch(query, e).toString().getBytes(JSONReader.UTF8)), mapper);
+        }
+        SearchResult<T> res = SearchResult.decode(new JSONReader(body), mapper);
+        SuggestionCache cache = suggestionCache;
+        if (cache != null) {
+            // the cache stores the encoded answer, it is not decoded a second time
+            cache.put(query, new String(body, JSONReader.UTF8));
+        }
+        return res;
+    }
+
+    /**
+     * Answer a search with the offline mirror after a failure of the hosts
+     *
+     * @param error the failure of the hosts, thrown again if they are reachable or no mirror is ready
+     */
+    private JSONObject offlineSearch(Query query, AlgoliaException error) throws AlgoliaException {
+        OfflineMirror mirror = offlineMirror;
+        if (mirror == null || !mirror.isReady() || error.getMessage() == null || !error.getMessage().startsWith(APIClient.HOSTS_UNREACHABLE)) {
+            throw error;
+        }
+        return mirror.search(query);
+    }
+
+    /**
+     * Search inside the index without blocking the calling thread
+     * If all hosts are unreachable and an offline mirror is set, the search is performed on the mirror
+     *
+     * @param handler receives the answer, on a thread of the transport
+     */
+    public void searchAsync(Query query, ResultHandler<JSONObject> handler) {
+        searchAsync(query, null, handler);
+    }
+
+    /**
+     * Search inside the index without blocking the calling thread
+     * If all hosts are unreachable or the deadline is exceeded and an offline mirror is set, the search is performed on the mirror
+     *
+     * @param options deadline and cancellation of the call (null for none)
+     * @param handler receives the answer, on a thread of the transport, or on the thread cancelling the call
+     */
+    public void searchAsync(final Query query, RequestOptions options, final ResultHandler<JSONObject> handler) {
+        client.getRequestAsync(searchURL(query), true, options, client.jsonHandler(new ResultHandler<JSONObject>() {
+            public void onResult(JSONObject res) {
+                SuggestionCache cache = suggestionCache;
+                if (cache != null) {
+                    cache.put(query, res);
+                }
+                handler.onResult(res);
+            }
+
+            public void onError(AlgoliaException e) {
+                JSONObject res;
+                try {
+                    res = offlineSearch(query, e);
+                } catch (AlgoliaException error) {
+                    handler.onError(error);
+                    return;
+                }
+                handler.onResult(res);
+            }
+        }));
+    }
+
+    /**
+     * Dictionary of the attribute names of this index, to be used as HitMapper to decode
+     * hits as compact HitRecord sharing their attribute names
+     */
+    public synchronized KeyDictionary getKeyDictionary() {
+        if (keyDictionary == null) {
+            keyDictionary = new KeyDictionary();
+        }
+        return keyDictionary;
+    }
+
+    private String searchURL(Query query) {
         String paramsString = query.getQueryString();
         if (paramsString.length() > 0)
-            return client.getRequest("/1/indexes/" + encodedIndexName + "?" + paramsString, true);
-        else
-            return client.getRequest("/1/indexes/" + encodedIndexName, true);
+            return "/1/indexes/" + encodedIndexName + "?" + paramsString;
+        return "/1/indexes/" + encodedIndexName;
+    }
+
+    /**
+     * Create a local mirror of this index stored in the given file
+     * Call load() and/or sync() on the mirror then setOfflineMirror() to use it when the hosts are unreachable
+     *
+     * @param file the file used to persist the mirror
+     */
+    public OfflineMirror createOfflineMirror(File file) {
+        return new OfflineMirror(this, file);
+    }
+
+    /**
+     * Set the mirror used by search when all hosts are unreachable (null to disable)
+     */
+    public void setOfflineMirror(OfflineMirror mirror) {
+        this.offlineMirror = mirror;
+    }
+
+    public OfflineMirror getOfflineMirror() {
+        return offlineMirror;
     }
 
     /**
      * Search inside the index asynchronously
+     * If a suggestion cache is set and contains a prefix of the query text, the listener first receives
+     * provisional results (with a "provisional" attribute set to true) before the server answer.
      * @param listener the listener that will receive the result or error. If the listener is an instance of Activity, the result will be received directly on UIthread
      */
     public void searchASync(Query query, IndexListener listener) {
+        SuggestionCache cache = suggestionCache;
+        if (cache != null) {
+            final JSONObject provisional = cache.getClosestPrefix(query);
+            if (provisional != null) {
+                final IndexListener flistener = listener;
+                final Query fquery = query;
+                if (listener instanceof Activity) {
+                    ((Activity) listener).runOnUiThread(new Runnable() {
+                        public void run() {
+                            flistener.searchResult(Index.this, fquery, provisional);
+                        }
+                    });
+                } else {
+                    listener.searchResult(this, query, provisional);
+                }
+            }
+        }
         ASyncIndexTaskParams params = new ASyncIndexTaskParams(listener, query);
         new ASyncIndexTask().execute(params);
     }
+
+    /**
+     * Set the cache storing search results and serving provisional results in searchASync (null to disable)
+     */
+    public void setSuggestionCache(SuggestionCache cache) {
+        this.suggestionCache = cache;
+    }
+
+    public SuggestionCache getSuggestionCache() {
+        return suggestionCache;
+    }
     
     /**
      * Wait the publication of a task on the server. 
@@ -771,7 +1103,7 @@ public class Index {
      * Get settings of this index
      */
     public JSONObject getSettings() throws AlgoliaException {
-        return client.getRequest("/1/indexes/" + encodedIndexName + "/settings", false);
+        return client.getRequest("/1/indexes/" + encodedIndexName + "/settings", false, true);
     }
 
     /**
@@ -1003,7 +1335,7 @@ public class Index {
      *             Page is zero-based and defaults to 0. Thus, to retrieve the 10th page you need to set page=9
      */
     public JSONObject browse(int page) throws AlgoliaException {
-        return client.getRequest("/1/indexes/" + encodedIndexName + "/browse?page=" + page, false);
+        return client.getRequest("/1/indexes/" + encodedIndexName + "/browse?page=" + page, false, true);
     }
 
     /**
@@ -1014,7 +1346,19 @@ public class Index {
      * @param hitsPerPage: Pagination parameter used to select the number of hits per page. Defaults to 1000.
      */
     public JSONObject browse(int page, int hitsPerPage) throws AlgoliaException {
-        return client.getRequest("/1/indexes/" + encodedIndexName + "/browse?page=" + page + "&hitsPerPage=" + hitsPerPage, false);
+        return client.getRequest("/1/indexes/" + encodedIndexName + "/browse?page=" + page + "&hitsPerPage=" + hitsPerPage, false, true);
+    }
+
+    /**
+     * Browse all index content, hits are decoded directly from the response by the mapper
+     *
+     * @param page Pagination parameter used to select the page to retrieve.
+     * @param hitsPerPage: Pagination parameter used to select the number of hits per page.
+     * @param mapper the mapper building an object from each hit (getKeyDictionary() for compact records)
+     */
+    public <T> SearchResult<T> browse(int page, int hitsPerPage, HitMapper<T> mapper) throws AlgoliaException {
+        byte[] body = client.getRequestRaw("/1/indexes/" + encodedIndexName + "/browse?page=" + page + "&hitsPerPage=" + hitsPerPage, false, true);
+        return SearchResult.decode(new JSONReader(body), mapper);
     }
 
     private enum ASyncIndexTaskKind
@@ -1348,128 +1692,43 @@ public class Index {
      * @throws AlgoliaException 
      */
     public JSONObject disjunctiveFaceting(Query query, List<String> disjunctiveFacets, Map<String, List<String>> refinements) throws AlgoliaException {
-    	if (refinements == null) {
-    		refinements = new HashMap<String, List<String>>();
-    	}
-    	HashMap<String, List<String>> disjunctiveRefinements = new HashMap<String, List<String>>();
-    	for (Map.Entry<String, List<String>> elt : refinements.entrySet()) {
-    		if (disjunctiveFacets.contains(elt.getKey())) {
-    			disjunctiveRefinements.put(elt.getKey(), elt.getValue());
-    		}
-    	}
-    	
-    	// build queries
-    	List<IndexQuery> queries = new ArrayList<IndexQuery>();
-    	// hits + regular facets query
-    	StringBuilder filters = new StringBuilder();
-    	boolean first_global = true;
-    	for (Map.Entry<String, List<String>> elt : refinements.entrySet()) {
-    		StringBuilder or = new StringBuilder();
-    		or.append("(");
-    		boolean first = true;
-    		for (String val : elt.getValue()) {
-        		if (disjunctiveRefinements.containsKey(elt.getKey())) {
-        			// disjunctive refinements are ORed
-        			if (!first) {
-        				or.append(',');
-        			}
-        			first = false;
-        			or.append(String.format("%s:%s", elt.getKey(), val));
-        		} else {
-        			if (!first_global) {
-        				filters.append(',');
-        			}
-        			first_global = false;
-        			filters.append(String.format("%s:%s", elt.getKey(), val));
-        		}
-    		}
-    		// Add or
-    		if (disjunctiveRefinements.containsKey(elt.getKey())) {
-    			or.append(')');
-    			if (!first_global) {
-    				filters.append(',');
-    			}
-    			first_global = false;
-    			filters.append(or.toString());
-    		}
-    	}
-    	
-    	queries.add(new IndexQuery(this.indexName, new Query(query).setFacetFilters(filters.toString())));
-    	// one query per disjunctive facet (use all refinements but the current one + hitsPerPage=1 + single facet
-    	for (String disjunctiveFacet : disjunctiveFacets) {
-    		filters = new StringBuilder();
-    		first_global = true;
-    		for (Map.Entry<String, List<String>> elt : refinements.entrySet()) {
-    			if (disjunctiveFacet.equals(elt.getKey())) {
-    				continue;
-    			}
-    			StringBuilder or = new StringBuilder();
-        		or.append("(");
-        		boolean first = true;
-        		for (String val : elt.getValue()) {
-            		if (disjunctiveRefinements.containsKey(elt.getKey())) {
-            			// disjunctive refinements are ORed
-            			if (!first) {
-            				or.append(',');
-            			}
-            			first = false;
-            			or.append(String.format("%s:%s", elt.getKey(), val));
-            		} else {
-            			if (!first_global) {
-            				filters.append(',');
-            			}
-            			first_global = false;
-            			filters.append(String.format("%s:%s", elt.getKey(), val));
-            		}
-        		}
-        		// Add or
-        		if (disjunctiveRefinements.containsKey(elt.getKey())) {
-        			or.append(')');
-        			if (!first_global) {
-        				filters.append(',');
-        			}
-        			first_global = false;
-        			filters.append(or.toString());
-        		}
-    		}
-    		List<String> facets = new ArrayList<String>();
-    		facets.add(disjunctiveFacet);
-    		queries.add(new IndexQuery(this.indexName, new Query(query).setHitsPerPage(1).setAttributesToRetrieve(new ArrayList<String>()).setAttributesToHighlight(new ArrayList<String>()).setAttributesToSnippet(new ArrayList<String>()).setFacets(facets).setFacetFilters(filters.toString())));
-    	}
-    	JSONObject answers = this.client.multipleQueries(queries);
-    	
-    	// aggregate answers
-    	// first answer stores the hits + regular facets
-    	try {
-    		JSONArray results = answers.getJSONArray("results");
-			JSONObject aggregatedAnswer = results.getJSONObject(0);
-			JSONObject disjunctiveFacetsJSON = new JSONObject();
-			for (int i = 1; i < results.length(); ++i) {
-				JSONObject facets = results.getJSONObject(i).getJSONObject("facets");
-				Iterator<String> keys = facets.keys();
-				while(keys.hasNext()) {
-					String key = keys.next();
-					// Add the facet to the disjunctive facet hash
-					disjunctiveFacetsJSON.put(key, facets.getJSONObject(key));
-					// concatenate missing refinements
-					if (!disjunctiveRefinements.containsKey(key)) {
-						continue;
-					}
-					for (String refine : disjunctiveRefinements.get(key)) {
-						if (!disjunctiveFacetsJSON.getJSONObject(key).has(refine)) {
-							disjunctiveFacetsJSON.getJSONObject(key).put(refine, 0);
-						}
-					}
-				}
-			}
-			aggregatedAnswer.put("disjunctiveFacets", disjunctiveFacetsJSON);
-			return aggregatedAnswer;
-		} catch (JSONException e) {
-			throw new Error(e);
-		}
+        return new DisjunctiveFacetingEngine(this, 0, 0).disjunctiveFaceting(query, disjunctiveFacets, refinements);
     }
     public JSONObject disjunctiveFaceting(Query query, List<String> disjunctiveFacets) throws AlgoliaException {
     	return disjunctiveFaceting(query, disjunctiveFacets, null);
     }
 
+    /**
+     * Perform a search with disjunctive facets, hits are decoded directly from the response by the mapper
+     * and the counts of all facets are returned as FacetCounts
+     * @param query the query
+     * @param disjunctiveFacets the array of disjunctive facets
+     * @param refinements the current refinements
+     * @param mapper the mapper building an application object from each hit (SearchResult.JSON_HITS to keep JSONObject)
+     * @throws AlgoliaException
+     */
+    public <T> SearchResult<T> disjunctiveFacetingTyped(Query query, List<String> disjunctiveFacets, Map<String, List<String>> refinements,
+            HitMapper<T> mapper) throws AlgoliaException {
+        return new DisjunctiveFacetingEngine(this, 0, 0).disjunctiveFacetingTyped(query, disjunctiveFacets, refinements, mapper);
+    }
+
+    /**
+     * Create a disjunctive faceting engine caching the per-facet count queries: only the facets
+     * whose refinements changed are refetched
+     *
+     * @param maxCachedQueries maximum number of cached count queries
+     */
+    public DisjunctiveFacetingEngine createDisjunctiveFacetingEngine(int maxCachedQueries) {
+        return createDisjunctiveFacetingEngine(maxCachedQueries, DisjunctiveFacetingEngine.DEFAULT_MAX_AGE_MS);
+    }
+
+    /**
+     * @param maxCachedQueries maximum number of cached count queries
+     * @param maxAgeMS duration after which cached counts are refetched, writes to the index through
+     * the same client expire them at once
+     */
+    public DisjunctiveFacetingEngine createDisjunctiveFacetingEngine(int maxCachedQueries, long maxAgeMS) {
+        return new DisjunctiveFacetingEngine(this, maxCachedQueries, maxAgeMS);
+    }
+
 }
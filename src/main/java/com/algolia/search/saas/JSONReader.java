@@ -0,0 +1,400 @@
+package com.algolia.search.saas;
+
+import java.nio.charset.Charset;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+/**
+ * Pull decoder reading a JSON answer directly from its UTF-8 bytes, used to build typed
+ * results without materializing the intermediate JSONObject tree (see HitMapper).
+ * Malformed input, such as a missing or extra separator, is reported as an AlgoliaException.
+ */
+public final class JSONReader {
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final byte[] data;
+    private final int end;
+    private final int start;
+    private int pos;
+
+    JSONReader(byte[] data) {
+        this(data, 0, data.length);
+    }
+
+    JSONReader(byte[] data, int offset, int length) {
+        this.data = data;
+        this.start = offset;
+        this.pos = offset;
+        this.end = offset + length;
+    }
+
+    /**
+     * First character of the next value: '{', '[', '"', 't', 'f', 'n' or the first character of a number
+     */
+    public char peek() throws AlgoliaException {
+        skipWhitespace();
+        if (pos >= end) {
+            throw error("unexpected end of input");
+        }
+        return (char) data[pos];
+    }
+
+    /**
+     * Offset of the next value in the input (call peek() first to skip the whitespaces)
+     */
+    int position() {
+        return pos;
+    }
+
+    public void beginObject() throws AlgoliaException {
+        expect('{');
+    }
+
+    public void endObject() throws AlgoliaException {
+        expect('}');
+    }
+
+    public void beginArray() throws AlgoliaException {
+        expect('[');
+    }
+
+    public void endArray() throws AlgoliaException {
+        expect(']');
+    }
+
+    /**
+     * True if the current object or array has another element (consumes the separating comma)
+     *
+     * @throws AlgoliaException if the elements are not separated by exactly one comma
+     */
+    public boolean hasNext() throws AlgoliaException {
+        char c = peek();
+        if (c == '}' || c == ']') {
+            return false;
+        }
+        char previous = previous();
+        if (previous == '{' || previous == '[' || previous == ',' || previous == 0) {
+            // first element, or the comma was consumed by a previous call
+            if (c == ',') {
+                throw error("value expected");
+            }
+            return true;
+        }
+        if (c != ',') {
+            throw error("',' expected");
+        }
+        ++pos;
+        c = peek();
+        if (c == '}' || c == ']' || c == ',') {
+            throw error("value expected");
+        }
+        return true;
+    }
+
+    /**
+     * Last character read before the whitespaces, 0 at the beginning of the input
+     */
+    private char previous() {
+        int i = pos - 1;
+        while (i >= start && (data[i] == ' ' || data[i] == '\n' || data[i] == '\r' || data[i] == '\t')) {
+            --i;
+        }
+        return i >= start ? (char) data[i] : 0;
+    }
+
+    public String nextName() throws AlgoliaException {
+        String name = nextString();
+        expect(':');
+        return name;
+    }
+
+    /**
+     * Next attribute name, interned in the dictionary
+     */
+    String nextName(KeyDictionary keys) throws AlgoliaException {
+        expect('"');
+        int start = pos;
+        int hash = 0;
+        while (pos < end && data[pos] != '"' && data[pos] != '\\') {
+            hash = 31 * hash + data[pos++];
+        }
+        String name;
+        if (pos < end && data[pos] == '"') {
+            name = keys.intern(data, start, pos++ - start, hash);
+        } else {
+            // escaped names are rare, they are not interned
+            pos = start - 1;
+            name = nextString();
+        }
+        expect(':');
+        return name;
+    }
+
+    public String nextString() throws AlgoliaException {
+        expect('"');
+        int start = pos;
+        while (pos < end && data[pos] != '"' && data[pos] != '\\') {
+            ++pos;
+        }
+        if (pos < end && data[pos] == '"') {
+            return new String(data, start, pos++ - start, UTF8);
+        }
+        StringBuilder builder = new StringBuilder();
+        builder.append(new String(data, start, pos - start, UTF8));
+        while (true) {
+            if (pos >= end) {
+                throw error("unterminated string");
+            }
+            byte b = data[pos++];
+            if (b == '"') {
+                return builder.toString();
+            }
+            if (b != '\\') {
+                start = pos - 1;
+                while (pos < end && data[pos] != '"' && data[pos] != '\\') {
+                    ++pos;
+                }
+                builder.append(new String(data, start, pos - start, UTF8));
+                continue;
+            }
+            if (pos >= end) {
+                throw error("unterminated string");
+            }
+            char escaped = (char) data[pos++];
+            switch (escaped) {
+            case 'b':
+                builder.append('\b');
+                break;
+            case 'f':
+                builder.append('\f');
+                break;
+            case 'n':
+                builder.append('\n');
+                break;
+            case 'r':
+                builder.append('\r');
+                break;
+            case 't':
+                builder.append('\t');
+                break;
+            case 'u':
+                if (pos + 4 > end) {
+                    throw error("invalid unicode escape");
+                }
+                int code = 0;
+                for (int i = 0; i < 4; ++i) {
+                    int digit = Character.digit(data[pos++], 16);
+                    if (digit < 0) {
+                        throw error("invalid unicode escape");
+                    }
+                    code = code * 16 + digit;
+                }
+                builder.append((char) code);
+                break;
+            default:
+                builder.append(escaped);
+            }
+        }
+    }
+
+    /**
+     * Next number as an int, decimal numbers are truncated
+     *
+     * @throws AlgoliaException if the number does not fit in an int
+     */
+    public int nextInt() throws AlgoliaException {
+        int start = pos;
+        long value = nextLong();
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            pos = start;
+            throw error("number too large for an int");
+        }
+        return (int) value;
+    }
+
+    /**
+     * Next number as a long, decimal numbers are truncated
+     *
+     * @throws AlgoliaException if the number does not fit in a long
+     */
+    public long nextLong() throws AlgoliaException {
+        peek();
+        int start = pos;
+        boolean negative = false;
+        if (data[pos] == '-') {
+            negative = true;
+            ++pos;
+        }
+        // accumulated as a negative number, whose range includes Long.MIN_VALUE
+        long value = 0;
+        boolean overflow = false;
+        while (pos < end && data[pos] >= '0' && data[pos] <= '9') {
+            int digit = data[pos++] - '0';
+            if (value < (Long.MIN_VALUE + digit) / 10) {
+                overflow = true;
+            } else {
+                value = value * 10 - digit;
+            }
+        }
+        if (pos == start || (negative && pos == start + 1)) {
+            throw error("number expected");
+        }
+        if (pos < end && (data[pos] == '.' || data[pos] == 'e' || data[pos] == 'E')) {
+            pos = start;
+            double d = nextDouble();
+            if (d < Long.MIN_VALUE || d >= -(double) Long.MIN_VALUE) {
+                pos = start;
+                throw error("number too large for a long");
+            }
+            return (long) d;
+        }
+        if (overflow || (!negative && value == Long.MIN_VALUE)) {
+            pos = start;
+            throw error("number too large for a long");
+        }
+        return negative ? value : -value;
+    }
+
+    public double nextDouble() throws AlgoliaException {
+        peek();
+        int start = pos;
+        while (pos < end && "+-.eE0123456789".indexOf(data[pos]) >= 0) {
+            ++pos;
+        }
+        try {
+            return Double.parseDouble(new String(data, start, pos - start, UTF8));
+        } catch (NumberFormatException e) {
+            throw error("number expected");
+        }
+    }
+
+    /**
+     * Next number as an Integer, a Long or a Double depending on its value
+     */
+    public Number nextNumber() throws AlgoliaException {
+        peek();
+        int start = pos;
+        while (pos < end && "+-.eE0123456789".indexOf(data[pos]) >= 0) {
+            ++pos;
+        }
+        int length = pos - start;
+        boolean decimal = false;
+        for (int i = start; i < pos; ++i) {
+            decimal |= data[i] == '.' || data[i] == 'e' || data[i] == 'E';
+        }
+        pos = start;
+        if (decimal || length > 18) {
+            // 18 digits always fit in a long
+            return nextDouble();
+        }
+        long value = nextLong();
+        if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+            return (int) value;
+        }
+        return value;
+    }
+
+    public boolean nextBoolean() throws AlgoliaException {
+        if (peek() == 't') {
+            literal("true");
+            return true;
+        }
+        literal("false");
+        return false;
+    }
+
+    public void skipValue() throws AlgoliaException {
+        switch (peek()) {
+        case '{':
+            beginObject();
+            while (hasNext()) {
+                nextName();
+                skipValue();
+            }
+            endObject();
+            break;
+        case '[':
+            beginArray();
+            while (hasNext()) {
+                skipValue();
+            }
+            endArray();
+            break;
+        case '"':
+            expect('"');
+            while (pos < end && data[pos] != '"') {
+                pos += data[pos] == '\\' ? 2 : 1;
+            }
+            expect('"');
+            break;
+        case 't':
+            literal("true");
+            break;
+        case 'f':
+            literal("false");
+            break;
+        case 'n':
+            literal("null");
+            break;
+        default:
+            nextDouble();
+        }
+    }
+
+    /**
+     * Source text of the next value, to be decoded by another parser
+     */
+    public String nextRawValue() throws AlgoliaException {
+        peek();
+        int start = pos;
+        skipValue();
+        return new String(data, start, pos - start, UTF8);
+    }
+
+    private void literal(String literal) throws AlgoliaException {
+        for (int i = 0; i < literal.length(); ++i) {
+            if (pos >= end || data[pos++] != literal.charAt(i)) {
+                throw error(literal + " expected");
+            }
+        }
+    }
+
+    private void expect(char c) throws AlgoliaException {
+        if (peek() != c) {
+            throw error("'" + c + "' expected");
+        }
+        ++pos;
+    }
+
+    private void skipWhitespace() {
+        while (pos < end && (data[pos] == ' ' || data[pos] == '\n' || data[pos] == '\r' || data[pos] == '\t')) {
+            ++pos;
+        }
+    }
+
+    private AlgoliaException error(String message) {
+        return new AlgoliaException("JSON decode error:" + message + " at offset " + pos);
+    }
+}
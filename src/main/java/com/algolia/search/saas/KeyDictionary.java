@@ -0,0 +1,261 @@
+package com.algolia.search.saas;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+/**
+ * Dictionary of the attribute names of an index, used as a HitMapper building compact HitRecord.
+ * Attribute names are interned once (decoded from the response bytes only the first time they
+ * are seen) and records with the same attributes in the same order share a single Shape holding
+ * the names, so each record only stores its values. The number of shared shapes is bounded: once
+ * the limit is reached, records with new attribute orders get their own shape.
+ * Use Index.getKeyDictionary() to get the dictionary of an index.
+ */
+public class KeyDictionary implements HitMapper<HitRecord> {
+    private static final int DEFAULT_MAX_KEYS = 4096;
+    private static final int DEFAULT_MAX_SHAPES = 4096;
+
+    private final int maxKeys;
+    private final int maxShapes;
+    private final AtomicInteger shapes = new AtomicInteger();
+    private final Shape root = new Shape(new String[0]);
+    private Key[] table = new Key[64];
+    private int size;
+
+    /**
+     * Interned attribute name with its UTF-8 bytes
+     */
+    private static final class Key {
+        final byte[] bytes;
+        final int hash;
+        final String name;
+        final Key next;
+
+        Key(byte[] bytes, int hash, String name, Key next) {
+            this.bytes = bytes;
+            this.hash = hash;
+            this.name = name;
+            this.next = next;
+        }
+    }
+
+    /**
+     * Ordered attribute names shared by records, shapes are linked by the attribute added
+     */
+    static final class Shape {
+        final String[] keys;
+        private Map<String, Shape> transitions;
+        private Map<String, Integer> positions;
+
+        Shape(String[] keys) {
+            this.keys = keys;
+        }
+
+        /**
+         * @return the shared shape with key added, null if the dictionary holds too many shapes
+         */
+        synchronized Shape with(String key, KeyDictionary dictionary) {
+            if (transitions == null) {
+                transitions = new HashMap<String, Shape>(4);
+            }
+            Shape next = transitions.get(key);
+            if (next == null) {
+                if (dictionary.shapes.incrementAndGet() > dictionary.maxShapes) {
+                    dictionary.shapes.decrementAndGet();
+                    return null;
+                }
+                String[] nextKeys = Arrays.copyOf(keys, keys.length + 1);
+                nextKeys[keys.length] = key;
+                next = new Shape(nextKeys);
+                transitions.put(key, next);
+            }
+            return next;
+        }
+
+        int indexOf(String key) {
+            if (keys.length <= 8) {
+                for (int i = 0; i < keys.length; ++i) {
+                    if (keys[i] == key || keys[i].equals(key)) {
+                        return i;
+                    }
+                }
+                return -1;
+            }
+            synchronized (this) {
+                if (positions == null) {
+                    positions = new HashMap<String, Integer>(keys.length * 2);
+                    for (int i = keys.length - 1; i >= 0; --i) {
+                        positions.put(keys[i], i);
+                    }
+                }
+                Integer i = positions.get(key);
+                return i == null ? -1 : i;
+            }
+        }
+    }
+
+    public KeyDictionary() {
+        this(DEFAULT_MAX_KEYS, DEFAULT_MAX_SHAPES);
+    }
+
+    /**
+     * @param maxKeys maximum number of interned names, other names are decoded for each record
+     */
+    public KeyDictionary(int maxKeys) {
+        this(maxKeys, DEFAULT_MAX_SHAPES);
+    }
+
+    /**
+     * @param maxKeys maximum number of interned names, other names are decoded for each record
+     * @param maxShapes maximum number of shared shapes (one per prefix of the attribute orders seen),
+     * records with other orders hold their own list of names
+     */
+    public KeyDictionary(int maxKeys, int maxShapes) {
+        this.maxKeys = maxKeys;
+        this.maxShapes = maxShapes;
+    }
+
+    /**
+     * Number of interned attribute names
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Number of shared shapes
+     */
+    public int getShapeCount() {
+        return shapes.get();
+    }
+
+    public HitRecord map(JSONReader reader) throws AlgoliaException {
+        return readRecord(reader);
+    }
+
+    /**
+     * Interned name of the UTF-8 bytes, hash being 31 * h + b over the signed bytes (unlike
+     * String.hashCode(), which hashes the chars)
+     */
+    synchronized String intern(byte[] data, int offset, int length, int hash) {
+        int slot = hash & (table.length - 1);
+        for (Key key = table[slot]; key != null; key = key.next) {
+            if (key.hash == hash && key.bytes.length == length && equals(key.bytes, data, offset)) {
+                return key.name;
+            }
+        }
+        String name = new String(data, offset, length, JSONReader.UTF8);
+        if (size < maxKeys) {
+            table[slot] = new Key(Arrays.copyOfRange(data, offset, offset + length), hash, name, table[slot]);
+            if (++size > table.length * 3 / 4) {
+                rehash();
+            }
+        }
+        return name;
+    }
+
+    private HitRecord readRecord(JSONReader reader) throws AlgoliaException {
+        Shape shape = root;
+        // names of the record once the shapes are no longer shared
+        List<String> names = null;
+        Object[] values = new Object[8];
+        int count = 0;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName(this);
+            if (names == null) {
+                Shape next = shape.with(name, this);
+                if (next != null) {
+                    shape = next;
+                } else {
+                    names = new ArrayList<String>(Arrays.asList(shape.keys));
+                }
+            }
+            if (names != null) {
+                names.add(name);
+            }
+            if (count == values.length) {
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+            values[count++] = readValue(reader);
+        }
+        reader.endObject();
+        if (names != null) {
+            shape = new Shape(names.toArray(new String[count]));
+        }
+        return new HitRecord(shape, values.length == count ? values : Arrays.copyOf(values, count));
+    }
+
+    private Object readValue(JSONReader reader) throws AlgoliaException {
+        switch (reader.peek()) {
+        case '{':
+            return readRecord(reader);
+        case '[':
+            List<Object> list = new ArrayList<Object>();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                list.add(readValue(reader));
+            }
+            reader.endArray();
+            return list;
+        case '"':
+            return reader.nextString();
+        case 't':
+        case 'f':
+            return reader.nextBoolean();
+        case 'n':
+            reader.skipValue();
+            return null;
+        default:
+            return reader.nextNumber();
+        }
+    }
+
+    private void rehash() {
+        Key[] newTable = new Key[table.length * 2];
+        for (Key head : table) {
+            for (Key key = head; key != null; key = key.next) {
+                int slot = key.hash & (newTable.length - 1);
+                newTable[slot] = new Key(key.bytes, key.hash, key.name, newTable[slot]);
+            }
+        }
+        table = newTable;
+    }
+
+    private static boolean equals(byte[] bytes, byte[] data, int offset) {
+        for (int i = 0; i < bytes.length; ++i) {
+            if (bytes[i] != data[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,342 @@
+package com.algolia.search.saas;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * Compute facet counts locally, without any network call, on the content of an offline mirror
+ * or on a cached list of hits.
+ * Each facet attribute is dictionary-encoded once (value string -> int id) and counts are
+ * accumulated in primitive int arrays indexed by value id.
+ */
+public class LocalFacetEngine {
+    private static final int DEFAULT_MAX_VALUES_PER_FACET = 100;
+    private static final int[] NO_VALUES = new int[0];
+
+    private final JSONObject[] records;
+    private final OfflineMirror.Snapshot snapshot;
+    private final Map<String, FacetColumn> columns = new HashMap<String, FacetColumn>();
+
+    /**
+     * Engine working on a cached list of hits (for example the hits of a previous search).
+     * The query text is not evaluated on these hits, only tagFilters and numericFilters are.
+     *
+     * @param hits the hits containing the facet attributes
+     */
+    public LocalFacetEngine(JSONArray hits) throws AlgoliaException {
+        records = new JSONObject[hits.length()];
+        try {
+            for (int i = 0; i < records.length; ++i) {
+                records[i] = hits.getJSONObject(i);
+            }
+        } catch (JSONException e) {
+            throw new AlgoliaException(e.getMessage());
+        }
+        snapshot = null;
+    }
+
+    LocalFacetEngine(OfflineMirror.Snapshot snapshot) {
+        this.records = snapshot.records;
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * Compute the same answer as Index.disjunctiveFaceting without the hits:
+     * "nbHits", "facets" (conjunctive facets of the query) and "disjunctiveFacets"
+     *
+     * @param query the query, its facets are used as conjunctive facets
+     * @param disjunctiveFacets the array of disjunctive facets
+     * @param refinements Map<String, List<String>> representing the current refinements
+     *     ex: { "my_facet1" => ["my_value1", "my_value2"], "my_disjunctive_facet1" => ["my_value1", "my_value2"] }
+     */
+    public JSONObject disjunctiveFaceting(Query query, List<String> disjunctiveFacets, Map<String, List<String>> refinements) throws AlgoliaException {
+        if (refinements == null) {
+            refinements = new HashMap<String, List<String>>();
+        }
+        List<String> conjunctiveFacets = new ArrayList<String>();
+        for (String facet : parseFacets(query.getFacets())) {
+            if (!disjunctiveFacets.contains(facet)) {
+                conjunctiveFacets.add(facet);
+            }
+        }
+
+        // one entry per refined attribute: allowed value ids and the way they are combined
+        List<Map.Entry<String, List<String>>> refined = new ArrayList<Map.Entry<String, List<String>>>();
+        for (Map.Entry<String, List<String>> elt : refinements.entrySet()) {
+            if (elt.getValue() != null && !elt.getValue().isEmpty()) {
+                refined.add(elt);
+            }
+        }
+        int nbRefined = refined.size();
+        FacetColumn[] refinedColumns = new FacetColumn[nbRefined];
+        boolean[][] allowed = new boolean[nbRefined][];
+        int[] nbRequired = new int[nbRefined];
+        boolean[] disjunctive = new boolean[nbRefined];
+        for (int r = 0; r < nbRefined; ++r) {
+            String attribute = refined.get(r).getKey();
+            refinedColumns[r] = column(attribute);
+            allowed[r] = new boolean[refinedColumns[r].values.length];
+            disjunctive[r] = disjunctiveFacets.contains(attribute);
+            boolean unknownValue = false;
+            for (String value : refined.get(r).getValue()) {
+                Integer id = refinedColumns[r].ids.get(value);
+                if (id == null) {
+                    unknownValue = true;
+                } else if (!allowed[r][id]) {
+                    allowed[r][id] = true;
+                    ++nbRequired[r];
+                }
+            }
+            if (unknownValue && !disjunctive[r]) {
+                // a conjunctive refinement on an unknown value cannot match
+                nbRequired[r] = Integer.MAX_VALUE;
+            }
+        }
+
+        FacetColumn[] conjunctiveColumns = new FacetColumn[conjunctiveFacets.size()];
+        int[][] conjunctiveCounts = new int[conjunctiveColumns.length][];
+        for (int f = 0; f < conjunctiveColumns.length; ++f) {
+            conjunctiveColumns[f] = column(conjunctiveFacets.get(f));
+            conjunctiveCounts[f] = new int[conjunctiveColumns[f].values.length];
+        }
+        FacetColumn[] disjunctiveColumns = new FacetColumn[disjunctiveFacets.size()];
+        int[][] disjunctiveCounts = new int[disjunctiveColumns.length][];
+        int[] disjunctiveRefinedIndex = new int[disjunctiveColumns.length];
+        for (int f = 0; f < disjunctiveColumns.length; ++f) {
+            disjunctiveColumns[f] = column(disjunctiveFacets.get(f));
+            disjunctiveCounts[f] = new int[disjunctiveColumns[f].values.length];
+            disjunctiveRefinedIndex[f] = -1;
+            for (int r = 0; r < nbRefined; ++r) {
+                if (refined.get(r).getKey().equals(disjunctiveFacets.get(f))) {
+                    disjunctiveRefinedIndex[f] = r;
+                }
+            }
+        }
+
+        int nbHits = 0;
+        for (int id : candidates(query)) {
+            // a record counts for a disjunctive facet if it satisfies all refinements but the facet's own
+            int failures = 0;
+            int failed = -1;
+            for (int r = 0; r < nbRefined && failures < 2; ++r) {
+                if (!satisfies(refinedColumns[r].recordValues[id], allowed[r], nbRequired[r], disjunctive[r])) {
+                    ++failures;
+                    failed = r;
+                }
+            }
+            if (failures == 0) {
+                ++nbHits;
+                for (int f = 0; f < conjunctiveColumns.length; ++f) {
+                    for (int v : conjunctiveColumns[f].recordValues[id]) {
+                        ++conjunctiveCounts[f][v];
+                    }
+                }
+            }
+            if (failures > 1) {
+                continue;
+            }
+            for (int f = 0; f < disjunctiveColumns.length; ++f) {
+                if (failures == 0 || disjunctiveRefinedIndex[f] == failed) {
+                    for (int v : disjunctiveColumns[f].recordValues[id]) {
+                        ++disjunctiveCounts[f][v];
+                    }
+                }
+            }
+        }
+
+        int maxValues = query.getMaxNumberOfFacets() > 0 ? query.getMaxNumberOfFacets() : DEFAULT_MAX_VALUES_PER_FACET;
+        try {
+            JSONObject facetsJSON = new JSONObject();
+            for (int f = 0; f < conjunctiveColumns.length; ++f) {
+                facetsJSON.put(conjunctiveFacets.get(f), toJSON(conjunctiveColumns[f], conjunctiveCounts[f], maxValues, null));
+            }
+            JSONObject disjunctiveFacetsJSON = new JSONObject();
+            for (int f = 0; f < disjunctiveColumns.length; ++f) {
+                String facet = disjunctiveFacets.get(f);
+                disjunctiveFacetsJSON.put(facet, toJSON(disjunctiveColumns[f], disjunctiveCounts[f], maxValues, refinements.get(facet)));
+            }
+            JSONObject answer = new JSONObject();
+            answer.put("nbHits", nbHits);
+            answer.put("facets", facetsJSON);
+            answer.put("disjunctiveFacets", disjunctiveFacetsJSON);
+            return answer;
+        } catch (JSONException e) {
+            throw new AlgoliaException(e.getMessage());
+        }
+    }
+
+    private int[] candidates(Query query) throws AlgoliaException {
+        if (snapshot != null) {
+            return snapshot.match(query);
+        }
+        LocalFilters filters = new LocalFilters(query);
+        int[] res = new int[records.length];
+        int n = 0;
+        for (int i = 0; i < records.length; ++i) {
+            if (filters.isEmpty() || filters.matches(records[i])) {
+                res[n++] = i;
+            }
+        }
+        return Arrays.copyOf(res, n);
+    }
+
+    private static boolean satisfies(int[] values, boolean[] allowed, int nbRequired, boolean disjunctive) {
+        int found = 0;
+        for (int v : values) {
+            if (allowed[v]) {
+                if (disjunctive) {
+                    return true;
+                }
+                ++found;
+            }
+        }
+        return !disjunctive && found >= nbRequired;
+    }
+
+    private static JSONObject toJSON(FacetColumn column, int[] counts, int maxValues, List<String> refinedValues) throws JSONException {
+        // select the maxValues best counts
+        Integer[] order = new Integer[counts.length];
+        int n = 0;
+        for (int v = 0; v < counts.length; ++v) {
+            if (counts[v] > 0) {
+                order[n++] = v;
+            }
+        }
+        final int[] fcounts = counts;
+        Arrays.sort(order, 0, n, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return fcounts[b] - fcounts[a];
+            }
+        });
+        JSONObject res = new JSONObject();
+        for (int i = 0; i < n && i < maxValues; ++i) {
+            res.put(column.values[order[i]], counts[order[i]]);
+        }
+        if (refinedValues != null) {
+            for (String refine : refinedValues) {
+                if (!res.has(refine)) {
+                    res.put(refine, 0);
+                }
+            }
+        }
+        return res;
+    }
+
+    static List<String> parseFacets(String facets) {
+        List<String> res = new ArrayList<String>();
+        if (facets == null) {
+            return res;
+        }
+        try {
+            JSONArray array = new JSONArray(facets);
+            for (int i = 0; i < array.length(); ++i) {
+                res.add(array.getString(i));
+            }
+        } catch (JSONException e) {
+            for (String facet : facets.split(",")) {
+                if (facet.trim().length() > 0) {
+                    res.add(facet.trim());
+                }
+            }
+        }
+        return res;
+    }
+
+    private synchronized FacetColumn column(String attribute) {
+        FacetColumn column = columns.get(attribute);
+        if (column == null) {
+            column = new FacetColumn(records, attribute);
+            columns.put(attribute, column);
+        }
+        return column;
+    }
+
+    /**
+     * Dictionary-encoded values of one attribute for all records
+     */
+    private static class FacetColumn {
+        final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+        final String[] values;
+        final int[][] recordValues;
+
+        FacetColumn(JSONObject[] records, String attribute) {
+            List<String> dictionary = new ArrayList<String>();
+            recordValues = new int[records.length][];
+            String[] path = attribute.split("\\.");
+            List<String> buffer = new ArrayList<String>();
+            for (int i = 0; i < records.length; ++i) {
+                buffer.clear();
+                collect(records[i], path, 0, buffer);
+                if (buffer.isEmpty()) {
+                    recordValues[i] = NO_VALUES;
+                    continue;
+                }
+                int[] valueIds = new int[buffer.size()];
+                int n = 0;
+                for (String value : buffer) {
+                    Integer id = ids.get(value);
+                    if (id == null) {
+                        id = dictionary.size();
+                        ids.put(value, id);
+                        dictionary.add(value);
+                    }
+                    boolean duplicate = false;
+                    for (int k = 0; k < n && !duplicate; ++k) {
+                        duplicate = valueIds[k] == id;
+                    }
+                    if (!duplicate) {
+                        valueIds[n++] = id;
+                    }
+                }
+                recordValues[i] = n == valueIds.length ? valueIds : Arrays.copyOf(valueIds, n);
+            }
+            values = dictionary.toArray(new String[dictionary.size()]);
+        }
+
+        private static void collect(Object value, String[] path, int depth, List<String> out) {
+            if (value instanceof JSONArray) {
+                JSONArray array = (JSONArray) value;
+                for (int i = 0; i < array.length(); ++i) {
+                    collect(array.opt(i), path, depth, out);
+                }
+            } else if (depth < path.length) {
+                if (value instanceof JSONObject) {
+                    collect(((JSONObject) value).opt(path[depth]), path, depth + 1, out);
+                }
+            } else if (value instanceof String || value instanceof Number || value instanceof Boolean) {
+                out.add(value.toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.algolia.search.saas;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * Evaluate the tagFilters and numericFilters of a Query against local records.
+ * Filters are ANDed, values between parentheses (or in a nested JSON array) are ORed.
+ */
+class LocalFilters {
+    private final List<List<String>> tagGroups;
+    private final List<List<NumericFilter>> numericGroups;
+
+    /**
+     * @throws AlgoliaException if the filters of the query cannot be parsed
+     */
+    LocalFilters(Query query) throws AlgoliaException {
+        tagGroups = parseGroups(query.getTags());
+        numericGroups = new ArrayList<List<NumericFilter>>();
+        for (List<String> group : parseGroups(query.getNumerics())) {
+            List<NumericFilter> filters = new ArrayList<NumericFilter>();
+            for (String filter : group) {
+                filters.add(NumericFilter.parse(filter));
+            }
+            numericGroups.add(filters);
+        }
+    }
+
+    boolean isEmpty() {
+        return tagGroups.isEmpty() && numericGroups.isEmpty();
+    }
+
+    boolean matches(JSONObject record) {
+        for (List<String> group : tagGroups) {
+            boolean found = false;
+            for (String tag : group) {
+                if (hasTag(record, tag)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        for (List<NumericFilter> group : numericGroups) {
+            boolean found = false;
+            for (NumericFilter filter : group) {
+                if (filter.matches(record)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasTag(JSONObject record, String tag) {
+        boolean negated = tag.startsWith("-");
+        if (negated) {
+            tag = tag.substring(1);
+        }
+        Object tags = record.opt("_tags");
+        boolean found = false;
+        if (tags instanceof JSONArray) {
+            JSONArray array = (JSONArray) tags;
+            for (int i = 0; i < array.length() && !found; ++i) {
+                found = tag.equals(array.opt(i));
+            }
+        } else if (tags != null) {
+            found = tag.equals(tags.toString());
+        }
+        return found != negated;
+    }
+
+    /**
+     * Parse `a,(b,c)` or `["a",["b","c"]]` into [[a], [b, c]]
+     */
+    static List<List<String>> parseGroups(String filters) throws AlgoliaException {
+        List<List<String>> groups = new ArrayList<List<String>>();
+        if (filters == null || filters.trim().length() == 0) {
+            return groups;
+        }
+        filters = filters.trim();
+        if (filters.startsWith("[")) {
+            try {
+                JSONArray array = new JSONArray(filters);
+                for (int i = 0; i < array.length(); ++i) {
+                    List<String> group = new ArrayList<String>();
+                    JSONArray or = array.optJSONArray(i);
+                    if (or != null) {
+                        for (int j = 0; j < or.length(); ++j) {
+                            group.add(or.getString(j));
+                        }
+                    } else {
+                        group.add(array.getString(i));
+                    }
+                    groups.add(group);
+                }
+                return groups;
+            } catch (JSONException e) {
+                throw new AlgoliaException("Invalid filters: " + filters);
+            }
+        }
+        List<String> group = null;
+        StringBuilder current = new StringBuilder();
+        for (int i = 0; i <= filters.length(); ++i) {
+            char c = i < filters.length() ? filters.charAt(i) : ',';
+            if (c == '(') {
+                group = new ArrayList<String>();
+            } else if (c == ',' || c == ')') {
+                String value = current.toString().trim();
+                current.setLength(0);
+                if (value.length() > 0) {
+                    if (group != null) {
+                        group.add(value);
+                    } else {
+                        List<String> single = new ArrayList<String>();
+                        single.add(value);
+                        groups.add(single);
+                    }
+                }
+                if (c == ')' && group != null) {
+                    if (!group.isEmpty()) {
+                        groups.add(group);
+                    }
+                    group = null;
+                }
+            } else {
+                current.append(c);
+            }
+        }
+        return groups;
+    }
+
+    static class NumericFilter {
+        private final String attribute;
+        private final String operator;
+        private final double value;
+        private final double upperValue;
+
+        private NumericFilter(String attribute, String operator, double value, double upperValue) {
+            this.attribute = attribute;
+            this.operator = operator;
+            this.value = value;
+            this.upperValue = upperValue;
+        }
+
+        static NumericFilter parse(String filter) throws AlgoliaException {
+            try {
+                int colon = filter.indexOf(':');
+                if (colon > 0 && filter.indexOf(" to ", colon) > 0) {
+                    String[] bounds = filter.substring(colon + 1).split(" to ");
+                    return new NumericFilter(filter.substring(0, colon).trim(), "to",
+                                             Double.parseDouble(bounds[0].trim()), Double.parseDouble(bounds[1].trim()));
+                }
+                for (int i = 0; i < filter.length(); ++i) {
+                    char c = filter.charAt(i);
+                    if (c == '<' || c == '>' || c == '=' || c == '!') {
+                        int end = (i + 1 < filter.length() && filter.charAt(i + 1) == '=') ? i + 2 : i + 1;
+                        return new NumericFilter(filter.substring(0, i).trim(), filter.substring(i, end),
+                                                 Double.parseDouble(filter.substring(end).trim()), 0);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                // fall through
+            } catch (ArrayIndexOutOfBoundsException e) {
+                // fall through
+            }
+            throw new AlgoliaException("Invalid numeric filter: " + filter);
+        }
+
+        boolean matches(JSONObject record) {
+            Object v = record.opt(attribute);
+            if (v instanceof JSONArray) {
+                JSONArray array = (JSONArray) v;
+                for (int i = 0; i < array.length(); ++i) {
+                    if (matchesValue(array.opt(i))) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            return matchesValue(v);
+        }
+
+        private boolean matchesValue(Object v) {
+            double d;
+            if (v instanceof Number) {
+                d = ((Number) v).doubleValue();
+            } else if (v instanceof String) {
+                try {
+                    d = Double.parseDouble((String) v);
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+            if (operator.equals("to")) {
+                return d >= value && d <= upperValue;
+            } else if (operator.equals("<")) {
+                return d < value;
+            } else if (operator.equals("<=")) {
+                return d <= value;
+            } else if (operator.equals(">")) {
+                return d > value;
+            } else if (operator.equals(">=")) {
+                return d >= value;
+            } else if (operator.equals("!=")) {
+                return d != value;
+            }
+            return d == value;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package com.algolia.search.saas;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+
+/**
+ * Metrics of the calls of a client admitted by its limiters, recorded without locks:
+ * - per endpoint (search, multipleQueries, getObject, getObjects, browse, batch, task, settings,
+ *   and read or write for the others): latency of the calls as seen by the caller, waits of the
+ *   limiters and all the hosts tried included, errors, bytes sent and received, retries and failovers
+ * - per host: latency of each attempt and failures
+ */
+public class MetricsRegistry {
+    /**
+     * Metrics of the calls to one endpoint
+     */
+    public static class EndpointMetrics {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong bytesSent = new AtomicLong();
+        private final AtomicLong bytesReceived = new AtomicLong();
+        private final AtomicLong retries = new AtomicLong();
+        private final AtomicLong failovers = new AtomicLong();
+
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        public long getCalls() {
+            return latency.getCount();
+        }
+
+        public long getErrors() {
+            return errors.get();
+        }
+
+        public long getBytesSent() {
+            return bytesSent.get();
+        }
+
+        public long getBytesReceived() {
+            return bytesReceived.get();
+        }
+
+        /**
+         * Number of hosts tried after the first one
+         */
+        public long getRetries() {
+            return retries.get();
+        }
+
+        /**
+         * Number of calls that succeeded on another host than the first one tried
+         */
+        public long getFailovers() {
+            return failovers.get();
+        }
+    }
+
+    /**
+     * Metrics of the attempts on one host
+     */
+    public static class HostMetrics {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final AtomicLong failures = new AtomicLong();
+
+        public LatencyHistogram getLatency() {
+            return latency;
+        }
+
+        public long getAttempts() {
+            return latency.getCount();
+        }
+
+        /**
+         * Number of attempts without answer or with a 5xx answer
+         */
+        public long getFailures() {
+            return failures.get();
+        }
+    }
+
+    private final ConcurrentMap<String, EndpointMetrics> endpoints = new ConcurrentHashMap<String, EndpointMetrics>();
+    private final ConcurrentMap<String, HostMetrics> hosts = new ConcurrentHashMap<String, HostMetrics>();
+
+    /**
+     * @return the name of the endpoint of a call
+     */
+    static String endpointName(String method, String url) {
+        int query = url.indexOf('?');
+        String path = query >= 0 ? url.substring(0, query) : url;
+        if (path.endsWith("/browse")) {
+            return "browse";
+        } else if (path.endsWith("/batch")) {
+            return "batch";
+        } else if (path.contains("/task/")) {
+            return "task";
+        } else if (path.endsWith("/queries")) {
+            return "multipleQueries";
+        } else if (path.endsWith("/settings")) {
+            return "settings";
+        } else if (path.endsWith("/query")) {
+            return "search";
+        }
+        String prefix = "/1/indexes/";
+        boolean get = "GET".equals(method);
+        if (path.startsWith(prefix) && path.length() > prefix.length()) {
+            String rest = path.substring(prefix.length());
+            int slash = rest.indexOf('/');
+            if (slash < 0 && get) {
+                return "search";
+            } else if (rest.equals("*/objects")) {
+                return "getObjects";
+            } else if (slash > 0 && rest.indexOf('/', slash + 1) < 0 && get && !rest.endsWith("/keys")) {
+                return "getObject";
+            }
+        }
+        return get ? "read" : "write";
+    }
+
+    /**
+     * Record a call
+     *
+     * @param latencyNanos duration of the call
+     * @param attempts number of hosts tried
+     * @param success true if a host answered successfully
+     */
+    void recordCall(String endpoint, long latencyNanos, long bytesSent, long bytesReceived, int attempts, boolean success) {
+        EndpointMetrics metrics = endpoints.get(endpoint);
+        if (metrics == null) {
+            EndpointMetrics created = new EndpointMetrics();
+            metrics = endpoints.putIfAbsent(endpoint, created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+        metrics.latency.record(latencyNanos / 1000);
+        if (!success) {
+            metrics.errors.incrementAndGet();
+        }
+        metrics.bytesSent.addAndGet(bytesSent);
+        metrics.bytesReceived.addAndGet(bytesReceived);
+        if (attempts > 1) {
+            metrics.retries.addAndGet(attempts - 1);
+            if (success) {
+                metrics.failovers.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Record an attempt on a host
+     *
+     * @param success true if the host answered, even with a 4xx error
+     */
+    void recordAttempt(String host, long latencyNanos, boolean success) {
+        HostMetrics metrics = hosts.get(host);
+        if (metrics == null) {
+            HostMetrics created = new HostMetrics();
+            metrics = hosts.putIfAbsent(host, created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+        metrics.latency.record(latencyNanos / 1000);
+        if (!success) {
+            metrics.failures.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the metrics of the endpoints called, by name
+     */
+    public Map<String, EndpointMetrics> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * @return the metrics of the hosts tried, by host name
+     */
+    public Map<String, HostMetrics> getHosts() {
+        return hosts;
+    }
+
+    public void reset() {
+        endpoints.clear();
+        hosts.clear();
+    }
+
+    /**
+     * Export the metrics, e.g.
+     * {"endpoints": {"search": {"calls": 10, "errors": 0, ..., "latencyMS": {"mean": 12.5, "p50": 11.2, ...}}},
+     *  "hosts": {"appID-1.algolia.net": {"attempts": 10, "failures": 0, "latencyMS": {...}}}}
+     */
+    public JSONObject snapshot() {
+        try {
+            JSONObject endpointsJSON = new JSONObject();
+            for (Map.Entry<String, EndpointMetrics> entry : endpoints.entrySet()) {
+                EndpointMetrics metrics = entry.getValue();
+                endpointsJSON.put(entry.getKey(), new JSONObject()
+                        .put("calls", metrics.getCalls())
+                        .put("errors", metrics.getErrors())
+                        .put("bytesSent", metrics.getBytesSent())
+                        .put("bytesReceived", metrics.getBytesReceived())
+                        .put("retries", metrics.getRetries())
+                        .put("failovers", metrics.getFailovers())
+                        .put("latencyMS", latencyJSON(metrics.latency)));
+            }
+            JSONObject hostsJSON = new JSONObject();
+            for (Map.Entry<String, HostMetrics> entry : hosts.entrySet()) {
+                HostMetrics metrics = entry.getValue();
+                hostsJSON.put(entry.getKey(), new JSONObject()
+                        .put("attempts", metrics.getAttempts())
+                        .put("failures", metrics.getFailures())
+                        .put("latencyMS", latencyJSON(metrics.latency)));
+            }
+            return new JSONObject().put("endpoints", endpointsJSON).put("hosts", hostsJSON);
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static JSONObject latencyJSON(LatencyHistogram latency) throws JSONException {
+        return new JSONObject()
+                .put("mean", latency.getMeanMicros() / 1000)
+                .put("p50", latency.getPercentileMicros(50) / 1000.0)
+                .put("p90", latency.getPercentileMicros(90) / 1000.0)
+                .put("p99", latency.getPercentileMicros(99) / 1000.0)
+                .put("p999", latency.getPercentileMicros(99.9) / 1000.0)
+                .put("max", latency.getMaxMicros() / 1000.0);
+    }
+}
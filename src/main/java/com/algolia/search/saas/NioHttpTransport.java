@@ -0,0 +1,877 @@
+package com.algolia.search.saas;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+/**
+ * Non-blocking transport: requests are multiplexed over a few event-loop threads, each one
+ * driving its connections with a Selector (TLS through SSLEngine). HTTP/1.1 connections are
+ * kept alive and reused per host, requests exceeding the per-host connection limit wait for
+ * a free connection.
+ * Callbacks of executeAsync() are invoked on an event-loop thread and must not block.
+ */
+public class NioHttpTransport extends HttpTransport {
+    private static final long IDLE_TIMEOUT_MS = 60000;
+    private static final long MAX_SELECT_MS = 1000;
+
+    private final Loop[] loops;
+    private final int maxConnectionsPerHost;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    public NioHttpTransport() throws IOException {
+        this(2, 32);
+    }
+
+    /**
+     * @param eventLoops number of event-loop threads
+     * @param maxConnectionsPerHost maximum number of connections to a host, per event loop
+     */
+    public NioHttpTransport(int eventLoops, int maxConnectionsPerHost) throws IOException {
+        if (eventLoops <= 0 || maxConnectionsPerHost <= 0) {
+            throw new IllegalArgumentException("eventLoops and maxConnectionsPerHost must be strictly positive");
+        }
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.loops = new Loop[eventLoops];
+        for (int i = 0; i < eventLoops; ++i) {
+            loops[i] = new Loop();
+            Thread thread = new Thread(loops[i], "AlgoliaEventLoop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    @Override
+    public Response execute(Request request) throws IOException {
+        final Response[] response = new Response[1];
+        final IOException[] error = new IOException[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        executeAsync(request, new Callback() {
+            public void completed(Response r) {
+                response[0] = r;
+                done.countDown();
+            }
+
+            public void failed(IOException e) {
+                error[0] = e;
+                done.countDown();
+            }
+        });
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + request.getURL());
+        }
+        if (error[0] != null) {
+            throw error[0];
+        }
+        return response[0];
+    }
+
+    @Override
+    public void executeAsync(Request request, Callback callback) {
+        Exchange exchange;
+        try {
+            exchange = new Exchange(request, callback);
+        } catch (IOException e) {
+            callback.failed(e);
+            return;
+        }
+        loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length].submit(exchange);
+    }
+
+    /**
+     * Close every connection, pending requests fail
+     */
+    @Override
+    public void shutdown() {
+        for (Loop loop : loops) {
+            loop.running = false;
+            loop.selector.wakeup();
+        }
+    }
+
+    /**
+     * Number of open connections (active or idle)
+     */
+    public int getOpenConnections() {
+        int res = 0;
+        for (Loop loop : loops) {
+            res += loop.openConnections;
+        }
+        return res;
+    }
+
+    private static void notifyCompleted(Callback callback, Response response) {
+        try {
+            callback.completed(response);
+        } catch (RuntimeException e) {
+            // a failing callback must not stop the event loop
+        }
+    }
+
+    private static void notifyFailed(Callback callback, IOException error) {
+        try {
+            callback.failed(error);
+        } catch (RuntimeException e) {
+            // a failing callback must not stop the event loop
+        }
+    }
+
+    /**
+     * One request with its serialized head
+     */
+    private static final class Exchange {
+        final Request request;
+        final Callback callback;
+        final String host;
+        final int port;
+        final boolean tls;
+        final String hostKey;
+        final byte[] head;
+        boolean retried;
+
+        Exchange(Request request, Callback callback) throws IOException {
+            this.request = request;
+            this.callback = callback;
+            URL url = new URL(request.getURL());
+            this.tls = url.getProtocol().equals("https");
+            if (!tls && !url.getProtocol().equals("http")) {
+                throw new IOException("Unsupported protocol " + url.getProtocol());
+            }
+            this.host = url.getHost();
+            this.port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+            this.hostKey = url.getProtocol() + "://" + host + ":" + port;
+            String path = url.getFile().length() > 0 ? url.getFile() : "/";
+            StringBuilder head = new StringBuilder(256);
+            head.append(request.getMethod()).append(' ').append(path).append(" HTTP/1.1\r\n");
+            head.append("Host: ").append(host);
+            if (url.getPort() != -1) {
+                head.append(':').append(port);
+            }
+            head.append("\r\n");
+            for (Map.Entry<String, String> entry : request.getHeaders().entrySet()) {
+                head.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+            }
+            if (request.getBody() != null) {
+                head.append("Content-Length: ").append(request.getBodyLength()).append("\r\n");
+            }
+            head.append("Connection: keep-alive\r\n\r\n");
+            this.head = head.toString().getBytes(JSONReader.UTF8);
+        }
+    }
+
+    /**
+     * Connections to one host on one event loop
+     */
+    private static final class HostState {
+        final ArrayDeque<Connection> idle = new ArrayDeque<Connection>();
+        final ArrayDeque<Exchange> waiting = new ArrayDeque<Exchange>();
+        int open;
+    }
+
+    private final class Loop implements Runnable {
+        final Selector selector;
+        final ConcurrentLinkedQueue<Exchange> submitted = new ConcurrentLinkedQueue<Exchange>();
+        final Map<String, HostState> hosts = new HashMap<String, HostState>();
+        final Set<Connection> connections = new HashSet<Connection>();
+        volatile boolean running = true;
+        volatile int openConnections;
+
+        Loop() throws IOException {
+            selector = Selector.open();
+        }
+
+        void submit(Exchange exchange) {
+            submitted.add(exchange);
+            selector.wakeup();
+            if (!running) {
+                failSubmitted();
+            }
+        }
+
+        public void run() {
+            while (running) {
+                try {
+                    selector.select(nextTimeout());
+                } catch (IOException e) {
+                    break;
+                }
+                Exchange exchange;
+                while ((exchange = submitted.poll()) != null) {
+                    dispatch(exchange);
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    ((Connection) key.attachment()).ready(key);
+                }
+                checkTimeouts();
+            }
+            for (Connection connection : new ArrayList<Connection>(connections)) {
+                connection.fail(new IOException("Transport shut down"), false);
+            }
+            for (HostState host : hosts.values()) {
+                for (Exchange exchange : host.waiting) {
+                    notifyFailed(exchange.callback, new IOException("Transport shut down"));
+                }
+                host.waiting.clear();
+            }
+            failSubmitted();
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // not fatal
+            }
+        }
+
+        private void failSubmitted() {
+            Exchange exchange;
+            while ((exchange = submitted.poll()) != null) {
+                notifyFailed(exchange.callback, new IOException("Transport shut down"));
+            }
+        }
+
+        void dispatch(Exchange exchange) {
+            HostState host = hosts.get(exchange.hostKey);
+            if (host == null) {
+                host = new HostState();
+                hosts.put(exchange.hostKey, host);
+            }
+            Connection connection = host.idle.pollFirst();
+            if (connection != null) {
+                connection.start(exchange, true);
+            } else if (host.open < maxConnectionsPerHost) {
+                connection = new Connection(this, host, exchange);
+                try {
+                    connection.connect();
+                } catch (IOException e) {
+                    connection.close();
+                    notifyFailed(exchange.callback, e);
+                    return;
+                }
+                connection.start(exchange, false);
+            } else {
+                host.waiting.add(exchange);
+            }
+        }
+
+        /**
+         * A connection of the host was released or closed: start a waiting request
+         */
+        void next(HostState host) {
+            Exchange exchange = host.waiting.poll();
+            if (exchange != null) {
+                dispatch(exchange);
+            }
+        }
+
+        private long nextTimeout() {
+            long now = System.currentTimeMillis();
+            long timeout = MAX_SELECT_MS;
+            for (Connection connection : connections) {
+                timeout = Math.min(timeout, Math.max(1, connection.deadline - now));
+            }
+            return timeout;
+        }
+
+        private void checkTimeouts() {
+            long now = System.currentTimeMillis();
+            for (Connection connection : new ArrayList<Connection>(connections)) {
+                if (connection.deadline <= now) {
+                    if (connection.exchange == null) {
+                        connection.close();
+                    } else {
+                        SocketTimeoutException timeout = new SocketTimeoutException("Timeout on " + connection.exchange.request.getURL());
+                        connection.fail(connection.connected ? timeout : connectFailure("Connect timeout on " + connection.exchange.request.getURL(), timeout), false);
+                    }
+                }
+            }
+        }
+    }
+
+    private final class Connection {
+        final Loop loop;
+        final HostState host;
+        final String hostName;
+        final int port;
+        final SSLEngine engine;
+        final TlsSessionCache tlsSessions;
+        long handshakeStartedAt;
+        SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer appOut;
+        ByteBuffer netOut;
+        ByteBuffer netIn;
+        ByteBuffer appIn;
+        boolean connected;
+        /** The certificate host name was checked, by the engine itself or by verify() */
+        boolean verified;
+        boolean closed;
+        Exchange exchange;
+        ResponseParser parser;
+        long deadline;
+
+        Connection(Loop loop, HostState host, Exchange exchange) {
+            this.loop = loop;
+            this.host = host;
+            this.hostName = exchange.host;
+            this.port = exchange.port;
+            if (exchange.tls) {
+                tlsSessions = getTlsSessionCache();
+                engine = tlsSessions.getSSLContext().createSSLEngine(hostName, port);
+                engine.setUseClientMode(true);
+                SSLParameters parameters = engine.getSSLParameters();
+                verified = TlsSupport.checkHostnameInHandshake(parameters);
+                engine.setSSLParameters(parameters);
+                netOut = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+                netOut.flip();
+                netIn = ByteBuffer.allocate(engine.getSession().getPacketBufferSize());
+                appIn = ByteBuffer.allocate(engine.getSession().getApplicationBufferSize());
+            } else {
+                engine = null;
+                tlsSessions = null;
+                appIn = ByteBuffer.allocate(16 * 1024);
+            }
+            ++host.open;
+            ++loop.openConnections;
+            loop.connections.add(this);
+            deadline = System.currentTimeMillis() + exchange.request.getConnectTimeoutMS();
+        }
+
+        /**
+         * Start a non-blocking connection. The host name is resolved by the DnsCache: only a host
+         * missing from the cache blocks the event loop for a lookup.
+         */
+        void connect() throws IOException {
+            InetSocketAddress address = new InetSocketAddress(getDnsCache().resolve(hostName)[0], port);
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            boolean done = channel.connect(address);
+            key = channel.register(loop.selector, done ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+            connected = done;
+            if (done && engine != null) {
+                handshakeStartedAt = System.currentTimeMillis();
+                engine.beginHandshake();
+            }
+        }
+
+        void start(Exchange exchange, boolean reused) {
+            this.exchange = exchange;
+            this.parser = new ResponseParser(exchange.request.getMethod());
+            Request request = exchange.request;
+            appOut = ByteBuffer.allocate(exchange.head.length + request.getBodyLength());
+            appOut.put(exchange.head);
+            if (request.getBody() != null) {
+                appOut.put(request.getBody(), 0, request.getBodyLength());
+            }
+            appOut.flip();
+            if (!reused) {
+                // the exchange failing at connection is reported by fail()
+                exchange.retried = true;
+            }
+            if (connected) {
+                deadline = System.currentTimeMillis() + request.getReadTimeoutMS();
+                pump();
+            }
+        }
+
+        void ready(SelectionKey key) {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isConnectable()) {
+                try {
+                    channel.finishConnect();
+                } catch (IOException e) {
+                    fail(e, false);
+                    return;
+                }
+                connected = true;
+                if (exchange != null) {
+                    deadline = System.currentTimeMillis() + exchange.request.getReadTimeoutMS();
+                }
+                if (engine != null) {
+                    try {
+                        handshakeStartedAt = System.currentTimeMillis();
+                        engine.beginHandshake();
+                    } catch (SSLException e) {
+                        fail(e, false);
+                        return;
+                    }
+                }
+            }
+            pump();
+        }
+
+        /**
+         * Move bytes between the socket, the TLS engine and the HTTP parser until nothing progresses
+         */
+        private void pump() {
+            try {
+                boolean progress = true;
+                while (progress && !closed) {
+                    progress = engine == null ? pumpPlain() : pumpTLS();
+                    if (appIn.position() > 0) {
+                        if (exchange == null) {
+                            throw new IOException("Unexpected data on idle connection");
+                        }
+                        appIn.flip();
+                        boolean done = parser.feed(appIn);
+                        appIn.compact();
+                        if (done) {
+                            complete();
+                        }
+                    }
+                }
+                if (!closed) {
+                    boolean pendingWrite = (appOut != null && appOut.hasRemaining() && (engine == null || isHandshakeDone()))
+                            || (netOut != null && netOut.hasRemaining());
+                    key.interestOps(SelectionKey.OP_READ | (pendingWrite ? SelectionKey.OP_WRITE : 0));
+                }
+            } catch (EOFException e) {
+                onEOF();
+            } catch (IOException e) {
+                fail(e, true);
+            }
+        }
+
+        private boolean pumpPlain() throws IOException {
+            boolean progress = false;
+            if (appOut != null && appOut.hasRemaining() && channel.write(appOut) > 0) {
+                progress = true;
+            }
+            ensureSpace();
+            int n = channel.read(appIn);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            if (n > 0) {
+                progress = true;
+                touch();
+            }
+            return progress;
+        }
+
+        private boolean pumpTLS() throws IOException {
+            boolean progress = false;
+            if (netOut.hasRemaining() && channel.write(netOut) > 0) {
+                progress = true;
+            }
+            HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == HandshakeStatus.NEED_TASK) {
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                return true;
+            }
+            if (!netOut.hasRemaining() && (status == HandshakeStatus.NEED_WRAP || (isHandshakeDone() && appOut != null && appOut.hasRemaining()))) {
+                netOut.clear();
+                SSLEngineResult result = engine.wrap(appOut != null ? appOut : ByteBuffer.allocate(0), netOut);
+                netOut.flip();
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new EOFException();
+                }
+                progress |= result.bytesProduced() > 0 || result.bytesConsumed() > 0;
+                verify(result);
+            }
+            // records already received are unwrapped before reporting the end of the stream
+            int n = channel.read(netIn);
+            boolean eof = n < 0;
+            if (n > 0) {
+                progress = true;
+                touch();
+            }
+            status = engine.getHandshakeStatus();
+            if (netIn.position() > 0 && (status == HandshakeStatus.NEED_UNWRAP || isHandshakeDone())) {
+                netIn.flip();
+                ensureSpace();
+                SSLEngineResult result = engine.unwrap(netIn, appIn);
+                netIn.compact();
+                switch (result.getStatus()) {
+                case BUFFER_OVERFLOW:
+                    appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+                    progress = true;
+                    break;
+                case BUFFER_UNDERFLOW:
+                    if (!netIn.hasRemaining()) {
+                        netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+                        progress = true;
+                    }
+                    break;
+                case CLOSED:
+                    throw new EOFException();
+                default:
+                    progress |= result.bytesProduced() > 0 || result.bytesConsumed() > 0;
+                }
+                verify(result);
+            }
+            if (eof && !progress) {
+                throw new EOFException();
+            }
+            return progress;
+        }
+
+        private boolean isHandshakeDone() {
+            HandshakeStatus status = engine.getHandshakeStatus();
+            return status == HandshakeStatus.NOT_HANDSHAKING || status == HandshakeStatus.FINISHED;
+        }
+
+        /**
+         * Once the handshake is finished, count it and check the certificate matches the host
+         */
+        private void verify(SSLEngineResult result) throws IOException {
+            if (result.getHandshakeStatus() == HandshakeStatus.FINISHED) {
+                // TLS 1.3 session tickets received after the handshake report FINISHED again
+                if (handshakeStartedAt != 0) {
+                    tlsSessions.recordHandshake(engine.getSession(), handshakeStartedAt);
+                    handshakeStartedAt = 0;
+                }
+                if (!verified) {
+                    TlsSupport.verifyHostname(hostName, engine.getSession());
+                    verified = true;
+                }
+            }
+        }
+
+        private void ensureSpace() {
+            if (!appIn.hasRemaining()) {
+                appIn = grow(appIn, appIn.capacity());
+            }
+        }
+
+        private ByteBuffer grow(ByteBuffer buffer, int extra) {
+            ByteBuffer res = ByteBuffer.allocate(buffer.capacity() + extra);
+            buffer.flip();
+            res.put(buffer);
+            return res;
+        }
+
+        private void touch() {
+            if (exchange != null) {
+                deadline = System.currentTimeMillis() + exchange.request.getReadTimeoutMS();
+            }
+        }
+
+        private void complete() {
+            Exchange done = exchange;
+            ResponseParser response = parser;
+            exchange = null;
+            parser = null;
+            appOut = null;
+            if (response.keepAlive) {
+                deadline = System.currentTimeMillis() + IDLE_TIMEOUT_MS;
+                host.idle.push(this);
+            } else {
+                close();
+            }
+            notifyCompleted(done.callback, new Response(response.statusCode, new ByteArrayInputStream(response.body, 0, response.length), response.length));
+            if (response.keepAlive) {
+                loop.next(host);
+            }
+        }
+
+        private void onEOF() {
+            if (exchange != null && parser.onEOF()) {
+                ResponseParser response = parser;
+                Exchange done = exchange;
+                exchange = null;
+                close();
+                notifyCompleted(done.callback, new Response(response.statusCode, new ByteArrayInputStream(response.body, 0, response.length), response.length));
+                return;
+            }
+            fail(new EOFException("Connection closed by " + hostName), true);
+        }
+
+        /**
+         * Close the connection and report the error to the current exchange.
+         * A request on a reused connection closed by the server before any answer is sent again once,
+         * if none of its bytes were written or it is not a POST: a POST that was written may have been
+         * applied, its error is reported so HostSelector and RetryPolicy decide.
+         */
+        void fail(IOException error, boolean retryable) {
+            Exchange failed = exchange;
+            boolean retry = retryable && failed != null && !failed.retried && !parser.started()
+                    && (appOut.position() == 0 || !failed.request.getMethod().equals("POST"));
+            exchange = null;
+            close();
+            if (failed == null) {
+                return;
+            }
+            if (retry) {
+                failed.retried = true;
+                loop.dispatch(failed);
+            } else {
+                notifyFailed(failed.callback, error);
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            host.idle.remove(this);
+            --host.open;
+            --loop.openConnections;
+            loop.connections.remove(this);
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                // not fatal
+            }
+            if (exchange != null) {
+                Exchange failed = exchange;
+                exchange = null;
+                notifyFailed(failed.callback, new ClosedChannelException());
+            }
+            loop.next(host);
+        }
+    }
+
+    /**
+     * Incremental HTTP/1.1 response parser (status line, headers, fixed, chunked or close-delimited body)
+     */
+    static final class ResponseParser {
+        private static final int STATUS = 0, HEADERS = 1, FIXED = 2, CHUNK_SIZE = 3, CHUNK_DATA = 4, CHUNK_END = 5, TRAILERS = 6, UNTIL_CLOSE = 7, DONE = 8;
+
+        private final boolean head;
+        private final StringBuilder line = new StringBuilder();
+        private int state = STATUS;
+        private long remaining;
+        private long contentLength = -1;
+        private boolean chunked;
+        private boolean received;
+        int statusCode;
+        boolean keepAlive = true;
+        byte[] body = new byte[0];
+        int length;
+
+        ResponseParser(String method) {
+            this.head = method.equals("HEAD");
+        }
+
+        boolean started() {
+            return received;
+        }
+
+        /**
+         * Consume bytes of the answer
+         *
+         * @return true once the answer is complete
+         */
+        boolean feed(ByteBuffer in) throws IOException {
+            received |= in.hasRemaining();
+            while (in.hasRemaining() && state != DONE) {
+                switch (state) {
+                case STATUS:
+                case HEADERS:
+                case CHUNK_SIZE:
+                case CHUNK_END:
+                case TRAILERS:
+                    if (readLine(in)) {
+                        onLine(line.toString());
+                        line.setLength(0);
+                    }
+                    break;
+                case FIXED:
+                case CHUNK_DATA:
+                case UNTIL_CLOSE:
+                    int n = (int) Math.min(in.remaining(), state == UNTIL_CLOSE ? Integer.MAX_VALUE : remaining);
+                    append(in, n);
+                    remaining -= n;
+                    if (remaining == 0 && state == FIXED) {
+                        state = DONE;
+                    } else if (remaining == 0 && state == CHUNK_DATA) {
+                        state = CHUNK_END;
+                    }
+                    break;
+                }
+            }
+            return state == DONE;
+        }
+
+        /**
+         * The connection was closed by the server
+         *
+         * @return true if the answer is complete
+         */
+        boolean onEOF() {
+            if (state == UNTIL_CLOSE) {
+                state = DONE;
+                keepAlive = false;
+            }
+            return state == DONE;
+        }
+
+        private boolean readLine(ByteBuffer in) throws IOException {
+            while (in.hasRemaining()) {
+                char c = (char) (in.get() & 0xff);
+                if (c == '\n') {
+                    int l = line.length();
+                    if (l > 0 && line.charAt(l - 1) == '\r') {
+                        line.setLength(l - 1);
+                    }
+                    return true;
+                }
+                if (line.length() > 65536) {
+                    throw new IOException("HTTP line too long");
+                }
+                line.append(c);
+            }
+            return false;
+        }
+
+        private void onLine(String text) throws IOException {
+            switch (state) {
+            case STATUS:
+                String[] parts = text.split(" ", 3);
+                if (parts.length < 2 || !parts[0].startsWith("HTTP/")) {
+                    throw new IOException("Invalid HTTP status line: " + text);
+                }
+                try {
+                    statusCode = Integer.parseInt(parts[1]);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid HTTP status line: " + text);
+                }
+                keepAlive = !parts[0].equals("HTTP/1.0");
+                state = HEADERS;
+                break;
+            case HEADERS:
+                if (text.length() == 0) {
+                    startBody();
+                    break;
+                }
+                int colon = text.indexOf(':');
+                if (colon <= 0) {
+                    break;
+                }
+                String name = text.substring(0, colon).trim();
+                String value = text.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length")) {
+                    try {
+                        contentLength = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Invalid Content-Length: " + value);
+                    }
+                } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                    chunked = value.toLowerCase().contains("chunked");
+                } else if (name.equalsIgnoreCase("Connection")) {
+                    if (value.equalsIgnoreCase("close")) {
+                        keepAlive = false;
+                    } else if (value.equalsIgnoreCase("keep-alive")) {
+                        keepAlive = true;
+                    }
+                }
+                break;
+            case CHUNK_SIZE:
+                int end = text.indexOf(';');
+                try {
+                    remaining = Long.parseLong((end >= 0 ? text.substring(0, end) : text).trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid chunk size: " + text);
+                }
+                state = remaining == 0 ? TRAILERS : CHUNK_DATA;
+                break;
+            case CHUNK_END:
+                state = CHUNK_SIZE;
+                break;
+            case TRAILERS:
+                if (text.length() == 0) {
+                    state = DONE;
+                }
+                break;
+            }
+        }
+
+        private void startBody() {
+            if (statusCode / 100 == 1) {
+                // informational answer, the real one follows
+                state = STATUS;
+                contentLength = -1;
+                chunked = false;
+                return;
+            }
+            if (head || statusCode == 204 || statusCode == 304) {
+                state = DONE;
+            } else if (chunked) {
+                state = CHUNK_SIZE;
+            } else if (contentLength >= 0) {
+                body = new byte[(int) contentLength];
+                remaining = contentLength;
+                state = contentLength == 0 ? DONE : FIXED;
+            } else {
+                keepAlive = false;
+                state = UNTIL_CLOSE;
+            }
+        }
+
+        private void append(ByteBuffer in, int n) {
+            if (length + n > body.length) {
+                byte[] larger = new byte[Math.max(length + n, body.length * 2)];
+                System.arraycopy(body, 0, larger, 0, length);
+                body = larger;
+            }
+            in.get(body, length, n);
+            length += n;
+        }
+    }
+}
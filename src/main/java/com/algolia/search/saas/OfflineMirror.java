@@ -0,0 +1,433 @@
+package com.algolia.search.saas;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.algolia.search.saas.Query.QueryType;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * Local copy of an index used when the hosts are unreachable.
+ * The mirror is populated with browse, persisted in a compact file and searched with an in-memory inverted index.
+ * Supported query parameters: query (prefix matching), page, hitsPerPage, attributesToRetrieve, tagFilters and numericFilters.
+ * You should use Index.createOfflineMirror(file) to retrieve this object
+ */
+public class OfflineMirror {
+    private static final int MAGIC = 0x414c474d; // "ALGM"
+    private static final int FORMAT_VERSION = 1;
+    // maximum expansion of deflate, bounds the content of a file of a given size
+    private static final long MAX_GZIP_RATIO = 1032;
+
+    private final Index index;
+    private final File file;
+    private volatile Snapshot snapshot;
+
+    /**
+     * Mirror initialization (You should not call this initialized yourself)
+     */
+    OfflineMirror(Index index, File file) {
+        this.index = index;
+        this.file = file;
+    }
+
+    /**
+     * Download all index content with browse, rebuild the local index and persist it on disk
+     *
+     * @param params the browse parameters (for example to restrict the attributes to retrieve)
+     */
+    public void sync(Query params) throws AlgoliaException {
+        List<JSONObject> records = new ArrayList<JSONObject>();
+        try {
+            Iterator<JSONObject> it = index.browse(params);
+            while (it.hasNext()) {
+                records.add(it.next());
+            }
+        } catch (IllegalArgumentException e) {
+            if (e.getCause() instanceof AlgoliaException) {
+                throw (AlgoliaException) e.getCause();
+            }
+            throw e;
+        }
+        snapshot = new Snapshot(records.toArray(new JSONObject[records.size()]));
+        try {
+            save();
+        } catch (IOException e) {
+            throw new AlgoliaException("Cannot write offline mirror: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Download all index content with browse, rebuild the local index and persist it on disk
+     */
+    public void sync() throws AlgoliaException {
+        sync(new Query());
+    }
+
+    /**
+     * Load the mirror previously persisted on disk
+     *
+     * @return false if there is no persisted mirror
+     */
+    public boolean load() throws IOException {
+        if (!file.exists()) {
+            return false;
+        }
+        // opened on its own: the GZIPInputStream constructor reads the header and fails on a truncated file
+        FileInputStream fileIn = new FileInputStream(file);
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(fileIn)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+                    return false;
+                }
+                // sizes are checked before allocating: a corrupted file must not exhaust the memory
+                long maxLength = file.length() * MAX_GZIP_RATIO;
+                int count = in.readInt();
+                if (count < 0 || count * 4L > maxLength) {
+                    throw new IOException("Corrupted offline mirror: invalid record count " + count);
+                }
+                JSONObject[] records = new JSONObject[count];
+                byte[] buf = new byte[4096];
+                for (int i = 0; i < count; ++i) {
+                    int len = in.readInt();
+                    if (len < 0 || len > maxLength) {
+                        throw new IOException("Corrupted offline mirror: invalid record length " + len);
+                    }
+                    if (len > buf.length) {
+                        buf = new byte[Math.max(len, buf.length * 2)];
+                    }
+                    in.readFully(buf, 0, len);
+                    records[i] = new JSONObject(new String(buf, 0, len, "UTF-8"));
+                }
+                snapshot = new Snapshot(records);
+                return true;
+            } catch (JSONException e) {
+                throw new IOException("Corrupted offline mirror: " + e.getMessage());
+            } finally {
+                in.close();
+            }
+        } finally {
+            fileIn.close();
+        }
+    }
+
+    private void save() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOut = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(fileOut)));
+            try {
+                JSONObject[] records = snapshot.records;
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(records.length);
+                for (JSONObject record : records) {
+                    byte[] bytes = record.toString().getBytes("UTF-8");
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            fileOut.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Cannot rename " + tmp + " to " + file);
+            }
+        }
+    }
+
+    /**
+     * @return true if the mirror contains data (loaded or synchronized)
+     */
+    public boolean isReady() {
+        return snapshot != null;
+    }
+
+    /**
+     * Number of records in the mirror
+     */
+    public int size() {
+        Snapshot s = snapshot;
+        return s == null ? 0 : s.records.length;
+    }
+
+    /**
+     * Search inside the local mirror, the answer has the same format as Index.search
+     * with an additional "offline" attribute set to true
+     */
+    public JSONObject search(Query query) throws AlgoliaException {
+        long start = System.nanoTime();
+        Snapshot s = snapshot;
+        if (s == null) {
+            throw new AlgoliaException("Offline mirror is not ready");
+        }
+        int[] matches = s.match(query);
+        int hitsPerPage = query.getHitsPerPage() > 0 ? query.getHitsPerPage() : 20;
+        int page = Math.max(0, query.getPage());
+        try {
+            JSONArray hits = new JSONArray();
+            for (int i = page * hitsPerPage; i < matches.length && i < (page + 1) * hitsPerPage; ++i) {
+                hits.put(retrieveAttributes(s.records[matches[i]], query.getAttributes()));
+            }
+            JSONObject answer = new JSONObject();
+            answer.put("hits", hits);
+            answer.put("nbHits", matches.length);
+            answer.put("page", page);
+            answer.put("nbPages", (matches.length + hitsPerPage - 1) / hitsPerPage);
+            answer.put("hitsPerPage", hitsPerPage);
+            answer.put("processingTimeMS", (System.nanoTime() - start) / 1000000);
+            answer.put("query", query.getQuery() != null ? query.getQuery() : "");
+            answer.put("params", query.getQueryString());
+            answer.put("offline", true);
+            return answer;
+        } catch (JSONException e) {
+            throw new AlgoliaException(e.getMessage());
+        }
+    }
+
+    /**
+     * Create a facet counting engine working on the current content of the mirror
+     */
+    public LocalFacetEngine createFacetEngine() throws AlgoliaException {
+        Snapshot s = snapshot;
+        if (s == null) {
+            throw new AlgoliaException("Offline mirror is not ready");
+        }
+        return new LocalFacetEngine(s);
+    }
+
+    /**
+     * @return a copy of the record (the hits may be modified by the caller), restricted to the attributes
+     */
+    private static JSONObject retrieveAttributes(JSONObject record, List<String> attributes) throws JSONException {
+        record = new JSONObject(record.toString());
+        if (attributes == null || attributes.contains("*")) {
+            return record;
+        }
+        JSONObject res = new JSONObject();
+        for (String attr : attributes) {
+            Object value = record.opt(attr);
+            if (value != null) {
+                res.put(attr, value);
+            }
+        }
+        if (record.has("objectID")) {
+            res.put("objectID", record.get("objectID"));
+        }
+        return res;
+    }
+
+    /**
+     * Lowercase and remove diacritics
+     */
+    static String normalize(String text) {
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        StringBuilder builder = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); ++i) {
+            char c = decomposed.charAt(i);
+            if (Character.getType(c) != Character.NON_SPACING_MARK) {
+                builder.append(c);
+            }
+        }
+        return builder.toString().toLowerCase(Locale.ENGLISH);
+    }
+
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<String>();
+        if (text == null) {
+            return tokens;
+        }
+        String normalized = normalize(text);
+        int start = -1;
+        for (int i = 0; i <= normalized.length(); ++i) {
+            boolean letter = i < normalized.length() && Character.isLetterOrDigit(normalized.charAt(i));
+            if (letter && start < 0) {
+                start = i;
+            } else if (!letter && start >= 0) {
+                tokens.add(normalized.substring(start, i));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Immutable records + inverted index, swapped atomically on sync/load
+     */
+    static class Snapshot {
+        final JSONObject[] records;
+        final String[] terms;
+        final int[][] postings;
+
+        Snapshot(JSONObject[] records) {
+            this.records = records;
+            Map<String, int[]> index = new HashMap<String, int[]>();
+            for (int i = 0; i < records.length; ++i) {
+                indexValue(index, records[i], i);
+            }
+            terms = index.keySet().toArray(new String[index.size()]);
+            Arrays.sort(terms);
+            postings = new int[terms.length][];
+            for (int t = 0; t < terms.length; ++t) {
+                int[] list = index.get(terms[t]);
+                postings[t] = Arrays.copyOfRange(list, 1, list[0] + 1);
+            }
+        }
+
+        private static void indexValue(Map<String, int[]> index, Object value, int recordID) {
+            if (value instanceof JSONObject) {
+                JSONObject obj = (JSONObject) value;
+                Iterator<?> keys = obj.keys();
+                while (keys.hasNext()) {
+                    indexValue(index, obj.opt((String) keys.next()), recordID);
+                }
+            } else if (value instanceof JSONArray) {
+                JSONArray array = (JSONArray) value;
+                for (int i = 0; i < array.length(); ++i) {
+                    indexValue(index, array.opt(i), recordID);
+                }
+            } else if (value instanceof String || value instanceof Number) {
+                for (String token : tokenize(value.toString())) {
+                    // list[0] is the size, record ids are appended in increasing order
+                    int[] list = index.get(token);
+                    if (list == null) {
+                        list = new int[4];
+                        index.put(token, list);
+                    }
+                    if (list[0] > 0 && list[list[0]] == recordID) {
+                        continue;
+                    }
+                    if (list[0] + 1 == list.length) {
+                        list = Arrays.copyOf(list, list.length * 2);
+                        index.put(token, list);
+                    }
+                    list[++list[0]] = recordID;
+                }
+            }
+        }
+
+        int[] match(Query query) throws AlgoliaException {
+            List<String> words = tokenize(query.getQuery());
+            int[] candidates = null;
+            for (int w = 0; w < words.size(); ++w) {
+                boolean prefix = query.getQueryType() == QueryType.PREFIX_ALL ||
+                                 (query.getQueryType() == QueryType.PREFIX_LAST && w == words.size() - 1);
+                int[] wordMatches = lookup(words.get(w), prefix);
+                candidates = (candidates == null) ? wordMatches : intersect(candidates, wordMatches);
+                if (candidates.length == 0) {
+                    return candidates;
+                }
+            }
+            LocalFilters filters = new LocalFilters(query);
+            if (candidates == null) {
+                candidates = new int[records.length];
+                for (int i = 0; i < candidates.length; ++i) {
+                    candidates[i] = i;
+                }
+            }
+            if (filters.isEmpty()) {
+                return candidates;
+            }
+            int n = 0;
+            int[] res = new int[candidates.length];
+            for (int id : candidates) {
+                if (filters.matches(records[id])) {
+                    res[n++] = id;
+                }
+            }
+            return Arrays.copyOf(res, n);
+        }
+
+        private int[] lookup(String word, boolean prefix) {
+            int pos = Arrays.binarySearch(terms, word);
+            if (!prefix) {
+                return pos >= 0 ? postings[pos] : new int[0];
+            }
+            int first = pos >= 0 ? pos : -pos - 1;
+            int last = first;
+            while (last < terms.length && terms[last].startsWith(word)) {
+                ++last;
+            }
+            if (last - first == 1) {
+                return postings[first];
+            }
+            // a short prefix can match many terms: mark the records rather than merging the lists pairwise
+            BitSet matched = new BitSet(records.length);
+            for (int t = first; t < last; ++t) {
+                for (int id : postings[t]) {
+                    matched.set(id);
+                }
+            }
+            int[] res = new int[matched.cardinality()];
+            int n = 0;
+            for (int id = matched.nextSetBit(0); id >= 0; id = matched.nextSetBit(id + 1)) {
+                res[n++] = id;
+            }
+            return res;
+        }
+
+        private static int[] intersect(int[] a, int[] b) {
+            int[] res = new int[Math.min(a.length, b.length)];
+            int i = 0, j = 0, n = 0;
+            while (i < a.length && j < b.length) {
+                if (a[i] < b[j]) {
+                    ++i;
+                } else if (a[i] > b[j]) {
+                    ++j;
+                } else {
+                    res[n++] = a[i];
+                    ++i;
+                    ++j;
+                }
+            }
+            return Arrays.copyOf(res, n);
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package com.algolia.search.saas;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * Client-side write buffer merging partial updates per objectID.
+ * Updates added during the flush interval are sent as one partialUpdateObject batch.
+ * You should use Index.createPartialUpdateBuffer() to retrieve this object
+ */
+public class PartialUpdateBuffer {
+    private final Index index;
+    private final long flushIntervalMS;
+    private final int maxPendingObjects;
+    private final IndexListener listener;
+    private final ScheduledThreadPoolExecutor scheduler;
+    // guarded by this: batches closed by a conflicting update, to send in order before the pending one
+    private final LinkedList<List<JSONObject>> sealed = new LinkedList<List<JSONObject>>();
+    private LinkedHashMap<String, JSONObject> pending = new LinkedHashMap<String, JSONObject>();
+    private ScheduledFuture<?> scheduledFlush;
+    private boolean closed;
+    // held while sending, so that the batches of an objectID are sent one at a time and in order
+    private final Object sendLock = new Object();
+
+    /**
+     * Buffer initialization (You should not call this initialized yourself)
+     */
+    PartialUpdateBuffer(Index index, long flushIntervalMS, int maxPendingObjects, IndexListener listener) {
+        if (flushIntervalMS < 0) {
+            throw new IllegalArgumentException("flushIntervalMS must be positive");
+        }
+        if (maxPendingObjects <= 0) {
+            throw new IllegalArgumentException("maxPendingObjects must be strictly positive");
+        }
+        this.index = index;
+        this.flushIntervalMS = flushIntervalMS;
+        this.maxPendingObjects = maxPendingObjects;
+        this.listener = listener;
+        this.scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "AlgoliaPartialUpdateBuffer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Add a partial update to the buffer (only update attributes passed in argument)
+     * If an update is already pending for this objectID, both are merged: the last value
+     * of an attribute wins, except for Increment/Decrement operations that are summed.
+     * An operation that cannot be merged with the pending value of its attribute (e.g. an Increment
+     * after a plain value, or two Add operations) flushes the pending updates first.
+     *
+     * @param partialObject the object attributes to override
+     * @param objectID the unique identifier of the object to update
+     */
+    public void add(JSONObject partialObject, String objectID) throws AlgoliaException {
+        if (objectID == null || objectID.length() == 0) {
+            throw new AlgoliaException("Invalid objectID");
+        }
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("Buffer is closed");
+            }
+            JSONObject merged = pending.get(objectID);
+            boolean flushNow = false;
+            try {
+                if (merged != null && conflicts(merged, partialObject)) {
+                    sealed.add(takePending());
+                    merged = null;
+                    flushNow = true;
+                }
+                if (merged == null) {
+                    merged = new JSONObject().put("objectID", objectID);
+                    pending.put(objectID, merged);
+                }
+                merge(merged, partialObject);
+            } catch (JSONException e) {
+                throw new AlgoliaException(e.getMessage());
+            }
+            // scheduled under the lock so that close() cannot shut the scheduler down in between
+            if (flushNow || pending.size() >= maxPendingObjects) {
+                scheduler.execute(flushTask);
+            } else if (scheduledFlush == null) {
+                scheduledFlush = scheduler.schedule(flushTask, flushIntervalMS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Number of objects waiting to be sent
+     */
+    public synchronized int getPendingCount() {
+        int count = pending.size();
+        for (List<JSONObject> batch : sealed) {
+            count += batch.size();
+        }
+        return count;
+    }
+
+    /**
+     * Send all pending updates now, as a single batch unless a conflicting update closed a batch
+     *
+     * @return the answer of the last batch or null if there was nothing to send
+     */
+    public JSONObject flush() throws AlgoliaException {
+        synchronized (sendLock) {
+            JSONObject res = null;
+            List<JSONObject> objects;
+            while ((objects = nextBatch()) != null) {
+                res = index.partialUpdateObjects(objects);
+            }
+            return res;
+        }
+    }
+
+    /**
+     * Flush pending updates and release the background thread
+     */
+    public JSONObject close() throws AlgoliaException {
+        synchronized (this) {
+            closed = true;
+        }
+        scheduler.shutdown();
+        return flush();
+    }
+
+    /**
+     * @return the next batch to send, null if there is nothing to send
+     */
+    private synchronized List<JSONObject> nextBatch() {
+        if (!sealed.isEmpty()) {
+            return sealed.removeFirst();
+        }
+        List<JSONObject> objects = takePending();
+        return objects.isEmpty() ? null : objects;
+    }
+
+    private synchronized List<JSONObject> takePending() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        List<JSONObject> objects = new ArrayList<JSONObject>(pending.values());
+        pending = new LinkedHashMap<String, JSONObject>();
+        return objects;
+    }
+
+    private final Runnable flushTask = new Runnable() {
+        public void run() {
+            synchronized (sendLock) {
+                List<JSONObject> objects;
+                while ((objects = nextBatch()) != null) {
+                    try {
+                        JSONObject res = index.partialUpdateObjects(objects);
+                        if (listener != null) {
+                            listener.partialUpdateObjectsResult(index, objects, res);
+                        }
+                    } catch (AlgoliaException e) {
+                        if (listener != null) {
+                            listener.partialUpdateObjectsError(index, objects, e);
+                        }
+                    }
+                }
+            }
+        }
+    };
+
+    static void merge(JSONObject merged, JSONObject partialObject) throws JSONException {
+        Iterator<?> keys = partialObject.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            if (key.equals("objectID")) {
+                continue;
+            }
+            Object value = partialObject.get(key);
+            Object previous = merged.opt(key);
+            Object sum = (previous == null) ? null : sumOperations(previous, value);
+            merged.put(key, sum != null ? sum : value);
+        }
+    }
+
+    /**
+     * @return true if an operation of the partial object cannot be merged with the pending value of its attribute
+     */
+    static boolean conflicts(JSONObject merged, JSONObject partialObject) throws JSONException {
+        Iterator<?> keys = partialObject.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            Object value = partialObject.get(key);
+            Object previous = merged.opt(key);
+            if (previous != null && !key.equals("objectID") && value instanceof JSONObject
+                    && ((JSONObject) value).has("_operation") && sumOperations(previous, value) == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Combine two Increment/Decrement operations, return null if they cannot be combined
+     */
+    private static Object sumOperations(Object previous, Object value) throws JSONException {
+        if (!(previous instanceof JSONObject) || !(value instanceof JSONObject)) {
+            return null;
+        }
+        Number a = signedOperand((JSONObject) previous);
+        Number b = signedOperand((JSONObject) value);
+        if (a == null || b == null) {
+            return null;
+        }
+        JSONObject res = new JSONObject().put("_operation", "Increment");
+        if (isIntegral(a) && isIntegral(b)) {
+            res.put("value", a.longValue() + b.longValue());
+        } else {
+            res.put("value", a.doubleValue() + b.doubleValue());
+        }
+        return res;
+    }
+
+    private static Number signedOperand(JSONObject operation) {
+        String op = operation.optString("_operation");
+        Object value = operation.opt("value");
+        if (!(value instanceof Number)) {
+            return null;
+        }
+        Number n = (Number) value;
+        if (op.equals("Increment")) {
+            return n;
+        } else if (op.equals("Decrement")) {
+            return isIntegral(n) ? (Number) Long.valueOf(-n.longValue()) : (Number) Double.valueOf(-n.doubleValue());
+        }
+        return null;
+    }
+
+    private static boolean isIntegral(Number n) {
+        return n instanceof Integer || n instanceof Long || n instanceof Short || n instanceof Byte;
+    }
+}
@@ -0,0 +1,253 @@
+package com.algolia.search.saas;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+
+/**
+ * Shares the connections of the transport between priority classes, so that interactive searches
+ * are not stuck behind bulk uploads or browse exports:
+ * - at most maxInFlight calls are sent in parallel, each class being bounded by its own quota
+ * - the normal and background quotas together stay below maxInFlight, so that some connections
+ *   are always left to interactive calls
+ * - when a connection is free, the queued calls are served by priority: interactive, then
+ *   normal, then background, in FIFO order within a class
+ * By default searches are interactive, browse and batch calls are background, the other calls are
+ * normal. RequestOptions.setPriority() overrides it for a call.
+ */
+public class PriorityScheduler {
+    public enum Priority {
+        INTERACTIVE, NORMAL, BACKGROUND
+    }
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    /**
+     * A call waiting for a connection, granted by dispatch()
+     */
+    private static class Waiter {
+        final Priority priority;
+        final Runnable granted;
+        final long queuedAt = System.currentTimeMillis();
+        boolean isGranted;
+
+        Waiter(Priority priority, Runnable granted) {
+            this.priority = priority;
+            this.granted = granted;
+        }
+    }
+
+    private final int maxInFlight;
+    private final int[] quotas = new int[PRIORITIES.length];
+    // guarded by this
+    private final List<LinkedList<Waiter>> queues = new ArrayList<LinkedList<Waiter>>();
+    private final int[] inFlight = new int[PRIORITIES.length];
+    private int totalInFlight;
+    private final long[] granted = new long[PRIORITIES.length];
+    private final long[] delayed = new long[PRIORITIES.length];
+    private final long[] totalWaitMS = new long[PRIORITIES.length];
+
+    /**
+     * 16 calls in parallel (the connections to a host of the default transport), at most 10 normal
+     * and 4 background ones, leaving at least 2 connections to interactive calls
+     */
+    public PriorityScheduler() {
+        this(16, 10, 4);
+    }
+
+    /**
+     * @param maxInFlight maximum number of calls in parallel, all available to interactive calls
+     * @param normalQuota maximum number of normal calls in parallel
+     * @param backgroundQuota maximum number of background calls in parallel
+     * @throws IllegalArgumentException if normalQuota + backgroundQuota does not leave a connection
+     * to interactive calls
+     */
+    public PriorityScheduler(int maxInFlight, int normalQuota, int backgroundQuota) {
+        if (backgroundQuota < 1 || normalQuota < 1 || normalQuota + backgroundQuota >= maxInFlight) {
+            throw new IllegalArgumentException("quotas must be strictly positive and their sum lower than maxInFlight");
+        }
+        this.maxInFlight = maxInFlight;
+        quotas[Priority.INTERACTIVE.ordinal()] = maxInFlight;
+        quotas[Priority.NORMAL.ordinal()] = normalQuota;
+        quotas[Priority.BACKGROUND.ordinal()] = backgroundQuota;
+        for (int i = 0; i < PRIORITIES.length; ++i) {
+            queues.add(new LinkedList<Waiter>());
+        }
+    }
+
+    /**
+     * Wait for a connection
+     *
+     * @param deadline time after which to give up
+     * @param token token cancelling the wait, null if none
+     * @return false if the deadline passed or the token was cancelled before a connection was free
+     */
+    boolean acquire(Priority priority, long deadline, CancellationToken token) throws InterruptedException {
+        Waiter waiter = new Waiter(priority, null);
+        List<Waiter> others;
+        synchronized (this) {
+            queues.get(priority.ordinal()).add(waiter);
+            others = dispatch();
+            if (!waiter.isGranted) {
+                ++delayed[priority.ordinal()];
+            }
+        }
+        run(others, waiter);
+        synchronized (this) {
+            while (!waiter.isGranted) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0 || (token != null && token.isCancelled())) {
+                    queues.get(priority.ordinal()).remove(waiter);
+                    return false;
+                }
+                try {
+                    // woken up by releases, the token is checked periodically
+                    wait(Math.min(left, 100));
+                } catch (InterruptedException e) {
+                    if (!waiter.isGranted) {
+                        queues.get(priority.ordinal()).remove(waiter);
+                        throw e;
+                    }
+                    // the connection is taken, the caller sees the interruption later
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Take a connection without blocking
+     *
+     * @param granted run once a connection is taken for the caller, if it is not free now
+     * @return true if a connection was taken now, false if the call is queued
+     */
+    boolean acquireAsync(Priority priority, Runnable granted) {
+        Waiter waiter = new Waiter(priority, granted);
+        List<Waiter> others;
+        synchronized (this) {
+            queues.get(priority.ordinal()).add(waiter);
+            others = dispatch();
+            if (!waiter.isGranted) {
+                ++delayed[priority.ordinal()];
+            }
+        }
+        run(others, waiter);
+        return waiter.isGranted;
+    }
+
+    /**
+     * Give back the connection of a call
+     */
+    void release(Priority priority) {
+        List<Waiter> next;
+        synchronized (this) {
+            --inFlight[priority.ordinal()];
+            --totalInFlight;
+            next = dispatch();
+            notifyAll();
+        }
+        run(next, null);
+    }
+
+    /**
+     * Grant the free connections to the queued calls, by priority
+     *
+     * @return the calls granted
+     */
+    private List<Waiter> dispatch() {
+        List<Waiter> dispatched = new ArrayList<Waiter>();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < PRIORITIES.length && totalInFlight < maxInFlight; ++i) {
+            LinkedList<Waiter> queue = queues.get(i);
+            while (!queue.isEmpty() && totalInFlight < maxInFlight && inFlight[i] < quotas[i]) {
+                Waiter waiter = queue.removeFirst();
+                waiter.isGranted = true;
+                ++inFlight[i];
+                ++totalInFlight;
+                ++granted[i];
+                totalWaitMS[i] += now - waiter.queuedAt;
+                dispatched.add(waiter);
+            }
+        }
+        if (!dispatched.isEmpty()) {
+            notifyAll();
+        }
+        return dispatched;
+    }
+
+    /**
+     * Notify the asynchronous calls granted, outside of the lock
+     */
+    private static void run(List<Waiter> dispatched, Waiter self) {
+        for (Waiter waiter : dispatched) {
+            if (waiter != self && waiter.granted != null) {
+                waiter.granted.run();
+            }
+        }
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public int getQuota(Priority priority) {
+        return quotas[priority.ordinal()];
+    }
+
+    public synchronized int getInFlight(Priority priority) {
+        return inFlight[priority.ordinal()];
+    }
+
+    /**
+     * Number of calls waiting for a connection
+     */
+    public synchronized int getQueued(Priority priority) {
+        return queues.get(priority.ordinal()).size();
+    }
+
+    /**
+     * Number of calls that got a connection
+     */
+    public synchronized long getGranted(Priority priority) {
+        return granted[priority.ordinal()];
+    }
+
+    /**
+     * Number of calls that had to wait for a connection
+     */
+    public synchronized long getDelayed(Priority priority) {
+        return delayed[priority.ordinal()];
+    }
+
+    /**
+     * Total time spent by the calls waiting for a connection
+     */
+    public synchronized long getTotalWaitMS(Priority priority) {
+        return totalWaitMS[priority.ordinal()];
+    }
+}
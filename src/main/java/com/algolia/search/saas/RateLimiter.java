@@ -0,0 +1,263 @@
+package com.algolia.search.saas;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.algolia.search.saas.CircuitBreaker.EndpointClass;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+/**
+ * Client-side rate limits, so that an application paces its requests before the server rejects
+ * them (e.g. the maxQueriesPerIPPerHour of its API key). Each limit is a token bucket holding up
+ * to permits tokens, refilled at permits per periodMS, applied to the calls of one index and/or
+ * one endpoint class (or all of them). A call takes one token of every matching limit before
+ * its first host is tried; failovers to the next hosts do not take more.
+ * When a bucket is empty, a QUEUE limit delays the call until a token is available (at most
+ * maxWaitMS and never past the deadline of the call), a SHED limit fails it immediately with
+ * "Rate limit exceeded". For example, to stay under the maxQueriesPerIPPerHour of the API key:
+ * addLimit(null, EndpointClass.READ, maxQueriesPerIPPerHour, 3600000, Overflow.SHED, 0).
+ */
+public class RateLimiter {
+    public static enum Overflow {
+        QUEUE, SHED
+    }
+
+    private final List<Limit> limits = new ArrayList<Limit>();
+
+    /**
+     * Limit the calls of an index and/or an endpoint class
+     *
+     * @param indexName name of the index, null for all the calls (multipleQueries and batches on
+     *        several indexes only match limits without index name)
+     * @param endpoint class of the calls, null for both
+     * @param permits number of calls per period, also the maximum burst
+     * @param periodMS duration of the period
+     * @param overflow what to do with calls exceeding the limit
+     * @param maxWaitMS maximum delay of a queued call
+     */
+    public synchronized RateLimiter addLimit(String indexName, EndpointClass endpoint, int permits, long periodMS,
+            Overflow overflow, long maxWaitMS) {
+        if (permits <= 0 || periodMS <= 0) {
+            throw new IllegalArgumentException("permits and periodMS must be strictly positive");
+        }
+        limits.add(new Limit(indexName, endpoint, permits, periodMS, overflow, maxWaitMS));
+        return this;
+    }
+
+    /**
+     * Counters of one limit
+     */
+    public static final class LimitStats {
+        private final String indexName;
+        private final EndpointClass endpoint;
+        private final int permits;
+        private final long periodMS;
+        private final double available;
+        private final long acquired;
+        private final long queued;
+        private final long shed;
+        private final long totalWaitMS;
+        private final long maxWaitMS;
+
+        LimitStats(Limit limit) {
+            this.indexName = limit.indexName;
+            this.endpoint = limit.endpoint;
+            this.permits = limit.permits;
+            this.periodMS = limit.periodMS;
+            this.available = limit.tokens;
+            this.acquired = limit.acquired;
+            this.queued = limit.queued;
+            this.shed = limit.shed;
+            this.totalWaitMS = limit.totalWaitMS;
+            this.maxWaitMS = limit.longestWaitMS;
+        }
+
+        /**
+         * Name of the index limited, null for all
+         */
+        public String getIndexName() {
+            return indexName;
+        }
+
+        /**
+         * Class of the calls limited, null for both
+         */
+        public EndpointClass getEndpointClass() {
+            return endpoint;
+        }
+
+        public int getPermits() {
+            return permits;
+        }
+
+        public long getPeriodMS() {
+            return periodMS;
+        }
+
+        /**
+         * Tokens in the bucket when the stats were taken, negative when calls are queued
+         */
+        public double getAvailable() {
+            return available;
+        }
+
+        /**
+         * Number of calls allowed, queued ones included
+         */
+        public long getAcquired() {
+            return acquired;
+        }
+
+        /**
+         * Number of calls delayed
+         */
+        public long getQueued() {
+            return queued;
+        }
+
+        /**
+         * Number of calls rejected
+         */
+        public long getShed() {
+            return shed;
+        }
+
+        /**
+         * Sum of the delays of the queued calls
+         */
+        public long getTotalWaitMS() {
+            return totalWaitMS;
+        }
+
+        /**
+         * Longest delay of a queued call
+         */
+        public long getMaxWaitMS() {
+            return maxWaitMS;
+        }
+
+        @Override
+        public String toString() {
+            return (indexName != null ? indexName : "*") + " " + (endpoint != null ? endpoint : "ALL") + " " + permits + "/"
+                    + periodMS + "ms acquired=" + acquired + " queued=" + queued + " shed=" + shed + " totalWaitMS=" + totalWaitMS
+                    + " maxWaitMS=" + maxWaitMS;
+        }
+    }
+
+    /**
+     * One token bucket, guarded by the limiter
+     */
+    private static final class Limit {
+        final String indexName;
+        final EndpointClass endpoint;
+        final int permits;
+        final long periodMS;
+        final Overflow overflow;
+        final long maxWaitMS;
+        double tokens;
+        long refilledAt = System.currentTimeMillis();
+        long acquired;
+        long queued;
+        long shed;
+        long totalWaitMS;
+        long longestWaitMS;
+
+        Limit(String indexName, EndpointClass endpoint, int permits, long periodMS, Overflow overflow, long maxWaitMS) {
+            this.indexName = indexName;
+            this.endpoint = endpoint;
+            this.permits = permits;
+            this.periodMS = periodMS;
+            this.overflow = overflow;
+            this.maxWaitMS = maxWaitMS;
+            this.tokens = permits;
+        }
+
+        boolean matches(String index, EndpointClass endpointClass) {
+            return (indexName == null || indexName.equals(index)) && (endpoint == null || endpoint == endpointClass);
+        }
+
+        void refill(long now) {
+            tokens = Math.min(permits, tokens + (double) (now - refilledAt) * permits / periodMS);
+            refilledAt = now;
+        }
+
+        /**
+         * @return the delay until a token is available
+         */
+        long waitMS() {
+            return tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) * periodMS / permits);
+        }
+    }
+
+    /**
+     * Take a token of each limit matching the call. Tokens are reserved ahead when the call is queued.
+     *
+     * @param index name of the index of the call, null or "*" if none or several
+     * @param maxDelayMS time left before the deadline of the call
+     * @return the delay to wait before sending the call, -1 if it must be rejected (no token is taken)
+     */
+    synchronized long acquire(String index, EndpointClass endpoint, long maxDelayMS) {
+        if (limits.isEmpty()) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        long delay = 0;
+        List<Limit> matching = new ArrayList<Limit>();
+        for (Limit limit : limits) {
+            if (!limit.matches(index, endpoint)) {
+                continue;
+            }
+            limit.refill(now);
+            long wait = limit.waitMS();
+            if (wait > 0 && (limit.overflow == Overflow.SHED || wait > Math.min(limit.maxWaitMS, maxDelayMS))) {
+                ++limit.shed;
+                return -1;
+            }
+            delay = Math.max(delay, wait);
+            matching.add(limit);
+        }
+        for (Limit limit : matching) {
+            limit.tokens -= 1;
+            ++limit.acquired;
+            if (delay > 0) {
+                ++limit.queued;
+                limit.totalWaitMS += delay;
+                limit.longestWaitMS = Math.max(limit.longestWaitMS, delay);
+            }
+        }
+        return delay;
+    }
+
+    public synchronized List<LimitStats> getStats() {
+        long now = System.currentTimeMillis();
+        List<LimitStats> res = new ArrayList<LimitStats>();
+        for (Limit limit : limits) {
+            limit.refill(now);
+            res.add(new LimitStats(limit));
+        }
+        return res;
+    }
+}
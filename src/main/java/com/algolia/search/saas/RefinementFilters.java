@@ -0,0 +1,112 @@
+package com.algolia.search.saas;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+/**
+ * Facet filters of a refinement set, built once: one fragment per refined facet
+ * ("facet:value,..." for conjunctive facets, "(facet:value,...)" for disjunctive ones).
+ * The filters of the hits query and the "all but one facet" filters of the disjunctive
+ * count queries are joins of these fragments.
+ */
+final class RefinementFilters {
+    private final TreeMap<String, String> fragments = new TreeMap<String, String>();
+    private final TreeMap<String, List<String>> values = new TreeMap<String, List<String>>();
+    private final String all;
+
+    RefinementFilters(Map<String, List<String>> refinements, Collection<String> disjunctiveFacets) {
+        if (refinements != null) {
+            for (Map.Entry<String, List<String>> elt : refinements.entrySet()) {
+                if (elt.getValue() == null || elt.getValue().isEmpty()) {
+                    continue;
+                }
+                boolean disjunctive = disjunctiveFacets.contains(elt.getKey());
+                StringBuilder fragment = new StringBuilder();
+                if (disjunctive) {
+                    fragment.append('(');
+                }
+                boolean first = true;
+                for (String val : elt.getValue()) {
+                    if (!first) {
+                        fragment.append(',');
+                    }
+                    first = false;
+                    fragment.append(elt.getKey()).append(':').append(val);
+                }
+                if (disjunctive) {
+                    fragment.append(')');
+                }
+                fragments.put(elt.getKey(), fragment.toString());
+                values.put(elt.getKey(), elt.getValue());
+            }
+        }
+        all = join(null);
+    }
+
+    /**
+     * Filters of the hits query: every refinement
+     */
+    String all() {
+        return all;
+    }
+
+    /**
+     * Filters of the count query of a disjunctive facet: every refinement but the ones of this facet
+     */
+    String allBut(String facet) {
+        return fragments.containsKey(facet) ? join(facet) : all;
+    }
+
+    /**
+     * Fragment of one facet, null if it is not refined
+     */
+    String fragment(String facet) {
+        return fragments.get(facet);
+    }
+
+    List<String> values(String facet) {
+        List<String> res = values.get(facet);
+        return res == null ? Collections.<String>emptyList() : res;
+    }
+
+    private String join(String excluded) {
+        StringBuilder filters = new StringBuilder();
+        for (Map.Entry<String, String> elt : fragments.entrySet()) {
+            if (elt.getKey().equals(excluded)) {
+                continue;
+            }
+            if (filters.length() > 0) {
+                filters.append(',');
+            }
+            filters.append(elt.getValue());
+        }
+        return filters.toString();
+    }
+}
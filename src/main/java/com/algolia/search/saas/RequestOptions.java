@@ -0,0 +1,88 @@
+package com.algolia.search.saas;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+
+/**
+ * Options of one call, e.g. Index.search(Query, RequestOptions).
+ * The timeout bounds the whole call, all the hosts tried included, while the timeouts of
+ * APIClient.setTimeout() apply to each host.
+ */
+public class RequestOptions {
+    private int timeoutMS;
+    private CancellationToken cancellationToken;
+    private PriorityScheduler.Priority priority;
+
+    /**
+     * @param timeoutMS maximum duration of the call in MS, 0 for no limit other than the timeouts of the client
+     */
+    public RequestOptions setTimeout(int timeoutMS) {
+        this.timeoutMS = timeoutMS;
+        return this;
+    }
+
+    public int getTimeout() {
+        return timeoutMS;
+    }
+
+    /**
+     * @param token token cancelling the call, null if the call cannot be cancelled
+     */
+    public RequestOptions setCancellationToken(CancellationToken token) {
+        this.cancellationToken = token;
+        return this;
+    }
+
+    public CancellationToken getCancellationToken() {
+        return cancellationToken;
+    }
+
+    /**
+     * @param priority priority class of the call for the PriorityScheduler of the client, null for the
+     * default one of the call
+     */
+    public RequestOptions setPriority(PriorityScheduler.Priority priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    public PriorityScheduler.Priority getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return the time after which the call started at the given time must stop, Long.MAX_VALUE if none
+     */
+    static long deadline(RequestOptions options, long startedAt) {
+        if (options == null || options.timeoutMS <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return startedAt + options.timeoutMS;
+    }
+
+    static boolean isCancelled(RequestOptions options) {
+        return options != null && options.cancellationToken != null && options.cancellationToken.isCancelled();
+    }
+}
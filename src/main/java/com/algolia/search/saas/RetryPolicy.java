@@ -0,0 +1,168 @@
+package com.algolia.search.saas;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.Random;
+
+import javax.net.ssl.SSLHandshakeException;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+/**
+ * Retries of write requests on the next host. Reads keep failing over immediately.
+ * - Retries are paid from a budget refilled by each write request (budgetRatio tokens, up to
+ *   maxBudget), so during an incident the retries stay a fraction of the traffic instead of
+ *   multiplying it by the number of hosts.
+ * - A retry waits a random delay between 0 and baseBackoffMS * 2^(retry - 1), capped by maxBackoffMS.
+ * - Requests that are not idempotent (POST writes such as addObject, unlike saveObject with PUT)
+ *   are retried only when the host answered with a 5xx or the failure proves the request was
+ *   not sent, see isSafeToRetry().
+ */
+public class RetryPolicy {
+    private final long baseBackoffMS;
+    private final long maxBackoffMS;
+    private final double budgetRatio;
+    private final int maxBudget;
+    private final Random random = new Random();
+    // guarded by this
+    private double budget;
+    private long retries;
+    private long exhausted;
+    private long unsafe;
+
+    /**
+     * Backoff from 100ms to 2s, retries limited to 20% of the write requests with a reserve of 10
+     */
+    public RetryPolicy() {
+        this(100, 2000, 0.2, 10);
+    }
+
+    /**
+     * @param baseBackoffMS maximum delay before the first retry
+     * @param maxBackoffMS maximum delay before any retry
+     * @param budgetRatio retries allowed per write request
+     * @param maxBudget maximum number of retries saved in the budget, also its initial value
+     */
+    public RetryPolicy(long baseBackoffMS, long maxBackoffMS, double budgetRatio, int maxBudget) {
+        this.baseBackoffMS = baseBackoffMS;
+        this.maxBackoffMS = maxBackoffMS;
+        this.budgetRatio = budgetRatio;
+        this.maxBudget = maxBudget;
+        this.budget = maxBudget;
+    }
+
+    /**
+     * @return true if sending the request twice has the same effect as sending it once
+     */
+    static boolean isIdempotent(String method, boolean readOperation) {
+        return readOperation || !method.equals("POST");
+    }
+
+    /**
+     * @return true if the error proves the request did not reach the host, so that retrying
+     * a request that is not idempotent cannot apply it twice
+     */
+    protected boolean isSafeToRetry(IOException e) {
+        // the transports report connect timeouts as ConnectException, see HttpTransport.execute()
+        return e instanceof ConnectException || e instanceof UnknownHostException
+                || e instanceof NoRouteToHostException || e instanceof SSLHandshakeException;
+    }
+
+    /**
+     * A write request is sent: refill the budget
+     */
+    synchronized void onRequest() {
+        budget = Math.min(maxBudget, budget + budgetRatio);
+    }
+
+    /**
+     * @return true if the budget allows one more retry, which is then paid
+     */
+    synchronized boolean acquireRetry() {
+        if (budget < 1) {
+            ++exhausted;
+            return false;
+        }
+        budget -= 1;
+        ++retries;
+        return true;
+    }
+
+    /**
+     * Give back a retry paid for nothing, when no host was left to try
+     */
+    synchronized void refundRetry() {
+        budget = Math.min(maxBudget, budget + 1);
+        --retries;
+    }
+
+    synchronized void onUnsafe() {
+        ++unsafe;
+    }
+
+    /**
+     * @param retry number of the retry, starting at 1
+     * @return the delay before sending it, with full jitter
+     */
+    long backoffMS(int retry) {
+        long cap = baseBackoffMS << Math.min(retry - 1, 20);
+        if (cap <= 0 || cap > maxBackoffMS) {
+            cap = maxBackoffMS;
+        }
+        synchronized (random) {
+            return (long) (random.nextDouble() * cap);
+        }
+    }
+
+    /**
+     * Retries currently available
+     */
+    public synchronized double getBudget() {
+        return budget;
+    }
+
+    /**
+     * Number of retries sent
+     */
+    public synchronized long getRetries() {
+        return retries;
+    }
+
+    /**
+     * Number of retries not sent because the budget was exhausted
+     */
+    public synchronized long getExhausted() {
+        return exhausted;
+    }
+
+    /**
+     * Number of retries not sent because the request may have been applied and is not idempotent
+     */
+    public synchronized long getUnsafe() {
+        return unsafe;
+    }
+}
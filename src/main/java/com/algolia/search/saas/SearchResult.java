@@ -0,0 +1,164 @@
+package com.algolia.search.saas;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+/**
+ * Typed answer of a search, decoded in a single pass over the response: hits are built by a
+ * HitMapper and facet counts are decoded into FacetCounts.
+ */
+public class SearchResult<T> {
+    /**
+     * Mapper keeping hits as JSONObject
+     */
+    public static final HitMapper<JSONObject> JSON_HITS = new HitMapper<JSONObject>() {
+        public JSONObject map(JSONReader reader) throws AlgoliaException {
+            try {
+                return new JSONObject(reader.nextRawValue());
+            } catch (JSONException e) {
+                throw new AlgoliaException("JSON decode error:" + e.getMessage());
+            }
+        }
+    };
+
+    private List<T> hits = Collections.emptyList();
+    private Map<String, FacetCounts> facets = Collections.emptyMap();
+    private Map<String, FacetCounts> disjunctiveFacets = Collections.emptyMap();
+    private int nbHits;
+    private int page;
+    private int nbPages;
+    private int hitsPerPage;
+    private int processingTimeMS;
+    private String query;
+    private String params;
+
+    private SearchResult() {
+    }
+
+    /**
+     * Decode a search answer, unknown attributes are skipped
+     */
+    static <T> SearchResult<T> decode(JSONReader reader, HitMapper<T> mapper) throws AlgoliaException {
+        SearchResult<T> res = new SearchResult<T>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == 'n') {
+                reader.skipValue();
+            } else if (name.equals("hits")) {
+                res.hits = new ArrayList<T>();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    res.hits.add(mapper.map(reader));
+                }
+                reader.endArray();
+            } else if (name.equals("facets")) {
+                res.facets = new LinkedHashMap<String, FacetCounts>();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String facet = reader.nextName();
+                    res.facets.put(facet, FacetCounts.decode(reader));
+                }
+                reader.endObject();
+            } else if (name.equals("nbHits")) {
+                res.nbHits = reader.nextInt();
+            } else if (name.equals("page")) {
+                res.page = reader.nextInt();
+            } else if (name.equals("nbPages")) {
+                res.nbPages = reader.nextInt();
+            } else if (name.equals("hitsPerPage")) {
+                res.hitsPerPage = reader.nextInt();
+            } else if (name.equals("processingTimeMS")) {
+                res.processingTimeMS = reader.nextInt();
+            } else if (name.equals("query")) {
+                res.query = reader.nextString();
+            } else if (name.equals("params")) {
+                res.params = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return res;
+    }
+
+    public List<T> getHits() {
+        return hits;
+    }
+
+    /**
+     * Counts of the facets requested by the query
+     */
+    public Map<String, FacetCounts> getFacets() {
+        return facets;
+    }
+
+    /**
+     * Counts of the disjunctive facets, filled by DisjunctiveFacetingEngine.disjunctiveFacetingTyped()
+     */
+    public Map<String, FacetCounts> getDisjunctiveFacets() {
+        return disjunctiveFacets;
+    }
+
+    void setDisjunctiveFacets(Map<String, FacetCounts> disjunctiveFacets) {
+        this.disjunctiveFacets = disjunctiveFacets;
+    }
+
+    public int getNbHits() {
+        return nbHits;
+    }
+
+    public int getPage() {
+        return page;
+    }
+
+    public int getNbPages() {
+        return nbPages;
+    }
+
+    public int getHitsPerPage() {
+        return hitsPerPage;
+    }
+
+    public int getProcessingTimeMS() {
+        return processingTimeMS;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public String getParams() {
+        return params;
+    }
+}
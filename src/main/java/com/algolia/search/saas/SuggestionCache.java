@@ -0,0 +1,280 @@
+package com.algolia.search.saas;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * Search-as-you-type cache: results are stored in a trie keyed on the query text, one trie
+ * per set of other query parameters. While a search is in flight, the result of the longest
+ * cached prefix of the query text can be used as provisional hits.
+ * The number and the total encoded length of the cached results are bounded, the least recently
+ * used ones are evicted first. Results are stored encoded: every call returns a new JSONObject
+ * the caller is free to modify.
+ */
+public class SuggestionCache {
+    static final long DEFAULT_MAX_LENGTH = 4 * 1024 * 1024;
+
+    private final int maxEntries;
+    private final long maxLength;
+    private final Map<String, Node> namespaces = new HashMap<String, Node>();
+    private final LinkedHashMap<Node, Node> lru = new LinkedHashMap<Node, Node>(16, 0.75f, true);
+    private long length;
+
+    /**
+     * @param maxEntries maximum number of results kept in the cache
+     */
+    public SuggestionCache(int maxEntries) {
+        this(maxEntries, DEFAULT_MAX_LENGTH);
+    }
+
+    /**
+     * @param maxEntries maximum number of results kept in the cache
+     * @param maxLength maximum total length of the cached results encoded in JSON, in characters
+     */
+    public SuggestionCache(int maxEntries, long maxLength) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be strictly positive");
+        }
+        if (maxLength <= 0) {
+            throw new IllegalArgumentException("maxLength must be strictly positive");
+        }
+        this.maxEntries = maxEntries;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Store the result of a query
+     */
+    public void put(Query query, JSONObject result) {
+        put(query, result.toString());
+    }
+
+    /**
+     * Store the result of a query encoded in JSON
+     */
+    synchronized void put(Query query, String result) {
+        if (result.length() > maxLength) {
+            return;
+        }
+        String namespace = namespace(query);
+        Node root = namespaces.get(namespace);
+        if (root == null) {
+            root = new Node(null, '\0', namespace);
+            namespaces.put(namespace, root);
+        }
+        Node node = root;
+        for (char c : text(query).toCharArray()) {
+            Node child = node.children.get(c);
+            if (child == null) {
+                child = new Node(node, c, namespace);
+                node.children.put(c, child);
+            }
+            node = child;
+        }
+        if (node.result != null) {
+            length -= node.result.length();
+        }
+        node.result = result;
+        length += result.length();
+        lru.put(node, node);
+        while (lru.size() > maxEntries || length > maxLength) {
+            Iterator<Node> it = lru.keySet().iterator();
+            Node eldest = it.next();
+            it.remove();
+            length -= eldest.result.length();
+            eldest.result = null;
+            prune(eldest);
+        }
+    }
+
+    /**
+     * Result of exactly this query or null
+     */
+    public JSONObject get(Query query) {
+        String cached;
+        synchronized (this) {
+            Node node = find(query, false);
+            if (node == null || node.result == null) {
+                return null;
+            }
+            lru.get(node);
+            cached = node.result;
+        }
+        try {
+            return new JSONObject(cached);
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Provisional result for this query built from the longest cached prefix of its text
+     * (the query itself if it is cached). Hits of a shorter prefix are filtered locally to keep
+     * only those containing every query word. The answer contains a "provisional" attribute set to true.
+     *
+     * @return null if no prefix of the query is cached
+     */
+    public JSONObject getClosestPrefix(Query query) {
+        String cached;
+        boolean exact;
+        synchronized (this) {
+            Node node = find(query, true);
+            if (node == null) {
+                return null;
+            }
+            lru.get(node);
+            cached = node.result;
+            exact = node.depth == text(query).length();
+        }
+        try {
+            JSONObject res = new JSONObject(cached);
+            if (!exact) {
+                List<String> words = OfflineMirror.tokenize(query.getQuery());
+                JSONArray hits = res.optJSONArray("hits");
+                JSONArray filtered = new JSONArray();
+                for (int i = 0; hits != null && i < hits.length(); ++i) {
+                    JSONObject hit = hits.optJSONObject(i);
+                    if (hit != null && containsWords(hit, words)) {
+                        filtered.put(hit);
+                    }
+                }
+                res.put("hits", filtered);
+                res.put("nbHits", filtered.length());
+            }
+            res.put("provisional", true);
+            return res;
+        } catch (JSONException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Number of cached results
+     */
+    public synchronized int size() {
+        return lru.size();
+    }
+
+    /**
+     * Total length of the cached results encoded in JSON
+     */
+    public synchronized long getLength() {
+        return length;
+    }
+
+    public synchronized void clear() {
+        namespaces.clear();
+        lru.clear();
+        length = 0;
+    }
+
+    /**
+     * Deepest node along the query text: with a result (prefix mode) or exactly matching the text
+     */
+    private Node find(Query query, boolean prefix) {
+        Node node = namespaces.get(namespace(query));
+        if (node == null) {
+            return null;
+        }
+        Node best = node.result != null ? node : null;
+        for (char c : text(query).toCharArray()) {
+            node = node.children.get(c);
+            if (node == null) {
+                return prefix ? best : null;
+            }
+            if (node.result != null) {
+                best = node;
+            }
+        }
+        return prefix ? best : node;
+    }
+
+    private void prune(Node node) {
+        while (node.parent != null && node.result == null && node.children.isEmpty()) {
+            node.parent.children.remove(node.c);
+            node = node.parent;
+        }
+        if (node.parent == null && node.result == null && node.children.isEmpty()) {
+            namespaces.remove(node.namespace);
+        }
+    }
+
+    private static String namespace(Query query) {
+        return new Query(query).setQueryString(null).getQueryString();
+    }
+
+    private static String text(Query query) {
+        return query.getQuery() == null ? "" : OfflineMirror.normalize(query.getQuery());
+    }
+
+    private static boolean containsWords(JSONObject hit, List<String> words) {
+        StringBuilder content = new StringBuilder();
+        Iterator<?> keys = hit.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            if (!key.startsWith("_")) {
+                content.append(hit.opt(key)).append(' ');
+            }
+        }
+        List<String> tokens = OfflineMirror.tokenize(content.toString());
+        for (String word : words) {
+            boolean found = false;
+            for (String token : tokens) {
+                if (token.startsWith(word)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class Node {
+        final Node parent;
+        final char c;
+        final int depth;
+        final String namespace;
+        final Map<Character, Node> children = new HashMap<Character, Node>(4);
+        String result;
+
+        Node(Node parent, char c, String namespace) {
+            this.parent = parent;
+            this.c = c;
+            this.depth = parent == null ? 0 : parent.depth + 1;
+            this.namespace = namespace;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.algolia.search.saas;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+/**
+ * TLS context shared by the transports so that new connections, to the same host after an idle
+ * eviction or from another transport, resume a previous TLS session (session ID or ticket) instead
+ * of doing a full handshake. Counts full and resumed handshakes.
+ * All transports use getDefault() unless HttpTransport.setTlsSessionCache() is called.
+ */
+public class TlsSessionCache {
+    private static TlsSessionCache defaultCache;
+
+    private final SSLContext sslContext;
+    private final AtomicLong fullHandshakes = new AtomicLong();
+    private final AtomicLong resumedHandshakes = new AtomicLong();
+    private final SSLSocketFactory socketFactory;
+
+    /**
+     * The cache shared by default by all transports
+     */
+    public static synchronized TlsSessionCache getDefault() {
+        if (defaultCache == null) {
+            try {
+                SSLContext context = SSLContext.getInstance("TLS");
+                context.init(null, null, null);
+                defaultCache = new TlsSessionCache(context, 64, 4 * 3600);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return defaultCache;
+    }
+
+    /**
+     * @param sslContext the context creating the connections, whose client session cache is tuned
+     * @param maxSessions maximum number of sessions kept (one per host and port)
+     * @param sessionTimeoutSeconds duration during which a session can be resumed
+     */
+    public TlsSessionCache(SSLContext sslContext, int maxSessions, int sessionTimeoutSeconds) {
+        this.sslContext = sslContext;
+        SSLSessionContext sessions = sslContext.getClientSessionContext();
+        if (sessions != null) {
+            sessions.setSessionCacheSize(maxSessions);
+            sessions.setSessionTimeout(sessionTimeoutSeconds);
+        }
+        this.socketFactory = new CountingSocketFactory(sslContext.getSocketFactory());
+    }
+
+    public SSLContext getSSLContext() {
+        return sslContext;
+    }
+
+    /**
+     * Socket factory of the context counting the handshakes of its sockets
+     */
+    public SSLSocketFactory getSocketFactory() {
+        return socketFactory;
+    }
+
+    /**
+     * Number of handshakes that negotiated a new session
+     */
+    public long getFullHandshakes() {
+        return fullHandshakes.get();
+    }
+
+    /**
+     * Number of handshakes that resumed a cached session
+     */
+    public long getResumedHandshakes() {
+        return resumedHandshakes.get();
+    }
+
+    /**
+     * Count a finished handshake: a resumed session was created before the handshake started
+     *
+     * @param startedAt time at which the handshake started
+     */
+    void recordHandshake(SSLSession session, long startedAt) {
+        if (session.getCreationTime() < startedAt) {
+            resumedHandshakes.incrementAndGet();
+        } else {
+            fullHandshakes.incrementAndGet();
+        }
+    }
+
+    /**
+     * Counts the handshakes of the sockets it creates (used by HttpsURLConnection)
+     */
+    private final class CountingSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory factory;
+
+        CountingSocketFactory(SSLSocketFactory factory) {
+            this.factory = factory;
+        }
+
+        private Socket counted(Socket socket) {
+            if (socket instanceof SSLSocket) {
+                final long createdAt = System.currentTimeMillis();
+                ((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+                    public void handshakeCompleted(HandshakeCompletedEvent event) {
+                        recordHandshake(event.getSession(), createdAt);
+                    }
+                });
+            }
+            return socket;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return factory.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return factory.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return counted(factory.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+            return counted(factory.createSocket(s, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return counted(factory.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return counted(factory.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return counted(factory.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return counted(factory.createSocket(address, port, localAddress, localPort));
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.algolia.search.saas;
+
+import java.lang.reflect.Method;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+/**
+ * TLS features of the socket-level transports (NioHttpTransport, Http2Transport) that depend
+ * on the runtime: they are looked up by reflection since the library targets Java 6 / Android 4.1.
+ */
+final class TlsSupport {
+    /** Java 7, Android 7: certificate host name checked during the handshake */
+    private static final Method SET_ENDPOINT_IDENTIFICATION = method(SSLParameters.class, "setEndpointIdentificationAlgorithm", String.class);
+    /** Java 9, Android 10: ALPN */
+    private static final Method SET_APPLICATION_PROTOCOLS = method(SSLParameters.class, "setApplicationProtocols", String[].class);
+    private static final Method GET_APPLICATION_PROTOCOL = method(SSLSocket.class, "getApplicationProtocol");
+
+    private TlsSupport() {
+    }
+
+    private static Method method(Class<?> cls, String name, Class<?>... parameters) {
+        try {
+            return cls.getMethod(name, parameters);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Ask the TLS stack to check the certificate against the host name during the handshake
+     *
+     * @return false if the runtime cannot, verifyHostname() must then be called after the handshake
+     */
+    static boolean checkHostnameInHandshake(SSLParameters parameters) {
+        if (SET_ENDPOINT_IDENTIFICATION == null) {
+            return false;
+        }
+        try {
+            SET_ENDPOINT_IDENTIFICATION.invoke(parameters, "HTTPS");
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    static void verifyHostname(String host, SSLSession session) throws SSLPeerUnverifiedException {
+        if (!HttpsURLConnection.getDefaultHostnameVerifier().verify(host, session)) {
+            throw new SSLPeerUnverifiedException("Certificate does not match " + host);
+        }
+    }
+
+    /**
+     * Offer protocols with ALPN
+     *
+     * @return false if the runtime does not support ALPN
+     */
+    static boolean offerProtocols(SSLParameters parameters, String... protocols) {
+        if (SET_APPLICATION_PROTOCOLS == null || GET_APPLICATION_PROTOCOL == null) {
+            return false;
+        }
+        try {
+            SET_APPLICATION_PROTOCOLS.invoke(parameters, new Object[] { protocols });
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the protocol selected by the server with ALPN, null or empty if none
+     */
+    static String selectedProtocol(SSLSocket socket) {
+        try {
+            return (String) GET_APPLICATION_PROTOCOL.invoke(socket);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.algolia.search.saas;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+
+/*
+ * Copyright (c) 2015 Algolia
+ * http://www.algolia.com/
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+/**
+ * Transport based on HttpURLConnection, available on every JVM and recommended by Android
+ * since Gingerbread. Connections are kept alive by the platform connection pool.
+ */
+public class URLConnectionTransport extends HttpTransport {
+
+    @Override
+    public Response execute(Request request) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(request.getURL()).openConnection();
+        connection.setRequestMethod(request.getMethod());
+        connection.setConnectTimeout(request.getConnectTimeoutMS());
+        connection.setReadTimeout(request.getReadTimeoutMS());
+        connection.setUseCaches(false);
+        if (connection instanceof HttpsURLConnection) {
+            ((HttpsURLConnection) connection).setSSLSocketFactory(getTlsSessionCache().getSocketFactory());
+        }
+        for (Map.Entry<String, String> entry : request.getHeaders().entrySet()) {
+            connection.setRequestProperty(entry.getKey(), entry.getValue());
+        }
+        if (request.getBody() != null) {
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(request.getBodyLength());
+        }
+        try {
+            try {
+                // connect explicitly to tell a connect timeout from a read timeout
+                connection.connect();
+            } catch (SocketTimeoutException e) {
+                throw connectFailure("Connect timeout on " + request.getURL(), e);
+            }
+            if (request.getBody() != null) {
+                OutputStream out = connection.getOutputStream();
+                out.write(request.getBody(), 0, request.getBodyLength());
+                out.close();
+            }
+            int code = connection.getResponseCode();
+            InputStream body = code >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            return new Response(code, body, connection.getContentLength());
+        } catch (IOException e) {
+            connection.disconnect();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class BufferPoolTest {
+
+    private static String sample(int hits) throws Exception {
+        JSONArray array = new JSONArray();
+        for (int i = 0; i < hits; ++i) {
+            array.put(new JSONObject().put("name", "Hôtel n°" + i + " 🏨").put("objectID", String.valueOf(i)));
+        }
+        return new JSONObject().put("hits", array).put("nbHits", hits).toString();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        BufferPool pool = new BufferPool(64, 2);
+        String json = sample(20) + "\uD800";
+        BufferPool.PooledBody encoded = pool.encode(json);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(encoded.getBuffer(), 0, encoded.getLength());
+        String expected = sample(20) + "?";
+        assertArrayEquals(expected.getBytes("UTF-8"), out.toByteArray());
+        encoded.release();
+
+        // unknown length larger than the pooled buffers
+        byte[] body = pool.readFully(new ByteArrayInputStream(out.toByteArray()), -1);
+        assertArrayEquals(out.toByteArray(), body);
+        assertArrayEquals(body, pool.readFully(new ByteArrayInputStream(body), body.length));
+        assertEquals(expected, pool.decode(body));
+        assertEquals("a�b", pool.decode(new byte[] { 'a', (byte) 0xe9, 'b' }));
+    }
+
+    @Test
+    public void testReuse() throws Exception {
+        BufferPool pool = new BufferPool(1024, 2);
+        String json = sample(5);
+        pool.encode(json).release();
+        pool.decode(json.getBytes("UTF-8"));
+        long allocations = pool.getAllocations();
+        for (int i = 0; i < 100; ++i) {
+            BufferPool.PooledBody encoded = pool.encode(json);
+            byte[] body = pool.readFully(new ByteArrayInputStream(encoded.getBuffer(), 0, encoded.getLength()), -1);
+            assertEquals(json, pool.decode(body));
+            encoded.release();
+        }
+        assertEquals(allocations + 1, pool.getAllocations());
+    }
+
+    private static long allocatedBytes() throws Exception {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+        return (Long) method.invoke(bean, Thread.currentThread().getId());
+    }
+
+    /**
+     * Bytes allocated per request by the previous serialization and parsing code
+     */
+    private static long unpooled(String json, int iterations) throws Exception {
+        long start = allocatedBytes();
+        for (int i = 0; i < iterations; ++i) {
+            StringEntity entity = new StringEntity(json, "UTF-8");
+            InputStream content = entity.getContent();
+            byte[] body = EntityUtils.toByteArray(new InputStreamEntity(content, -1));
+            InputStreamReader is = new InputStreamReader(new ByteArrayInputStream(body), "UTF-8");
+            StringBuilder builder = new StringBuilder();
+            char[] buf = new char[1000];
+            int l = 0;
+            while (l >= 0) {
+                builder.append(buf, 0, l);
+                l = is.read(buf);
+            }
+            builder.toString();
+        }
+        return (allocatedBytes() - start) / iterations;
+    }
+
+    private static long pooled(BufferPool pool, String json, int iterations) throws Exception {
+        long start = allocatedBytes();
+        for (int i = 0; i < iterations; ++i) {
+            BufferPool.PooledBody encoded = pool.encode(json);
+            byte[] body = pool.readFully(new ByteArrayInputStream(encoded.getBuffer(), 0, encoded.getLength()), -1);
+            encoded.release();
+            pool.decode(body);
+        }
+        return (allocatedBytes() - start) / iterations;
+    }
+
+    /**
+     * Allocation rate of request serialization + response reading and decoding under sustained load.
+     * Set ALGOLIA_BENCHMARK to run it.
+     */
+    @Test
+    public void benchmarkAllocations() throws Exception {
+        Assume.assumeTrue(System.getenv("ALGOLIA_BENCHMARK") != null);
+        String json = sample(60);
+        BufferPool pool = new BufferPool(BufferPool.DEFAULT_BUFFER_SIZE, 4);
+        int iterations = 20000;
+        // warm up
+        unpooled(json, iterations);
+        pooled(pool, json, iterations);
+        long before = unpooled(json, iterations);
+        long after = pooled(pool, json, iterations);
+        System.out.println(String.format("%d bytes body: %d bytes allocated per request without pool, %d with pool (%d buffers allocated)",
+                json.length(), before, after, pool.getAllocations()));
+    }
+}
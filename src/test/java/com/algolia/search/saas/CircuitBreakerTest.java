@@ -0,0 +1,137 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.algolia.search.saas.CircuitBreaker.EndpointClass;
+import com.algolia.search.saas.CircuitBreaker.State;
+import com.sun.net.httpserver.HttpExchange;
+
+@RunWith(JUnit4.class)
+public class CircuitBreakerTest {
+    private LocalServer down;
+    private LocalServer up;
+    private volatile int downStatus = 503;
+
+    @Before
+    public void startServers() throws IOException {
+        down = new LocalServer(2, 16, new LocalServer.Handler() {
+            public LocalServer.Answer handle(HttpExchange exchange) {
+                int status = downStatus;
+                return new LocalServer.Answer(status, status == 200 ? "{\"hits\":[],\"nbHits\":0}" : "{\"message\":\"unavailable\"}");
+            }
+        });
+        up = new LocalServer("{\"hits\":[],\"nbHits\":0}");
+    }
+
+    @After
+    public void stopServers() {
+        down.stop();
+        up.stop();
+    }
+
+    @Test
+    public void testStates() {
+        CircuitBreaker breaker = new CircuitBreaker(2, 50, 200, 1);
+        assertTrue(breaker.allowRequest("a", EndpointClass.READ));
+        breaker.onFailure("a", EndpointClass.READ);
+        assertEquals(State.CLOSED, breaker.getState("a", EndpointClass.READ));
+        breaker.onFailure("a", EndpointClass.READ);
+        assertEquals(State.OPEN, breaker.getState("a", EndpointClass.READ));
+        assertFalse(breaker.allowRequest("a", EndpointClass.READ));
+        // circuits are per endpoint class
+        assertTrue(breaker.allowRequest("a", EndpointClass.WRITE));
+        assertEquals(State.CLOSED, breaker.getState("a", EndpointClass.WRITE));
+    }
+
+    @Test
+    public void testHalfOpenProbes() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, 50, 200, 1);
+        breaker.onFailure("a", EndpointClass.READ);
+        Thread.sleep(60);
+        // one probe at a time
+        assertTrue(breaker.allowRequest("a", EndpointClass.READ));
+        assertEquals(State.HALF_OPEN, breaker.getState("a", EndpointClass.READ));
+        assertFalse(breaker.allowRequest("a", EndpointClass.READ));
+        // a failed probe opens the circuit twice as long
+        breaker.onFailure("a", EndpointClass.READ);
+        assertEquals(State.OPEN, breaker.getState("a", EndpointClass.READ));
+        Thread.sleep(60);
+        assertFalse(breaker.allowRequest("a", EndpointClass.READ));
+        Thread.sleep(60);
+        assertTrue(breaker.allowRequest("a", EndpointClass.READ));
+        breaker.onSuccess("a", EndpointClass.READ);
+        assertEquals(State.CLOSED, breaker.getState("a", EndpointClass.READ));
+        CircuitBreaker.CircuitStats stats = breaker.getStats().get("READ a");
+        assertEquals(2, stats.getOpens());
+        assertEquals(2, stats.getSkipped());
+        assertEquals(1, stats.getSuccesses());
+        assertEquals(2, stats.getFailures());
+    }
+
+    @Test
+    public void testSkipsOpenHost() throws Exception {
+        APIClient client = LocalServer.client(down.host(), up.host());
+        client.setCircuitBreaker(new CircuitBreaker(3, 1000, 5000, 1));
+        Index index = client.initIndex("test");
+        for (int i = 0; i < 10; ++i) {
+            index.search(new Query("a"));
+        }
+        assertEquals(3, down.requests.get());
+        CircuitBreaker.CircuitStats stats = client.getCircuitBreaker().getStats().get("READ " + down.host());
+        assertEquals(State.OPEN, stats.getState());
+        assertEquals(7, stats.getSkipped());
+
+        // the host is back: the probe closes the circuit
+        downStatus = 200;
+        Thread.sleep(1100);
+        index.search(new Query("a"));
+        assertEquals(4, down.requests.get());
+        assertEquals(State.CLOSED, client.getCircuitBreaker().getState(down.host(), EndpointClass.READ));
+    }
+
+    @Test
+    public void testClientErrorsKeepCircuitClosed() throws Exception {
+        downStatus = 404;
+        APIClient client = LocalServer.client(down.host(), up.host());
+        Index index = client.initIndex("test");
+        for (int i = 0; i < 5; ++i) {
+            try {
+                index.search(new Query("a"));
+                fail("the 404 answer should be reported");
+            } catch (AlgoliaException e) {
+                assertEquals("unavailable", e.getMessage());
+            }
+        }
+        assertEquals(State.CLOSED, client.getCircuitBreaker().getState(down.host(), EndpointClass.READ));
+    }
+
+    @Test
+    public void testAllOpenTriedAnyway() throws Exception {
+        APIClient client = LocalServer.client(down.host());
+        client.setCircuitBreaker(new CircuitBreaker(1, 10000, 10000, 1));
+        Index index = client.initIndex("test");
+        for (int i = 0; i < 3; ++i) {
+            try {
+                index.search(new Query("a"));
+                fail("the host is down");
+            } catch (AlgoliaException e) {
+                assertTrue(e.getMessage().startsWith(APIClient.HOSTS_UNREACHABLE));
+            }
+        }
+        assertEquals(3, down.requests.get());
+        downStatus = 200;
+        index.search(new Query("a"));
+        assertEquals(State.CLOSED, client.getCircuitBreaker().getState(down.host(), EndpointClass.READ));
+    }
+}
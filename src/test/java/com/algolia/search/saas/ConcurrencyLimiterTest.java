@@ -0,0 +1,220 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.sun.net.httpserver.HttpExchange;
+
+@RunWith(JUnit4.class)
+public class ConcurrencyLimiterTest {
+    private LocalServer server;
+    private final AtomicInteger concurrent = new AtomicInteger();
+    private final AtomicInteger maxConcurrent = new AtomicInteger();
+    private volatile int status = 200;
+    private APIClient client;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new LocalServer(8, 16, new LocalServer.Handler() {
+            public LocalServer.Answer handle(HttpExchange exchange) {
+                int current = concurrent.incrementAndGet();
+                while (maxConcurrent.get() < current && !maxConcurrent.compareAndSet(maxConcurrent.get(), current)) {
+                }
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                concurrent.decrementAndGet();
+                return new LocalServer.Answer(status, "{\"taskID\":1,\"objectIDs\":[]}");
+            }
+        });
+        client = server.client();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    @Test
+    public void testAdditiveIncrease() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 1, 4, 0.5, 2.0);
+        for (int i = 0; i < 20; ++i) {
+            assertTrue(limiter.acquire(Long.MAX_VALUE, null));
+            assertTrue(limiter.acquire(Long.MAX_VALUE, null));
+            long now = System.currentTimeMillis();
+            limiter.release(now, false);
+            limiter.release(now, false);
+        }
+        // +1/limit per call, capped by maxLimit
+        assertEquals(4, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+        assertTrue(limiter.getIncreases() > 0);
+    }
+
+    @Test
+    public void testIncreaseNeedsUse() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(8, 1, 64, 0.5, 2.0);
+        for (int i = 0; i < 20; ++i) {
+            assertTrue(limiter.acquire(Long.MAX_VALUE, null));
+            limiter.release(System.currentTimeMillis(), false);
+        }
+        // a single call in flight does not prove the servers sustain more
+        assertEquals(8, limiter.getLimit());
+        assertEquals(0, limiter.getIncreases());
+    }
+
+    @Test
+    public void testMultiplicativeDecrease() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(16, 2, 64, 0.5, 2.0);
+        long startedAt = System.currentTimeMillis();
+        for (int i = 0; i < 4; ++i) {
+            assertTrue(limiter.acquire(Long.MAX_VALUE, null));
+        }
+        Thread.sleep(5);
+        // the calls in flight during the same overload decrease the limit once
+        for (int i = 0; i < 4; ++i) {
+            limiter.release(startedAt, true);
+        }
+        assertEquals(8, limiter.getLimit());
+        assertEquals(1, limiter.getDecreases());
+        for (int i = 0; i < 3; ++i) {
+            assertTrue(limiter.acquire(Long.MAX_VALUE, null));
+            Thread.sleep(5);
+            limiter.release(System.currentTimeMillis() - 1, true);
+        }
+        // bounded by minLimit
+        assertEquals(2, limiter.getLimit());
+    }
+
+    @Test
+    public void testWaitAndDeadline() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1, 0.5, 2.0);
+        assertTrue(limiter.acquire(Long.MAX_VALUE, null));
+        long start = System.currentTimeMillis();
+        assertFalse(limiter.acquire(start + 150, null));
+        assertTrue(System.currentTimeMillis() - start >= 150);
+        CancellationToken token = new CancellationToken();
+        token.cancel();
+        assertFalse(limiter.acquire(Long.MAX_VALUE, token));
+        final AtomicInteger granted = new AtomicInteger();
+        assertFalse(limiter.acquireAsync(new Runnable() {
+            public void run() {
+                granted.incrementAndGet();
+            }
+        }));
+        assertEquals(1, limiter.getQueued());
+        // the queued call takes the slot released
+        limiter.release();
+        assertEquals(1, granted.get());
+        assertEquals(1, limiter.getInFlight());
+        assertEquals(0, limiter.getQueued());
+    }
+
+    @Test
+    public void testBulkWrites() throws Exception {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 1, 2, 0.5, 2.0);
+        client.setConcurrencyLimiter(limiter);
+        final Index index = client.initIndex("test");
+        Thread[] threads = new Thread[6];
+        for (int i = 0; i < threads.length; ++i) {
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        index.batch(new JSONArray());
+                    } catch (AlgoliaException e) {
+                        fail(e.getMessage());
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(6, server.requests.get());
+        assertTrue("max " + maxConcurrent.get(), maxConcurrent.get() <= 2);
+        assertEquals(0, limiter.getInFlight());
+        // searches are not limited
+        maxConcurrent.set(0);
+        index.search(new Query("a"));
+        assertEquals(7, server.requests.get());
+
+        status = 503;
+        try {
+            index.batch(new JSONArray());
+            fail("the server is overloaded");
+        } catch (AlgoliaException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith(APIClient.HOSTS_UNREACHABLE));
+        }
+        assertEquals(1, limiter.getDecreases());
+        assertEquals(1, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void testQueuedAsync() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1, 0.5, 2.0);
+        client.setConcurrencyLimiter(limiter);
+        Index index = client.initIndex("test");
+        final CountDownLatch latch = new CountDownLatch(3);
+        final AtomicInteger errors = new AtomicInteger();
+        ResultHandler<JSONObject> handler = new ResultHandler<JSONObject>() {
+            public void onResult(JSONObject result) {
+                latch.countDown();
+            }
+
+            public void onError(AlgoliaException error) {
+                errors.incrementAndGet();
+                latch.countDown();
+            }
+        };
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 3; ++i) {
+            index.batchAsync(new JSONArray(), handler);
+        }
+        // queued calls do not block the calling thread
+        assertTrue(System.currentTimeMillis() - start < 100);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(0, errors.get());
+        assertEquals(1, maxConcurrent.get());
+        assertEquals(0, limiter.getInFlight());
+
+        // a call queued past its deadline fails without taking a slot
+        final CountDownLatch deadline = new CountDownLatch(1);
+        final AtomicInteger failed = new AtomicInteger();
+        ResultHandler<JSONObject> failing = new ResultHandler<JSONObject>() {
+            public void onResult(JSONObject result) {
+                deadline.countDown();
+            }
+
+            public void onError(AlgoliaException error) {
+                failed.incrementAndGet();
+                deadline.countDown();
+            }
+        };
+        index.batchAsync(new JSONArray(), handler);
+        index.batchAsync(new JSONArray(), new RequestOptions().setTimeout(30), failing);
+        assertTrue(deadline.await(5, TimeUnit.SECONDS));
+        assertEquals(1, failed.get());
+        Thread.sleep(300);
+        assertEquals(0, limiter.getInFlight());
+        assertEquals(0, limiter.getQueued());
+    }
+}
@@ -0,0 +1,302 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.sun.net.httpserver.HttpExchange;
+
+@RunWith(JUnit4.class)
+public class DisjunctiveFacetingEngineTest {
+
+    /**
+     * Answers multipleQueries with the requested facet counting one hit per value
+     */
+    static class FacetClient extends APIClient {
+        final List<List<String>> params = new ArrayList<List<String>>();
+
+        FacetClient() {
+            super("appID", "apiKey");
+        }
+
+        @Override
+        protected synchronized byte[] postRequestRaw(String url, String obj, boolean readOperation) throws AlgoliaException {
+            try {
+                return answer(obj, params);
+            } catch (JSONException e) {
+                throw new AlgoliaException(e.getMessage());
+            } catch (java.io.UnsupportedEncodingException e) {
+                throw new AlgoliaException(e.getMessage());
+            }
+        }
+    }
+
+    static byte[] answer(String obj, List<List<String>> params) throws JSONException, java.io.UnsupportedEncodingException {
+        JSONArray requests = new JSONObject(obj).getJSONArray("requests");
+        JSONArray results = new JSONArray();
+        List<String> sent = new ArrayList<String>();
+        for (int i = 0; i < requests.length(); ++i) {
+            String p = URLDecoder.decode(requests.getJSONObject(i).getString("params"), "UTF-8");
+            sent.add(p);
+            JSONObject res = new JSONObject().put("hits", new JSONArray()).put("nbHits", 10);
+            int start = p.indexOf("facets=");
+            if (start >= 0) {
+                String facet = new JSONArray(p.substring(start + 7).split("&")[0]).getString(0);
+                // like the API, a facet without any value is missing from the answer
+                res.put("facets", facet.equals("empty") ? new JSONObject() : new JSONObject().put(facet, new JSONObject().put("x", 3).put("y", 1)));
+            }
+            results.put(res);
+        }
+        params.add(sent);
+        return new JSONObject().put("results", results).toString().getBytes("UTF-8");
+    }
+
+    @Test
+    public void testFilters() {
+        Map<String, List<String>> refinements = new HashMap<String, List<String>>();
+        refinements.put("brand", Arrays.asList("a", "b"));
+        refinements.put("type", Arrays.asList("t"));
+        refinements.put("color", new ArrayList<String>());
+        RefinementFilters filters = new RefinementFilters(refinements, Arrays.asList("brand", "color"));
+        assertEquals("(brand:a,brand:b),type:t", filters.all());
+        assertEquals("type:t", filters.allBut("brand"));
+        assertEquals("(brand:a,brand:b),type:t", filters.allBut("color"));
+        assertEquals("(brand:a,brand:b)", filters.allBut("type"));
+    }
+
+    @Test
+    public void testCachedCounts() throws Exception {
+        FacetClient client = new FacetClient();
+        DisjunctiveFacetingEngine engine = client.initIndex("index").createDisjunctiveFacetingEngine(10);
+        List<String> disjunctiveFacets = Arrays.asList("brand", "color");
+        Map<String, List<String>> refinements = new HashMap<String, List<String>>();
+        refinements.put("brand", Arrays.asList("z"));
+
+        JSONObject res = engine.disjunctiveFaceting(new Query("q"), disjunctiveFacets, refinements);
+        assertEquals(3, client.params.get(0).size());
+        assertEquals(2, engine.getCachedQueries());
+        JSONObject brand = res.getJSONObject("disjunctiveFacets").getJSONObject("brand");
+        assertEquals(3, brand.getInt("x"));
+        // refined value kept with a count of 0
+        assertEquals(0, brand.getInt("z"));
+
+        // another page: counts are reused
+        engine.disjunctiveFaceting(new Query("q").setPage(2), disjunctiveFacets, refinements);
+        assertEquals(1, client.params.get(1).size());
+
+        // refining color only changes the filters of the brand count query
+        refinements.put("color", Arrays.asList("red"));
+        res = engine.disjunctiveFaceting(new Query("q"), disjunctiveFacets, refinements);
+        List<String> sent = client.params.get(2);
+        assertEquals(2, sent.size());
+        assertTrue(sent.get(1).contains("facets=[\"brand\"]"));
+        assertTrue(sent.get(1).contains("facetFilters=(color:red)"));
+        assertFalse(sent.get(1).contains("brand:z"));
+        assertEquals(0, res.getJSONObject("disjunctiveFacets").getJSONObject("color").getInt("red"));
+
+        engine.clearCache();
+        assertEquals(0, engine.getCachedQueries());
+    }
+
+    /**
+     * A facet the answers leave out is left out of the results, even when refined
+     */
+    @Test
+    public void testFacetWithoutValues() throws Exception {
+        FacetClient client = new FacetClient();
+        DisjunctiveFacetingEngine engine = client.initIndex("index").createDisjunctiveFacetingEngine(10);
+        List<String> disjunctiveFacets = Arrays.asList("brand", "empty");
+        Map<String, List<String>> refinements = new HashMap<String, List<String>>();
+        refinements.put("empty", Arrays.asList("v"));
+        JSONObject res = engine.disjunctiveFaceting(new Query("q"), disjunctiveFacets, refinements).getJSONObject("disjunctiveFacets");
+        assertEquals(1, res.length());
+        assertEquals(3, res.getJSONObject("brand").getInt("x"));
+        assertEquals(Arrays.asList("brand"), new ArrayList<String>(engine.disjunctiveFacetCounts(new Query("q"), disjunctiveFacets, refinements).keySet()));
+        // the missing facet is cached too
+        assertEquals(1, client.params.size());
+    }
+
+    /**
+     * Counts computed for another user or set of security tags are not reused
+     */
+    @Test
+    public void testCachedPerSecurityContext() throws Exception {
+        FacetClient client = new FacetClient();
+        DisjunctiveFacetingEngine engine = client.initIndex("index").createDisjunctiveFacetingEngine(10);
+        Map<String, List<String>> refinements = new HashMap<String, List<String>>();
+        engine.disjunctiveFacetCounts(new Query("q"), Arrays.asList("brand"), refinements);
+        engine.disjunctiveFacetCounts(new Query("q"), Arrays.asList("brand"), refinements);
+        assertEquals(1, client.params.size());
+        client.setSecurityTags("(public,user1)");
+        engine.disjunctiveFacetCounts(new Query("q"), Arrays.asList("brand"), refinements);
+        assertEquals(2, client.params.size());
+        client.setUserToken("user1");
+        engine.disjunctiveFacetCounts(new Query("q"), Arrays.asList("brand"), refinements);
+        assertEquals(3, client.params.size());
+        client.setExtraHeader("X-Forwarded-For", "10.0.0.1");
+        engine.disjunctiveFacetCounts(new Query("q"), Arrays.asList("brand"), refinements);
+        assertEquals(4, client.params.size());
+        engine.disjunctiveFacetCounts(new Query("q"), Arrays.asList("brand"), refinements);
+        assertEquals(4, client.params.size());
+    }
+
+    @Test
+    public void testIncremental() throws Exception {
+        FacetClient client = new FacetClient();
+        DisjunctiveFacetingEngine engine = client.initIndex("index").createDisjunctiveFacetingEngine(0);
+        List<String> disjunctiveFacets = Arrays.asList("brand", "color", "size");
+        Map<String, List<String>> previous = new HashMap<String, List<String>>();
+        previous.put("brand", Arrays.asList("z"));
+        JSONObject previousAnswer = engine.disjunctiveFaceting(new Query("q"), disjunctiveFacets, previous);
+        assertEquals(4, client.params.get(0).size());
+
+        // toggling a brand value changes the filters of the color and size count queries only
+        Map<String, List<String>> refinements = new HashMap<String, List<String>>(previous);
+        refinements.put("brand", Arrays.asList("x"));
+        JSONObject res = engine.disjunctiveFaceting(new Query("q"), disjunctiveFacets, refinements, previous, previousAnswer);
+        List<String> sent = client.params.get(1);
+        assertEquals(3, sent.size());
+        assertFalse(sent.get(1).contains("facets=[\"brand\"]"));
+        JSONObject brand = res.getJSONObject("disjunctiveFacets").getJSONObject("brand");
+        assertEquals(3, brand.getInt("x"));
+        // the 0 count of the previously refined value is not carried over
+        assertFalse(brand.has("z"));
+
+        // nothing changed: only the hits query is sent
+        engine.disjunctiveFaceting(new Query("q").setPage(1), disjunctiveFacets, refinements, refinements, res);
+        assertEquals(1, client.params.get(2).size());
+    }
+
+    @Test
+    public void testIncrementalChecksPreviousAnswer() throws Exception {
+        FacetClient client = new FacetClient();
+        DisjunctiveFacetingEngine engine = client.initIndex("index").createDisjunctiveFacetingEngine(10);
+        List<String> disjunctiveFacets = Arrays.asList("brand", "color");
+        Map<String, List<String>> refinements = new HashMap<String, List<String>>();
+        JSONObject counts = new JSONObject().put("brand", new JSONObject().put("w", 7)).put("color", new JSONObject().put("w", 7));
+
+        // the answer of another query is ignored
+        JSONObject other = new JSONObject().put("query", "other").put("disjunctiveFacets", counts);
+        JSONObject res = engine.disjunctiveFaceting(new Query("q"), disjunctiveFacets, refinements, refinements, other);
+        assertEquals(3, client.params.get(0).size());
+        assertFalse(res.getJSONObject("disjunctiveFacets").getJSONObject("brand").has("w"));
+
+        // the counts of a matching answer are used but not cached
+        engine.clearCache();
+        JSONObject same = new JSONObject().put("query", "q").put("disjunctiveFacets", counts);
+        res = engine.disjunctiveFaceting(new Query("q"), disjunctiveFacets, refinements, refinements, same);
+        assertEquals(1, client.params.get(1).size());
+        assertEquals(7, res.getJSONObject("disjunctiveFacets").getJSONObject("brand").getInt("w"));
+        assertEquals(0, engine.getCachedQueries());
+        // the page of the echoed parameters does not matter
+        RefinementFilters filters = new RefinementFilters(refinements, disjunctiveFacets);
+        String params = DisjunctiveFacetingEngine.hitsQuery(new Query("q").setPage(3), filters).getQueryString();
+        assertTrue(DisjunctiveFacetingEngine.isAnswerOf(new JSONObject().put("params", params), new Query("q"), filters));
+        assertFalse(DisjunctiveFacetingEngine.isAnswerOf(new JSONObject().put("params", params), new Query("r"), filters));
+    }
+
+    @Test
+    public void testCountsOnly() throws Exception {
+        FacetClient client = new FacetClient();
+        DisjunctiveFacetingEngine engine = client.initIndex("index").createDisjunctiveFacetingEngine(10);
+        Map<String, List<String>> refinements = new HashMap<String, List<String>>();
+        refinements.put("brand", Arrays.asList("z"));
+        Map<String, FacetCounts> counts = engine.disjunctiveFacetCounts(new Query("q"), Arrays.asList("brand"), refinements);
+        assertEquals(1, client.params.get(0).size());
+        FacetCounts brand = counts.get("brand");
+        assertEquals(3, brand.size());
+        assertEquals("x", brand.getValue(0));
+        assertEquals(0, brand.getCount("z"));
+
+        // served from the cache without any request
+        engine.disjunctiveFacetCounts(new Query("q"), Arrays.asList("brand"), refinements);
+        assertEquals(1, client.params.size());
+    }
+
+    @Test
+    public void testTyped() throws Exception {
+        FacetClient client = new FacetClient();
+        Map<String, List<String>> refinements = new HashMap<String, List<String>>();
+        refinements.put("brand", Arrays.asList("z"));
+        SearchResult<JSONObject> res = client.initIndex("index").disjunctiveFacetingTyped(new Query("q"), Arrays.asList("brand"), refinements,
+                SearchResult.JSON_HITS);
+        assertEquals(2, client.params.get(0).size());
+        assertEquals(10, res.getNbHits());
+        FacetCounts brand = res.getDisjunctiveFacets().get("brand");
+        assertEquals(3, brand.getCount("x"));
+        assertEquals(0, brand.getCount("z"));
+        assertTrue(brand.indexOf("z") >= 0);
+    }
+
+    @Test
+    public void testUncached() throws Exception {
+        FacetClient client = new FacetClient();
+        Index index = client.initIndex("index");
+        index.disjunctiveFaceting(new Query("q"), Arrays.asList("brand"));
+        index.disjunctiveFaceting(new Query("q"), Arrays.asList("brand"));
+        assertEquals(2, client.params.get(1).size());
+    }
+
+    @Test
+    public void testExpiredCounts() throws Exception {
+        FacetClient client = new FacetClient();
+        DisjunctiveFacetingEngine engine = client.initIndex("index").createDisjunctiveFacetingEngine(10, 50);
+        Map<String, List<String>> refinements = new HashMap<String, List<String>>();
+        engine.disjunctiveFacetCounts(new Query("q"), Arrays.asList("brand"), refinements);
+        engine.disjunctiveFacetCounts(new Query("q"), Arrays.asList("brand"), refinements);
+        assertEquals(1, client.params.size());
+        Thread.sleep(100);
+        engine.disjunctiveFacetCounts(new Query("q"), Arrays.asList("brand"), refinements);
+        assertEquals(2, client.params.size());
+    }
+
+    @Test
+    public void testExpiredByWrites() throws Exception {
+        final List<List<String>> params = Collections.synchronizedList(new ArrayList<List<String>>());
+        LocalServer server = new LocalServer(new LocalServer.Handler() {
+            public LocalServer.Answer handle(HttpExchange exchange) throws IOException {
+                if (!exchange.getRequestURI().getPath().endsWith("/queries")) {
+                    return new LocalServer.Answer(200, "{\"taskID\":1}");
+                }
+                try {
+                    String request = new String(new BufferPool(1024, 0).readFully(exchange.getRequestBody(), -1), "UTF-8");
+                    return new LocalServer.Answer(200, new String(answer(request, params), "UTF-8"));
+                } catch (JSONException e) {
+                    throw new IOException(e.getMessage());
+                }
+            }
+        });
+        try {
+            APIClient client = server.client();
+            Index index = client.initIndex("index");
+            DisjunctiveFacetingEngine engine = index.createDisjunctiveFacetingEngine(10);
+            Map<String, List<String>> refinements = new HashMap<String, List<String>>();
+            engine.disjunctiveFacetCounts(new Query("q"), Arrays.asList("brand"), refinements);
+            // writes to other indexes keep the counts
+            client.initIndex("other").saveObject(new JSONObject().put("a", 1), "1");
+            engine.disjunctiveFacetCounts(new Query("q"), Arrays.asList("brand"), refinements);
+            assertEquals(1, params.size());
+            index.saveObject(new JSONObject().put("a", 1), "1");
+            engine.disjunctiveFacetCounts(new Query("q"), Arrays.asList("brand"), refinements);
+            assertEquals(2, params.size());
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONObject;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.sun.net.httpserver.HttpExchange;
+
+@RunWith(JUnit4.class)
+public class DiskResponseCacheTest {
+    private File directory;
+
+    @Before
+    public void init() throws Exception {
+        directory = File.createTempFile("algolia", "cache");
+        directory.delete();
+    }
+
+    @Test
+    public void testStoreAndTrim() throws Exception {
+        DiskResponseCache cache = new DiskResponseCache(directory, 120, 1000, 1000);
+        cache.put("a", new byte[40]);
+        cache.put("b", new byte[40]);
+        assertNotNull(cache.get("a"));
+        assertArrayEquals(new byte[40], cache.get("b").body);
+        assertEquals(104, cache.getSizeBytes());
+
+        // an entry is removed to stay under the size limit
+        cache.put("c", new byte[40]);
+        assertEquals(2, directory.listFiles().length);
+        assertEquals(104, cache.getSizeBytes());
+        assertNotNull(cache.get("c"));
+
+        // too large to be stored
+        cache.put("d", new byte[120]);
+        assertNull(cache.get("d"));
+
+        assertEquals(cache.getSizeBytes(), new DiskResponseCache(directory, 120, 1000, 1000).getSizeBytes());
+        cache.clear();
+        assertEquals(0, cache.getSizeBytes());
+        assertNull(cache.get("c"));
+    }
+
+    /**
+     * The size counts a file that could not be deleted until it is
+     */
+    @Test
+    public void testUndeletableFileStaysCounted() throws Exception {
+        // a directory with a file inside cannot be deleted
+        File stuck = new File(directory, "stuck.cache");
+        File child = new File(stuck, "child");
+        assertTrue(stuck.mkdirs() && child.createNewFile());
+        long stuckLength = stuck.length();
+        DiskResponseCache cache = new DiskResponseCache(directory, stuckLength + 40, 1000, 1000);
+        cache.put("a", new byte[40]);
+        assertEquals(stuckLength + 52, cache.getSizeBytes());
+        assertNotNull(cache.get("a"));
+
+        assertTrue(child.delete());
+        cache.put("b", new byte[1]);
+        assertFalse(stuck.exists());
+        assertEquals(65, cache.getSizeBytes());
+        assertNotNull(cache.get("a"));
+    }
+
+    @Test
+    public void testRevalidate() throws Exception {
+        final DiskResponseCache cache = new DiskResponseCache(directory, 1000, 0, 1000);
+        cache.put("a", new byte[] { 1 });
+        cache.revalidate("a", new Callable<byte[]>() {
+            public byte[] call() {
+                return new byte[] { 2 };
+            }
+        });
+        for (int i = 0; i < 100 && cache.get("a").body[0] != 2; ++i) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, cache.get("a").body[0]);
+    }
+
+    @Test
+    public void testLeastRecentlyUsed() throws Exception {
+        DiskResponseCache cache = new DiskResponseCache(directory, 120, 1000, 1000);
+        cache.put("a", new byte[40]);
+        cache.put("b", new byte[40]);
+        // within the same second, only the access order tells which entry to remove
+        assertNotNull(cache.get("a"));
+        cache.put("c", new byte[40]);
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        DiskResponseCache cache = new DiskResponseCache(directory, 1000, 1000, 1000);
+        long requestedAt = System.currentTimeMillis();
+        cache.put("a", "index1", requestedAt, new byte[] { 1 });
+        cache.put("b", "index2", requestedAt, new byte[] { 2 });
+        cache.invalidate("index1");
+        assertNull(cache.get("a"));
+        assertNotNull(cache.get("b"));
+        // an answer requested before the write is not stored
+        cache.put("a", "index1", requestedAt, new byte[] { 1 });
+        assertNull(cache.get("a"));
+        cache.invalidate(null);
+        assertNull(cache.get("b"));
+        assertEquals(0, cache.getSizeBytes());
+    }
+
+    @Test
+    public void testEvictedByWrites() throws Exception {
+        final AtomicInteger reads = new AtomicInteger();
+        LocalServer server = new LocalServer(new LocalServer.Handler() {
+            public LocalServer.Answer handle(HttpExchange exchange) {
+                if (exchange.getRequestMethod().equals("GET")) {
+                    return new LocalServer.Answer(200, "{\"objectID\":\"1\",\"version\":" + reads.incrementAndGet() + "}");
+                }
+                return new LocalServer.Answer(200, "{\"objectID\":\"1\",\"taskID\":1}");
+            }
+        });
+        try {
+            APIClient client = server.client();
+            client.setResponseCache(new DiskResponseCache(directory, 100000, 60000, 0));
+            Index index = client.initIndex("test");
+            assertEquals(1, index.getObject("1").getInt("version"));
+            assertEquals(1, index.getObject("1").getInt("version"));
+            // other indexes keep their answers
+            client.initIndex("other").saveObject(new JSONObject().put("a", 1), "1");
+            assertEquals(1, index.getObject("1").getInt("version"));
+            index.saveObject(new JSONObject().put("a", 1), "1");
+            assertEquals(2, index.getObject("1").getInt("version"));
+            assertEquals(2, reads.get());
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class DnsCacheTest {
+    /**
+     * Resolves from a map, each lookup taking 50ms
+     */
+    static class StubDnsCache extends DnsCache {
+        final Map<String, InetAddress[]> records = new HashMap<String, InetAddress[]>();
+        final AtomicInteger lookups = new AtomicInteger();
+
+        StubDnsCache(long ttlMS, long negativeTtlMS) {
+            super(ttlMS, negativeTtlMS);
+        }
+
+        void put(String host, String... ips) throws UnknownHostException {
+            InetAddress[] addresses = new InetAddress[ips.length];
+            for (int i = 0; i < ips.length; ++i) {
+                addresses[i] = InetAddress.getByAddress(host, InetAddress.getByName(ips[i]).getAddress());
+            }
+            synchronized (records) {
+                records.put(host, addresses);
+            }
+        }
+
+        @Override
+        protected InetAddress[] lookup(String host) throws UnknownHostException {
+            lookups.incrementAndGet();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                throw new UnknownHostException(host);
+            }
+            synchronized (records) {
+                InetAddress[] res = records.get(host);
+                if (res == null) {
+                    throw new UnknownHostException(host);
+                }
+                return res;
+            }
+        }
+    }
+
+    @Test
+    public void testCachedUntilTTL() throws Exception {
+        StubDnsCache cache = new StubDnsCache(200, 100);
+        cache.put("appID-dsn.algolia.net", "10.0.0.1", "10.0.0.2");
+        for (int i = 0; i < 10; ++i) {
+            assertEquals("10.0.0.1", cache.resolve("appID-dsn.algolia.net")[0].getHostAddress());
+        }
+        assertEquals(1, cache.lookups.get());
+
+        // expired: the old addresses are served while refreshed in background
+        cache.put("appID-dsn.algolia.net", "10.0.0.3");
+        Thread.sleep(250);
+        long start = System.currentTimeMillis();
+        assertEquals("10.0.0.1", cache.resolve("appID-dsn.algolia.net")[0].getHostAddress());
+        assertTrue(System.currentTimeMillis() - start < 40);
+        Thread.sleep(150);
+        assertEquals("10.0.0.3", cache.resolve("appID-dsn.algolia.net")[0].getHostAddress());
+        assertEquals(2, cache.lookups.get());
+
+        DnsCache.HostStats stats = cache.getStats().get("appID-dsn.algolia.net");
+        assertEquals(2, stats.getLookups());
+        assertEquals(11, stats.getHits());
+        assertEquals(0, stats.getFailures());
+        assertEquals(1, stats.getAddresses().length);
+        assertTrue(stats.getLastLookupMS() >= 40);
+    }
+
+    @Test
+    public void testFailuresAreCached() throws Exception {
+        StubDnsCache cache = new StubDnsCache(1000, 100);
+        for (int i = 0; i < 3; ++i) {
+            try {
+                cache.resolve("unknown.algolianet.com");
+                fail("expected an UnknownHostException");
+            } catch (UnknownHostException e) {
+                // expected
+            }
+        }
+        assertEquals(1, cache.lookups.get());
+        Thread.sleep(150);
+        cache.put("unknown.algolianet.com", "10.0.0.4");
+        assertEquals("10.0.0.4", cache.resolve("unknown.algolianet.com")[0].getHostAddress());
+        assertEquals(1, cache.getStats().get("unknown.algolianet.com").getFailures());
+    }
+
+    /**
+     * A lookup failing with an unchecked exception does not leave the host resolving forever
+     */
+    @Test(timeout = 5000)
+    public void testLookupThrowingRuntimeException() throws Exception {
+        DnsCache cache = new DnsCache(1000, 0) {
+            @Override
+            protected InetAddress[] lookup(String host) throws UnknownHostException {
+                throw new SecurityException("no network permission");
+            }
+        };
+        try {
+            cache.resolve("denied.algolianet.com");
+            fail("expected a SecurityException");
+        } catch (SecurityException e) {
+            // expected
+        }
+        Thread.sleep(10);
+        try {
+            cache.resolve("denied.algolianet.com");
+            fail("expected a SecurityException");
+        } catch (SecurityException e) {
+            // looked up again once the negative TTL is over
+        }
+        assertEquals(2, cache.getStats().get("denied.algolianet.com").getFailures());
+    }
+
+    @Test
+    public void testConcurrentResolutionsShareLookup() throws Exception {
+        final StubDnsCache cache = new StubDnsCache(1000, 100);
+        cache.put("appID-1.algolianet.com", "10.0.0.5");
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        List<Future<InetAddress[]>> results = new ArrayList<Future<InetAddress[]>>();
+        for (int i = 0; i < 16; ++i) {
+            results.add(executor.submit(new Callable<InetAddress[]>() {
+                public InetAddress[] call() throws Exception {
+                    return cache.resolve("appID-1.algolianet.com");
+                }
+            }));
+        }
+        for (Future<InetAddress[]> result : results) {
+            assertEquals("10.0.0.5", result.get()[0].getHostAddress());
+        }
+        executor.shutdown();
+        assertEquals(1, cache.lookups.get());
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        StubDnsCache cache = new StubDnsCache(1000, 100);
+        cache.put("appID-dsn.algolia.net", "10.0.0.1");
+        cache.put("localhost", "127.0.0.1");
+        cache.prefetch(Arrays.asList("appID-dsn.algolia.net", "localhost:8080", "appID-dsn.algolia.net"));
+        Thread.sleep(150);
+        assertEquals(2, cache.lookups.get());
+        long start = System.currentTimeMillis();
+        assertArrayEquals(InetAddress.getByName("127.0.0.1").getAddress(), cache.resolve("localhost")[0].getAddress());
+        assertTrue(System.currentTimeMillis() - start < 40);
+        assertEquals(2, cache.lookups.get());
+    }
+
+    /**
+     * The hosts of a client are resolved in background as soon as it is created
+     */
+    @Test
+    public void testClientPrefetchesHosts() throws Exception {
+        StubDnsCache cache = new StubDnsCache(1000, 100);
+        HttpTransport transport = new URLConnectionTransport();
+        transport.setDnsCache(cache);
+        APIClient client = new APIClient("appID", "key");
+        client.setTransport(transport);
+        Thread.sleep(300);
+        assertEquals(5, cache.getStats().size());
+        assertTrue(cache.getStats().containsKey("appID-dsn.algolia.net"));
+        assertTrue(cache.getStats().containsKey("appID.algolia.net"));
+        assertTrue(cache.getStats().containsKey("appID-3.algolianet.com"));
+    }
+}
@@ -0,0 +1,56 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class FacetCountsTest {
+
+    @Test
+    public void testDecode() throws Exception {
+        byte[] json = "{\"facets\": {\"brand\": {\"sam\\\"sung\": 12, \"apple\": 40, \"\\u00e9clair\": 2, \"Zeta\": 1}}, \"nbHits\": 1.5e1, \"ok\": [true, null, \"é\"]}".getBytes("UTF-8");
+        JSONReader reader = new JSONReader(json);
+        reader.beginObject();
+        assertEquals("facets", reader.nextName());
+        reader.beginObject();
+        assertEquals("brand", reader.nextName());
+        FacetCounts counts = FacetCounts.decode(reader);
+        reader.endObject();
+        assertTrue(reader.hasNext());
+        assertEquals("nbHits", reader.nextName());
+        assertEquals(15, reader.nextInt());
+        assertTrue(reader.hasNext());
+        assertEquals("ok", reader.nextName());
+        assertEquals("[true, null, \"é\"]", reader.nextRawValue());
+        reader.endObject();
+
+        assertEquals(4, counts.size());
+        String[] sorted = { "Zeta", "apple", "sam\"sung", "\u00e9clair" };
+        for (int i = 0; i < sorted.length; ++i) {
+            assertEquals(sorted[i], counts.getValue(i));
+        }
+        assertEquals(40, counts.getCount("apple"));
+        assertEquals(12, counts.getCount(2));
+        assertEquals(0, counts.getCount("nokia"));
+        assertTrue(counts.indexOf("nokia") < 0);
+    }
+
+    @Test
+    public void testRequiredValues() throws Exception {
+        FacetCounts counts = FacetCounts.fromJSON(new JSONObject().put("b", 2).put("d", 1));
+        FacetCounts completed = counts.withValues(Arrays.asList("c", "a", "c", "b"));
+        assertEquals(4, completed.size());
+        assertEquals("a", completed.getValue(0));
+        assertEquals(0, completed.getCount("c"));
+        assertEquals(2, completed.getCount("b"));
+        assertEquals(2, completed.withoutZeros().size());
+        assertEquals(1, completed.toJSON().getInt("d"));
+    }
+}
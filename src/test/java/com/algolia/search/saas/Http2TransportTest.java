@@ -0,0 +1,511 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class Http2TransportTest {
+    private static final byte[] ANSWER = "{\"hits\":[],\"nbHits\":0}".getBytes(JSONReader.UTF8);
+
+    private StandInServer server;
+    private Http2Transport transport;
+    private String baseURL;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new StandInServer(8);
+        baseURL = "http://127.0.0.1:" + server.getPort();
+        transport = new Http2Transport(new URLConnectionTransport(), true);
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        transport.shutdown();
+        server.close();
+    }
+
+    private HttpTransport.Request request(String method, String path, String body) {
+        return request(method, path, body, 2000);
+    }
+
+    private HttpTransport.Request request(String method, String path, String body, int readTimeout) {
+        return request(method, path, body, readTimeout, new HashMap<String, String>());
+    }
+
+    private HttpTransport.Request request(String method, String path, String body, int readTimeout, Map<String, String> headers) {
+        headers.put("X-Algolia-API-Key", "key");
+        headers.put("Connection", "keep-alive");
+        byte[] bytes = body == null ? null : body.getBytes(JSONReader.UTF8);
+        return new HttpTransport.Request(method, baseURL + path, headers, bytes, bytes == null ? 0 : bytes.length, 2000, readTimeout);
+    }
+
+    private static String read(HttpTransport.Response response) throws IOException {
+        try {
+            BufferPool pool = new BufferPool(1024, 0);
+            return pool.decode(pool.readFully(response.getBody(), response.getContentLength()));
+        } finally {
+            response.close();
+        }
+    }
+
+    @Test
+    public void testRequests() throws Exception {
+        HttpTransport.Response response = transport.execute(request("GET", "/1/indexes/test?query=a", null));
+        assertEquals(200, response.getStatusCode());
+        assertEquals(new String(ANSWER, "UTF-8"), read(response));
+
+        response = transport.execute(request("POST", "/1/indexes/*/queries", "{\"requests\":[\"é\"]}"));
+        assertEquals("{\"requests\":[\"é\"]}", read(response));
+
+        response = transport.execute(request("GET", "/missing", null));
+        assertEquals(404, response.getStatusCode());
+        assertEquals("{\"message\":\"Index does not exist\"}", read(response));
+
+        // larger than the 16KB window announced by the server: sent as the server updates it
+        StringBuilder large = new StringBuilder();
+        while (large.length() < 200000) {
+            large.append("{\"objectID\":\"").append(large.length()).append("\"},");
+        }
+        response = transport.execute(request("POST", "/1/indexes/test/batch", large.toString()));
+        assertEquals(large.toString(), read(response));
+
+        // header block larger than a frame: split in CONTINUATION frames
+        char[] value = new char[40000];
+        Arrays.fill(value, 'x');
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("X-Algolia-TagFilters", new String(value));
+        response = transport.execute(request("GET", "/1/indexes/test", null, 2000, headers));
+        assertEquals(200, response.getStatusCode());
+        assertEquals(40000, Integer.parseInt(server.lastHeaderLength.toString()));
+        read(response);
+
+        assertEquals(1, server.connections.get());
+        assertEquals(1, transport.getOpenConnections());
+    }
+
+    /**
+     * Concurrent searches, multiple queries and getObjects from many threads share one connection
+     */
+    @Test
+    public void testConcurrentCallsShareConnection() throws Exception {
+        final APIClient client = new APIClient("appID", "key", Arrays.asList("127.0.0.1:" + server.getPort()));
+        client.setTransport(new LocalTransport(transport));
+        final Index index = client.initIndex("test");
+        ExecutorService executor = Executors.newFixedThreadPool(32);
+        List<Future<Object>> results = new ArrayList<Future<Object>>();
+        for (int i = 0; i < 300; ++i) {
+            final int n = i;
+            results.add(executor.submit(new Callable<Object>() {
+                public Object call() throws Exception {
+                    switch (n % 3) {
+                    case 0:
+                        return index.search(new Query("q" + n)).getInt("nbHits");
+                    case 1:
+                        return client.multipleQueries(Arrays.asList(new APIClient.IndexQuery("test", new Query("q" + n)))).getJSONArray("requests");
+                    default:
+                        return index.getObjects(Arrays.asList("o" + n)).getJSONArray("requests");
+                    }
+                }
+            }));
+        }
+        for (Future<Object> result : results) {
+            result.get(10, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        assertEquals(1, server.connections.get());
+        assertTrue(server.maxActiveStreams.get() > 1);
+    }
+
+    @Test
+    public void testMaxConcurrentStreams() throws Exception {
+        final int count = 200;
+        final CountDownLatch done = new CountDownLatch(count);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        for (int i = 0; i < count; ++i) {
+            transport.executeAsync(request("GET", "/1/indexes/test?query=" + i, null), new HttpTransport.Callback() {
+                public void completed(HttpTransport.Response response) {
+                    response.close();
+                    done.countDown();
+                }
+
+                public void failed(IOException e) {
+                    error.set(e);
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertNull(error.get());
+        assertTrue(server.maxActiveStreams.get() <= 8);
+        assertEquals(1, server.connections.get());
+    }
+
+    @Test
+    public void testReadTimeout() throws Exception {
+        try {
+            transport.execute(request("GET", "/slow", null, 200));
+            fail("expected a timeout");
+        } catch (SocketTimeoutException e) {
+            // expected
+        }
+        // only the stream was cancelled
+        assertEquals(200, transport.execute(request("GET", "/1/indexes/test", null)).getStatusCode());
+        assertEquals(1, server.connections.get());
+    }
+
+    @Test
+    public void testGoAway() throws Exception {
+        assertEquals(200, transport.execute(request("GET", "/goaway", null)).getStatusCode());
+        assertEquals(200, transport.execute(request("GET", "/1/indexes/test", null)).getStatusCode());
+        assertEquals(2, server.connections.get());
+    }
+
+    @Test
+    public void testAddressFallback() throws Exception {
+        transport.setDnsCache(new DnsCache() {
+            @Override
+            public InetAddress[] resolve(String host) throws UnknownHostException {
+                // nothing listens on 127.0.0.2: the connection is refused
+                return new InetAddress[] { InetAddress.getByName("127.0.0.2"), InetAddress.getByName("127.0.0.1") };
+            }
+        });
+        assertEquals(200, transport.execute(request("GET", "/1/indexes/test", null)).getStatusCode());
+        assertEquals(1, server.connections.get());
+    }
+
+    /**
+     * The connect is done outside the slot lock: a request waiting for it can be interrupted
+     */
+    @Test
+    public void testRequestsJoinConnectInProgress() throws Exception {
+        final CountDownLatch resolving = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger resolutions = new AtomicInteger();
+        transport.setDnsCache(new DnsCache() {
+            @Override
+            public InetAddress[] resolve(String host) throws UnknownHostException {
+                resolutions.incrementAndGet();
+                resolving.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new UnknownHostException(host);
+                }
+                return new InetAddress[] { InetAddress.getByName("127.0.0.1") };
+            }
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Future<Integer> first = executor.submit(new Callable<Integer>() {
+            public Integer call() throws Exception {
+                return transport.execute(request("GET", "/1/indexes/test", null)).getStatusCode();
+            }
+        });
+        assertTrue(resolving.await(2, TimeUnit.SECONDS));
+        final AtomicReference<Thread> waiter = new AtomicReference<Thread>();
+        Future<Integer> second = executor.submit(new Callable<Integer>() {
+            public Integer call() throws Exception {
+                waiter.set(Thread.currentThread());
+                return transport.execute(request("GET", "/1/indexes/test", null)).getStatusCode();
+            }
+        });
+        while (waiter.get() == null) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+        waiter.get().interrupt();
+        try {
+            second.get(1, TimeUnit.SECONDS);
+            fail("the interrupted request should fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof InterruptedIOException);
+        }
+        release.countDown();
+        assertEquals(200, first.get(5, TimeUnit.SECONDS).intValue());
+        executor.shutdown();
+        assertEquals(1, resolutions.get());
+        assertEquals(1, server.connections.get());
+    }
+
+    @Test
+    public void testFallbackWithoutPriorKnowledge() throws Exception {
+        final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+        Http2Transport http2 = new Http2Transport(new HttpTransport() {
+            @Override
+            public Response execute(Request request) throws IOException {
+                sent.add(request.getURL());
+                return new Response(200, null, 0);
+            }
+        }, false);
+        assertEquals(200, http2.execute(request("GET", "/1/indexes/test", null)).getStatusCode());
+        assertEquals(Arrays.asList(baseURL + "/1/indexes/test"), sent);
+        assertEquals(0, server.connections.get());
+    }
+
+    /**
+     * Searches sent by 64 threads, multiplexed over one connection to the stand-in server.
+     * Set ALGOLIA_BENCHMARK to run it.
+     */
+    @Test
+    public void benchmarkMultiplexing() throws Exception {
+        Assume.assumeTrue(System.getenv("ALGOLIA_BENCHMARK") != null);
+        server.close();
+        server = new StandInServer(256);
+        baseURL = "http://127.0.0.1:" + server.getPort();
+        for (int round = 0; round < 2; ++round) {
+            long start = System.nanoTime();
+            int requests = runSearches(transport, 64, 300);
+            long elapsed = System.nanoTime() - start;
+            if (round == 1) {
+                System.out.println(String.format("Http2Transport: %d requests in %d ms (%.0f req/s) on %d connection(s)",
+                        requests, elapsed / 1000000, requests * 1e9 / elapsed, server.connections.get()));
+            }
+        }
+    }
+
+    private int runSearches(final HttpTransport transport, int threads, final int perThread) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int t = 0; t < threads; ++t) {
+            results.add(executor.submit(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    for (int i = 0; i < perThread; ++i) {
+                        read(transport.execute(request("GET", "/1/indexes/test?query=q" + i, null)));
+                    }
+                    return perThread;
+                }
+            }));
+        }
+        int total = 0;
+        for (Future<Integer> result : results) {
+            total += result.get();
+        }
+        executor.shutdown();
+        return total;
+    }
+
+    /**
+     * Minimal HTTP/2 server with prior knowledge: echoes request bodies, answers 404 on /missing,
+     * after 1s on /slow, and sends GOAWAY then closes the connection on /goaway.
+     * It announces a 16KB stream window and the given stream limit.
+     */
+    static final class StandInServer implements Runnable {
+        final AtomicInteger connections = new AtomicInteger();
+        final AtomicInteger activeStreams = new AtomicInteger();
+        final AtomicInteger maxActiveStreams = new AtomicInteger();
+        final StringBuffer lastHeaderLength = new StringBuffer();
+        private final ServerSocket serverSocket;
+        private final int maxStreams;
+        private final ExecutorService workers = Executors.newCachedThreadPool();
+        private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<Socket>());
+
+        StandInServer(int maxStreams) throws IOException {
+            this.maxStreams = maxStreams;
+            this.serverSocket = new ServerSocket(0, 128, InetAddress.getByName("127.0.0.1"));
+            Thread thread = new Thread(this, "StandInServer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+            synchronized (sockets) {
+                for (Socket socket : sockets) {
+                    socket.close();
+                }
+            }
+            workers.shutdownNow();
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    final Socket socket = serverSocket.accept();
+                    socket.setTcpNoDelay(true);
+                    sockets.add(socket);
+                    connections.incrementAndGet();
+                    Thread thread = new Thread(new Runnable() {
+                        public void run() {
+                            try {
+                                serve(socket);
+                            } catch (IOException e) {
+                                // connection closed
+                            }
+                        }
+                    });
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            } catch (IOException e) {
+                // server closed
+            }
+        }
+
+        private void serve(final Socket socket) throws IOException {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            final OutputStream out = socket.getOutputStream();
+            byte[] preface = new byte[24];
+            in.readFully(preface);
+            if (!new String(preface, "ISO-8859-1").equals("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n")) {
+                throw new IOException("Invalid preface");
+            }
+            byte[] settings = new byte[12];
+            Http2Transport.putSetting(settings, 0, Http2Transport.SETTINGS_MAX_CONCURRENT_STREAMS, maxStreams);
+            Http2Transport.putSetting(settings, 6, Http2Transport.SETTINGS_INITIAL_WINDOW_SIZE, 16384);
+            write(out, Http2Transport.SETTINGS, 0, 0, settings, 0, settings.length);
+            Hpack.Decoder decoder = new Hpack.Decoder(4096);
+            Map<Integer, String> paths = new HashMap<Integer, String>();
+            Map<Integer, ByteArrayOutputStream> bodies = new HashMap<Integer, ByteArrayOutputStream>();
+            ByteArrayOutputStream headerBlock = new ByteArrayOutputStream();
+            boolean headerEndStream = false;
+            byte[] head = new byte[9];
+            while (true) {
+                in.readFully(head);
+                int length = ((head[0] & 0xff) << 16) | ((head[1] & 0xff) << 8) | (head[2] & 0xff);
+                int type = head[3];
+                int flags = head[4];
+                int streamId = Http2Transport.readInt32(head, 5);
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                switch (type) {
+                case Http2Transport.SETTINGS:
+                    if ((flags & Http2Transport.FLAG_ACK) == 0) {
+                        write(out, Http2Transport.SETTINGS, Http2Transport.FLAG_ACK, 0, new byte[0], 0, 0);
+                    }
+                    break;
+                case Http2Transport.HEADERS:
+                case Http2Transport.CONTINUATION:
+                    if (type == Http2Transport.HEADERS) {
+                        headerBlock.reset();
+                        headerEndStream = (flags & Http2Transport.FLAG_END_STREAM) != 0;
+                    }
+                    headerBlock.write(payload, 0, length);
+                    if ((flags & Http2Transport.FLAG_END_HEADERS) != 0) {
+                        byte[] block = headerBlock.toByteArray();
+                        List<String> headers = decoder.decode(block, 0, block.length);
+                        for (int i = 0; i < headers.size(); i += 2) {
+                            if (headers.get(i).equals(":path")) {
+                                paths.put(streamId, headers.get(i + 1));
+                            } else if (headers.get(i).equals("x-algolia-tagfilters")) {
+                                lastHeaderLength.setLength(0);
+                                lastHeaderLength.append(headers.get(i + 1).length());
+                            } else if (headers.get(i).equals("connection")) {
+                                throw new IOException("Connection-specific header sent");
+                            }
+                        }
+                        bodies.put(streamId, new ByteArrayOutputStream());
+                        if (headerEndStream) {
+                            respond(out, streamId, paths.remove(streamId), bodies.remove(streamId).toByteArray());
+                        }
+                    }
+                    break;
+                case Http2Transport.DATA:
+                    bodies.get(streamId).write(payload, 0, length);
+                    if (length > 0) {
+                        write(out, Http2Transport.WINDOW_UPDATE, 0, 0, Http2Transport.int32(length), 0, 4);
+                        write(out, Http2Transport.WINDOW_UPDATE, 0, streamId, Http2Transport.int32(length), 0, 4);
+                    }
+                    if ((flags & Http2Transport.FLAG_END_STREAM) != 0) {
+                        respond(out, streamId, paths.remove(streamId), bodies.remove(streamId).toByteArray());
+                    }
+                    break;
+                default:
+                    // RST_STREAM, WINDOW_UPDATE, PING: nothing to do
+                }
+            }
+        }
+
+        private void respond(final OutputStream out, final int streamId, final String path, final byte[] received) {
+            int active = activeStreams.incrementAndGet();
+            while (true) {
+                int max = maxActiveStreams.get();
+                if (active <= max || maxActiveStreams.compareAndSet(max, active)) {
+                    break;
+                }
+            }
+            workers.execute(new Runnable() {
+                public void run() {
+                    try {
+                        String file = path.indexOf('?') >= 0 ? path.substring(0, path.indexOf('?')) : path;
+                        byte[] body = received.length > 0 ? received : ANSWER;
+                        int status = 200;
+                        if (file.equals("/missing")) {
+                            status = 404;
+                            body = "{\"message\":\"Index does not exist\"}".getBytes(JSONReader.UTF8);
+                        } else if (file.equals("/slow")) {
+                            Thread.sleep(1000);
+                        } else if (file.equals("/goaway")) {
+                            byte[] goAway = new byte[8];
+                            System.arraycopy(Http2Transport.int32(streamId), 0, goAway, 0, 4);
+                            write(out, Http2Transport.GOAWAY, 0, 0, goAway, 0, 8);
+                        }
+                        ByteArrayOutputStream block = new ByteArrayOutputStream();
+                        Hpack.encode(Arrays.asList(":status", String.valueOf(status), "content-type", "application/json"), block);
+                        activeStreams.decrementAndGet();
+                        synchronized (out) {
+                            write(out, Http2Transport.HEADERS, Http2Transport.FLAG_END_HEADERS, streamId, block.toByteArray(), 0, block.size());
+                            for (int offset = 0; offset < body.length; offset += Http2Transport.DEFAULT_FRAME_SIZE) {
+                                int length = Math.min(body.length - offset, Http2Transport.DEFAULT_FRAME_SIZE);
+                                write(out, Http2Transport.DATA, offset + length == body.length ? Http2Transport.FLAG_END_STREAM : 0, streamId, body, offset, length);
+                            }
+                        }
+                        if (file.equals("/goaway")) {
+                            out.close();
+                        }
+                    } catch (Exception e) {
+                        // connection closed
+                    }
+                }
+            });
+        }
+
+        private static void write(OutputStream out, int type, int flags, int streamId, byte[] payload, int offset, int length) throws IOException {
+            synchronized (out) {
+                byte[] head = { (byte) (length >>> 16), (byte) (length >>> 8), (byte) length, (byte) type, (byte) flags, 0, 0, 0, 0 };
+                System.arraycopy(Http2Transport.int32(streamId), 0, head, 5, 4);
+                out.write(head);
+                out.write(payload, offset, length);
+                out.flush();
+            }
+        }
+    }
+}
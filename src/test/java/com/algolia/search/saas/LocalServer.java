@@ -0,0 +1,107 @@
+package com.algolia.search.saas;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for the API hosts, answering every request with the JSON of its handler
+ */
+class LocalServer {
+    /**
+     * Status and JSON body answered to one request
+     */
+    static final class Answer {
+        final int status;
+        final String body;
+
+        Answer(int status, String body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    interface Handler {
+        Answer handle(HttpExchange exchange) throws IOException;
+    }
+
+    /**
+     * Number of requests received
+     */
+    final AtomicInteger requests = new AtomicInteger();
+    private final HttpServer server;
+
+    /**
+     * Server answering 200 with the same body to every request
+     */
+    LocalServer(final String body) throws IOException {
+        this(4, 16, new Handler() {
+            public Answer handle(HttpExchange exchange) {
+                return new Answer(200, body);
+            }
+        });
+    }
+
+    LocalServer(Handler handler) throws IOException {
+        this(4, 16, handler);
+    }
+
+    /**
+     * @param threads number of requests handled concurrently
+     * @param backlog connections waiting to be accepted
+     */
+    LocalServer(int threads, int backlog, final Handler handler) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), backlog);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                Answer answer = handler.handle(exchange);
+                byte[] body = answer.body.getBytes(JSONReader.UTF8);
+                exchange.sendResponseHeaders(answer.status, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(threads));
+        server.start();
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Host to give to APIClient
+     */
+    String host() {
+        return "127.0.0.1:" + getPort();
+    }
+
+    /**
+     * Client sending its requests to this server only
+     */
+    APIClient client() {
+        return client(host());
+    }
+
+    /**
+     * Client sending its https requests as plain http to the given hosts
+     */
+    static APIClient client(String... hosts) {
+        APIClient client = new APIClient("appID", "key", Arrays.asList(hosts));
+        client.setTransport(new LocalTransport(new ApacheHttpTransport()));
+        return client;
+    }
+
+    void stop() {
+        server.stop(0);
+    }
+}
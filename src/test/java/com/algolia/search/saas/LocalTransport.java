@@ -0,0 +1,34 @@
+package com.algolia.search.saas;
+
+import java.io.IOException;
+
+/**
+ * Sends the https requests of APIClient as plain http to a local stand-in server
+ */
+class LocalTransport extends HttpTransport {
+    private final HttpTransport transport;
+
+    LocalTransport(HttpTransport transport) {
+        this.transport = transport;
+    }
+
+    private static Request toHTTP(Request r) {
+        return new Request(r.getMethod(), r.getURL().replace("https://", "http://"), r.getHeaders(), r.getBody(),
+                r.getBodyLength(), r.getConnectTimeoutMS(), r.getReadTimeoutMS());
+    }
+
+    @Override
+    public Response execute(Request request) throws IOException {
+        return transport.execute(toHTTP(request));
+    }
+
+    @Override
+    public void executeAsync(Request request, Callback callback) {
+        transport.executeAsync(toHTTP(request), callback);
+    }
+
+    @Override
+    public void shutdown() {
+        transport.shutdown();
+    }
+}
@@ -0,0 +1,121 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.sun.net.httpserver.HttpExchange;
+
+@RunWith(JUnit4.class)
+public class MetricsRegistryTest {
+    private static final String ANSWER = "{\"hits\":[],\"nbHits\":0,\"taskID\":1}";
+    private LocalServer server;
+    private String host;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new LocalServer(new LocalServer.Handler() {
+            public LocalServer.Answer handle(HttpExchange exchange) {
+                return new LocalServer.Answer(exchange.getRequestURI().getPath().endsWith("/missing") ? 404 : 200, ANSWER);
+            }
+        });
+        host = server.host();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    @Test
+    public void testHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; ++i) {
+            histogram.record(i * 1000);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000000, histogram.getMaxMicros());
+        assertEquals(500500, histogram.getMeanMicros(), 0.1);
+        // within the precision of the buckets
+        long p50 = histogram.getPercentileMicros(50);
+        assertTrue("p50 " + p50, p50 >= 500000 && p50 <= 500000 * 1.07);
+        long p99 = histogram.getPercentileMicros(99);
+        assertTrue("p99 " + p99, p99 >= 990000 && p99 <= 1000000);
+        assertEquals(1000000, histogram.getPercentileMicros(100));
+        // small values are exact
+        for (int i = 0; i < 16; ++i) {
+            assertEquals(i, LatencyHistogram.highestValue(LatencyHistogram.bucket(i)));
+        }
+        histogram.reset();
+        assertEquals(0, histogram.getPercentileMicros(50));
+    }
+
+    @Test
+    public void testEndpointName() {
+        assertEquals("search", MetricsRegistry.endpointName("GET", "/1/indexes/test?query=a"));
+        assertEquals("search", MetricsRegistry.endpointName("GET", "/1/indexes/test"));
+        assertEquals("search", MetricsRegistry.endpointName("POST", "/1/indexes/test/query"));
+        assertEquals("multipleQueries", MetricsRegistry.endpointName("POST", "/1/indexes/*/queries"));
+        assertEquals("getObject", MetricsRegistry.endpointName("GET", "/1/indexes/test/42?attributes=a"));
+        assertEquals("getObjects", MetricsRegistry.endpointName("POST", "/1/indexes/*/objects"));
+        assertEquals("browse", MetricsRegistry.endpointName("GET", "/1/indexes/test/browse?page=1"));
+        assertEquals("batch", MetricsRegistry.endpointName("POST", "/1/indexes/test/batch"));
+        assertEquals("task", MetricsRegistry.endpointName("GET", "/1/indexes/test/task/12"));
+        assertEquals("settings", MetricsRegistry.endpointName("GET", "/1/indexes/test/settings"));
+        assertEquals("write", MetricsRegistry.endpointName("POST", "/1/indexes/test"));
+        assertEquals("read", MetricsRegistry.endpointName("GET", "/1/indexes/test/keys"));
+    }
+
+    @Test
+    public void testCalls() throws Exception {
+        // the first host refuses connections
+        APIClient client = LocalServer.client("127.0.0.1:1", host);
+        Index index = client.initIndex("test");
+        index.search(new Query("a"));
+        index.search(new Query("b"));
+        index.batch(new JSONArray());
+        try {
+            index.getObject("missing");
+            fail("the object does not exist");
+        } catch (AlgoliaException e) {
+            // a 4xx answer is an error of the call, not of the host
+        }
+
+        MetricsRegistry.EndpointMetrics search = client.getMetrics().getEndpoints().get("search");
+        assertEquals(2, search.getCalls());
+        assertEquals(0, search.getErrors());
+        assertEquals(2, search.getRetries());
+        assertEquals(2, search.getFailovers());
+        assertEquals(2 * ANSWER.length(), search.getBytesReceived());
+        MetricsRegistry.EndpointMetrics batch = client.getMetrics().getEndpoints().get("batch");
+        assertEquals(1, batch.getCalls());
+        assertTrue(batch.getBytesSent() > 0);
+        assertEquals(1, client.getMetrics().getEndpoints().get("getObject").getErrors());
+
+        MetricsRegistry.HostMetrics refused = client.getMetrics().getHosts().get("127.0.0.1:1");
+        assertEquals(refused.getAttempts(), refused.getFailures());
+        MetricsRegistry.HostMetrics answering = client.getMetrics().getHosts().get(host);
+        assertEquals(4, answering.getAttempts());
+        assertEquals(0, answering.getFailures());
+
+        JSONObject snapshot = client.getMetrics().snapshot();
+        JSONObject searchJSON = snapshot.getJSONObject("endpoints").getJSONObject("search");
+        assertEquals(2, searchJSON.getLong("calls"));
+        assertEquals(2, searchJSON.getLong("failovers"));
+        JSONObject latency = searchJSON.getJSONObject("latencyMS");
+        assertTrue(latency.getDouble("p50") <= latency.getDouble("max"));
+        assertEquals(4, snapshot.getJSONObject("hosts").getJSONObject(host).getLong("attempts"));
+        client.getMetrics().reset();
+        assertEquals(0, client.getMetrics().snapshot().getJSONObject("endpoints").length());
+    }
+}
@@ -0,0 +1,238 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.algolia.search.saas.Query.QueryType;
+
+@RunWith(JUnit4.class)
+public class OfflineMirrorTest {
+
+    static class BrowseClient extends APIClient {
+        final JSONArray records;
+        boolean online = true;
+
+        BrowseClient(JSONArray records) {
+            super("appID", "apiKey");
+            this.records = records;
+        }
+
+        @Override
+        protected JSONObject getRequest(String url, boolean search) throws AlgoliaException {
+            try {
+                if (url.contains("/browse")) {
+                    return new JSONObject().put("hits", records).put("cursor", "");
+                }
+                if (!online) {
+                    throw new AlgoliaException(HOSTS_UNREACHABLE + "host=java.net.UnknownHostException");
+                }
+                return new JSONObject().put("hits", new JSONArray()).put("nbHits", 0);
+            } catch (JSONException e) {
+                throw new AlgoliaException(e.getMessage());
+            }
+        }
+
+        @Override
+        protected byte[] getRequestRaw(String url, boolean search, boolean cacheable) throws AlgoliaException {
+            return getRequest(url, search).toString().getBytes(JSONReader.UTF8);
+        }
+    }
+
+    private File file;
+    private BrowseClient client;
+    private Index index;
+
+    @Before
+    public void init() throws Exception {
+        JSONArray records = new JSONArray();
+        records.put(new JSONObject().put("objectID", "1").put("name", "Jimmie Barninger").put("followers", 93).put("_tags", new JSONArray(Arrays.asList("paint", "california"))));
+        records.put(new JSONObject().put("objectID", "2").put("name", "Warren Speach").put("followers", 42).put("_tags", new JSONArray(Arrays.asList("paint"))));
+        records.put(new JSONObject().put("objectID", "3").put("name", "Jimmy Étoile").put("followers", 12).put("company", "Barn Corp"));
+        file = File.createTempFile("mirror", ".bin");
+        file.delete();
+        file.deleteOnExit();
+        client = new BrowseClient(records);
+        index = client.initIndex("index");
+    }
+
+    @Test
+    public void testPrefixSearch() throws Exception {
+        OfflineMirror mirror = index.createOfflineMirror(file);
+        assertFalse(mirror.isReady());
+        mirror.sync();
+        assertEquals(3, mirror.size());
+
+        assertEquals(2, mirror.search(new Query("jim")).getInt("nbHits"));
+        assertEquals(1, mirror.search(new Query("jimmie barn")).getInt("nbHits"));
+        assertEquals(2, mirror.search(new Query("barn")).getInt("nbHits"));
+        assertEquals(1, mirror.search(new Query("barn").setQueryType(QueryType.PREFIX_NONE)).getInt("nbHits"));
+        assertEquals(1, mirror.search(new Query("etoile")).getInt("nbHits"));
+        assertEquals(3, mirror.search(new Query("")).getInt("nbHits"));
+    }
+
+    @Test
+    public void testPaginationAndAttributes() throws Exception {
+        OfflineMirror mirror = index.createOfflineMirror(file);
+        mirror.sync();
+        JSONObject res = mirror.search(new Query("").setHitsPerPage(2).setPage(1).setAttributesToRetrieve(Arrays.asList("name")));
+        assertEquals(3, res.getInt("nbHits"));
+        assertEquals(2, res.getInt("nbPages"));
+        assertEquals(1, res.getJSONArray("hits").length());
+        JSONObject hit = res.getJSONArray("hits").getJSONObject(0);
+        assertEquals("3", hit.getString("objectID"));
+        assertTrue(hit.has("name"));
+        assertFalse(hit.has("followers"));
+    }
+
+    @Test
+    public void testFilters() throws Exception {
+        OfflineMirror mirror = index.createOfflineMirror(file);
+        mirror.sync();
+        assertEquals(2, mirror.search(new Query("").setTagFilters("paint")).getInt("nbHits"));
+        assertEquals(1, mirror.search(new Query("").setTagFilters("paint,california")).getInt("nbHits"));
+        assertEquals(2, mirror.search(new Query("").setTagFilters("(california,-paint)")).getInt("nbHits"));
+        assertEquals(2, mirror.search(new Query("").setNumericFilters("followers>20")).getInt("nbHits"));
+        assertEquals(1, mirror.search(new Query("").setNumericFilters("followers>20,followers<=42")).getInt("nbHits"));
+        assertEquals(2, mirror.search(new Query("").setNumericFilters("followers:10 to 50")).getInt("nbHits"));
+        assertEquals(1, mirror.search(new Query("jim").setNumericFilters("followers!=93")).getInt("nbHits"));
+    }
+
+    @Test
+    public void testPersistence() throws Exception {
+        index.createOfflineMirror(file).sync();
+        OfflineMirror mirror = index.createOfflineMirror(file);
+        assertTrue(mirror.load());
+        assertEquals(3, mirror.size());
+        assertEquals(2, mirror.search(new Query("jim")).getInt("nbHits"));
+    }
+
+    @Test
+    public void testHitsCopied() throws Exception {
+        OfflineMirror mirror = index.createOfflineMirror(file);
+        mirror.sync();
+        mirror.search(new Query("warren")).getJSONArray("hits").getJSONObject(0).put("name", "changed").getJSONArray("_tags").put("changed");
+        JSONObject hit = mirror.search(new Query("warren")).getJSONArray("hits").getJSONObject(0);
+        assertEquals("Warren Speach", hit.getString("name"));
+        assertEquals(1, hit.getJSONArray("_tags").length());
+    }
+
+    @Test
+    public void testCorruptedFile() throws Exception {
+        DataOutputStream out = new DataOutputStream(new GZIPOutputStream(new FileOutputStream(file)));
+        out.writeInt(0x414c474d);
+        out.writeInt(1);
+        out.writeInt(Integer.MAX_VALUE);
+        out.close();
+        try {
+            index.createOfflineMirror(file).load();
+            fail("the record count exceeds the content of the file");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Corrupted offline mirror"));
+        }
+    }
+
+    /**
+     * A file too short for the gzip header fails in the GZIPInputStream constructor, it must still be closed
+     */
+    @Test
+    public void testTruncatedFileClosed() throws Exception {
+        File fds = new File("/proc/self/fd");
+        Assume.assumeTrue(fds.isDirectory());
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(new byte[] { 0x1f, (byte) 0x8b });
+        out.close();
+        OfflineMirror mirror = index.createOfflineMirror(file);
+        int open = fds.list().length;
+        for (int i = 0; i < 20; ++i) {
+            try {
+                mirror.load();
+                fail("the file is truncated");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+        assertTrue(fds.list().length < open + 20);
+    }
+
+    @Test
+    public void testSearchFallback() throws Exception {
+        OfflineMirror mirror = index.createOfflineMirror(file);
+        mirror.sync();
+        index.setOfflineMirror(mirror);
+        assertEquals(0, index.search(new Query("jim")).getInt("nbHits"));
+        client.online = false;
+        JSONObject res = index.search(new Query("jim"));
+        assertEquals(2, res.getInt("nbHits"));
+        assertTrue(res.getBoolean("offline"));
+        assertEquals(2, index.searchTyped(new Query("jim"), index.getKeyDictionary()).getNbHits());
+        try {
+            index.search(new Query("jim").setNumericFilters("followers>many"));
+            fail("the filter cannot be evaluated");
+        } catch (AlgoliaException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Invalid numeric filter"));
+        }
+    }
+
+    @Test
+    public void testLocalFacetCounts() throws Exception {
+        JSONArray hits = new JSONArray();
+        hits.put(new JSONObject().put("brand", "Apple").put("type", "phone").put("colors", new JSONArray(Arrays.asList("black", "white"))));
+        hits.put(new JSONObject().put("brand", "Apple").put("type", "laptop").put("colors", new JSONArray(Arrays.asList("grey"))));
+        hits.put(new JSONObject().put("brand", "Samsung").put("type", "phone").put("colors", new JSONArray(Arrays.asList("black"))));
+        hits.put(new JSONObject().put("brand", "Sony").put("type", "tv").put("colors", new JSONArray(Arrays.asList("black"))));
+        LocalFacetEngine engine = new LocalFacetEngine(hits);
+
+        Map<String, List<String>> refinements = new HashMap<String, List<String>>();
+        refinements.put("brand", Arrays.asList("Apple", "Samsung"));
+        refinements.put("colors", Arrays.asList("black"));
+        JSONObject res = engine.disjunctiveFaceting(new Query().setFacets(Arrays.asList("type", "colors")), Arrays.asList("brand"), refinements);
+        assertEquals(2, res.getInt("nbHits"));
+        assertEquals(2, res.getJSONObject("facets").getJSONObject("colors").getInt("black"));
+        JSONObject types = res.getJSONObject("facets").getJSONObject("type");
+        assertEquals(2, types.getInt("phone"));
+        assertFalse(types.has("laptop"));
+        JSONObject brands = res.getJSONObject("disjunctiveFacets").getJSONObject("brand");
+        assertEquals(1, brands.getInt("Apple"));
+        assertEquals(1, brands.getInt("Samsung"));
+        assertEquals(1, brands.getInt("Sony"));
+
+        refinements.put("brand", Arrays.asList("Nokia"));
+        res = engine.disjunctiveFaceting(new Query(), Arrays.asList("brand"), refinements);
+        assertEquals(0, res.getInt("nbHits"));
+        assertEquals(0, res.getJSONObject("disjunctiveFacets").getJSONObject("brand").getInt("Nokia"));
+    }
+
+    @Test
+    public void testMirrorFacetCounts() throws Exception {
+        OfflineMirror mirror = index.createOfflineMirror(file);
+        mirror.sync();
+        Map<String, List<String>> refinements = new HashMap<String, List<String>>();
+        refinements.put("_tags", Arrays.asList("california"));
+        JSONObject res = mirror.createFacetEngine().disjunctiveFaceting(new Query("jim"), Arrays.asList("_tags"), refinements);
+        assertEquals(1, res.getInt("nbHits"));
+        JSONObject tags = res.getJSONObject("disjunctiveFacets").getJSONObject("_tags");
+        assertEquals(1, tags.getInt("paint"));
+        assertEquals(1, tags.getInt("california"));
+    }
+}
@@ -0,0 +1,141 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class PartialUpdateBufferTest {
+
+    static class RecordingClient extends APIClient {
+        final List<String> urls = new ArrayList<String>();
+        final List<JSONObject> bodies = new ArrayList<JSONObject>();
+
+        RecordingClient() {
+            super("appID", "apiKey");
+        }
+
+        @Override
+        protected synchronized JSONObject postRequest(String url, String obj, boolean readOperation) throws AlgoliaException {
+            try {
+                urls.add(url);
+                bodies.add(new JSONObject(obj));
+                return new JSONObject().put("taskID", 42);
+            } catch (JSONException e) {
+                throw new AlgoliaException(e.getMessage());
+            }
+        }
+    }
+
+    private static void waitForBatches(RecordingClient client, int count) throws InterruptedException {
+        for (int i = 0; i < 200; ++i) {
+            synchronized (client) {
+                if (client.bodies.size() >= count) {
+                    return;
+                }
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testMergePerObjectID() throws Exception {
+        RecordingClient client = new RecordingClient();
+        Index index = client.initIndex("index");
+        PartialUpdateBuffer buffer = index.createPartialUpdateBuffer(60000, 100, null);
+        buffer.add(new JSONObject().put("status", "online").put("views", new JSONObject().put("_operation", "Increment").put("value", 1)), "a");
+        buffer.add(new JSONObject().put("status", "offline"), "b");
+        buffer.add(new JSONObject().put("status", "away").put("views", new JSONObject().put("_operation", "Increment").put("value", 2)), "a");
+        buffer.add(new JSONObject().put("views", new JSONObject().put("_operation", "Decrement").put("value", 1)), "a");
+        assertEquals(2, buffer.getPendingCount());
+
+        buffer.flush();
+        assertEquals(0, buffer.getPendingCount());
+        assertEquals(1, client.bodies.size());
+        assertEquals("/1/indexes/index/batch", client.urls.get(0));
+        JSONArray requests = client.bodies.get(0).getJSONArray("requests");
+        assertEquals(2, requests.length());
+        JSONObject first = requests.getJSONObject(0);
+        assertEquals("partialUpdateObject", first.getString("action"));
+        assertEquals("a", first.getString("objectID"));
+        assertEquals("away", first.getJSONObject("body").getString("status"));
+        assertEquals("Increment", first.getJSONObject("body").getJSONObject("views").getString("_operation"));
+        assertEquals(2, first.getJSONObject("body").getJSONObject("views").getLong("value"));
+        assertEquals("b", requests.getJSONObject(1).getString("objectID"));
+
+        assertNull(buffer.flush());
+        assertEquals(1, client.bodies.size());
+        buffer.close();
+    }
+
+    @Test
+    public void testFlushOnInterval() throws Exception {
+        RecordingClient client = new RecordingClient();
+        PartialUpdateBuffer buffer = client.initIndex("index").createPartialUpdateBuffer(10, 100, null);
+        buffer.add(new JSONObject().put("counter", 1), "a");
+        waitForBatches(client, 1);
+        synchronized (client) {
+            assertEquals(1, client.bodies.size());
+        }
+        buffer.close();
+    }
+
+    @Test
+    public void testFlushOnMaxPendingObjects() throws Exception {
+        RecordingClient client = new RecordingClient();
+        PartialUpdateBuffer buffer = client.initIndex("index").createPartialUpdateBuffer(60000, 2, null);
+        buffer.add(new JSONObject().put("counter", 1), "a");
+        buffer.add(new JSONObject().put("counter", 2), "a");
+        assertEquals(1, buffer.getPendingCount());
+        buffer.add(new JSONObject().put("counter", 1), "b");
+        waitForBatches(client, 1);
+        synchronized (client) {
+            assertEquals(1, client.bodies.size());
+            assertEquals(2, client.bodies.get(0).getJSONArray("requests").length());
+        }
+        buffer.close();
+    }
+
+    @Test
+    public void testIncrementAfterValue() throws Exception {
+        RecordingClient client = new RecordingClient();
+        PartialUpdateBuffer buffer = client.initIndex("index").createPartialUpdateBuffer(60000, 100, null);
+        buffer.add(new JSONObject().put("views", 10), "a");
+        buffer.add(new JSONObject().put("views", new JSONObject().put("_operation", "Increment").put("value", 1)), "a");
+        buffer.flush();
+        waitForBatches(client, 2);
+        synchronized (client) {
+            // the value is set before being incremented
+            assertEquals(2, client.bodies.size());
+            assertEquals(10, client.bodies.get(0).getJSONArray("requests").getJSONObject(0).getJSONObject("body").getInt("views"));
+            JSONObject increment = client.bodies.get(1).getJSONArray("requests").getJSONObject(0).getJSONObject("body").getJSONObject("views");
+            assertEquals("Increment", increment.getString("_operation"));
+            assertEquals(1, increment.getInt("value"));
+        }
+        buffer.close();
+    }
+
+    @Test
+    public void testRepeatedAdd() throws Exception {
+        RecordingClient client = new RecordingClient();
+        PartialUpdateBuffer buffer = client.initIndex("index").createPartialUpdateBuffer(60000, 100, null);
+        buffer.add(new JSONObject().put("tags", new JSONObject().put("_operation", "Add").put("value", "x")), "a");
+        buffer.add(new JSONObject().put("tags", new JSONObject().put("_operation", "Add").put("value", "y")), "a");
+        buffer.close();
+        synchronized (client) {
+            // both values are added, in order
+            assertEquals(2, client.bodies.size());
+            assertEquals("x", client.bodies.get(0).getJSONArray("requests").getJSONObject(0).getJSONObject("body").getJSONObject("tags").getString("value"));
+            assertEquals("y", client.bodies.get(1).getJSONArray("requests").getJSONObject(0).getJSONObject("body").getJSONObject("tags").getString("value"));
+        }
+    }
+}
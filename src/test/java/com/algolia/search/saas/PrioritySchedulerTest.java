@@ -0,0 +1,196 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.algolia.search.saas.PriorityScheduler.Priority;
+import com.sun.net.httpserver.HttpExchange;
+
+@RunWith(JUnit4.class)
+public class PrioritySchedulerTest {
+    private LocalServer server;
+    private APIClient client;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new LocalServer(8, 16, new LocalServer.Handler() {
+            public LocalServer.Answer handle(HttpExchange exchange) {
+                String path = exchange.getRequestURI().getPath();
+                if (path.endsWith("/browse") || path.endsWith("/batch")) {
+                    // slow exports and uploads
+                    try {
+                        Thread.sleep(300);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return new LocalServer.Answer(200, "{\"hits\":[],\"nbHits\":0,\"taskID\":1}");
+            }
+        });
+        client = server.client();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    private static Runnable record(final List<String> order, final String name) {
+        return new Runnable() {
+            public void run() {
+                order.add(name);
+            }
+        };
+    }
+
+    @Test
+    public void testServedByPriority() throws Exception {
+        PriorityScheduler scheduler = new PriorityScheduler(3, 1, 1);
+        assertTrue(scheduler.acquire(Priority.INTERACTIVE, Long.MAX_VALUE, null));
+        assertTrue(scheduler.acquire(Priority.INTERACTIVE, Long.MAX_VALUE, null));
+        assertTrue(scheduler.acquire(Priority.BACKGROUND, Long.MAX_VALUE, null));
+        List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        assertFalse(scheduler.acquireAsync(Priority.BACKGROUND, record(order, "background")));
+        assertFalse(scheduler.acquireAsync(Priority.NORMAL, record(order, "normal")));
+        assertFalse(scheduler.acquireAsync(Priority.INTERACTIVE, record(order, "interactive")));
+        assertEquals(1, scheduler.getQueued(Priority.BACKGROUND));
+
+        scheduler.release(Priority.INTERACTIVE);
+        assertEquals(Arrays.asList("interactive"), order);
+        scheduler.release(Priority.INTERACTIVE);
+        assertEquals(Arrays.asList("interactive", "normal"), order);
+        // the background quota is still used by the first background call
+        scheduler.release(Priority.NORMAL);
+        assertEquals(2, order.size());
+        scheduler.release(Priority.BACKGROUND);
+        assertEquals(Arrays.asList("interactive", "normal", "background"), order);
+        assertEquals(1, scheduler.getInFlight(Priority.BACKGROUND));
+        assertEquals(3, scheduler.getDelayed(Priority.INTERACTIVE) + scheduler.getDelayed(Priority.NORMAL) + scheduler.getDelayed(Priority.BACKGROUND));
+    }
+
+    @Test
+    public void testInteractiveReserved() throws Exception {
+        PriorityScheduler scheduler = new PriorityScheduler();
+        for (int i = 0; i < 20; ++i) {
+            scheduler.acquireAsync(Priority.NORMAL, null);
+            scheduler.acquireAsync(Priority.BACKGROUND, null);
+        }
+        assertEquals(10, scheduler.getInFlight(Priority.NORMAL));
+        assertEquals(4, scheduler.getInFlight(Priority.BACKGROUND));
+        assertEquals(26, scheduler.getQueued(Priority.NORMAL) + scheduler.getQueued(Priority.BACKGROUND));
+        // granted at once despite the queued calls
+        assertTrue(scheduler.acquireAsync(Priority.INTERACTIVE, null));
+        assertTrue(scheduler.acquire(Priority.INTERACTIVE, System.currentTimeMillis(), null));
+        assertEquals(0, scheduler.getDelayed(Priority.INTERACTIVE));
+        try {
+            new PriorityScheduler(16, 12, 4);
+            fail("no connection is left to interactive calls");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testQuota() throws Exception {
+        PriorityScheduler scheduler = new PriorityScheduler(4, 2, 1);
+        assertTrue(scheduler.acquire(Priority.BACKGROUND, Long.MAX_VALUE, null));
+        long start = System.currentTimeMillis();
+        assertFalse(scheduler.acquire(Priority.BACKGROUND, start + 100, null));
+        assertTrue(System.currentTimeMillis() - start >= 100);
+        assertEquals(0, scheduler.getQueued(Priority.BACKGROUND));
+        // the other classes still get connections
+        assertTrue(scheduler.acquire(Priority.NORMAL, Long.MAX_VALUE, null));
+        assertTrue(scheduler.acquire(Priority.NORMAL, Long.MAX_VALUE, null));
+        assertTrue(scheduler.acquire(Priority.INTERACTIVE, Long.MAX_VALUE, null));
+        CancellationToken token = new CancellationToken();
+        token.cancel();
+        assertFalse(scheduler.acquire(Priority.INTERACTIVE, Long.MAX_VALUE, token));
+        assertEquals(4, scheduler.getGranted(Priority.INTERACTIVE) + scheduler.getGranted(Priority.NORMAL) + scheduler.getGranted(Priority.BACKGROUND));
+    }
+
+    @Test
+    public void testSearchesNotBlockedByBackground() throws Exception {
+        PriorityScheduler scheduler = new PriorityScheduler(3, 1, 1);
+        client.setPriorityScheduler(scheduler);
+        Index index = client.initIndex("test");
+        final CountDownLatch latch = new CountDownLatch(3);
+        ResultHandler<JSONObject> handler = new ResultHandler<JSONObject>() {
+            public void onResult(JSONObject result) {
+                latch.countDown();
+            }
+
+            public void onError(AlgoliaException error) {
+            }
+        };
+        for (int i = 0; i < 3; ++i) {
+            index.batchAsync(new JSONArray(), handler);
+        }
+        Thread.sleep(50);
+        assertEquals(1, scheduler.getInFlight(Priority.BACKGROUND));
+        assertEquals(2, scheduler.getQueued(Priority.BACKGROUND));
+        // the search does not wait for the queued uploads
+        long start = System.currentTimeMillis();
+        index.search(new Query("a"));
+        long duration = System.currentTimeMillis() - start;
+        assertTrue("took " + duration + "ms", duration < 250);
+        assertEquals(1, scheduler.getGranted(Priority.INTERACTIVE));
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(3, scheduler.getGranted(Priority.BACKGROUND));
+        assertEquals(0, scheduler.getInFlight(Priority.BACKGROUND));
+        // the options override the default class of the call
+        index.batch(new JSONArray(), new RequestOptions().setPriority(Priority.INTERACTIVE));
+        assertEquals(2, scheduler.getGranted(Priority.INTERACTIVE));
+        index.addObject(new JSONObject());
+        assertEquals(1, scheduler.getGranted(Priority.NORMAL));
+    }
+
+    @Test
+    public void testQueuedPastDeadline() throws Exception {
+        PriorityScheduler scheduler = new PriorityScheduler(3, 1, 1);
+        client.setPriorityScheduler(scheduler);
+        Index index = client.initIndex("test");
+        final CountDownLatch latch = new CountDownLatch(4);
+        final List<AlgoliaException> errors = Collections.synchronizedList(new ArrayList<AlgoliaException>());
+        ResultHandler<JSONObject> handler = new ResultHandler<JSONObject>() {
+            public void onResult(JSONObject result) {
+                latch.countDown();
+            }
+
+            public void onError(AlgoliaException error) {
+                errors.add(error);
+                latch.countDown();
+            }
+        };
+        // all the connections are taken by slow calls
+        index.batchAsync(new JSONArray(), handler);
+        index.batchAsync(new JSONArray(), new RequestOptions().setPriority(Priority.INTERACTIVE), handler);
+        index.batchAsync(new JSONArray(), new RequestOptions().setPriority(Priority.INTERACTIVE), handler);
+        Thread.sleep(50);
+        index.searchAsync(new Query("a"), new RequestOptions().setTimeout(50), handler);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0).getMessage(), errors.get(0).getMessage().startsWith(APIClient.HOSTS_UNREACHABLE));
+        Thread.sleep(100);
+        assertEquals(0, scheduler.getInFlight(Priority.INTERACTIVE));
+        assertEquals(0, scheduler.getQueued(Priority.INTERACTIVE));
+        assertEquals(0, scheduler.getInFlight(Priority.BACKGROUND));
+    }
+}
@@ -0,0 +1,131 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.algolia.search.saas.CircuitBreaker.EndpointClass;
+import com.algolia.search.saas.RateLimiter.Overflow;
+
+@RunWith(JUnit4.class)
+public class RateLimiterTest {
+    private LocalServer server;
+    private APIClient client;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new LocalServer("{\"hits\":[],\"nbHits\":0}");
+        client = server.client();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    @Test
+    public void testQueue() {
+        RateLimiter limiter = new RateLimiter().addLimit(null, null, 2, 1000, Overflow.QUEUE, 2000);
+        assertEquals(0, limiter.acquire("test", EndpointClass.READ, Long.MAX_VALUE));
+        assertEquals(0, limiter.acquire("test", EndpointClass.WRITE, Long.MAX_VALUE));
+        long third = limiter.acquire("test", EndpointClass.READ, Long.MAX_VALUE);
+        assertTrue("waits " + third, third > 400 && third <= 500);
+        long fourth = limiter.acquire("test", EndpointClass.READ, Long.MAX_VALUE);
+        assertTrue("waits " + fourth, fourth > 900 && fourth <= 1000);
+        // the deadline of the call does not allow the wait
+        assertEquals(-1, limiter.acquire("test", EndpointClass.READ, 1000));
+        RateLimiter.LimitStats stats = limiter.getStats().get(0);
+        assertEquals(4, stats.getAcquired());
+        assertEquals(2, stats.getQueued());
+        assertEquals(1, stats.getShed());
+        assertEquals(third + fourth, stats.getTotalWaitMS());
+        assertEquals(fourth, stats.getMaxWaitMS());
+    }
+
+    @Test
+    public void testMatching() {
+        RateLimiter limiter = new RateLimiter().addLimit("a", EndpointClass.READ, 1, 60000, Overflow.SHED, 0);
+        assertEquals(0, limiter.acquire("a", EndpointClass.READ, Long.MAX_VALUE));
+        assertEquals(-1, limiter.acquire("a", EndpointClass.READ, Long.MAX_VALUE));
+        assertEquals(0, limiter.acquire("a", EndpointClass.WRITE, Long.MAX_VALUE));
+        assertEquals(0, limiter.acquire("b", EndpointClass.READ, Long.MAX_VALUE));
+        assertEquals(0, limiter.acquire("*", EndpointClass.READ, Long.MAX_VALUE));
+        // a call matching several limits takes no token when one of them rejects it
+        limiter.addLimit(null, EndpointClass.WRITE, 10, 60000, Overflow.SHED, 0);
+        assertEquals(-1, limiter.acquire("a", EndpointClass.READ, Long.MAX_VALUE));
+        assertEquals(10, (int) limiter.getStats().get(1).getAvailable());
+    }
+
+    @Test
+    public void testShed() throws Exception {
+        client.setRateLimiter(new RateLimiter().addLimit("test", EndpointClass.READ, 2, 60000, Overflow.SHED, 0));
+        Index index = client.initIndex("test");
+        index.search(new Query("a"));
+        index.search(new Query("b"));
+        try {
+            index.search(new Query("c"));
+            fail("the limit is reached");
+        } catch (AlgoliaException e) {
+            assertEquals(APIClient.RATE_LIMITED, e.getMessage());
+        }
+        assertEquals(2, server.requests.get());
+        // other indexes are not limited
+        client.initIndex("other").search(new Query("a"));
+        assertEquals(3, server.requests.get());
+    }
+
+    @Test
+    public void testQueuedSearches() throws Exception {
+        client.setRateLimiter(new RateLimiter().addLimit(null, null, 2, 400, Overflow.QUEUE, 1000));
+        Index index = client.initIndex("test");
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 4; ++i) {
+            index.search(new Query("a"));
+        }
+        long duration = System.currentTimeMillis() - start;
+        assertTrue("took " + duration + "ms", duration >= 350);
+        assertEquals(4, server.requests.get());
+        // the deadline of the call is shorter than the wait
+        try {
+            index.search(new Query("a"), new RequestOptions().setTimeout(50));
+            fail("the call cannot wait");
+        } catch (AlgoliaException e) {
+            assertEquals(APIClient.RATE_LIMITED, e.getMessage());
+        }
+    }
+
+    @Test
+    public void testQueuedAsync() throws Exception {
+        client.setRateLimiter(new RateLimiter().addLimit(null, null, 1, 300, Overflow.QUEUE, 1000));
+        Index index = client.initIndex("test");
+        final CountDownLatch latch = new CountDownLatch(3);
+        ResultHandler<JSONObject> handler = new ResultHandler<JSONObject>() {
+            public void onResult(JSONObject result) {
+                latch.countDown();
+            }
+
+            public void onError(AlgoliaException error) {
+            }
+        };
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < 3; ++i) {
+            index.searchAsync(new Query("a"), handler);
+        }
+        // queued calls do not block the calling thread
+        assertTrue(System.currentTimeMillis() - start < 100);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        long duration = System.currentTimeMillis() - start;
+        assertTrue("took " + duration + "ms", duration >= 550);
+    }
+}
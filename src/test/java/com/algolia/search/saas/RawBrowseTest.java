@@ -0,0 +1,72 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class RawBrowseTest {
+
+    static class PagesClient extends APIClient {
+        final List<String> urls = new ArrayList<String>();
+        final List<byte[]> bodies = new ArrayList<byte[]>();
+
+        PagesClient() {
+            super("appID", "apiKey");
+        }
+
+        @Override
+        protected byte[] getRequestRaw(String url, boolean search, boolean cacheable) throws AlgoliaException {
+            urls.add(url);
+            String page = urls.size() == 1
+                    ? "{\"hits\": [ {\"name\": \"a]}\", \"objectID\": \"1\"},{\"tags\":[1,{\"x\":null}],\"objectID\":\"2\"} ], \"cursor\": \"c1\", \"nbHits\": 3}"
+                    : "{\"nbHits\": 3, \"hits\":[{\"objectID\":\"3\"}]}";
+            bodies.add(page.getBytes(JSONReader.UTF8));
+            return bodies.get(bodies.size() - 1);
+        }
+    }
+
+    @Test
+    public void testSlices() throws Exception {
+        PagesClient client = new PagesClient();
+        Index.RawIndexBrowser it = client.initIndex("index").browseRaw(new Query(), null);
+        assertEquals("c1", it.getCursor());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        List<String> hits = new ArrayList<String>();
+        while (it.hasNext()) {
+            ByteBuffer hit = it.next();
+            out.write(hit.array(), hit.arrayOffset() + hit.position(), hit.remaining());
+            hits.add(new String(hit.array(), hit.arrayOffset() + hit.position(), hit.remaining(), "UTF-8"));
+        }
+        assertEquals(3, hits.size());
+        assertEquals("{\"name\": \"a]}\", \"objectID\": \"1\"}", hits.get(0));
+        assertEquals("{\"tags\":[1,{\"x\":null}],\"objectID\":\"2\"}", hits.get(1));
+        assertEquals("{\"objectID\":\"3\"}", hits.get(2));
+        assertFalse(it.hasNext());
+
+        assertEquals(2, client.urls.size());
+        assertTrue(client.urls.get(1).contains("cursor=c1"));
+        assertNull(it.getCursor());
+    }
+
+    @Test
+    public void testViewsShareTheBody() throws Exception {
+        PagesClient client = new PagesClient();
+        Iterator<ByteBuffer> it = client.initIndex("index").browseRaw(new Query(), null);
+        ByteBuffer hit = it.next();
+        assertSame(client.bodies.get(0), hit.array());
+        assertEquals('{', hit.get(0));
+    }
+}
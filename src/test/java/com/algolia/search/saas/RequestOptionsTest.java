@@ -0,0 +1,127 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.sun.net.httpserver.HttpExchange;
+
+@RunWith(JUnit4.class)
+public class RequestOptionsTest {
+    private LocalServer server;
+    private Index index;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new LocalServer(8, 16, new LocalServer.Handler() {
+            public LocalServer.Answer handle(HttpExchange exchange) {
+                // every host answers too late
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return new LocalServer.Answer(200, "{\"hits\":[],\"nbHits\":0}");
+            }
+        });
+        String host = server.host();
+        index = LocalServer.client(host, host, host, host).initIndex("test");
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    @Test
+    public void testDeadlineBoundsAllHosts() throws Exception {
+        long start = System.currentTimeMillis();
+        try {
+            index.search(new Query("a"), new RequestOptions().setTimeout(300));
+            fail("the deadline should be exceeded");
+        } catch (AlgoliaException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith(APIClient.HOSTS_UNREACHABLE));
+            assertTrue(e.getMessage(), e.getMessage().contains("deadline=exceeded after 300ms"));
+        }
+        long duration = System.currentTimeMillis() - start;
+        assertTrue("took " + duration + "ms", duration < 900);
+        assertEquals(1, server.requests.get());
+    }
+
+    @Test
+    public void testDeadlineAsync() throws Exception {
+        final AtomicReference<AlgoliaException> error = new AtomicReference<AlgoliaException>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        long start = System.currentTimeMillis();
+        index.searchAsync(new Query("a"), new RequestOptions().setTimeout(300), new ResultHandler<JSONObject>() {
+            public void onResult(JSONObject result) {
+                latch.countDown();
+            }
+
+            public void onError(AlgoliaException e) {
+                error.set(e);
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(error.get().getMessage(), error.get().getMessage().startsWith(APIClient.HOSTS_UNREACHABLE));
+        long duration = System.currentTimeMillis() - start;
+        assertTrue("took " + duration + "ms", duration < 900);
+    }
+
+    @Test
+    public void testCancelledBeforeSending() throws Exception {
+        CancellationToken token = new CancellationToken();
+        token.cancel();
+        try {
+            index.search(new Query("a"), new RequestOptions().setCancellationToken(token));
+            fail("the call should be cancelled");
+        } catch (AlgoliaException e) {
+            assertEquals(APIClient.REQUEST_CANCELLED, e.getMessage());
+        }
+        assertEquals(0, server.requests.get());
+    }
+
+    @Test
+    public void testCancelInFlight() throws Exception {
+        final AtomicReference<AlgoliaException> error = new AtomicReference<AlgoliaException>();
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch latch = new CountDownLatch(1);
+        CancellationToken token = new CancellationToken();
+        index.searchAsync(new Query("a"), new RequestOptions().setCancellationToken(token), new ResultHandler<JSONObject>() {
+            public void onResult(JSONObject result) {
+                calls.incrementAndGet();
+                latch.countDown();
+            }
+
+            public void onError(AlgoliaException e) {
+                calls.incrementAndGet();
+                error.set(e);
+                latch.countDown();
+            }
+        });
+        Thread.sleep(100);
+        long start = System.currentTimeMillis();
+        token.cancel();
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start < 100);
+        assertEquals(APIClient.REQUEST_CANCELLED, error.get().getMessage());
+        // the answer of the host arriving later is ignored, no other host is tried
+        Thread.sleep(1200);
+        assertEquals(1, calls.get());
+        assertEquals(1, server.requests.get());
+    }
+}
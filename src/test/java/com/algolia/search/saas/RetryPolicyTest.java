@@ -0,0 +1,288 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.sun.net.httpserver.HttpExchange;
+
+@RunWith(JUnit4.class)
+public class RetryPolicyTest {
+    private LocalServer failing;
+    private LocalServer working;
+
+    @Before
+    public void startServers() throws IOException {
+        failing = new LocalServer(2, 16, new LocalServer.Handler() {
+            public LocalServer.Answer handle(HttpExchange exchange) {
+                return new LocalServer.Answer(503, "{\"message\":\"unavailable\"}");
+            }
+        });
+        working = new LocalServer("{\"objectID\":\"1\",\"taskID\":1}");
+    }
+
+    @After
+    public void stopServers() {
+        failing.stop();
+        working.stop();
+    }
+
+    private static String closedHost() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        return "127.0.0.1:" + port;
+    }
+
+    /**
+     * A host reading the request then closing the connection without answering
+     */
+    private static String droppingHost(final AtomicInteger counter) throws IOException {
+        final ServerSocket server = new ServerSocket(0, 16, InetAddress.getByName("127.0.0.1"));
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Socket socket = server.accept();
+                        counter.incrementAndGet();
+                        socket.getInputStream().read(new byte[4096]);
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        return "127.0.0.1:" + server.getLocalPort();
+    }
+
+    /**
+     * A host whose accept queue is full, so that connections time out
+     */
+    private static ServerSocket saturatedServer(List<Socket> queued) throws IOException {
+        ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        for (int i = 0; i < 8; ++i) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(server.getLocalSocketAddress(), 100);
+            } catch (SocketTimeoutException e) {
+                return server;
+            }
+            queued.add(socket);
+        }
+        return server;
+    }
+
+    private Index index(RetryPolicy policy, String... hosts) {
+        APIClient client = LocalServer.client(hosts);
+        client.setCircuitBreaker(null);
+        client.setRetryPolicy(policy);
+        return client.initIndex("test");
+    }
+
+    @Test
+    public void testBackoff() {
+        RetryPolicy policy = new RetryPolicy(100, 2000, 0.2, 10);
+        for (int i = 0; i < 100; ++i) {
+            long first = policy.backoffMS(1);
+            assertTrue(first >= 0 && first < 100);
+            assertTrue(policy.backoffMS(3) < 400);
+            assertTrue(policy.backoffMS(40) < 2000);
+        }
+    }
+
+    @Test
+    public void testBudget() {
+        RetryPolicy policy = new RetryPolicy(0, 0, 0.5, 2);
+        assertTrue(policy.acquireRetry());
+        assertTrue(policy.acquireRetry());
+        assertFalse(policy.acquireRetry());
+        policy.onRequest();
+        assertFalse(policy.acquireRetry());
+        policy.onRequest();
+        assertTrue(policy.acquireRetry());
+        assertEquals(3, policy.getRetries());
+        assertEquals(2, policy.getExhausted());
+    }
+
+    @Test
+    public void testIdempotentRetried() throws Exception {
+        RetryPolicy policy = new RetryPolicy(10, 50, 0.2, 10);
+        Index index = index(policy, failing.host(), failing.host(), working.host());
+        index.saveObject(new JSONObject().put("name", "a"), "1");
+        assertEquals(2, failing.requests.get());
+        assertEquals(1, working.requests.get());
+        assertEquals(2, policy.getRetries());
+    }
+
+    @Test
+    public void testNotIdempotentNotRetried() throws Exception {
+        RetryPolicy policy = new RetryPolicy();
+        AtomicInteger droppedRequests = new AtomicInteger();
+        Index index = index(policy, droppingHost(droppedRequests), working.host());
+        try {
+            index.addObject(new JSONObject().put("name", "a"));
+            fail("the object may have been added by the first host");
+        } catch (AlgoliaException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("retry=not retried"));
+        }
+        assertEquals(1, droppedRequests.get());
+        assertEquals(0, working.requests.get());
+        assertEquals(1, policy.getUnsafe());
+    }
+
+    @Test
+    public void testNotIdempotentRetriedOn5xx() throws Exception {
+        RetryPolicy policy = new RetryPolicy(10, 50, 0.2, 10);
+        Index index = index(policy, failing.host(), working.host());
+        index.addObject(new JSONObject().put("name", "a"));
+        assertEquals(1, failing.requests.get());
+        assertEquals(1, working.requests.get());
+        assertEquals(1, policy.getRetries());
+        assertEquals(0, policy.getUnsafe());
+    }
+
+    @Test
+    public void testConnectTimeoutReported() throws Exception {
+        List<Socket> queued = new ArrayList<Socket>();
+        ServerSocket server = saturatedServer(queued);
+        try {
+            for (String scheme : new String[] { "http", "https" }) {
+                HttpTransport[] transports = { new URLConnectionTransport(), new ApacheHttpTransport(), new NioHttpTransport() };
+                for (HttpTransport transport : transports) {
+                    HttpTransport.Request request = new HttpTransport.Request("POST", scheme + "://127.0.0.1:" + server.getLocalPort() + "/1/indexes/test",
+                            Collections.<String, String>emptyMap(), new byte[] { '{', '}' }, 2, 200, 1000);
+                    try {
+                        transport.execute(request).close();
+                        fail("the connection must time out");
+                    } catch (IOException e) {
+                        assertTrue(scheme + " " + transport.getClass().getSimpleName() + ": " + e, e instanceof ConnectException);
+                        assertTrue(new RetryPolicy().isSafeToRetry(e));
+                    } finally {
+                        transport.shutdown();
+                    }
+                }
+            }
+        } finally {
+            for (Socket socket : queued) {
+                socket.close();
+            }
+            server.close();
+        }
+    }
+
+    @Test
+    public void testNextAddressAfterConnectFailure() throws Exception {
+        HttpTransport transport = new ApacheHttpTransport();
+        transport.setDnsCache(new DnsCache() {
+            @Override
+            protected InetAddress[] lookup(String host) throws UnknownHostException {
+                // nothing listens on 127.0.0.2
+                return new InetAddress[] { InetAddress.getByName("127.0.0.2"), InetAddress.getByName("127.0.0.1") };
+            }
+        });
+        try {
+            HttpTransport.Request request = new HttpTransport.Request("POST", "http://dual.test:" + working.getPort() + "/1/indexes/test",
+                    Collections.<String, String>emptyMap(), new byte[] { '{', '}' }, 2, 1000, 1000);
+            HttpTransport.Response response = transport.execute(request);
+            response.close();
+            assertEquals(200, response.getStatusCode());
+            assertEquals(1, working.requests.get());
+            assertEquals("127.0.0.1", transport.getDnsCache().resolve("dual.test")[0].getHostAddress());
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    @Test
+    public void testNotIdempotentRetriedWhenNotSent() throws Exception {
+        RetryPolicy policy = new RetryPolicy(10, 50, 0.2, 10);
+        Index index = index(policy, closedHost(), working.host());
+        index.addObject(new JSONObject().put("name", "a"));
+        assertEquals(1, working.requests.get());
+        assertEquals(1, policy.getRetries());
+    }
+
+    @Test
+    public void testBudgetExhausted() throws Exception {
+        RetryPolicy policy = new RetryPolicy(10, 50, 0.25, 1);
+        Index index = index(policy, failing.host(), working.host());
+        index.saveObject(new JSONObject().put("name", "a"), "1");
+        assertEquals(1, working.requests.get());
+        try {
+            index.saveObject(new JSONObject().put("name", "a"), "1");
+            fail("no retry left in the budget");
+        } catch (AlgoliaException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("retry=retry budget exhausted"));
+        }
+        assertEquals(1, working.requests.get());
+        // each write refills the budget: 4 writes pay one retry
+        for (int i = 0; i < 3; ++i) {
+            try {
+                index.saveObject(new JSONObject().put("name", "a"), "1");
+            } catch (AlgoliaException e) {
+                // expected until the budget allows a retry
+            }
+        }
+        assertEquals(2, working.requests.get());
+        assertEquals(2, policy.getRetries());
+        assertEquals(3, policy.getExhausted());
+    }
+
+    @Test
+    public void testReadsNotLimited() throws Exception {
+        RetryPolicy policy = new RetryPolicy(10, 50, 0.2, 0);
+        Index index = index(policy, failing.host(), working.host());
+        index.search(new Query("a"));
+        assertEquals(1, working.requests.get());
+        assertEquals(0, policy.getRetries());
+    }
+
+    @Test
+    public void testAsyncBackoff() throws Exception {
+        RetryPolicy policy = new RetryPolicy(10, 50, 0.2, 10);
+        Index index = index(policy, closedHost(), working.host());
+        final AtomicReference<JSONObject> result = new AtomicReference<JSONObject>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        index.batchAsync(new JSONArray().put(new JSONObject().put("action", "addObject").put("body", new JSONObject())), new ResultHandler<JSONObject>() {
+            public void onResult(JSONObject res) {
+                result.set(res);
+                latch.countDown();
+            }
+
+            public void onError(AlgoliaException error) {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals("1", result.get().getString("objectID"));
+        assertEquals(1, policy.getRetries());
+    }
+}
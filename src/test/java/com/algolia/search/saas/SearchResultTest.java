@@ -0,0 +1,207 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class SearchResultTest {
+    static final String ANSWER = "{\"hits\":[{\"name\":\"Jimmie\",\"age\":42,\"_highlightResult\":{\"name\":{\"value\":\"<em>Jim</em>mie\"}}},"
+            + "{\"name\":null,\"age\":3.0,\"objectID\":\"2\"}],\"nbHits\":2,\"page\":0,\"nbPages\":1,\"hitsPerPage\":20,"
+            + "\"processingTimeMS\":1,\"facets\":{\"age\":{\"42\":1,\"3\":1}},\"exhaustiveFacetsCount\":true,\"query\":\"jim\",\"params\":\"query=jim\"}";
+
+    static class Person {
+        String name;
+        int age;
+    }
+
+    static final HitMapper<Person> PERSON = new HitMapper<Person>() {
+        public Person map(JSONReader reader) throws AlgoliaException {
+            Person person = new Person();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("name") && reader.peek() == '"') {
+                    person.name = reader.nextString();
+                } else if (name.equals("age")) {
+                    person.age = reader.nextInt();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return person;
+        }
+    };
+
+    static class StaticClient extends APIClient {
+        String lastURL;
+
+        StaticClient() {
+            super("appID", "apiKey");
+        }
+
+        @Override
+        protected byte[] getRequestRaw(String url, boolean search, boolean cacheable) throws AlgoliaException {
+            lastURL = url;
+            return ANSWER.getBytes(JSONReader.UTF8);
+        }
+    }
+
+    @Test
+    public void testMappedHits() throws Exception {
+        StaticClient client = new StaticClient();
+        SearchResult<Person> res = client.initIndex("people").searchTyped(new Query("jim"), PERSON);
+        assertEquals("/1/indexes/people?query=jim", client.lastURL);
+        assertEquals(2, res.getNbHits());
+        assertEquals(1, res.getNbPages());
+        assertEquals(20, res.getHitsPerPage());
+        assertEquals("jim", res.getQuery());
+        assertEquals("query=jim", res.getParams());
+        assertEquals(2, res.getHits().size());
+        assertEquals("Jimmie", res.getHits().get(0).name);
+        assertEquals(42, res.getHits().get(0).age);
+        assertNull(res.getHits().get(1).name);
+        assertEquals(3, res.getHits().get(1).age);
+        assertEquals(1, res.getFacets().get("age").getCount("42"));
+    }
+
+    @Test
+    public void testSuggestionCache() throws Exception {
+        Index index = new StaticClient().initIndex("people");
+        index.setSuggestionCache(new SuggestionCache(8));
+        index.searchTyped(new Query("jim"), PERSON);
+        assertEquals(2, index.getSuggestionCache().get(new Query("jim")).getInt("nbHits"));
+    }
+
+    @Test
+    public void testJSONHits() throws Exception {
+        SearchResult<JSONObject> res = new StaticClient().initIndex("people").searchTyped(new Query("jim"), SearchResult.JSON_HITS);
+        assertEquals("2", res.getHits().get(1).getString("objectID"));
+        assertEquals("<em>Jim</em>mie", res.getHits().get(0).getJSONObject("_highlightResult").getJSONObject("name").getString("value"));
+    }
+
+    @Test
+    public void testSharedKeys() throws Exception {
+        StaticClient client = new StaticClient();
+        Index index = client.initIndex("people");
+        SearchResult<HitRecord> first = index.searchTyped(new Query("jim"), index.getKeyDictionary());
+        SearchResult<HitRecord> second = index.browse(0, 20, index.getKeyDictionary());
+        assertTrue(client.lastURL.endsWith("/browse?page=0&hitsPerPage=20"));
+
+        HitRecord hit = first.getHits().get(0);
+        assertEquals(3, hit.size());
+        assertEquals("Jimmie", hit.getString("name"));
+        assertEquals(42, hit.getLong("age", 0));
+        assertEquals("<em>Jim</em>mie", hit.getRecord("_highlightResult").getRecord("name").getString("value"));
+        assertEquals(3.0, first.getHits().get(1).getDouble("age", 0), 0);
+        assertTrue(first.getHits().get(1).has("name"));
+        assertNull(first.getHits().get(1).get("name"));
+        assertEquals(JSONObject.NULL, first.getHits().get(1).toJSON().get("name"));
+
+        // attribute names are decoded once for all responses
+        assertSame(hit.getName(0), second.getHits().get(0).getName(0));
+        assertSame(hit.getName(0), second.getHits().get(1).getName(0));
+        assertEquals(5, index.getKeyDictionary().size());
+    }
+
+    @Test
+    public void testShapesBounded() throws Exception {
+        KeyDictionary dictionary = new KeyDictionary(16, 2);
+        JSONReader reader = new JSONReader("[{\"a\":1,\"b\":2},{\"b\":3,\"a\":4},{\"a\":5,\"c\":6},{\"a\":7,\"b\":8}]".getBytes(JSONReader.UTF8));
+        List<HitRecord> records = new ArrayList<HitRecord>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            records.add(dictionary.map(reader));
+        }
+        reader.endArray();
+        assertEquals(2, dictionary.getShapeCount());
+        assertEquals("b", records.get(1).getName(0));
+        assertEquals(4, records.get(1).getLong("a", 0));
+        assertEquals(6, records.get(2).getLong("c", 0));
+        assertEquals(5, records.get(2).getLong("a", 0));
+        assertEquals(8, records.get(3).getLong("b", 0));
+    }
+
+    @Test
+    public void testMalformed() throws Exception {
+        String[] malformed = { "[1 2]", "[1,,2]", "[,1]", "[1,]", "{\"a\":1 \"b\":2}", "{\"a\":1,}" };
+        for (String json : malformed) {
+            JSONReader reader = new JSONReader(json.getBytes(JSONReader.UTF8));
+            try {
+                reader.skipValue();
+                fail(json + " must be rejected");
+            } catch (AlgoliaException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("JSON decode error"));
+            }
+        }
+        JSONReader reader = new JSONReader("[ 1 , 2 ]".getBytes(JSONReader.UTF8));
+        reader.beginArray();
+        assertTrue(reader.hasNext());
+        assertTrue(reader.hasNext());
+        assertEquals(1, reader.nextInt());
+        assertTrue(reader.hasNext());
+        assertEquals(2, reader.nextInt());
+        assertFalse(reader.hasNext());
+        reader.endArray();
+    }
+
+    @Test
+    public void testUnicodeEscape() throws Exception {
+        assertEquals("caf\u00e9\u20AC", new JSONReader("\"caf\\u00e9\\u20AC\"".getBytes(JSONReader.UTF8)).nextString());
+        String[] malformed = { "\"\\uzzzz\"", "\"\\u-001\"", "\"\\u+0041\"", "\"\\u12\"" };
+        for (String json : malformed) {
+            try {
+                new JSONReader(json.getBytes(JSONReader.UTF8)).nextString();
+                fail(json + " must be rejected");
+            } catch (AlgoliaException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("JSON decode error:invalid unicode escape"));
+            }
+        }
+    }
+
+    @Test
+    public void testOverflow() throws Exception {
+        assertEquals(Long.MIN_VALUE, new JSONReader("-9223372036854775808".getBytes(JSONReader.UTF8)).nextLong());
+        assertEquals(Long.MAX_VALUE, new JSONReader("9223372036854775807".getBytes(JSONReader.UTF8)).nextLong());
+        String[] tooLarge = { "9223372036854775808", "-9223372036854775809", "12345678901234567890", "1e19" };
+        for (String json : tooLarge) {
+            try {
+                new JSONReader(json.getBytes(JSONReader.UTF8)).nextLong();
+                fail(json + " does not fit in a long");
+            } catch (AlgoliaException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("too large"));
+            }
+        }
+        try {
+            new JSONReader("2147483648".getBytes(JSONReader.UTF8)).nextInt();
+            fail("2147483648 does not fit in an int");
+        } catch (AlgoliaException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("too large"));
+        }
+    }
+
+    @Test
+    public void testNumbers() throws Exception {
+        JSONReader reader = new JSONReader("[1, -2147483649, 12345678901234567890, 1.5, -3e2]".getBytes(JSONReader.UTF8));
+        reader.beginArray();
+        Object[] expected = { 1, -2147483649L, 12345678901234567890.0, 1.5, -300.0 };
+        for (Object value : expected) {
+            assertTrue(reader.hasNext());
+            assertEquals(value, reader.nextNumber());
+        }
+        assertFalse(reader.hasNext());
+        reader.endArray();
+    }
+}
@@ -0,0 +1,94 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public class SuggestionCacheTest {
+
+    private static JSONObject answer(String... names) throws Exception {
+        JSONArray hits = new JSONArray();
+        for (String name : names) {
+            hits.put(new JSONObject().put("name", name).put("_highlightResult", new JSONObject()));
+        }
+        return new JSONObject().put("hits", hits).put("nbHits", names.length);
+    }
+
+    @Test
+    public void testClosestPrefix() throws Exception {
+        SuggestionCache cache = new SuggestionCache(10);
+        cache.put(new Query("ja"), answer("Jack", "James", "Jane"));
+        cache.put(new Query("jam"), answer("James"));
+
+        assertNull(cache.getClosestPrefix(new Query("b")));
+        assertNull(cache.getClosestPrefix(new Query("ja").setHitsPerPage(5)));
+
+        JSONObject res = cache.getClosestPrefix(new Query("jac"));
+        assertNotNull(res);
+        assertTrue(res.getBoolean("provisional"));
+        assertEquals(1, res.getJSONArray("hits").length());
+        assertEquals("Jack", res.getJSONArray("hits").getJSONObject(0).getString("name"));
+
+        res = cache.getClosestPrefix(new Query("James"));
+        assertEquals(1, res.getInt("nbHits"));
+        res = cache.getClosestPrefix(new Query("ja"));
+        assertEquals(3, res.getInt("nbHits"));
+        assertEquals(3, cache.get(new Query("ja")).getInt("nbHits"));
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        SuggestionCache cache = new SuggestionCache(2);
+        cache.put(new Query("a"), answer("a"));
+        cache.put(new Query("ab"), answer("ab"));
+        cache.get(new Query("a"));
+        cache.put(new Query("abc"), answer("abc"));
+        assertEquals(2, cache.size());
+        assertNull(cache.get(new Query("ab")));
+        assertNotNull(cache.get(new Query("a")));
+        assertNotNull(cache.get(new Query("abc")));
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertNull(cache.getClosestPrefix(new Query("abc")));
+    }
+
+    @Test
+    public void testCopiesServed() throws Exception {
+        SuggestionCache cache = new SuggestionCache(10);
+        JSONObject stored = answer("Jack", "James");
+        cache.put(new Query("ja"), stored);
+        stored.put("nbHits", 0);
+        cache.get(new Query("ja")).getJSONArray("hits").put("junk");
+        cache.getClosestPrefix(new Query("jac")).getJSONArray("hits").getJSONObject(0).put("name", "Joe");
+        JSONObject res = cache.get(new Query("ja"));
+        assertEquals(2, res.getInt("nbHits"));
+        assertEquals(2, res.getJSONArray("hits").length());
+        assertEquals("Jack", res.getJSONArray("hits").getJSONObject(0).getString("name"));
+    }
+
+    @Test
+    public void testLengthBound() throws Exception {
+        int length = answer("abc").toString().length();
+        SuggestionCache cache = new SuggestionCache(10, 2 * length);
+        cache.put(new Query("a"), answer("abc"));
+        cache.put(new Query("ab"), answer("abc"));
+        assertEquals(2 * length, cache.getLength());
+        cache.put(new Query("abc"), answer("abc"));
+        assertEquals(2, cache.size());
+        assertNull(cache.get(new Query("a")));
+        // a result longer than the bound is not kept
+        cache.put(new Query("x"), answer("abc", "abd", "abe"));
+        assertNull(cache.get(new Query("x")));
+        assertEquals(2 * length, cache.getLength());
+        cache.clear();
+        assertEquals(0, cache.getLength());
+    }
+}
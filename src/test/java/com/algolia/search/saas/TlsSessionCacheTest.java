@@ -0,0 +1,113 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.KeyStore;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+@RunWith(JUnit4.class)
+public class TlsSessionCacheTest {
+    private HttpsServer server;
+    private TlsSessionCache tlsSessions;
+    private String baseURL;
+
+    /**
+     * Context using the self-signed certificate of localhost, as key or as trusted certificate
+     */
+    private static SSLContext context(boolean server) throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        InputStream in = TlsSessionCacheTest.class.getResourceAsStream("localhost.jks");
+        try {
+            keyStore.load(in, "secret".toCharArray());
+        } finally {
+            in.close();
+        }
+        SSLContext context = SSLContext.getInstance("TLS");
+        if (server) {
+            KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keys.init(keyStore, "secret".toCharArray());
+            context.init(keys.getKeyManagers(), null, null);
+        } else {
+            TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trust.init(keyStore);
+            context.init(null, trust.getTrustManagers(), null);
+        }
+        return context;
+    }
+
+    @Before
+    public void startServer() throws Exception {
+        server = HttpsServer.create(new InetSocketAddress("127.0.0.1", 0), 16);
+        server.setHttpsConfigurator(new HttpsConfigurator(context(true)));
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = "{\"hits\":[],\"nbHits\":0}".getBytes(JSONReader.UTF8);
+                // every request needs a new connection, hence a new handshake
+                exchange.getResponseHeaders().set("Connection", "close");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(2));
+        server.start();
+        baseURL = "https://localhost:" + server.getAddress().getPort();
+        tlsSessions = new TlsSessionCache(context(false), 8, 600);
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private void search(HttpTransport transport) throws IOException {
+        transport.setTlsSessionCache(tlsSessions);
+        HttpTransport.Response response = transport.execute(new HttpTransport.Request("GET", baseURL + "/1/indexes/test",
+                new HashMap<String, String>(), null, 0, 2000, 2000));
+        assertEquals(200, response.getStatusCode());
+        assertEquals("{\"hits\":[],\"nbHits\":0}", new BufferPool(1024, 0).decode(new BufferPool(1024, 0).readFully(response.getBody(), response.getContentLength())));
+    }
+
+    @Test
+    public void testResumedAcrossConnections() throws Exception {
+        HttpTransport transport = new ApacheHttpTransport();
+        for (int i = 0; i < 4; ++i) {
+            search(transport);
+        }
+        assertEquals(1, tlsSessions.getFullHandshakes());
+        assertEquals(3, tlsSessions.getResumedHandshakes());
+    }
+
+    @Test
+    public void testSharedByTransports() throws Exception {
+        HttpTransport[] transports = { new ApacheHttpTransport(), new URLConnectionTransport(), new NioHttpTransport() };
+        for (int i = 0; i < 2; ++i) {
+            for (HttpTransport transport : transports) {
+                search(transport);
+            }
+        }
+        assertEquals(1, tlsSessions.getFullHandshakes());
+        assertEquals(5, tlsSessions.getResumedHandshakes());
+    }
+}
@@ -0,0 +1,434 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+@RunWith(JUnit4.class)
+public class TransportTest {
+    private static final byte[] ANSWER = "{\"hits\":[],\"nbHits\":0}".getBytes(JSONReader.UTF8);
+
+    private HttpServer server;
+    private String baseURL;
+
+    /**
+     * Local stand-in for the API: echoes POST/PUT bodies, answers 404 on /missing, chunked on /chunked, after 1s on /slow
+     */
+    @Before
+    public void startServer() throws IOException {
+        // without it, small answers are delayed by Nagle's algorithm
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 128);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                ByteArrayOutputStream received = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                for (int l = in.read(buffer); l >= 0; l = in.read(buffer)) {
+                    received.write(buffer, 0, l);
+                }
+                byte[] body = received.size() > 0 ? received.toByteArray() : ANSWER;
+                String path = exchange.getRequestURI().getPath();
+                if (path.equals("/slow")) {
+                    try {
+                        Thread.sleep(1000);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                int code = path.equals("/missing") ? 404 : 200;
+                if (path.equals("/missing")) {
+                    body = "{\"message\":\"Index does not exist\"}".getBytes(JSONReader.UTF8);
+                }
+                exchange.getResponseHeaders().set("X-Key", String.valueOf(exchange.getRequestHeaders().getFirst("X-Algolia-API-Key")));
+                exchange.sendResponseHeaders(code, path.equals("/chunked") ? 0 : body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(8));
+        server.start();
+        baseURL = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private HttpTransport.Request request(String method, String path, String body) {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("X-Algolia-API-Key", "key");
+        byte[] bytes = body == null ? null : body.getBytes(JSONReader.UTF8);
+        return new HttpTransport.Request(method, baseURL + path, headers, bytes, bytes == null ? 0 : bytes.length, 2000, 2000);
+    }
+
+    private static String read(HttpTransport.Response response) throws IOException {
+        try {
+            return new BufferPool(1024, 0).decode(new BufferPool(1024, 0).readFully(response.getBody(), response.getContentLength()));
+        } finally {
+            response.close();
+        }
+    }
+
+    private void checkTransport(HttpTransport transport) throws Exception {
+        HttpTransport.Response response = transport.execute(request("GET", "/1/indexes/test", null));
+        assertEquals(200, response.getStatusCode());
+        assertEquals(new String(ANSWER, "UTF-8"), read(response));
+
+        response = transport.execute(request("POST", "/1/indexes/*/queries", "{\"requests\":[\"é\"]}"));
+        assertEquals("{\"requests\":[\"é\"]}", read(response));
+
+        response = transport.execute(request("PUT", "/chunked", "{}"));
+        // unknown for streaming transports, NioHttpTransport buffers the whole body
+        assertTrue(response.getContentLength() == -1 || response.getContentLength() == 2);
+        assertEquals("{}", read(response));
+
+        response = transport.execute(request("GET", "/missing", null));
+        assertEquals(404, response.getStatusCode());
+        assertEquals("{\"message\":\"Index does not exist\"}", read(response));
+        transport.shutdown();
+    }
+
+    @Test
+    public void testApacheTransport() throws Exception {
+        checkTransport(new ApacheHttpTransport());
+    }
+
+    @Test
+    public void testURLConnectionTransport() throws Exception {
+        checkTransport(new URLConnectionTransport());
+    }
+
+    @Test
+    public void testNioTransport() throws Exception {
+        checkTransport(new NioHttpTransport());
+    }
+
+    @Test
+    public void testNioConcurrentRequests() throws Exception {
+        final NioHttpTransport transport = new NioHttpTransport(2, 4);
+        final int count = 1000;
+        final CountDownLatch done = new CountDownLatch(count);
+        final AtomicInteger succeeded = new AtomicInteger();
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        for (int i = 0; i < count; ++i) {
+            final String expected = "{\"i\":" + i + "}";
+            transport.executeAsync(request("POST", "/1/indexes/test/batch", expected), new HttpTransport.Callback() {
+                public void completed(HttpTransport.Response response) {
+                    try {
+                        assertEquals(expected, read(response));
+                        succeeded.incrementAndGet();
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                    done.countDown();
+                }
+
+                public void failed(IOException e) {
+                    error.set(e);
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertNull(error.get());
+        assertEquals(count, succeeded.get());
+        // at most 4 connections per event loop, kept alive between requests
+        assertTrue(transport.getOpenConnections() <= 8);
+        transport.shutdown();
+    }
+
+    /**
+     * Server answering every request but the second one, whose connection it closes once the
+     * request is read
+     */
+    private static ServerSocket closingServer(final AtomicInteger requests) throws IOException {
+        final ServerSocket server = new ServerSocket(0, 16, InetAddress.getByName("127.0.0.1"));
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = server.accept();
+                        new Thread() {
+                            @Override
+                            public void run() {
+                                try {
+                                    InputStream in = socket.getInputStream();
+                                    while (readRequest(in)) {
+                                        if (requests.incrementAndGet() == 2) {
+                                            break;
+                                        }
+                                        OutputStream out = socket.getOutputStream();
+                                        out.write("HTTP/1.1 200 OK\r\nContent-Length: 2\r\n\r\n{}".getBytes("UTF-8"));
+                                        out.flush();
+                                    }
+                                    socket.close();
+                                } catch (IOException e) {
+                                    // client gone
+                                }
+                            }
+                        }.start();
+                    }
+                } catch (IOException e) {
+                    // server closed
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+        return server;
+    }
+
+    /**
+     * Read a request head and its body, false at the end of the stream
+     */
+    private static boolean readRequest(InputStream in) throws IOException {
+        StringBuilder head = new StringBuilder();
+        while (!head.toString().endsWith("\r\n\r\n")) {
+            int c = in.read();
+            if (c < 0) {
+                return false;
+            }
+            head.append((char) c);
+        }
+        int length = 0;
+        for (String line : head.toString().split("\r\n")) {
+            if (line.toLowerCase().startsWith("content-length:")) {
+                length = Integer.parseInt(line.substring(15).trim());
+            }
+        }
+        for (int i = 0; i < length; ++i) {
+            if (in.read() < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A POST written on a reused connection closed without answer may have been applied:
+     * it is not sent again, unlike a GET
+     */
+    @Test
+    public void testNioResendOnClosedConnection() throws Exception {
+        for (String method : new String[] { "POST", "GET" }) {
+            AtomicInteger requests = new AtomicInteger();
+            ServerSocket server = closingServer(requests);
+            // one event loop so that the second request reuses the connection
+            NioHttpTransport transport = new NioHttpTransport(1, 4);
+            String url = "http://127.0.0.1:" + server.getLocalPort() + "/1/indexes/test";
+            byte[] body = method.equals("POST") ? new byte[] { '{', '}' } : null;
+            try {
+                HttpTransport.Request request = new HttpTransport.Request(method, url, new HashMap<String, String>(), body,
+                        body != null ? body.length : 0, 2000, 2000);
+                assertEquals("{}", read(transport.execute(request)));
+                try {
+                    assertEquals("{}", read(transport.execute(request)));
+                    assertEquals("GET", method);
+                } catch (IOException e) {
+                    assertEquals(e.toString(), "POST", method);
+                }
+                assertEquals(method.equals("POST") ? 2 : 3, requests.get());
+            } finally {
+                transport.shutdown();
+                server.close();
+            }
+        }
+    }
+
+    /**
+     * Host names are resolved by the DnsCache of the transport
+     */
+    @Test
+    public void testDnsCache() throws Exception {
+        DnsCacheTest.StubDnsCache dns = new DnsCacheTest.StubDnsCache(60000, 1000);
+        dns.put("search.algolia.test", "127.0.0.1");
+        HttpTransport[] transports = { new ApacheHttpTransport(), new NioHttpTransport() };
+        for (HttpTransport transport : transports) {
+            transport.setDnsCache(dns);
+            HttpTransport.Request request = new HttpTransport.Request("GET", baseURL.replace("127.0.0.1", "search.algolia.test") + "/1/indexes/test",
+                    new HashMap<String, String>(), null, 0, 2000, 2000);
+            assertEquals(new String(ANSWER, "UTF-8"), read(transport.execute(request)));
+            transport.shutdown();
+        }
+        assertEquals(1, dns.lookups.get());
+        assertEquals(1, dns.getStats().get("search.algolia.test").getHits());
+    }
+
+    @Test(expected = SocketTimeoutException.class)
+    public void testNioReadTimeout() throws Exception {
+        NioHttpTransport transport = new NioHttpTransport();
+        Map<String, String> headers = new HashMap<String, String>();
+        try {
+            transport.execute(new HttpTransport.Request("GET", baseURL + "/slow", headers, null, 0, 2000, 200));
+        } finally {
+            transport.shutdown();
+        }
+    }
+
+    /**
+     * Index.searchAsync and APIClient.batchAsync, sent through the NIO transport
+     */
+    @Test
+    public void testAsyncClient() throws Exception {
+        NioHttpTransport nio = new NioHttpTransport();
+        APIClient client = new APIClient("appID", "key", Arrays.asList("unreachable.invalid", "127.0.0.1:" + server.getAddress().getPort()));
+        client.setTransport(new LocalTransport(nio));
+        final BlockingQueue<Object> results = new LinkedBlockingQueue<Object>();
+        ResultHandler<JSONObject> handler = new ResultHandler<JSONObject>() {
+            public void onResult(JSONObject result) {
+                results.add(result);
+            }
+
+            public void onError(AlgoliaException error) {
+                results.add(error);
+            }
+        };
+        client.initIndex("test").searchAsync(new Query("q"), handler);
+        Object res = results.poll(10, TimeUnit.SECONDS);
+        assertTrue(String.valueOf(res), res instanceof JSONObject);
+        assertEquals(0, ((JSONObject) res).getInt("nbHits"));
+
+        client.batchAsync(new JSONArray().put(new JSONObject().put("action", "addObject")), handler);
+        res = results.poll(10, TimeUnit.SECONDS);
+        assertEquals("addObject", ((JSONObject) res).getJSONArray("requests").getJSONObject(0).getString("action"));
+
+        nio.shutdown();
+        client.initIndex("test").batchAsync(new JSONArray(), handler);
+        res = results.poll(10, TimeUnit.SECONDS);
+        assertTrue(res instanceof AlgoliaException);
+        assertTrue(((AlgoliaException) res).getMessage().startsWith(APIClient.HOSTS_UNREACHABLE));
+    }
+
+    /**
+     * Same request mix (searches, multiple queries, batches) sent by 16 threads through each transport.
+     * Set ALGOLIA_BENCHMARK to run it.
+     */
+    @Test
+    public void benchmarkTransports() throws Exception {
+        Assume.assumeTrue(System.getenv("ALGOLIA_BENCHMARK") != null);
+        HttpTransport[] transports = { new ApacheHttpTransport(), new URLConnectionTransport(), new NioHttpTransport() };
+        for (int round = 0; round < 2; ++round) {
+            for (HttpTransport transport : transports) {
+                long start = System.nanoTime();
+                int requests = runMix(transport, 16, 500);
+                long elapsed = System.nanoTime() - start;
+                if (round == 1) {
+                    System.out.println(String.format("%s: %d requests in %d ms (%.0f req/s)", transport.getClass().getSimpleName(),
+                            requests, elapsed / 1000000, requests * 1e9 / elapsed));
+                }
+            }
+        }
+        for (HttpTransport transport : transports) {
+            transport.shutdown();
+        }
+    }
+
+    /**
+     * 16000 requests in flight at once on 2 event-loop threads. Set ALGOLIA_BENCHMARK to run it.
+     */
+    @Test
+    public void benchmarkNioMultiplexing() throws Exception {
+        Assume.assumeTrue(System.getenv("ALGOLIA_BENCHMARK") != null);
+        NioHttpTransport transport = new NioHttpTransport(2, 64);
+        for (int round = 0; round < 2; ++round) {
+            final int count = 16000;
+            final CountDownLatch done = new CountDownLatch(count);
+            final AtomicInteger failed = new AtomicInteger();
+            long start = System.nanoTime();
+            for (int i = 0; i < count; ++i) {
+                transport.executeAsync(request("GET", "/1/indexes/test?query=q" + i, null), new HttpTransport.Callback() {
+                    public void completed(HttpTransport.Response response) {
+                        response.close();
+                        done.countDown();
+                    }
+
+                    public void failed(IOException e) {
+                        failed.incrementAndGet();
+                        done.countDown();
+                    }
+                });
+            }
+            done.await();
+            long elapsed = System.nanoTime() - start;
+            if (round == 1) {
+                System.out.println(String.format("NioHttpTransport async: %d requests in %d ms (%.0f req/s), %d failed, %d threads alive",
+                        count, elapsed / 1000000, count * 1e9 / elapsed, failed.get(), Thread.activeCount()));
+            }
+        }
+        transport.shutdown();
+    }
+
+    private int runMix(final HttpTransport transport, int threads, final int perThread) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int t = 0; t < threads; ++t) {
+            results.add(executor.submit(new Callable<Integer>() {
+                public Integer call() throws Exception {
+                    for (int i = 0; i < perThread; ++i) {
+                        switch (i % 4) {
+                        case 0:
+                        case 1:
+                            read(transport.execute(request("GET", "/1/indexes/test?query=q" + i, null)));
+                            break;
+                        case 2:
+                            read(transport.execute(request("POST", "/1/indexes/*/queries", "{\"requests\":[{\"indexName\":\"test\",\"params\":\"query=q\"}]}")));
+                            break;
+                        default:
+                            read(transport.execute(request("POST", "/1/indexes/test/batch", "{\"requests\":[{\"action\":\"addObject\",\"body\":{\"name\":\"n\"}}]}")));
+                        }
+                    }
+                    return perThread;
+                }
+            }));
+        }
+        int total = 0;
+        for (Future<Integer> result : results) {
+            total += result.get();
+        }
+        executor.shutdown();
+        return total;
+    }
+}
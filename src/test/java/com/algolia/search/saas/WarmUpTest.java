@@ -0,0 +1,182 @@
+package com.algolia.search.saas;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import com.sun.net.httpserver.HttpExchange;
+
+@RunWith(JUnit4.class)
+public class WarmUpTest {
+    private LocalServer server;
+    private final AtomicInteger isAlive = new AtomicInteger();
+
+    @Before
+    public void startServer() throws IOException {
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = new LocalServer(4, 128, new LocalServer.Handler() {
+            public LocalServer.Answer handle(HttpExchange exchange) {
+                if (exchange.getRequestURI().getPath().equals("/1/isalive")) {
+                    isAlive.incrementAndGet();
+                    return new LocalServer.Answer(200, "{\"message\":\"server is alive\"}");
+                }
+                return new LocalServer.Answer(200, "{\"hits\":[],\"nbHits\":0}");
+            }
+        });
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    /**
+     * Wait for the warm-up answers, then for the client to put the connections back in its pool
+     */
+    private void waitFor(AtomicInteger counter, int value) throws InterruptedException {
+        for (int i = 0; i < 500 && counter.get() < value; ++i) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+    }
+
+    @Test
+    public void testWarmUpOpensConnections() throws Exception {
+        DelayProxy proxy = new DelayProxy(server.getPort(), 0);
+        APIClient client = LocalServer.client("127.0.0.1:" + proxy.getPort());
+        client.warmUp(2);
+        waitFor(isAlive, 2);
+        assertEquals(2, isAlive.get());
+        assertEquals(2, proxy.connections.get());
+        // the searches reuse the warm connections
+        client.initIndex("test").search(new Query("a"));
+        client.initIndex("test").search(new Query("b"));
+        assertEquals(2, proxy.connections.get());
+        proxy.close();
+    }
+
+    @Test
+    public void testWarmUpFailover() throws Exception {
+        ServerSocket closed = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        int closedPort = closed.getLocalPort();
+        closed.close();
+        DelayProxy proxy = new DelayProxy(server.getPort(), 0);
+        APIClient client = LocalServer.client("127.0.0.1:" + closedPort, "127.0.0.1:" + proxy.getPort());
+        client.warmUp();
+        waitFor(isAlive, 1);
+        assertEquals(1, proxy.connections.get());
+        proxy.close();
+    }
+
+    /**
+     * Time to the first search result of a new client, with connections slowed down by 150ms
+     * (DNS, TCP and TLS handshakes on a mobile network), without and with a warm-up during the
+     * 500ms the application needs to start. Set ALGOLIA_BENCHMARK to run it.
+     */
+    @Test
+    public void benchmarkFirstSearch() throws Exception {
+        Assume.assumeTrue(System.getenv("ALGOLIA_BENCHMARK") != null);
+        DelayProxy proxy = new DelayProxy(server.getPort(), 150);
+        for (boolean warmUp : new boolean[] { false, true }) {
+            long total = 0;
+            int rounds = 5;
+            for (int i = 0; i < rounds; ++i) {
+                APIClient client = LocalServer.client("127.0.0.1:" + proxy.getPort());
+                if (warmUp) {
+                    client.warmUp();
+                }
+                Thread.sleep(500);
+                long start = System.nanoTime();
+                client.initIndex("test").search(new Query("q" + i));
+                total += System.nanoTime() - start;
+                client.getTransport().shutdown();
+            }
+            System.out.println(String.format("first search %s warm-up: %.1f ms", warmUp ? "with" : "without", total / 1e6 / rounds));
+        }
+        proxy.close();
+    }
+
+    /**
+     * TCP proxy delaying each new connection, counting them
+     */
+    static final class DelayProxy implements Runnable {
+        final AtomicInteger connections = new AtomicInteger();
+        private final ServerSocket serverSocket;
+        private final int targetPort;
+        private final long delayMS;
+
+        DelayProxy(int targetPort, long delayMS) throws IOException {
+            this.serverSocket = new ServerSocket(0, 128, InetAddress.getByName("127.0.0.1"));
+            this.targetPort = targetPort;
+            this.delayMS = delayMS;
+            Thread thread = new Thread(this, "DelayProxy");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    final Socket client = serverSocket.accept();
+                    connections.incrementAndGet();
+                    new Thread(new Runnable() {
+                        public void run() {
+                            try {
+                                Thread.sleep(delayMS);
+                                Socket target = new Socket("127.0.0.1", targetPort);
+                                target.setTcpNoDelay(true);
+                                client.setTcpNoDelay(true);
+                                pipe(target.getInputStream(), client.getOutputStream());
+                                pipe(client.getInputStream(), target.getOutputStream());
+                            } catch (Exception e) {
+                                // connection closed
+                            }
+                        }
+                    }).start();
+                }
+            } catch (IOException e) {
+                // proxy closed
+            }
+        }
+
+        private static void pipe(final InputStream in, final OutputStream out) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    byte[] buffer = new byte[8192];
+                    try {
+                        for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                            out.write(buffer, 0, n);
+                            out.flush();
+                        }
+                        out.close();
+                    } catch (IOException e) {
+                        // connection closed
+                    }
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+}